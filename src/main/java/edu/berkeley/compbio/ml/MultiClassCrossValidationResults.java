@@ -91,6 +91,21 @@ public class MultiClassCrossValidationResults<L extends Comparable> extends Cros
 		numExamples++;
 		}
 
+	/**
+	 * Adds every sample recorded in the given results to these, exactly as though each had been added here directly.
+	 *
+	 * @param from the results to merge into these; not modified
+	 */
+	public void addAll(final MultiClassCrossValidationResults<L> from)
+		{
+		for (final Map.Entry<L, Multiset<L>> entry : from.confusionMatrix.entrySet())
+			{
+			confusionMatrix.get(entry.getKey()).addAll(entry.getValue());
+			}
+		confusionRowNull.addAll(from.confusionRowNull);
+		numExamples += from.numExamples;
+		}
+
 	public float accuracy()
 		{
 		int correct = 0;
@@ -11,6 +11,7 @@ import org.apache.log4j.Logger;
 
 import java.io.Serializable;
 import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -43,6 +44,18 @@ public abstract class AbstractCentroidCluster<T extends Clusterable<T>> extends
 	 */
 	protected double sumOfSquareDistances = 0;
 
+	/**
+	 * An optional packed copy of the centroids of a set of clusters including this one, which must be told whenever the
+	 * centroid moves
+	 */
+	private transient volatile DenseCentroidMatrix<T, ?> denseCentroids;
+	private transient int denseRow;
+
+	/**
+	 * Incremented whenever the centroid moves, so that distances cached against an earlier position can be recognized
+	 */
+	private final AtomicInteger centroidVersion = new AtomicInteger();
+
 
 // --------------------------- CONSTRUCTORS ---------------------------
 
@@ -81,6 +94,16 @@ public abstract class AbstractCentroidCluster<T extends Clusterable<T>> extends
 		return centroid;
 		}
 
+	/**
+	 * Returns a number that changes whenever the centroid moves, for use in caching distances to it.
+	 *
+	 * @return the centroid version
+	 */
+	public int getCentroidVersion()
+		{
+		return centroidVersion.get();
+		}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -166,4 +189,43 @@ public abstract class AbstractCentroidCluster<T extends Clusterable<T>> extends
 		{
 		sumOfSquareDistances += v;
 		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Registers the packed centroid matrix row that mirrors this cluster's centroid.  A cluster mirrors at most one row at
+	 * a time; if it was previously attached to a different matrix, that one is marked stale since it will no longer be
+	 * kept in sync.
+	 */
+	synchronized void attachDenseCentroids(final DenseCentroidMatrix<T, ?> matrix, final int row)
+		{
+		final DenseCentroidMatrix<T, ?> previous = denseCentroids;
+		if (previous != null && previous != matrix)
+			{
+			previous.markStale();
+			}
+		denseRow = row;
+		denseCentroids = matrix;
+		}
+
+	synchronized void detachDenseCentroids(final DenseCentroidMatrix<T, ?> matrix)
+		{
+		if (denseCentroids == matrix)
+			{
+			denseCentroids = null;
+			}
+		}
+
+	/**
+	 * Must be called by subclasses after any modification to (or replacement of) the centroid.
+	 */
+	protected void centroidChanged()
+		{
+		centroidVersion.incrementAndGet();
+		final DenseCentroidMatrix<T, ?> matrix = denseCentroids;
+		if (matrix != null)
+			{
+			matrix.updateRow(denseRow, centroid);
+			}
+		}
 	}
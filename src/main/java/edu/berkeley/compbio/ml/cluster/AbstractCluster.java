@@ -9,7 +9,11 @@ package edu.berkeley.compbio.ml.cluster;
 import com.davidsoergel.dsutils.LabellableImpl;
 import com.davidsoergel.dsutils.collections.ImmutableHashWeightedSet;
 import com.davidsoergel.dsutils.collections.WeightedSet;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -31,9 +35,13 @@ public class AbstractCluster<T extends Clusterable<T>> extends LabellableImpl<St
 	/**
 	 * we let the label probabilities be completely distinct from the local weights themselves, so that the probabilities
 	 * can be set based on outside information (e.g., in the case of the Kohonen map, neighboring cells may exert an
-	 * influence)
+	 * influence).  They are held only in compact form, against the dictionary of the clustering method that last asked
+	 * for them, or one of the cluster's own until one does; label ids mean nothing outside their dictionary, so they are
+	 * serialized as a WeightedSet.
 	 */
-	private WeightedSet<String> derivedLabelProbabilities = null; //new ImmutableHashWeightedSet<String>();
+	private transient volatile LabelWeights derivedLabelWeights = null;
+	@Nullable
+	private transient volatile LabelDictionary labelDictionary = null;
 
 
 // --------------------------- CONSTRUCTORS ---------------------------
@@ -51,15 +59,38 @@ public class AbstractCluster<T extends Clusterable<T>> extends LabellableImpl<St
 	 */
 	public WeightedSet<String> getDerivedLabelProbabilities()//throws DistributionException
 		{
-		return derivedLabelProbabilities;
+		final LabelWeights weights = derivedLabelWeights;
+		return weights == null ? null : weights.toWeightedSet();
 		}
 
 	/**
 	 * {@inheritDoc}
 	 */
-	public void setDerivedLabelProbabilities(final ImmutableHashWeightedSet<String> derivedLabelProbabilities)
+	public synchronized void setDerivedLabelProbabilities(
+			final ImmutableHashWeightedSet<String> derivedLabelProbabilities)
 		{
-		this.derivedLabelProbabilities = derivedLabelProbabilities;
+		derivedLabelWeights = compile(derivedLabelProbabilities);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public LabelWeights getDerivedLabelWeights(final LabelDictionary dictionary)
+		{
+		final LabelWeights current = derivedLabelWeights;
+		if (current != null && current.getDictionary() == dictionary)
+			{
+			return current;
+			}
+		return remapTo(dictionary);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setLabelDictionary(final LabelDictionary dictionary)
+		{
+		remapTo(dictionary);
 		}
 
 	/**
@@ -96,11 +127,10 @@ public class AbstractCluster<T extends Clusterable<T>> extends LabellableImpl<St
 	/**
 	 * {@inheritDoc}
 	 */
-	public void updateDerivedWeightedLabelsFromLocal()//throws DistributionException
+	public synchronized void updateDerivedWeightedLabelsFromLocal()//throws DistributionException
 		{
 		//assert !weightedLabels.isEmpty();
-		derivedLabelProbabilities =
-				new ImmutableHashWeightedSet<String>(getImmutableWeightedLabels()); //mutableWeightedLabels);
+		derivedLabelWeights = compile(getImmutableWeightedLabels()); //mutableWeightedLabels);
 		//derivedLabelProbabilities.addAll(weightedLabels);
 		//derivedLabelProbabilities.normalize();  // don't bother, it'll be done on request anyway
 		}
@@ -147,4 +177,48 @@ public class AbstractCluster<T extends Clusterable<T>> extends LabellableImpl<St
 		{
 		return id - o.getId();
 		}
+
+	@Nullable
+	private LabelWeights compile(@Nullable final WeightedSet<String> labels)
+		{
+		if (labels == null)
+			{
+			return null;
+			}
+		LabelDictionary dictionary = labelDictionary;
+		if (dictionary == null)
+			{
+			dictionary = new LabelDictionary();
+			labelDictionary = dictionary;
+			}
+		return LabelWeights.of(labels, dictionary);
+		}
+
+	/**
+	 * Stores the derived label probabilities against the given dictionary from now on.  This is synchronized with the
+	 * updates of the label probabilities, so that neither can undo the other; readers take no lock.
+	 *
+	 * @return the remapped label probabilities, or null if there are none
+	 */
+	@Nullable
+	private synchronized LabelWeights remapTo(final LabelDictionary dictionary)
+		{
+		labelDictionary = dictionary;
+		final LabelWeights current = derivedLabelWeights;
+		final LabelWeights result = current == null ? null : current.remappedTo(dictionary);
+		derivedLabelWeights = result;
+		return result;
+		}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException
+		{
+		out.defaultWriteObject();
+		out.writeObject(getDerivedLabelProbabilities());
+		}
+
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+		{
+		in.defaultReadObject();
+		derivedLabelWeights = compile((WeightedSet<String>) in.readObject());
+		}
 	}
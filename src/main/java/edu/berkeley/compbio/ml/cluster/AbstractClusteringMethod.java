@@ -7,24 +7,30 @@
 package edu.berkeley.compbio.ml.cluster;
 
 import com.davidsoergel.conja.Function;
-import com.davidsoergel.conja.Parallel;
-import com.davidsoergel.conja.ProgressReportingThreadPoolExecutor;
 import com.davidsoergel.dsutils.Labellable;
-import com.davidsoergel.dsutils.collections.WeightedSet;
 import com.davidsoergel.dsutils.math.MersenneTwisterFast;
 import com.davidsoergel.stats.DissimilarityMeasure;
 import com.davidsoergel.stats.DistributionException;
+import com.davidsoergel.stats.DoubleArrayContainer;
+import com.davidsoergel.stats.ProbabilisticDissimilarityMeasure;
 import com.davidsoergel.stats.RequiresPreparationDistanceMetric;
+import edu.berkeley.compbio.ml.distancemeasure.BoundedDissimilarityMeasure;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayDissimilarityMeasure;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -37,12 +43,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @version $Id$
  */
 public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C extends Cluster<T>>
-		implements ClusteringMethod<T>
+		implements ClusteringMethod<T>, Closeable
 	{
 // ------------------------------ FIELDS ------------------------------
 
 	private static final Logger logger = Logger.getLogger(AbstractClusteringMethod.class);
 
+	// the most sample-to-centroid distances a test block may hold at once; larger blocks are split into several
+	private static final int MAX_BLOCK_DISTANCES = 1 << 20;
+
 	//set in the constructor
 	protected final DissimilarityMeasure<T> measure;
 	protected final Set<String> potentialTrainingBins;
@@ -53,9 +62,45 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	//state
 	protected final ArrayList<C> theClusters;
 	// = new ArrayList<C>(); //Collections.synchronizedList(new ArrayList<C>());
-	protected final Map<String, C> assignments;// = new HashMap<String, C>();// see whether anything changed
+	protected final AssignmentStore<C> assignments;// see whether anything changed
 	protected int n;//= 0;
 
+	// immutable copy of theClusters, rebuilt lazily whenever the set of clusters changes, so that readers need not lock
+	private volatile List<C> clusterSnapshot;
+
+	// the clusters prohibited to each bin of a BinnedProhibitionModel, by index into clusterSnapshot
+	private volatile ClusterMaskCache<T> snapshotMasks;
+
+	// optional packed copy of the centroids, rebuilt lazily whenever the set of clusters changes
+	private boolean useDenseCentroids = false;
+	private volatile DenseCentroidMatrix<T, C> denseCentroids;
+	private volatile boolean denseCentroidsUnavailable = false;
+
+	private int testBlockSize = 0;
+	private int sampleBatchSize = 32;
+
+	private ExecutionPolicy executionPolicy = ExecutionPolicy.conja();
+
+	// if set, scans of more than scanPartitionSize clusters for a single query are divided among threads
+	private ExecutionPolicy scanPolicy = null;
+	private int scanPartitionSize = 0;
+
+	private boolean stripeTestResults = false;
+	private boolean streamTestResults = false;
+
+	private ClusteringMetricsListener metricsListener = new EmptyClusteringMetricsListener();
+	private volatile boolean metricsEnabled = false;
+	private final StripedCounter distanceEvaluations = new StripedCounter();
+
+	// label ids for the compact label weights of samples and clusters, and the label sets compiled against it; clusters
+	// are asked for their label weights against it, and remap them to it if need be
+	protected final LabelDictionary labelDictionary = new LabelDictionary();
+	private volatile LabelMasks labelMasks;
+
+	// optional cache of point-to-centroid distances, for expensive measures
+	@Nullable
+	private volatile DistanceMemo<T> distanceMemo;
+
 
 //	protected final int testThreads;
 
@@ -87,7 +132,7 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		this.predictLabelSets = predictLabelSets;
 		this.testLabels = testLabels;
 		this.theClusters = new ArrayList<C>();
-		this.assignments = new HashMap<String, C>();
+		this.assignments = new AssignmentStore<C>();
 		this.n = 0;
 
 		//this.friendlyLabelMap =friendlyLabelMap;
@@ -99,7 +144,7 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	public AbstractClusteringMethod(final DissimilarityMeasure<T> dm, final Set<String> potentialTrainingBins,
 	                                final Map<String, Set<String>> predictLabelSets,
 	                                final ProhibitionModel<T> prohibitionModel, final Set<String> testLabels,
-	                                final ArrayList<C> theClusters, final Map<String, C> assignments, final int n)
+	                                final ArrayList<C> theClusters, final AssignmentStore<C> assignments, final int n)
 		{
 		measure = dm;
 		this.potentialTrainingBins = potentialTrainingBins;
@@ -126,28 +171,241 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		return n;
 		}
 
-	public int getNumClusters()
+	public boolean isUseDenseCentroids()
 		{
+		return useDenseCentroids;
+		}
+
+	/**
+	 * Enables or disables scanning a packed copy of the centroids (see {@link DenseCentroidMatrix}) in place of iterating
+	 * over the cluster objects.  This takes effect only where the points and centroids are DoubleArrayContainers and the
+	 * measure is a (non-probabilistic) DoubleArrayDissimilarityMeasure; otherwise the ordinary scan is used anyway.
+	 *
+	 * @param useDenseCentroids whether to use a packed centroid matrix where possible
+	 */
+	public void setUseDenseCentroids(final boolean useDenseCentroids)
+		{
+		this.useDenseCentroids = useDenseCentroids;
 		synchronized (theClusters)
 			{
-			return theClusters.size();
+			clustersChanged();
 			}
 		}
 
+	@Nullable
+	public DistanceMemo<T> getDistanceMemo()
+		{
+		return distanceMemo;
+		}
+
+	/**
+	 * Sets a cache through which point-to-centroid distances are looked up before being computed.  This pays off only for
+	 * measures that are expensive relative to a hash lookup, such as probabilistic ones, and only where points have ids.
+	 *
+	 * @param distanceMemo the cache to use, or null to compute every distance afresh
+	 */
+	public void setDistanceMemo(@Nullable final DistanceMemo<T> distanceMemo)
+		{
+		this.distanceMemo = distanceMemo;
+		}
+
+	public ExecutionPolicy getExecutionPolicy()
+		{
+		return executionPolicy;
+		}
+
+	/**
+	 * Sets how the parallel loops over samples and clusters are run, e.g. on a pool shared with other work.
+	 *
+	 * @param executionPolicy the policy; by default, conja's Parallel.forEach
+	 */
+	public void setExecutionPolicy(final ExecutionPolicy executionPolicy)
+		{
+		this.executionPolicy = executionPolicy;
+		}
+
+	public ClusteringMetricsListener getMetricsListener()
+		{
+		return metricsListener;
+		}
+
+	/**
+	 * Sets the listener to be told of throughput during training and testing: samples per second, distance evaluations,
+	 * reassignments per epoch, merges, queue depths, and the time taken by each phase.  Distance evaluations are counted
+	 * only while a listener other than the EmptyClusteringMetricsListener is set.
+	 *
+	 * @param metricsListener the listener; by default, an EmptyClusteringMetricsListener
+	 */
+	public void setMetricsListener(final ClusteringMetricsListener metricsListener)
+		{
+		this.metricsListener = metricsListener;
+		metricsEnabled = !(metricsListener instanceof EmptyClusteringMetricsListener);
+		}
+
+	@Nullable
+	public ExecutionPolicy getScanPolicy()
+		{
+		return scanPolicy;
+		}
+
+	public int getScanPartitionSize()
+		{
+		return scanPartitionSize;
+		}
+
+	/**
+	 * Enables dividing the clusters into partitions that are scanned in parallel when classifying a single sample, for
+	 * low latency on few samples against very many clusters.  Each partition finds its own nearest clusters, which are
+	 * then merged, giving the same nearest clusters as a single scan.  This applies to the nearest-centroid scans of
+	 * packed centroids (see setUseDenseCentroids()) and to the neighbor scans of MultiNeighborClustering.
+	 * <p/>
+	 * Since samples are usually classified in parallel themselves, the scan policy should not be one that waits on the
+	 * same bounded pool as the execution policy; a separate pool (e.g. a ForkJoinPool via ExecutionPolicy.using()), or
+	 * the caller-runs execution policy for the samples, avoids that.
+	 *
+	 * @param scanPolicy        how to run the partitions, or null to scan in the calling thread (the default)
+	 * @param scanPartitionSize the number of clusters per partition
+	 */
+	public void setPartitionedScan(@Nullable final ExecutionPolicy scanPolicy, final int scanPartitionSize)
+		{
+		if (scanPolicy != null && scanPartitionSize < 1)
+			{
+			throw new ClusterRuntimeException("Scan partition size must be at least 1: " + scanPartitionSize);
+			}
+		this.scanPolicy = scanPolicy;
+		this.scanPartitionSize = scanPartitionSize;
+		}
+
+	public int getSampleBatchSize()
+		{
+		return sampleBatchSize;
+		}
+
+	/**
+	 * Sets the number of samples each thread of a parallel loop over a ClusterableIterator (in training and testing) takes
+	 * from the iterator at a time, with nextBatch() if it has one.  Larger batches reduce contention for the iterator
+	 * where the work per sample is cheap, at the cost of a less even division of the work among threads.
+	 *
+	 * @param sampleBatchSize the number of samples per batch; 0 or 1 to take samples one at a time
+	 */
+	public void setSampleBatchSize(final int sampleBatchSize)
+		{
+		if (sampleBatchSize < 0)
+			{
+			throw new ClusterRuntimeException("Sample batch size must not be negative: " + sampleBatchSize);
+			}
+		this.sampleBatchSize = sampleBatchSize;
+		}
+
+	public int getTestBlockSize()
+		{
+		return testBlockSize;
+		}
+
+	/**
+	 * Sets the number of test samples whose distances to every centroid are computed together, as one blocked matrix
+	 * product (see {@link BlockDistanceEngine}), before each is classified.  The block is multiplied against the packed
+	 * centroids, so this takes effect only if dense centroids are enabled (see setUseDenseCentroids()), and only for
+	 * clustering methods that accept precomputed distances, where the points and centroids are DoubleArrayContainers of a
+	 * common length and the measure is Euclidean, squared Euclidean, or cosine; otherwise samples are tested one at a time
+	 * anyway.
+	 * <p/>
+	 * The blocked distances may differ from those computed one at a time by a rounding error on the order of the norms of
+	 * the vectors times machine epsilon, so classifications of samples equidistant (to within that error) from two
+	 * centroids may differ.
+	 * <p/>
+	 * A block holds the distances from each of its samples to every centroid, so with very many clusters it is split into
+	 * smaller ones as needed to bound that buffer; with so many clusters that not even two samples fit, samples are tested
+	 * one at a time.
+	 *
+	 * @param testBlockSize the number of samples per block; 0 or 1 to test samples one at a time
+	 */
+	public void setTestBlockSize(final int testBlockSize)
+		{
+		this.testBlockSize = testBlockSize;
+		}
+
+	public boolean isStripeTestResults()
+		{
+		return stripeTestResults;
+		}
+
+	/**
+	 * Sets whether the threads testing samples in parallel record their results separately, to be merged when testing is
+	 * done, rather than contending for a lock on a shared ClusteringTestResults.  The merged results are the same either
+	 * way, except for the order in which the per-sample distances and ratios are listed.
+	 *
+	 * @param stripeTestResults whether to record test results per thread
+	 */
+	public void setStripeTestResults(final boolean stripeTestResults)
+		{
+		this.stripeTestResults = stripeTestResults;
+		}
+
+	public boolean isStreamTestResults()
+		{
+		return streamTestResults;
+		}
+
+	/**
+	 * Sets whether test() summarizes the per-sample distances, ratios, and proportions in bounded memory, rather than
+	 * keeping every value.  The results then report counts, means, standard deviations, approximate percentiles, and
+	 * histograms in place of the per-sample arrays.
+	 *
+	 * @param streamTestResults whether to use constant-memory test results
+	 * @see StreamingStatistics
+	 */
+	public void setStreamTestResults(final boolean streamTestResults)
+		{
+		this.streamTestResults = streamTestResults;
+		}
+
+	public int getNumClusters()
+		{
+		return getClusters().size();
+		}
+
 // ------------------------ INTERFACE METHODS ------------------------
 
 
+// --------------------- Interface Closeable ---------------------
+
+	/**
+	 * Releases the file holding the assignments, if they were spilled to one.  Methods sharing the assignments of this
+	 * one, as the hierarchical methods do, must not be used afterwards either.
+	 *
+	 * @throws IOException if the file can't be closed
+	 */
+	public void close() throws IOException
+		{
+		assignments.close();
+		}
+
 // --------------------- Interface ClusterSet ---------------------
 
 	/**
 	 * {@inheritDoc}
+	 * <p/>
+	 * The result is an immutable snapshot of the clusters as of the last change to the set of clusters; it is not affected
+	 * by later changes.  Repeated calls return the same snapshot until the set of clusters changes, without locking.
 	 */
 	public List<C> getClusters() //? extends C>
 		{
-		synchronized (theClusters)
+		List<C> result = clusterSnapshot;
+		if (result == null)
 			{
-			return Collections.unmodifiableList(theClusters);
+			synchronized (theClusters)
+				{
+				result = clusterSnapshot;
+				if (result == null)
+					{
+					result = Collections.unmodifiableList(new ArrayList<C>(theClusters));
+					snapshotMasks = new ClusterMaskCache<T>(result);
+					clusterSnapshot = result;
+					}
+				}
 			}
+		return result;
 		}
 
 	public void setNumClusters(final int numClusters)
@@ -163,6 +421,7 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		synchronized (theClusters)
 			{
 			theClusters.add(c);
+			clustersChanged();
 			}
 		}
 
@@ -171,45 +430,122 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		synchronized (theClusters)
 			{
 			theClusters.set(index, c);
+			clustersChanged();
 			}
 		}
 
-	public int getClusterIndexOf(final C c)
+	/**
+	 * Replaces the clusters of this method with those from a snapshot written by a ModelSnapshotWriter, so that it is
+	 * ready to classify samples without training.  The restored clusters are read-only, so the method can't be trained
+	 * further afterwards.  Only methods over ClusterableDoubleArrays can be restored.
+	 *
+	 * @param snapshot the snapshot to restore from
+	 * @throws ClusterRuntimeException if this method does not support snapshots, or the snapshot is of the wrong kind
+	 */
+	public void restoreFrom(final MappedModelSnapshot snapshot)
 		{
-		synchronized (theClusters)
+		throw new ClusterRuntimeException(getClass().getSimpleName() + " can't be restored from a snapshot");
+		}
+
+	/**
+	 * Restores a flat list of clusters from the given snapshot, for subclasses whose clusters are plain CentroidClusters.
+	 */
+	protected void restoreFlatClusters(final MappedModelSnapshot snapshot)
+		{
+		if (snapshot.getKind() != ModelSnapshotWriter.KIND_FLAT)
 			{
-			return theClusters.indexOf(c);
+			throw new ClusterRuntimeException("Expected a snapshot of a flat list of clusters");
 			}
+		restoreClusters((List) snapshot.getClusters());
 		}
 
-	public C getCluster(final int index)
+	/**
+	 * Replaces all of the clusters at once.
+	 */
+	protected void restoreClusters(final List<? extends C> clusters)
 		{
 		synchronized (theClusters)
 			{
-			return theClusters.get(index);
+			theClusters.clear();
+			theClusters.addAll(clusters);
+			for (final C c : clusters)
+				{
+				// a snapshot's clusters come with the snapshot's labels; map them to ours now rather than on first use
+				c.setLabelDictionary(labelDictionary);
+				}
+			clustersChanged();
 			}
 		}
 
+	public int getClusterIndexOf(final C c)
+		{
+		return getClusters().indexOf(c);
+		}
+
+	public C getCluster(final int index)
+		{
+		return getClusters().get(index);
+		}
+
 	public Map<String, C> getAssignments()
 		{
-		synchronized (assignments)
-			{
-			return Collections.unmodifiableMap(assignments);
-			}
+		return Collections.unmodifiableMap(assignments);
 		}
 
 	public void putAssignment(final String pointId, final C cluster)
 		{
-		synchronized (assignments)
+		assignments.put(pointId, cluster);
+		}
+
+	/**
+	 * As putAssignment(pointId, cluster), but using the sample's assignment ordinal if it is already known, e.g. from the
+	 * sampleOrdinal of a ClusterMove found by findOldCluster().
+	 *
+	 * @param ordinal the sample's assignment ordinal, or -1 if it has none yet
+	 */
+	public void putAssignment(final String pointId, final int ordinal, final C cluster)
+		{
+		if (ordinal >= 0)
+			{
+			assignments.setByOrdinal(ordinal, cluster);
+			}
+		else
 			{
 			assignments.put(pointId, cluster);
 			}
 		}
 
+	/**
+	 * Sets the oldCluster of the given move to the cluster to which the sample with the given id is currently assigned,
+	 * and its sampleOrdinal to the sample's assignment ordinal, so that the id is looked up only once per move.
+	 */
+	public void findOldCluster(final String id, final ClusterMove<T, C> move)
+		{
+		if (id == null)
+			{
+			move.oldCluster = assignments.get(null);
+			return;
+			}
+		final int ordinal = assignments.ordinalOf(id);
+		move.sampleOrdinal = ordinal;
+		move.oldCluster = ordinal < 0 ? null : assignments.getByOrdinal(ordinal);
+		}
+
+	protected void removeClusters(final Collection<?> clusters)
+		{
+		synchronized (theClusters)
+			{
+			theClusters.removeAll(clusters);
+			assignments.release(clusters);
+			clustersChanged();
+			}
+		}
+
 	protected void removeEmptyClusters()
 		{
 		synchronized (theClusters)
 			{
+			final List<C> removed = new ArrayList<C>();
 			final Iterator<C> iter = theClusters.iterator();
 			while (iter.hasNext())
 				{
@@ -217,8 +553,219 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 				if (c.getN() == 0)
 					{
 					iter.remove();
+					removed.add(c);
 					}
 				}
+			assignments.release(removed);
+			clustersChanged();
+			}
+		}
+
+	/**
+	 * Returns the packed centroid matrix to scan in place of getClusters() when finding the nearest centroid to the given
+	 * point, building it first if necessary.
+	 *
+	 * @param p the point about to be classified
+	 * @return the packed centroids, or null if dense centroids are disabled or not applicable to this point, measure, or
+	 *         set of clusters; in that case the caller should fall back on iterating over getClusters().
+	 */
+	@Nullable
+	public DenseCentroidMatrix<T, C> getDenseCentroidsFor(final T p)
+		{
+		if (!useDenseCentroids || !(p instanceof DoubleArrayContainer)
+		    || !(measure instanceof DoubleArrayDissimilarityMeasure) || measure instanceof ProbabilisticDissimilarityMeasure)
+			{
+			return null;
+			}
+		if (p instanceof SparseClusterableArray && ((SparseClusterableArray) p).isSparse())
+			{
+			// comparing with each centroid via the sparse kernels is cheaper than densifying the point
+			return null;
+			}
+
+		final DenseCentroidMatrix<T, C> result = currentDenseCentroids();
+		if (result == null || ((DoubleArrayContainer) p).getArray().length != result.getDimensions())
+			{
+			return null;
+			}
+		return result;
+		}
+
+	/**
+	 * Returns the packed centroid matrix, building it first if necessary or if the existing one has gone stale.
+	 *
+	 * @return the packed centroids, or null if the clusters can't be packed
+	 */
+	@Nullable
+	private DenseCentroidMatrix<T, C> currentDenseCentroids()
+		{
+		if (denseCentroidsUnavailable)
+			{
+			return null;
+			}
+
+		DenseCentroidMatrix<T, C> result = denseCentroids;
+		if (result == null || result.isStale())
+			{
+			synchronized (theClusters)
+				{
+				result = denseCentroids;
+				if (result == null || result.isStale())
+					{
+					if (result != null)
+						{
+						result.detach();
+						}
+					result = DenseCentroidMatrix.build(theClusters);
+					denseCentroids = result;
+					denseCentroidsUnavailable = result == null;
+					}
+				}
+			}
+		return result;
+		}
+
+	/**
+	 * Returns the prohibition filter for the given point.  Under a BinnedProhibitionModel, the filter carries the point's
+	 * bin, so that scans can use getProhibitedClusters() in place of asking it about each cluster.
+	 *
+	 * @param p the point about to be classified
+	 * @return the filter, or null if there is no prohibition model
+	 */
+	@Nullable
+	protected PointClusterFilter<T> getClusterFilter(final T p)
+		{
+		if (prohibitionModel == null)
+			{
+			return null;
+			}
+		final PointClusterFilter<T> result = prohibitionModel.getFilter(p);
+		if (prohibitionModel instanceof BinnedProhibitionModel)
+			{
+			final Object bin = ((BinnedProhibitionModel<T>) prohibitionModel).getBin(p);
+			if (bin != null)
+				{
+				return new BinnedPointClusterFilter<T>(bin, result);
+				}
+			}
+		return result;
+		}
+
+	/**
+	 * Finds the indexes of the clusters in the given list that the given filter prohibits, if they can be looked up in
+	 * the cache for the current snapshot of the clusters.  Scans over the list can then skip them with
+	 * ClusterMaskCache.nextPermitted().
+	 *
+	 * @param filter   the filter from getClusterFilter(); may be null
+	 * @param clusters the list to be scanned
+	 * @return the prohibited indexes, which must not be modified, or null if the caller should ask the filter (if any)
+	 *         about each cluster, because the filter is not binned or the list is not the current snapshot
+	 */
+	@Nullable
+	protected BitSet getProhibitedClusters(@Nullable final PointClusterFilter<T> filter, final List<? extends C> clusters)
+		{
+		final ClusterMaskCache<T> masks = snapshotMasks;
+		return masks == null || !masks.isFor(clusters) ? null : masks.getProhibited(filter);
+		}
+
+	/**
+	 * Computes the distance between two points using the configured measure, allowing it to give up early if the result
+	 * would exceed the given bound.
+	 *
+	 * @return exactly measure.distanceFromTo(a, b) if that is <= upperBound; otherwise any larger value
+	 * @see BoundedDissimilarityMeasure
+	 */
+	protected double distanceFromToBounded(final T a, final T b, final double upperBound)
+		{
+		if (metricsEnabled)
+			{
+			distanceEvaluations.increment();
+			}
+		if (upperBound != Double.POSITIVE_INFINITY && measure instanceof BoundedDissimilarityMeasure)
+			{
+			return ((BoundedDissimilarityMeasure<T>) measure).distanceFromToBounded(a, b, upperBound);
+			}
+		return measure.distanceFromTo(a, b);
+		}
+
+	/**
+	 * Computes the distance from a point to the centroid of a cluster, allowing the measure to give up early if the
+	 * result would exceed the given bound, and using the distance memo if one is set.
+	 *
+	 * @return exactly the distance if that is <= upperBound; otherwise any larger value
+	 */
+	protected double distanceToCentroid(final T p, final CentroidCluster<T> cluster, final double upperBound)
+		{
+		final DistanceMemo<T> memo = distanceMemo;
+		final DistanceMemo.Key key = memo == null ? null : memo.keyFor(p, cluster);
+		if (key == null)
+			{
+			return distanceFromToBounded(p, cluster.getCentroid(), upperBound);
+			}
+
+		final Double known = memo.get(key);
+		if (known != null)
+			{
+			return known;
+			}
+		final double result = distanceFromToBounded(p, cluster.getCentroid(), upperBound);
+		if (result <= upperBound)
+			{
+			// beyond the bound the result may not be exact, so can't be reused
+			memo.put(key, result);
+			}
+		return result;
+		}
+
+	/**
+	 * Computes the distance from a point to the centroid of a cluster given the prior probability of the cluster, using
+	 * the distance memo if one is set.  The measure must be a ProbabilisticDissimilarityMeasure.
+	 */
+	protected double probabilisticDistanceToCentroid(final T p, final CentroidCluster<T> cluster, final double prior)
+		{
+		final DistanceMemo<T> memo = distanceMemo;
+		final DistanceMemo.Key key = memo == null ? null : memo.keyFor(p, cluster, prior);
+		final Double known = memo == null ? null : memo.get(key);
+		if (known != null)
+			{
+			return known;
+			}
+		if (metricsEnabled)
+			{
+			distanceEvaluations.increment();
+			}
+		final double result = ((ProbabilisticDissimilarityMeasure) measure).distanceFromTo(p, cluster.getCentroid(), prior);
+		if (key != null)
+			{
+			memo.put(key, result);
+			}
+		return result;
+		}
+
+	/**
+	 * Discards the cluster snapshot and the packed centroid matrix, if any, so that they are rebuilt on next use, along
+	 * with any memoized distances.  Must be called while holding the theClusters lock whenever the set of clusters
+	 * changes, including when it is changed through another clustering method sharing the same list.  Subclasses that
+	 * keep other indexes derived from the clusters should override this to discard those too, calling super.
+	 */
+	protected void clustersChanged()
+		{
+		clusterSnapshot = null;
+		snapshotMasks = null;
+
+		final DenseCentroidMatrix<T, C> old = denseCentroids;
+		if (old != null)
+			{
+			old.detach();
+			denseCentroids = null;
+			}
+		denseCentroidsUnavailable = false;
+
+		// a replacement cluster may reuse an id, and its centroid version counts from zero again
+		final DistanceMemo<T> memo = distanceMemo;
+		if (memo != null)
+			{
+			memo.clear();
 			}
 		}
 // --------------------- Interface ClusteringMethod ---------------------
@@ -247,7 +794,10 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	                                               final DissimilarityMeasure<String> intraLabelDistances)
 			throws DistributionException, ClusterException
 		{
-		final ClusteringTestResults tr = new ClusteringTestResults();
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
+
+		final ClusteringTestResults tr = new ClusteringTestResults(stripeTestResults, streamTestResults);
 
 		tr.setNumClusters(getNumClusters());
 
@@ -281,29 +831,68 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		// these are used for checking whether a sample should have been unknown or not
 		final Map<String, Set<String>> populatedPredictLabelSets = findPopulatedPredictLabelSets();
 
+		// the label sets may have changed since the last test
+		labelMasks = new LabelMasks(labelDictionary, testLabels, predictLabelSets);
+
 		// classify the test samples
 
 		final AtomicInteger i = new AtomicInteger(0);
 
-		Parallel.forEach(theTestIterator, new Function<T, Void>()
-		{
-		public Void apply(@Nullable final T frag)
+		final BlockDistanceEngine engine =
+				testBlockSize > 1 && useDenseCentroids && acceptsPrecomputedDistances()
+				&& !(measure instanceof ProbabilisticDissimilarityMeasure) ? BlockDistanceEngine.forMeasure(measure) : null;
+		final DenseCentroidMatrix<T, C> blockCentroids = engine == null ? null : currentDenseCentroids();
+
+		if (blockCentroids != null)
 			{
-			// the forEach uses next(), not nextFullyLabelled
-			frag.doneLabelling();  // just in case, though it may have already been called
-			i.incrementAndGet();
-			testOneSample(intraLabelDistances, tr, populatedPredictLabelSets, frag);
-			return null;
+			executionPolicy.forEach(new ExecutionPolicy.BatchIterator<T>(theTestIterator, testBlockSize),
+			                        new Function<List<T>, Void>()
+			{
+			public Void apply(@Nullable final List<T> block)
+				{
+				for (final T frag : block)
+					{
+					frag.doneLabelling();  // just in case, though it may have already been called
+					}
+				i.addAndGet(block.size());
+				testBlock(engine, blockCentroids, intraLabelDistances, tr, populatedPredictLabelSets, block);
+				return null;
+				}
+			});
+			}
+		else
+			{
+			executionPolicy.forEach(theTestIterator, sampleBatchSize, new Function<T, Void>()
+			{
+			public Void apply(@Nullable final T frag)
+				{
+				// the forEach uses next() or nextBatch(), not nextFullyLabelled
+				frag.doneLabelling();  // just in case, though it may have already been called
+				i.incrementAndGet();
+				testOneSample(intraLabelDistances, tr, populatedPredictLabelSets, frag);
+				return null;
+				}
+			});
 			}
-		});
 
 		logger.info("Tested " + i + " samples.");
 		tr.setTestSamples(i.intValue());
 
 		tr.finish();
+
+		metricsListener.testCompleted(i.intValue(), getDistanceEvaluations() - startDistanceEvaluations,
+		                              System.nanoTime() - startNanos);
 		return tr;
 		}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public ClassificationPipeline<T> classificationPipeline(final Set<String> predictLabels)
+		{
+		return new ClassificationPipeline<T>(this, predictLabels);
+		}
+
 	/**
 	 * Choose the best label for the given sample from the set of permissible labels
 	 *
@@ -315,7 +904,11 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	public String bestLabel(final T sample, final Set<String> predictLabels) throws NoGoodClusterException
 		{
 		final Cluster<T> c = bestClusterMove(sample).bestCluster;
-		return c.getImmutableWeightedLabels().getDominantKeyInSet(predictLabels);
+
+		// compiled against the dictionary so that ties are broken as everywhere else (see LabelWeights); the mask first,
+		// so that the predict labels are all known when the cluster's labels are looked up
+		final LabelMask mask = labelDictionary.mask(predictLabels);
+		return LabelWeights.lookUp(c.getImmutableWeightedLabels(), labelDictionary).getDominantLabelIn(mask);
 //		c.updateDerivedWeightedLabelsFromLocal();
 //		WeightedSet<String> probs = c.getDerivedLabelProbabilities();
 //		String label = probs.getDominantKey();
@@ -344,7 +937,9 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 			}
 		return result;*/
 
-		return getCluster(MersenneTwisterFast.randomInt(getNumClusters()));
+		// take the index and the cluster from the same snapshot, in case the set of clusters changes in between
+		final List<C> clusters = getClusters();
+		return clusters.get(MersenneTwisterFast.randomInt(clusters.size()));
 		}
 
 	/**
@@ -365,26 +960,27 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		{
 		final Map<String, Set<String>> result = new HashMap<String, Set<String>>();
 
-		for (final Map.Entry<String, Set<String>> entry : predictLabelSets.entrySet())
+		for (final Map.Entry<String, LabelMask> entry : getLabelMasks().predictLabels.entrySet())
 			{
 			final String predictionSetName = entry.getKey();
-			final Set<String> predictLabels = entry.getValue();
+			final LabelMask predictLabels = entry.getValue();
 
 			final Set<String> populatedPredictLabels = new HashSet<String>();
 			int clustersWithPredictionLabel = 0;
 			for (final C theCluster : getClusters())
 				{
-				WeightedSet<String> labelProbabilities = theCluster.getDerivedLabelProbabilities();
 				try
 					{
 					// note this also insures that every cluster has a prediction label, otherwise it throws NoSuchElementException
-					final String label = labelProbabilities.getDominantKeyInSet(predictLabels);
+					final String label =
+							theCluster.getDerivedLabelWeights(labelDictionary).getDominantLabelIn(predictLabels);
 					populatedPredictLabels.add(label);
 					clustersWithPredictionLabel++;
 					}
 				catch (NoSuchElementException e)
 					{
-					logger.warn("Cluster has no " + predictionSetName + " prediction label: " + labelProbabilities);
+					logger.warn("Cluster has no " + predictionSetName + " prediction label: "
+					            + theCluster.getDerivedLabelProbabilities());
 					}
 				}
 			result.put(predictionSetName, populatedPredictLabels);
@@ -404,7 +1000,7 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 			final String predictionSetName = entry.getKey();
 			final Set<String> predictLabels = entry.getValue();
 
-			for (C theCluster : theClusters)
+			for (C theCluster : getClusters())
 				{
 				final WeightedSet<String> fragmentActualLabels = theCluster.getImmutableWeightedLabels();
 				try
@@ -461,26 +1057,55 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	 */
 	public C getAssignment(final String id)
 		{
-		synchronized (assignments)
+		return assignments.get(id);
+		}
+
+	/**
+	 * Records distances computed other than through distanceFromToBounded() or probabilisticDistanceToCentroid(), e.g.
+	 * by a packed centroid scan, for the metrics listener.
+	 */
+	protected void countDistanceEvaluations(final long count)
+		{
+		if (metricsEnabled)
 			{
-			return assignments.get(id);
+			distanceEvaluations.add(count);
 			}
 		}
 
+	/**
+	 * @return the number of distances computed so far by this clustering, counted only while a metrics listener is set;
+	 *         callers interested in a particular operation should take the difference before and after
+	 */
+	protected long getDistanceEvaluations()
+		{
+		return metricsEnabled ? distanceEvaluations.get() : 0;
+		}
+
+	protected boolean isMetricsEnabled()
+		{
+		return metricsEnabled;
+		}
+
+	/**
+	 * Tells the metrics listener that the named phase, begun at the given System.nanoTime(), has finished.
+	 */
+	protected void phaseCompleted(final String phase, final long startNanos)
+		{
+		metricsListener.phaseCompleted(phase, System.nanoTime() - startNanos);
+		}
+
 	protected void normalizeClusterLabelProbabilities()
 		{
-		final ProgressReportingThreadPoolExecutor execService = new ProgressReportingThreadPoolExecutor();
-		for (final Cluster<T> c : getClusters())
-			{
-			execService.submit(new Runnable()
+		final List<C> clusters = getClusters();
+		executionPolicy.forEach(clusters, new Function<C, Void>()
+		{
+		public Void apply(@Nullable final C c)
 			{
-			public void run()
-				{
-				c.updateDerivedWeightedLabelsFromLocal();
-				}
-			});
+			c.updateDerivedWeightedLabelsFromLocal();
+			return null;
 			}
-		execService.finish("Normalized %d training probabilities", 30);
+		});
+		logger.info("Normalized " + clusters.size() + " training probabilities");
 		}
 
 	/**
@@ -497,15 +1122,92 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	protected void testOneSample(final DissimilarityMeasure<String> intraLabelDistances, final ClusteringTestResults tr,
 	                             final Map<String, Set<String>> populatedPredictLabelSets, final T frag)
 		{
-		final WeightedSet<String> predictedLabelWeights = predictLabelWeights(tr, frag);
+		final LabelWeights predictedLabelWeights = predictLabelWeights(tr, frag);
 		testAgainstPredictionLabels(intraLabelDistances, tr, populatedPredictLabelSets, frag, predictedLabelWeights);
 		}
 
+	/**
+	 * Tests a block of samples, computing the distances from all of them to every centroid at once and then classifying
+	 * each using those distances.  Samples that are not double arrays of the right length are tested one at a time.  The
+	 * block is first split so that no more than MAX_BLOCK_DISTANCES distances are held at once.
+	 */
+	protected void testBlock(final BlockDistanceEngine engine, final DenseCentroidMatrix<T, C> centroids,
+	                         final DissimilarityMeasure<String> intraLabelDistances, final ClusteringTestResults tr,
+	                         final Map<String, Set<String>> populatedPredictLabelSets, final List<T> block)
+		{
+		final int maxQueries = MAX_BLOCK_DISTANCES / Math.max(1, centroids.getNumRows());
+		if (maxQueries < 2)
+			{
+			for (final T frag : block)
+				{
+				testOneSample(intraLabelDistances, tr, populatedPredictLabelSets, frag);
+				}
+			return;
+			}
+		for (int from = 0; from < block.size(); from += maxQueries)
+			{
+			testBoundedBlock(engine, centroids, intraLabelDistances, tr, populatedPredictLabelSets,
+			                 block.subList(from, Math.min(from + maxQueries, block.size())));
+			}
+		}
+
+	private void testBoundedBlock(final BlockDistanceEngine engine, final DenseCentroidMatrix<T, C> centroids,
+	                              final DissimilarityMeasure<String> intraLabelDistances,
+	                              final ClusteringTestResults tr,
+	                              final Map<String, Set<String>> populatedPredictLabelSets, final List<T> block)
+		{
+		final int rows = centroids.getNumRows();
+		final double[][] queries = new double[block.size()][];
+		for (int j = 0; j < queries.length; j++)
+			{
+			final T frag = block.get(j);
+			if (frag instanceof DoubleArrayContainer)
+				{
+				final double[] query = ((DoubleArrayContainer) frag).getArray();
+				if (query.length == centroids.getDimensions())
+					{
+					queries[j] = query;
+					}
+				}
+			}
+
+		final double[] distances = new double[queries.length * rows];
+		engine.compute(centroids, queries, distances);
+		if (metricsEnabled)
+			{
+			int computed = 0;
+			for (final double[] query : queries)
+				{
+				if (query != null)
+					{
+					computed++;
+					}
+				}
+			distanceEvaluations.add((long) computed * rows);
+			}
+
+		for (int j = 0; j < queries.length; j++)
+			{
+			final T frag = block.get(j);
+			if (queries[j] == null)
+				{
+				testOneSample(intraLabelDistances, tr, populatedPredictLabelSets, frag);
+				}
+			else
+				{
+				final LabelWeights predictedLabelWeights =
+						predictLabelWeights(tr, frag, new CentroidDistances<T, C>(centroids, distances, j * rows));
+				testAgainstPredictionLabels(intraLabelDistances, tr, populatedPredictLabelSets, frag,
+				                            predictedLabelWeights);
+				}
+			}
+		}
+
 
 	protected void testAgainstPredictionLabels(final DissimilarityMeasure<String> intraLabelDistances,
 	                                           final ClusteringTestResults tr,
 	                                           final Map<String, Set<String>> populatedPredictLabelSets, final T frag,
-	                                           final WeightedSet<String> predictedLabelWeights)
+	                                           final LabelWeights predictedLabelWeights)
 		{
 
 		final boolean unknown = predictedLabelWeights == null;
@@ -515,20 +1217,23 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		// we want to measure wrongness _both_ at the broad level, matching where the prediction is made (so a perfect match is possible),
 		// _and_ at the detailed level, where even a perfect broad prediction incurs a cost due to lack of precision.
 
-		final WeightedSet<String> fragmentActualLabels = frag.getImmutableWeightedLabels();
-		final String detailedActualLabel = fragmentActualLabels.getDominantKeyInSet(testLabels);
+		// the sample's labels are mapped to ids once, without interning them, and then compared against each label set
+		final LabelMasks masks = getLabelMasks();
+		final LabelWeights fragmentActualLabels =
+				LabelWeights.lookUp(frag.getImmutableWeightedLabels(), labelDictionary);
+		final String detailedActualLabel = fragmentActualLabels.getDominantLabelIn(masks.testLabels);
 
-		for (final Map.Entry<String, Set<String>> entry : predictLabelSets.entrySet())
+		for (final Map.Entry<String, LabelMask> entry : masks.predictLabels.entrySet())
 			{
 			final String predictionSetName = entry.getKey();
-			final Set<String> predictLabels = entry.getValue();
+			final LabelMask predictLabels = entry.getValue();
 
 			//	MultiClassCrossValidationResults cvResults = getCvResults(predictionSetName);
 
 			String broadActualLabel = null;
 			try
 				{
-				broadActualLabel = fragmentActualLabels.getDominantKeyInSet(predictLabels);
+				broadActualLabel = fragmentActualLabels.getDominantLabelIn(predictLabels);
 				}
 			catch (NoSuchElementException e)
 				{
@@ -561,8 +1266,9 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 
 				try
 					{
-					predictedLabel = predictedLabelWeights.getDominantKeyInSet(predictLabels);
-					clusterProb = predictedLabelWeights.getNormalized(predictedLabel);
+					final int predicted = predictedLabelWeights.getDominantIndexIn(predictLabels);
+					predictedLabel = predictedLabelWeights.getLabel(predicted);
+					clusterProb = predictedLabelWeights.getNormalizedWeight(predicted);
 
 					// the fragment's real label does not match any populated training label (to which it might possibly have been classified), it should be unknown
 					if (!populatedPredictLabelSets.get(predictionSetName).contains(broadActualLabel))
@@ -620,8 +1326,33 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 			}
 		}
 
-	protected WeightedSet<String> predictLabelWeights(final ClusteringTestResults tr,
-	                                                  final T frag) //, Set<String> populatedTrainingLabels)
+	/**
+	 * @return the test and prediction label sets compiled against the label dictionary, compiling them first if
+	 *         necessary
+	 */
+	protected LabelMasks getLabelMasks()
+		{
+		LabelMasks result = labelMasks;
+		if (result == null)
+			{
+			result = new LabelMasks(labelDictionary, testLabels, predictLabelSets);
+			labelMasks = result;
+			}
+		return result;
+		}
+
+	protected LabelWeights predictLabelWeights(final ClusteringTestResults tr,
+	                                           final T frag) //, Set<String> populatedTrainingLabels)
+		{
+		return predictLabelWeights(tr, frag, null);
+		}
+
+	/**
+	 * As predictLabelWeights(tr, frag), but using the given precomputed distances from the sample to every centroid, if
+	 * any.  Only called with non-null distances when acceptsPrecomputedDistances() is true.
+	 */
+	protected LabelWeights predictLabelWeights(final ClusteringTestResults tr, final T frag,
+	                                           @Nullable final CentroidDistances<T, C> distances)
 	{
 	double secondToBestDistanceRatio = 0;
 
@@ -630,12 +1361,12 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	double secondToBestVoteRatio = 0;
 
 
-	WeightedSet<String> labelWeights = null;
+	LabelWeights labelWeights = null;
 
 	try
 		{
 		// make the prediction
-		final ClusterMove<T, C> cm = bestClusterMove(frag);   // throws NoGoodClusterException
+		final ClusterMove<T, C> cm = bestClusterMove(frag, distances);   // throws NoGoodClusterException
 		bestDistance = cm.bestDistance;
 		if (cm.bestDistance != 0)
 			{
@@ -647,7 +1378,7 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 			secondToBestVoteRatio = cm.secondBestVoteProportion / cm.voteProportion;
 			}
 
-		labelWeights = cm.bestCluster.getDerivedLabelProbabilities();
+		labelWeights = cm.bestCluster.getDerivedLabelWeights(labelDictionary);
 		}
 	catch (NoGoodClusterException e)
 		{
@@ -671,6 +1402,32 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 	 */
 	public abstract ClusterMove<T, C> bestClusterMove(T p) throws NoGoodClusterException;
 
+	/**
+	 * As bestClusterMove(p), but given the distances from p to every centroid if they have already been computed (e.g.
+	 * in a block along with other samples).  By default they are ignored; methods that can use them override this and
+	 * acceptsPrecomputedDistances().
+	 *
+	 * @param p         the point to assign
+	 * @param distances the distances from p to the rows of a DenseCentroidMatrix of this method's clusters, or null to
+	 *                  compute them as usual
+	 */
+	protected ClusterMove<T, C> bestClusterMove(final T p, @Nullable final CentroidDistances<T, C> distances)
+			throws NoGoodClusterException
+		{
+		return bestClusterMove(p);
+		}
+
+	/**
+	 * Tells whether test() may pass precomputed distances to predictLabelWeights, i.e. whether this method's label
+	 * prediction depends on the points only through their distances to the centroids, and uses them when given.
+	 *
+	 * @return false by default
+	 */
+	protected boolean acceptsPrecomputedDistances()
+		{
+		return false;
+		}
+
 	/**
 	 * choose the best cluster for each incoming data point and report it
 	 */
@@ -678,21 +1435,41 @@ public abstract class AbstractClusteringMethod<T extends Clusterable<T>, C exten
 		{
 		final int c = 0;
 		final PrintWriter p = new PrintWriter(outf);
-		synchronized (assignments)
+		for (final Map.Entry<String, C> stringCEntry : assignments.entrySet())
 			{
-			for (final Map.Entry<String, C> stringCEntry : assignments.entrySet())
-				{
-				p.println(stringCEntry.getKey() + " " + stringCEntry.getValue().getId());
-				}
+			p.println(stringCEntry.getKey() + " " + stringCEntry.getValue().getId());
 			}
 		p.flush();
 		}
 
 	protected void doneLabellingClusters()
 		{
-		for (Labellable<String> theCluster : theClusters)
+		for (Labellable<String> theCluster : getClusters())
 			{
 			theCluster.doneLabelling();
 			}
 		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * The test labels and each set of prediction labels, compiled against a label dictionary.
+	 */
+	protected static class LabelMasks
+		{
+		protected final LabelMask testLabels;
+
+		// in the same order as predictLabelSets
+		protected final Map<String, LabelMask> predictLabels = new LinkedHashMap<String, LabelMask>();
+
+		LabelMasks(final LabelDictionary dictionary, @Nullable final Set<String> testLabels,
+		           final Map<String, Set<String>> predictLabelSets)
+			{
+			this.testLabels = dictionary.mask(testLabels == null ? Collections.<String>emptySet() : testLabels);
+			for (final Map.Entry<String, Set<String>> entry : predictLabelSets.entrySet())
+				{
+				predictLabels.put(entry.getKey(), dictionary.mask(entry.getValue()));
+				}
+			}
+		}
 	}
@@ -12,6 +12,7 @@ import com.davidsoergel.stats.Multinomial;
 import com.google.common.collect.ImmutableMap;
 import org.apache.log4j.Logger;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -54,10 +55,30 @@ public abstract class AbstractSupervisedOnlineClusteringMethod<T extends Cluster
 
 	public synchronized void train(final ClusterableIterator<T> trainingIterator)
 		{
-		trainWithKnownTrainingLabels(trainingIterator);
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
+		final CountingClusterableIterator<T> countingIterator =
+				isMetricsEnabled() ? new CountingClusterableIterator<T>(trainingIterator) : null;
+
+		long phaseStart = startNanos;
+		trainWithKnownTrainingLabels(countingIterator == null ? trainingIterator : countingIterator);
+		phaseCompleted("trainWithKnownTrainingLabels", phaseStart);
+
+		phaseStart = System.nanoTime();
 		removeEmptyClusters();
+		phaseCompleted("removeEmptyClusters", phaseStart);
+
+		phaseStart = System.nanoTime();
 		normalizeClusterLabelProbabilities();
+		phaseCompleted("normalizeClusterLabelProbabilities", phaseStart);
+
+		phaseStart = System.nanoTime();
 		preparePriors();
+		phaseCompleted("preparePriors", phaseStart);
+
+		getMetricsListener().trainingCompleted(countingIterator == null ? -1 : countingIterator.getCount(),
+		                                       getDistanceEvaluations() - startDistanceEvaluations,
+		                                       System.nanoTime() - startNanos);
 		}
 
 	protected abstract void trainWithKnownTrainingLabels(final ClusterableIterator<T> trainingIterator);
@@ -120,4 +141,46 @@ public abstract class AbstractSupervisedOnlineClusteringMethod<T extends Cluster
 			}
 
 		}*/
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Counts the training samples taken, for the metrics listener.
+	 */
+	private static class CountingClusterableIterator<T extends Clusterable<T>> implements BatchClusterableIterator<T>
+		{
+		private final ClusterableIterator<T> delegate;
+		private int count = 0;
+
+		private CountingClusterableIterator(final ClusterableIterator<T> delegate)
+			{
+			this.delegate = delegate;
+			}
+
+		public synchronized int getCount()
+			{
+			return count;
+			}
+
+		public synchronized T next()
+			{
+			final T result = delegate.next();
+			count++;
+			return result;
+			}
+
+		public synchronized T nextFullyLabelled()
+			{
+			final T result = delegate.nextFullyLabelled();
+			count++;
+			return result;
+			}
+
+		public synchronized int nextBatch(final List<? super T> buffer, final int max)
+			{
+			final int result = ExecutionPolicy.BatchIterator.take(delegate, buffer, max);
+			count += result;
+			return result;
+			}
+		}
 	}
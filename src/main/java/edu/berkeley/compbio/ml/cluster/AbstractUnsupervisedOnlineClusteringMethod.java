@@ -6,12 +6,23 @@
 
 package edu.berkeley.compbio.ml.cluster;
 
+import com.davidsoergel.conja.Function;
+import com.davidsoergel.conja.ThreadSafeNextOnlyIterator;
 import com.davidsoergel.stats.DissimilarityMeasure;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
@@ -30,6 +41,19 @@ public abstract class AbstractUnsupervisedOnlineClusteringMethod<T extends Clust
 
 	private static final Logger logger = Logger.getLogger(AbstractUnsupervisedOnlineClusteringMethod.class);
 
+	// the number of samples in a mini-batch whose cluster moves a thread takes at a time
+	private static final int MOVE_SEARCH_CHUNK = 32;
+
+	// for the metrics listener: the number of epochs and samples seen by the current call to train()
+	private int epochsTrained = 0;
+	private int samplesTrained = 0;
+
+	// if positive, the number of samples whose clusters are searched for in parallel before any of them is applied
+	private int miniBatchSize = 0;
+
+	// shuffles the order in which the moves of a mini-batch are searched for (not the order in which they are applied)
+	private final Random miniBatchRandom = new Random();
+
 
 // --------------------------- CONSTRUCTORS ---------------------------
 
@@ -43,6 +67,33 @@ public abstract class AbstractUnsupervisedOnlineClusteringMethod<T extends Clust
 		//	measure = dm;
 		}
 
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int getMiniBatchSize()
+		{
+		return miniBatchSize;
+		}
+
+	/**
+	 * Trains in mini-batches of the given size, or one sample at a time if it is zero (the default).
+	 * <p/>
+	 * In a mini-batch, the best cluster move for every sample is found in parallel, using the execution policy, while the
+	 * clusters stay as they were at the start of the batch; then the moves are applied one at a time in the order the
+	 * samples were provided.  This puts the distance searches on all cores, at the cost of each sample not seeing the
+	 * effect of the samples before it in the same batch.  A batch size of a few thousand keeps the result close to that
+	 * of sequential training.  Only methods that override applyMove() support this.
+	 *
+	 * @param miniBatchSize the number of samples per batch, or 0 to train sequentially
+	 */
+	public void setMiniBatchSize(final int miniBatchSize)
+		{
+		if (miniBatchSize < 0)
+			{
+			throw new ClusterRuntimeException("Mini-batch size can't be negative: " + miniBatchSize);
+			}
+		this.miniBatchSize = miniBatchSize;
+		}
+
 // ------------------------ INTERFACE METHODS ------------------------
 
 
@@ -58,6 +109,10 @@ public abstract class AbstractUnsupervisedOnlineClusteringMethod<T extends Clust
 
 		//Date totalstarttime = new Date();
 		//List<Double> secondBestDistances = new ArrayList<Double>();
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
+		epochsTrained = 0;
+		samplesTrained = 0;
 		for (int i = 0; i < trainingEpochs; i++)
 			{
 			if (trainOneIteration(trainingCollectionIteratorFactory)) //, secondBestDistances))
@@ -66,8 +121,16 @@ public abstract class AbstractUnsupervisedOnlineClusteringMethod<T extends Clust
 				break;
 				}
 			}
+		long phaseStart = System.nanoTime();
 		removeEmptyClusters();
+		phaseCompleted("removeEmptyClusters", phaseStart);
+
+		phaseStart = System.nanoTime();
 		normalizeClusterLabelProbabilities();
+		phaseCompleted("normalizeClusterLabelProbabilities", phaseStart);
+
+		getMetricsListener().trainingCompleted(samplesTrained, getDistanceEvaluations() - startDistanceEvaluations,
+		                                       System.nanoTime() - startNanos);
 		}
 
 
@@ -77,10 +140,106 @@ public abstract class AbstractUnsupervisedOnlineClusteringMethod<T extends Clust
 
 // -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * Applies a move already found by bestClusterMove() for the given sample, exactly as add() would after finding it.
+	 * Subclasses supporting mini-batch training override this, and implement add(p) as applyMove(p,
+	 * bestClusterMove(p)).
+	 *
+	 * @return true if the sample's cluster assignment changed
+	 */
+	protected boolean applyMove(final T p, final ClusterMove<T, C> cm) throws NoGoodClusterException
+		{
+		throw new ClusterRuntimeException(getClass().getSimpleName() + " does not support mini-batch training");
+		}
+
+	/**
+	 * Finds the best cluster moves for a batch of samples in parallel, then applies them in order.
+	 *
+	 * @return the number of samples whose cluster assignment changed
+	 */
+	private int trainMiniBatch(final List<T> batch)
+		{
+		final AtomicReferenceArray<ClusterMove<T, C>> moves = new AtomicReferenceArray<ClusterMove<T, C>>(batch.size());
+
+		// the searches are taken in chunks of a random permutation of the batch, so that runs of similar samples, whose
+		// searches tend to cost about the same, are spread over the threads
+		final int[] order = new int[batch.size()];
+		for (int i = 0; i < order.length; i++)
+			{
+			order[i] = i;
+			}
+		// Fisher-Yates
+		for (int i = order.length - 1; i > 0; i--)
+			{
+			final int j = miniBatchRandom.nextInt(i + 1);
+			final int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+			}
+
+		final AtomicInteger position = new AtomicInteger();
+		getExecutionPolicy().forEach(new ThreadSafeNextOnlyIterator<int[]>()
+		{
+		public int[] next() throws NoSuchElementException
+			{
+			final int start = position.getAndAdd(MOVE_SEARCH_CHUNK);
+			if (start >= order.length)
+				{
+				throw new NoSuchElementException();
+				}
+			return Arrays.copyOfRange(order, start, Math.min(start + MOVE_SEARCH_CHUNK, order.length));
+			}
+		}, new Function<int[], Void>()
+		{
+		public Void apply(@Nullable final int[] chunk)
+			{
+			for (final int i : chunk)
+				{
+				try
+					{
+					moves.set(i, bestClusterMove(batch.get(i)));
+					}
+				catch (NoGoodClusterException e)
+					{
+					// leave it null; the point is ignored, as in sequential training
+					}
+				}
+			return null;
+			}
+		});
+
+		int changed = 0;
+		for (int i = 0; i < batch.size(); i++)
+			{
+			final ClusterMove<T, C> cm = moves.get(i);
+			if (cm != null)
+				{
+				try
+					{
+					if (applyMove(batch.get(i), cm))
+						{
+						changed++;
+						}
+					}
+				catch (NoGoodClusterException e)
+					{
+					// too bad, just ignore this unclassifiable point.
+					}
+				}
+			}
+		return changed;
+		}
+
 	protected boolean trainOneIteration(
 			final ClusterableIteratorFactory<T> trainingCollectionIteratorFactory) //, List<Double> secondBestDistances
 			throws ClusterException
 		{
+		if (miniBatchSize > 0)
+			{
+			return trainOneMiniBatchIteration(trainingCollectionIteratorFactory);
+			}
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
 		int changed = 0;
 		final ClusterableIterator<T> trainingIterator = trainingCollectionIteratorFactory.next();
 		//normalizeClusters();
@@ -135,6 +294,83 @@ public abstract class AbstractUnsupervisedOnlineClusteringMethod<T extends Clust
 			{
 			// iterator exhausted
 			}
+		finally
+			{
+			closeIfCloseable(trainingIterator);
+			}
+		return iterationCompleted(c, changed, startNanos, startDistanceEvaluations);
+		}
+
+	/**
+	 * As trainOneIteration(), but taking the samples in mini-batches (see setMiniBatchSize())
+	 */
+	private boolean trainOneMiniBatchIteration(final ClusterableIteratorFactory<T> trainingCollectionIteratorFactory)
+		{
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
+		int changed = 0;
+		final ClusterableIterator<T> trainingIterator = trainingCollectionIteratorFactory.next();
+		int c = 0;
+		final List<T> batch = new ArrayList<T>(miniBatchSize);
+		try
+			{
+			while (true)
+				{
+				batch.clear();
+				while (batch.size() < miniBatchSize)
+					{
+					if (ExecutionPolicy.BatchIterator.take(trainingIterator, batch, miniBatchSize - batch.size()) == 0)
+						{
+						break;
+						}
+					}
+				if (batch.isEmpty())
+					{
+					break;
+					}
+				changed += trainMiniBatch(batch);
+				c += batch.size();
+				}
+			}
+		finally
+			{
+			closeIfCloseable(trainingIterator);
+			}
+		return iterationCompleted(c, changed, startNanos, startDistanceEvaluations);
+		}
+
+	/**
+	 * Releases whatever an epoch's iterator holds (e.g. the producer threads of a PrefetchingClusterableIterator),
+	 * whether or not the epoch ran to the end.
+	 */
+	private static void closeIfCloseable(final ClusterableIterator<?> trainingIterator)
+		{
+		if (trainingIterator instanceof Closeable)
+			{
+			try
+				{
+				((Closeable) trainingIterator).close();
+				}
+			catch (IOException e)
+				{
+				logger.warn("Could not close the training iterator", e);
+				}
+			}
+		}
+
+	/**
+	 * Reports and logs the end of a training iteration.
+	 *
+	 * @return true if no sample changed its cluster assignment, i.e. training has reached a steady state
+	 */
+	private boolean iterationCompleted(final int c, final int changed, final long startNanos,
+	                                   final long startDistanceEvaluations)
+		{
+		getMetricsListener().epochCompleted(epochsTrained++, c, changed,
+		                                    getDistanceEvaluations() - startDistanceEvaluations,
+		                                    System.nanoTime() - startNanos);
+		samplesTrained += c;
+
 		final int changedProportion = changed == 0 ? 0 : (int) (100.0 * changed / c);
 		logger.debug("Changed cluster assignment of " + changed + " points (" + changedProportion + "%)\n");
 		// computeClusterStdDevs(theDataPointProvider);  // PERF cluster stddev is slow, should be optional.  Also, only works for sequential DPP
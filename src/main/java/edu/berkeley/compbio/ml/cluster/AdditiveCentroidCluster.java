@@ -11,6 +11,9 @@ import org.apache.log4j.Logger;
 
 /**
  * A cluster whose centroid can be moved by adding or removing individual samples.
+ * <p/>
+ * When the samples are SparseClusterableArrays, the centroid is converted to a dense array on the first update (if it
+ * isn't one already) and each sample is then accumulated into it touching only the sample's nonzero entries.
  *
  * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
  * @version $Id$
@@ -49,6 +52,7 @@ public class AdditiveCentroidCluster<T extends AdditiveClusterable<T>> extends A
 		{
 		super.add(point);
 		centroid.incrementBy(point);
+		centroidChanged();
 		return true;
 		}
 
@@ -73,6 +77,7 @@ public class AdditiveCentroidCluster<T extends AdditiveClusterable<T>> extends A
 		else {
 			centroid.incrementByWeighted(otherCentroid, otherN / (otherN + getN()));
 		}
+		centroidChanged();
 		return true;
 		}
 
@@ -84,6 +89,7 @@ public class AdditiveCentroidCluster<T extends AdditiveClusterable<T>> extends A
 		{
 		super.remove(point);
 		centroid.decrementBy(point);
+		centroidChanged();
 		return true;
 		}
 
@@ -100,6 +106,7 @@ public class AdditiveCentroidCluster<T extends AdditiveClusterable<T>> extends A
 
 		final int otherN = otherCluster.getN();
 		centroid.decrementByWeighted(((CentroidCluster<T>) otherCluster).getCentroid(), otherN / (otherN + getN()));
+		centroidChanged();
 		logger.debug("Cluster removed " + otherCluster);
 		return true;
 		}
@@ -81,8 +81,27 @@ public interface AdditiveClusterable<T extends AdditiveClusterable> extends Clus
 	T times( double v );
 
 
+	/**
+	 * Moves this object toward the given one in place, i.e. sets this = this + motionFactor * (point - this), without
+	 * allocating the difference.  Equivalent to incrementBy(point.minus(this).times(motionFactor)).
+	 *
+	 * @param point        the object to move toward
+	 * @param motionFactor the fraction of the way to move; negative values move away
+	 */
+	void moveToward( T point, double motionFactor );
+
+	/**
+	 * Replaces this object in place with a weighted mixture of itself and the given one, i.e. sets this = thisWeight *
+	 * this + pointWeight * point.  Equivalent to multiplyBy(thisWeight) followed by incrementByWeighted(point,
+	 * pointWeight).
+	 *
+	 * @param point       the object to mix into this one
+	 * @param thisWeight  the weight of this object
+	 * @param pointWeight the weight of the given object
+	 */
+	void weightedMixture( T point, double thisWeight, double pointWeight );
+
 	//public T weightedAverage(T object, double weight);
 
 	//void normalize(int n);
-	//T weightedMixture( T object, double thisWeight, double thatWeight );
 	}
@@ -0,0 +1,831 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Records the cluster to which each sample is assigned, compactly enough for tens of millions of samples and without a
+ * global lock.
+ * <p/>
+ * Each sample id is interned to a dense int ordinal the first time it is seen, and each distinct cluster (by identity)
+ * to a small int index.  The assignments themselves are then just ints, one per ordinal, held in fixed-size pages of
+ * atomic arrays that are read and written without locking; only the first sighting of a new sample id or a new cluster
+ * takes a lock.  The index of a cluster is found in a lock-free identity hash table, so the Map methods cost one String
+ * hash lookup for the id and one identity lookup for the cluster.  The clustering methods look a sample's ordinal up
+ * once per visit with ordinalOf(), and then use the ordinal methods directly.
+ * <p/>
+ * The ids themselves are kept in pages by ordinal, and found through an open-addressing table of int ordinals hashed by
+ * the id, so that beyond the id String itself each sample costs one reference and two to four ints, rather than the
+ * entry and boxed Integer of a HashMap.  Clusters removed from the clustering method should be passed to release(),
+ * which frees their indexes.
+ * <p/>
+ * The pages may be moved to a memory-mapped file with spillTo(), so that they occupy the OS page cache rather than the
+ * heap.  Writes to spilled pages are not atomic with respect to one another, though each single read or write is; the
+ * clustering methods only ever write a given sample's assignment from one thread at a time anyway.  The file is only
+ * scratch space for this store, which never reads it back: it is written under a temporary name and renamed into place
+ * once every existing page has been copied and forced to disk, so that a file found under the given name holds at
+ * least a complete copy of the assignments as of the spill, but later writes reach it in no particular order.  The file
+ * is held open until close() is called.
+ * <p/>
+ * This is also a read-only Map from sample id to cluster, for compatibility; a null id is permitted and, as in a
+ * HashMap, is a single key.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class AssignmentStore<C> extends AbstractMap<String, C> implements Closeable
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(AssignmentStore.class);
+
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	/**
+	 * the stored value for an ordinal with no assignment; otherwise the stored value is the cluster index plus one, so
+	 * that freshly allocated (zeroed) pages and files are empty
+	 */
+	private static final int UNASSIGNED = 0;
+
+	// the id of each ordinal, in pages parallel to the assignment pages, and the ordinal of each id; both are only written
+	// under ordinalLock
+	private final Object ordinalLock = new Object();
+	private volatile String[][] idPages = new String[0][];
+	private volatile OrdinalIndex ordinalIndex = new OrdinalIndex(1024);
+	private volatile int numOrdinals = 0;
+
+	// the cluster at each index, and the index of each cluster; both are only written under clusterLock, and are replaced
+	// by larger copies as they fill
+	private final Object clusterLock = new Object();
+	private volatile Object[] clusters = new Object[16];
+	private volatile IdentityIndex clusterIndexes = new IdentityIndex(64);
+	private int numClusterIndexes = 0;
+	private final BitSet freeClusterIndexes = new BitSet();
+
+	private volatile Page[] pages = new Page[0];
+
+	private final AtomicReference<C> nullIdAssignment = new AtomicReference<C>();
+
+	@Nullable
+	private File spillFile;
+	@Nullable
+	private RandomAccessFile spillRaf;
+	@Nullable
+	private FileChannel spillChannel;
+
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface Closeable ---------------------
+
+	/**
+	 * Closes the file to which the assignments were spilled, if any.  The store must not be used afterwards.
+	 *
+	 * @throws IOException if the file can't be closed
+	 */
+	public void close() throws IOException
+		{
+		synchronized (ordinalLock)
+			{
+			if (spillRaf != null)
+				{
+				spillRaf.close();  // closes the channel too
+				spillRaf = null;
+				spillChannel = null;
+				}
+			}
+		}
+
+// --------------------- Interface Map ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean containsKey(final Object id)
+		{
+		return get(id) != null;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Set<Map.Entry<String, C>> entrySet()
+		{
+		return new AbstractSet<Map.Entry<String, C>>()
+		{
+		public Iterator<Map.Entry<String, C>> iterator()
+			{
+			return new EntryIterator();
+			}
+
+		public int size()
+			{
+			return AssignmentStore.this.size();
+			}
+		};
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@Nullable
+	public C get(final Object id)
+		{
+		if (id == null)
+			{
+			return nullIdAssignment.get();
+			}
+		if (!(id instanceof String))
+			{
+			return null;
+			}
+		final int ordinal = ordinalOf((String) id);
+		return ordinal < 0 ? null : getByOrdinal(ordinal);
+		}
+
+	/**
+	 * Assigns the sample with the given id to the given cluster.
+	 *
+	 * @param id      the sample id
+	 * @param cluster the cluster, or null to remove the assignment
+	 * @return the previous assignment, if any
+	 */
+	@Override
+	@Nullable
+	public C put(final String id, @Nullable final C cluster)
+		{
+		if (id == null)
+			{
+			return nullIdAssignment.getAndSet(cluster);
+			}
+		return setByOrdinal(ordinalFor(id), cluster);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@Nullable
+	public C remove(final Object id)
+		{
+		if (id == null)
+			{
+			return nullIdAssignment.getAndSet(null);
+			}
+		if (!(id instanceof String))
+			{
+			return null;
+			}
+		final int ordinal = ordinalOf((String) id);
+		return ordinal < 0 ? null : setByOrdinal(ordinal, null);
+		}
+
+	/**
+	 * Counts the assigned samples.  This takes time proportional to the number of sample ids ever seen.
+	 *
+	 * @return the number of samples currently assigned to a cluster
+	 */
+	@Override
+	public int size()
+		{
+		int result = nullIdAssignment.get() == null ? 0 : 1;
+		final int limit = numOrdinals;
+		final Page[] p = pages;
+		for (int ordinal = 0; ordinal < limit; ordinal++)
+			{
+			if (p[ordinal >>> PAGE_BITS].get(ordinal & PAGE_MASK) != UNASSIGNED)
+				{
+				result++;
+				}
+			}
+		return result;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Returns the cluster to which the sample with the given ordinal is assigned.
+	 *
+	 * @param ordinal an ordinal from ordinalFor()
+	 * @return the cluster, or null if the sample is not assigned
+	 */
+	@Nullable
+	public C getByOrdinal(final int ordinal)
+		{
+		final Page[] p = pages;
+		final int page = ordinal >>> PAGE_BITS;
+		if (page >= p.length)
+			{
+			return null;
+			}
+		return clusterFor(p[page].get(ordinal & PAGE_MASK));
+		}
+
+	/**
+	 * @return the number of distinct sample ids interned so far
+	 */
+	public int getNumOrdinals()
+		{
+		return numOrdinals;
+		}
+
+	/**
+	 * Returns the dense int ordinal of the given sample id, without assigning one.
+	 *
+	 * @param id the sample id, which must not be null
+	 * @return the ordinal, or -1 if the id has not been seen
+	 */
+	public int ordinalOf(final String id)
+		{
+		return ordinalIndex.get(id);
+		}
+
+	/**
+	 * Returns the dense int ordinal of the given sample id, assigning the next one if it has not been seen before.
+	 *
+	 * @param id the sample id, which must not be null
+	 * @return the ordinal
+	 */
+	public int ordinalFor(final String id)
+		{
+		final int known = ordinalIndex.get(id);
+		if (known >= 0)
+			{
+			return known;
+			}
+		synchronized (ordinalLock)
+			{
+			// a reader working from a since-rebuilt index may have missed the id, but the current one has it if anyone does
+			OrdinalIndex index = ordinalIndex;
+			final int raced = index.get(id);
+			if (raced >= 0)
+				{
+				return raced;
+				}
+
+			final int result = numOrdinals;
+			ensureCapacity(result + 1);
+
+			// publish the id before its ordinal, so that no reader can find the ordinal without it
+			idPages[result >>> PAGE_BITS][result & PAGE_MASK] = id;
+			numOrdinals = result + 1;
+			if (!index.hasRoomForOneMore())
+				{
+				index = index.rebuilt(result);
+				ordinalIndex = index;
+				}
+			index.put(id, result);
+			return result;
+			}
+		}
+
+	/**
+	 * Assigns the sample with the given ordinal to the given cluster.
+	 *
+	 * @param ordinal an ordinal from ordinalFor()
+	 * @param cluster the cluster, or null to remove the assignment
+	 * @return the previous assignment, if any
+	 */
+	@Nullable
+	public C setByOrdinal(final int ordinal, @Nullable final C cluster)
+		{
+		final int value = cluster == null ? UNASSIGNED : clusterIndexFor(cluster) + 1;
+		return clusterFor(pages[ordinal >>> PAGE_BITS].getAndSet(ordinal & PAGE_MASK, value));
+		}
+
+	/**
+	 * Forgets the given clusters, which have been removed from the clustering, so that their indexes can be reused.  Any
+	 * samples still assigned to them become unassigned.  This must not be called concurrently with assignments to those
+	 * clusters.
+	 *
+	 * @param removed the clusters to forget; those never assigned to are ignored
+	 */
+	public void release(final Collection<?> removed)
+		{
+		synchronized (clusterLock)
+			{
+			final IdentityIndex index = clusterIndexes;
+			final BitSet releasing = new BitSet();
+			for (final Object c : removed)
+				{
+				final int i = index.get(c);
+				if (i >= 0)
+					{
+					releasing.set(i);
+					index.remove(c);
+					}
+				}
+			if (releasing.isEmpty())
+				{
+				return;
+				}
+
+			// clear the assignments to the released indexes before those can be reused
+			final int limit = numOrdinals;
+			final Page[] p = pages;
+			for (int ordinal = 0; ordinal < limit; ordinal++)
+				{
+				final Page page = p[ordinal >>> PAGE_BITS];
+				final int v = page.get(ordinal & PAGE_MASK);
+				if (v != UNASSIGNED && releasing.get(v - 1))
+					{
+					page.getAndSet(ordinal & PAGE_MASK, UNASSIGNED);
+					}
+				}
+
+			final Object[] c = clusters;
+			for (int i = releasing.nextSetBit(0); i >= 0; i = releasing.nextSetBit(i + 1))
+				{
+				c[i] = null;
+				}
+			freeClusterIndexes.or(releasing);
+			}
+		}
+
+	/**
+	 * Moves the assignments to a memory-mapped file, and keeps any further pages there too.  The pages are written to a
+	 * temporary file beside the given one, which replaces it only once they are all on disk; if anything fails, the
+	 * temporary file is deleted and the store stays on the heap.  The file should be deleted by the caller once the
+	 * clustering is no longer needed.
+	 *
+	 * @param file the file to hold the assignments
+	 * @throws IOException if the file can't be created, mapped or renamed
+	 */
+	public void spillTo(final File file) throws IOException
+		{
+		synchronized (ordinalLock)
+			{
+			if (spillChannel != null)
+				{
+				throw new IOException("Assignments are already spilled to " + spillFile);
+				}
+			final File temp = new File(file.getPath() + ".tmp");
+			final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			boolean done = false;
+			try
+				{
+				raf.setLength(0);
+				spillChannel = raf.getChannel();
+
+				// no new pages can appear while we hold the lock, but assignments may still be written to the old ones;
+				// the clustering methods don't do that concurrently with reconfiguring the store
+				final Page[] old = pages;
+				final MappedPage[] spilled = new MappedPage[old.length];
+				for (int i = 0; i < old.length; i++)
+					{
+					spilled[i] = mapPage(i);
+					for (int j = 0; j < PAGE_SIZE; j++)
+						{
+						final int v = old[i].get(j);
+						if (v != UNASSIGNED)
+							{
+							spilled[i].getAndSet(j, v);
+							}
+						}
+					spilled[i].force();
+					}
+				if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+					{
+					throw new IOException("Could not rename " + temp + " to " + file);
+					}
+				spillRaf = raf;
+				spillFile = file;
+				pages = spilled;
+				done = true;
+				}
+			finally
+				{
+				if (!done)
+					{
+					spillChannel = null;
+					raf.close();
+					if (!temp.delete())
+						{
+						logger.warn("Could not delete " + temp);
+						}
+					}
+				}
+			}
+		logger.info("Spilled assignments of " + numOrdinals + " samples to " + file);
+		}
+
+	@Nullable
+	private C clusterFor(final int value)
+		{
+		return value == UNASSIGNED ? null : (C) clusters[value - 1];
+		}
+
+	private int clusterIndexFor(final C cluster)
+		{
+		final int known = clusterIndexes.get(cluster);
+		if (known >= 0)
+			{
+			return known;
+			}
+		synchronized (clusterLock)
+			{
+			final int raced = clusterIndexes.get(cluster);
+			if (raced >= 0)
+				{
+				return raced;
+				}
+
+			int result = freeClusterIndexes.nextSetBit(0);
+			if (result >= 0)
+				{
+				freeClusterIndexes.clear(result);
+				}
+			else
+				{
+				result = numClusterIndexes++;
+				}
+
+			Object[] c = clusters;
+			if (result >= c.length)
+				{
+				final Object[] grown = new Object[c.length * 2];
+				System.arraycopy(c, 0, grown, 0, c.length);
+				clusters = grown;
+				c = grown;
+				}
+			c[result] = cluster;
+
+			// publish the cluster before its index, so that no reader can see the index without it
+			IdentityIndex index = clusterIndexes;
+			if (!index.hasRoomForOneMore())
+				{
+				index = index.rebuilt();
+				clusterIndexes = index;
+				}
+			index.put(cluster, result);
+			return result;
+			}
+		}
+
+	/**
+	 * Must be called while holding ordinalLock
+	 */
+	private void ensureCapacity(final int numOrdinals)
+		{
+		final Page[] old = pages;
+		final int needed = (numOrdinals + PAGE_SIZE - 1) >>> PAGE_BITS;
+		if (needed <= old.length)
+			{
+			return;
+			}
+		final String[][] grownIds = new String[needed][];
+		System.arraycopy(idPages, 0, grownIds, 0, old.length);
+		final Page[] grown = new Page[needed];
+		System.arraycopy(old, 0, grown, 0, old.length);
+		for (int i = old.length; i < needed; i++)
+			{
+			grownIds[i] = new String[PAGE_SIZE];
+			try
+				{
+				grown[i] = spillChannel == null ? new HeapPage() : mapPage(i);
+				}
+			catch (IOException e)
+				{
+				throw new ClusterRuntimeException(e, "Could not extend assignment file " + spillFile);
+				}
+			}
+		idPages = grownIds;
+		pages = grown;
+		}
+
+	private String idAt(final int ordinal)
+		{
+		return idPages[ordinal >>> PAGE_BITS][ordinal & PAGE_MASK];
+		}
+
+	private MappedPage mapPage(final int page) throws IOException
+		{
+		final long bytes = (long) PAGE_SIZE * 4;
+		return new MappedPage(spillChannel.map(FileChannel.MapMode.READ_WRITE, page * bytes, bytes));
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * An open-addressing hash table from object identity to int, for at most half as many keys as it has slots.  Reads
+	 * take no lock; writes must be serialized by the caller.  A reader working from a table that has since been rebuilt
+	 * may miss keys added afterwards, but never sees a wrong value.
+	 */
+	private static class IdentityIndex
+		{
+		// marks a slot whose key was removed, so that probing continues past it
+		private static final Object REMOVED = new Object();
+
+		private final AtomicReferenceArray<Object> keys;
+		private final AtomicIntegerArray values;
+		private final int mask;
+		private int used = 0;  // slots holding a key or REMOVED
+		private int live = 0;  // slots holding a key
+
+		IdentityIndex(final int capacity)
+			{
+			keys = new AtomicReferenceArray<Object>(capacity);
+			values = new AtomicIntegerArray(capacity);
+			mask = capacity - 1;
+			}
+
+		private int slotFor(final Object key)
+			{
+			final int h = System.identityHashCode(key);
+			return (h ^ (h >>> 16)) & mask;
+			}
+
+		int get(final Object key)
+			{
+			for (int slot = slotFor(key); ; slot = (slot + 1) & mask)
+				{
+				final Object k = keys.get(slot);
+				if (k == null)
+					{
+					return -1;
+					}
+				if (k == key)
+					{
+					return values.get(slot);
+					}
+				}
+			}
+
+		boolean hasRoomForOneMore()
+			{
+			return (used + 1) * 2 <= keys.length();
+			}
+
+		/**
+		 * @return a table holding the same keys, with room for at least as many again
+		 */
+		IdentityIndex rebuilt()
+			{
+			int capacity = keys.length();
+			while (live * 4 >= capacity)
+				{
+				capacity *= 2;
+				}
+			final IdentityIndex result = new IdentityIndex(capacity);
+			for (int slot = 0; slot < keys.length(); slot++)
+				{
+				final Object k = keys.get(slot);
+				if (k != null && k != REMOVED)
+					{
+					result.put(k, values.get(slot));
+					}
+				}
+			return result;
+			}
+
+		/**
+		 * Adds a key known not to be present; the caller must first ensure hasRoomForOneMore()
+		 */
+		void put(final Object key, final int value)
+			{
+			int slot = slotFor(key);
+			while (keys.get(slot) != null)
+				{
+				slot = (slot + 1) & mask;
+				}
+			// the value must be visible before the key
+			values.set(slot, value);
+			keys.set(slot, key);
+			used++;
+			live++;
+			}
+
+		void remove(final Object key)
+			{
+			for (int slot = slotFor(key); ; slot = (slot + 1) & mask)
+				{
+				final Object k = keys.get(slot);
+				if (k == null)
+					{
+					return;
+					}
+				if (k == key)
+					{
+					keys.set(slot, REMOVED);
+					live--;
+					return;
+					}
+				}
+			}
+		}
+
+	/**
+	 * An open-addressing hash table from sample id to ordinal, for at most half as many ids as it has slots.  Each slot
+	 * holds an ordinal plus one, or zero if empty; the ids are compared by looking them up in idPages.  Reads take no
+	 * lock; writes must hold ordinalLock.  Ids are never removed.
+	 */
+	private class OrdinalIndex
+		{
+		private final AtomicIntegerArray slots;
+		private final int mask;
+		private int used = 0;
+
+		OrdinalIndex(final int capacity)
+			{
+			slots = new AtomicIntegerArray(capacity);
+			mask = capacity - 1;
+			}
+
+		private int slotFor(final String id)
+			{
+			final int h = id.hashCode();
+			return (h ^ (h >>> 16)) & mask;
+			}
+
+		int get(final String id)
+			{
+			for (int slot = slotFor(id); ; slot = (slot + 1) & mask)
+				{
+				final int v = slots.get(slot);
+				if (v == 0)
+					{
+					return -1;
+					}
+				if (idAt(v - 1).equals(id))
+					{
+					return v - 1;
+					}
+				}
+			}
+
+		boolean hasRoomForOneMore()
+			{
+			return (used + 1) * 2 <= slots.length();
+			}
+
+		/**
+		 * @param numIds the number of ordinals already published in idPages
+		 * @return a table holding the ordinals of those ids, with room for at least as many again
+		 */
+		OrdinalIndex rebuilt(final int numIds)
+			{
+			int capacity = slots.length();
+			while (numIds * 4 >= capacity)
+				{
+				capacity *= 2;
+				}
+			final OrdinalIndex result = new OrdinalIndex(capacity);
+			for (int ordinal = 0; ordinal < numIds; ordinal++)
+				{
+				result.put(idAt(ordinal), ordinal);
+				}
+			return result;
+			}
+
+		/**
+		 * Adds an id known not to be present, whose ordinal is already published in idPages; the caller must first ensure
+		 * hasRoomForOneMore()
+		 */
+		void put(final String id, final int ordinal)
+			{
+			int slot = slotFor(id);
+			while (slots.get(slot) != 0)
+				{
+				slot = (slot + 1) & mask;
+				}
+			slots.set(slot, ordinal + 1);
+			used++;
+			}
+		}
+
+	private abstract static class Page
+		{
+		abstract int get(int i);
+
+		abstract int getAndSet(int i, int value);
+		}
+
+	private static class HeapPage extends Page
+		{
+		private final AtomicIntegerArray values = new AtomicIntegerArray(PAGE_SIZE);
+
+		int get(final int i)
+			{
+			return values.get(i);
+			}
+
+		int getAndSet(final int i, final int value)
+			{
+			return values.getAndSet(i, value);
+			}
+		}
+
+	private static class MappedPage extends Page
+		{
+		private final MappedByteBuffer buffer;
+		private final IntBuffer values;
+
+		MappedPage(final MappedByteBuffer buffer)
+			{
+			this.buffer = buffer;
+			values = buffer.asIntBuffer();
+			}
+
+		void force()
+			{
+			buffer.force();
+			}
+
+		int get(final int i)
+			{
+			return values.get(i);
+			}
+
+		int getAndSet(final int i, final int value)
+			{
+			final int result = values.get(i);
+			values.put(i, value);
+			return result;
+			}
+		}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, C>>
+		{
+		private final int limit = numOrdinals;
+		private int ordinal = 0;
+		private boolean nullIdDone = false;
+		private Map.Entry<String, C> next = advance();
+
+		@Nullable
+		private Map.Entry<String, C> advance()
+			{
+			if (!nullIdDone)
+				{
+				nullIdDone = true;
+				final C c = nullIdAssignment.get();
+				if (c != null)
+					{
+					return new SimpleImmutableEntry<String, C>(null, c);
+					}
+				}
+			while (ordinal < limit)
+				{
+				final C c = getByOrdinal(ordinal);
+				if (c != null)
+					{
+					return new SimpleImmutableEntry<String, C>(idAt(ordinal++), c);
+					}
+				ordinal++;
+				}
+			return null;
+			}
+
+		public boolean hasNext()
+			{
+			return next != null;
+			}
+
+		public Map.Entry<String, C> next()
+			{
+			if (next == null)
+				{
+				throw new NoSuchElementException();
+				}
+			final Map.Entry<String, C> result = next;
+			next = advance();
+			return result;
+			}
+
+		public void remove()
+			{
+			throw new UnsupportedOperationException();
+			}
+		}
+	}
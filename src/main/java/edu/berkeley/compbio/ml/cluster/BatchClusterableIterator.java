@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.ml.cluster;
+
+import java.util.List;
+
+/**
+ * A ClusterableIterator that can also hand out several samples in one synchronized step.  This is optional: consumers
+ * that take samples in batches (see ExecutionPolicy.BatchIterator) check for it, and fall back on calling next()
+ * repeatedly for an iterator that does not implement it.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public interface BatchClusterableIterator<T extends Clusterable<T>> extends ClusterableIterator<T>
+	{
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Takes up to max samples at once, as a single atomic step with respect to other calls to next() and nextBatch(), so
+	 * that a consumer pays for synchronization once per batch rather than once per sample.
+	 *
+	 * @param buffer the list to which the samples are appended, in iteration order
+	 * @param max    the maximum number of samples to take
+	 * @return the number of samples appended; 0 if and only if the iterator is exhausted (or max is 0)
+	 */
+	public int nextBatch(List<? super T> buffer, int max);
+	}
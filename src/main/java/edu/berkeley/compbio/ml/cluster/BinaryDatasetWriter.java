@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.collections.WeightedSet;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Writes a set of ClusterableDoubleArrays to a compact binary file, to be read back by a
+ * MappedClusterableIteratorFactory.
+ * <p/>
+ * The file consists of a header, the vectors, and a metadata column:
+ * <ul>
+ * <li>the header: the int MAGIC, the int VERSION, the int number of samples, the int number of dimensions, and the long
+ * offset of the metadata column;</li>
+ * <li>the vectors: for each sample in turn, its values as big-endian doubles, so that sample i starts at HEADER_SIZE + i
+ * * dimensions * 8 and the whole block can be mapped into memory as is;</li>
+ * <li>the metadata: for each sample in turn, its id, its exclusive label, its label item count, the number of its
+ * weighted labels, and each weighted label followed by its normalized weight.  Strings are written with
+ * DataOutput.writeUTF, the id and exclusive label each preceded by a boolean telling whether they are present.</li>
+ * </ul>
+ * The vectors are streamed straight to the file while the metadata accumulates in a temporary file, which is appended
+ * when the writer is closed, so that converting a dataset never requires holding it in memory.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class BinaryDatasetWriter implements Closeable
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(BinaryDatasetWriter.class);
+
+	public static final int MAGIC = 0x434c4244;  // "CLBD"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 24;
+
+	private final File file;
+	private final File metadataFile;
+	private final int dimensions;
+	private final DataOutputStream vectors;
+	private final DataOutputStream metadata;
+	private int numSamples = 0;
+	private boolean closed = false;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Writes every sample provided by the iterator to a new binary dataset file.
+	 *
+	 * @param samples the samples to write, which must all have the same length
+	 * @param file    the file to create or overwrite
+	 * @return the number of samples written
+	 * @throws IOException if the file can't be written
+	 */
+	public static int convert(final ClusterableIterator<? extends ClusterableDoubleArray> samples, final File file)
+			throws IOException
+		{
+		ClusterableDoubleArray first;
+		try
+			{
+			first = samples.nextFullyLabelled();
+			}
+		catch (NoSuchElementException e)
+			{
+			first = null;
+			}
+
+		final BinaryDatasetWriter writer = new BinaryDatasetWriter(file, first == null ? 0 : first.length());
+		try
+			{
+			if (first != null)
+				{
+				writer.write(first);
+				while (true)
+					{
+					writer.write(samples.nextFullyLabelled());
+					}
+				}
+			}
+		catch (NoSuchElementException e)
+			{
+			// iterator exhausted
+			}
+		finally
+			{
+			writer.close();
+			}
+		logger.info("Wrote " + writer.numSamples + " samples to " + file);
+		return writer.numSamples;
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param file       the file to create or overwrite
+	 * @param dimensions the length of every sample to be written
+	 * @throws IOException if the file can't be created
+	 */
+	public BinaryDatasetWriter(final File file, final int dimensions) throws IOException
+		{
+		this.file = file;
+		this.dimensions = dimensions;
+		metadataFile = File.createTempFile(file.getName(), ".metadata", file.getAbsoluteFile().getParentFile());
+		metadataFile.deleteOnExit();
+
+		vectors = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		metadata = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataFile)));
+
+		// placeholder, filled in on close()
+		vectors.write(new byte[HEADER_SIZE]);
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int getNumSamples()
+		{
+		return numSamples;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface Closeable ---------------------
+
+	/**
+	 * Appends the metadata and fills in the header.  The file is not a valid dataset until this has been called.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public void close() throws IOException
+		{
+		if (closed)
+			{
+			return;
+			}
+		closed = true;
+
+		metadata.close();
+		final long metadataOffset = HEADER_SIZE + (long) numSamples * dimensions * 8;
+
+		final InputStream in = new BufferedInputStream(new FileInputStream(metadataFile));
+		try
+			{
+			final byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				{
+				vectors.write(buffer, 0, n);
+				}
+			}
+		finally
+			{
+			in.close();
+			vectors.close();
+			if (!metadataFile.delete())
+				{
+				logger.warn("Could not delete temporary file " + metadataFile);
+				}
+			}
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+			{
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(numSamples);
+			raf.writeInt(dimensions);
+			raf.writeLong(metadataOffset);
+			}
+		finally
+			{
+			raf.close();
+			}
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Appends a sample to the dataset.
+	 *
+	 * @param sample the sample to write, whose length must match the dimensions given at construction
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(final ClusterableDoubleArray sample) throws IOException
+		{
+		if (closed)
+			{
+			throw new IOException("Can't write to a closed dataset: " + file);
+			}
+		if (sample.length() != dimensions)
+			{
+			throw new ClusterRuntimeException(
+					"Sample " + sample.getId() + " has length " + sample.length() + "; expected " + dimensions);
+			}
+
+		for (final double v : sample.getArray())
+			{
+			vectors.writeDouble(v);
+			}
+
+		// the id field directly, since ClusterableDoubleArray.getId() doesn't expose it
+		writeNullableUTF(sample.id);
+		writeNullableUTF(sample.getExclusiveLabel());
+
+		final WeightedSet<String> labels = sample.getImmutableWeightedLabels();
+		final Map<String, Double> normalized = labels.getItemNormalizedMap();
+		metadata.writeInt(labels.getItemCount());
+		metadata.writeInt(normalized.size());
+		for (final Map.Entry<String, Double> entry : normalized.entrySet())
+			{
+			metadata.writeUTF(entry.getKey());
+			metadata.writeDouble(entry.getValue());
+			}
+
+		numSamples++;
+		}
+
+	private void writeNullableUTF(final String s) throws IOException
+		{
+		metadata.writeBoolean(s != null);
+		if (s != null)
+			{
+			metadata.writeUTF(s);
+			}
+		}
+	}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+/**
+ * The filter of a point under a BinnedProhibitionModel, carrying the point's bin so that the clusters it prohibits can
+ * be looked up in a ClusterMaskCache.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class BinnedPointClusterFilter<T extends Clusterable<T>> implements PointClusterFilter<T>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private final Object bin;
+	private final PointClusterFilter<T> filter;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	public BinnedPointClusterFilter(final Object bin, final PointClusterFilter<T> filter)
+		{
+		this.bin = bin;
+		this.filter = filter;
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public Object getBin()
+		{
+		return bin;
+		}
+
+	public PointClusterFilter<T> getFilter()
+		{
+		return filter;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface PointClusterFilter ---------------------
+
+	public boolean isProhibited(final Cluster<T> cluster)
+		{
+		return filter.isProhibited(cluster);
+		}
+	}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A ProhibitionModel under which points fall into bins (e.g., the label left out in a leave-one-out evaluation), such
+ * that every point in a bin is prohibited from exactly the same clusters.  Clustering methods then evaluate the filter
+ * once per bin against all the clusters, and cache the result as a bit per cluster, rather than asking the filter about
+ * each cluster for each point.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public interface BinnedProhibitionModel<T extends Clusterable<T>> extends ProhibitionModel<T>
+	{
+	/**
+	 * @param p the point about to be classified
+	 * @return the bin of the point, with equals() and hashCode() suitable for a map key, or null if the filter for the
+	 *         point should not be cached
+	 */
+	@Nullable
+	Object getBin(T p);
+	}
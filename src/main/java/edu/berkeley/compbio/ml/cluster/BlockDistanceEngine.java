@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.stats.DissimilarityMeasure;
+import edu.berkeley.compbio.ml.distancemeasure.CosineDistance;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayKernels;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import edu.berkeley.compbio.ml.distancemeasure.SquaredEuclideanDistance;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+
+/**
+ * Computes the distances from each of a block of query vectors to every row of a DenseCentroidMatrix at once.
+ * <p/>
+ * The Euclidean and cosine distances both follow from the dot product of the two vectors together with their squared
+ * norms.  The norms of the centroids are cached by the matrix, and those of the queries are computed once per block,
+ * so the bulk of the work is a matrix product between the block of queries and the centroids.  That product is tiled
+ * so that a tile of centroid rows, and a range of dimensions within them, stays in cache while every query in the block
+ * is multiplied against it, rather than the whole centroid matrix being streamed from memory once per query.
+ * <p/>
+ * Expanding |q - c|^2 as |q|^2 + |c|^2 - 2 q.c loses precision when the distance is small relative to the norms, so
+ * the results may differ from those of the measure itself by a rounding error on the order of the norms times machine
+ * epsilon.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class BlockDistanceEngine
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(BlockDistanceEngine.class);
+
+	/**
+	 * The number of centroid rows in a tile
+	 */
+	private static final int ROW_TILE = 64;
+
+	/**
+	 * The number of dimensions in a tile; ROW_TILE * DIMENSION_TILE doubles should fit comfortably in the L2 cache
+	 */
+	private static final int DIMENSION_TILE = 256;
+
+	private final boolean cosine;
+	private final boolean takeSquareRoot;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Returns an engine computing the given measure, if it is one that can be computed from dot products and norms.
+	 *
+	 * @param measure the measure that the distances should agree with
+	 * @return the engine, or null if the measure is not supported
+	 */
+	@Nullable
+	public static BlockDistanceEngine forMeasure(final DissimilarityMeasure<?> measure)
+		{
+		if (measure instanceof EuclideanDistance)
+			{
+			return new BlockDistanceEngine(false, true);
+			}
+		if (measure instanceof SquaredEuclideanDistance)
+			{
+			return new BlockDistanceEngine(false, false);
+			}
+		if (measure instanceof CosineDistance)
+			{
+			return new BlockDistanceEngine(true, false);
+			}
+		return null;
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private BlockDistanceEngine(final boolean cosine, final boolean takeSquareRoot)
+		{
+		this.cosine = cosine;
+		this.takeSquareRoot = takeSquareRoot;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Computes the distance from each query to each row of the matrix.  The distance from query q to row r is stored in
+	 * result[q * centroids.getNumRows() + r].
+	 *
+	 * @param centroids the centroids to compare against
+	 * @param queries   the query vectors, each of length centroids.getDimensions(); null entries are skipped, leaving the
+	 *                  corresponding results undefined
+	 * @param result    the array to fill, of length at least queries.length * centroids.getNumRows()
+	 */
+	public void compute(final DenseCentroidMatrix<?, ?> centroids, final double[][] queries, final double[] result)
+		{
+		final int rows = centroids.getNumRows();
+		final int dimensions = centroids.getDimensions();
+		final double[] values = centroids.getValues();
+
+		// accumulate the dot products in the result array first
+		for (int rowStart = 0; rowStart < rows; rowStart += ROW_TILE)
+			{
+			final int rowEnd = Math.min(rows, rowStart + ROW_TILE);
+			for (int q = 0; q < queries.length; q++)
+				{
+				if (queries[q] != null)
+					{
+					final int base = q * rows;
+					for (int row = rowStart; row < rowEnd; row++)
+						{
+						result[base + row] = 0;
+						}
+					}
+				}
+			for (int dimStart = 0; dimStart < dimensions; dimStart += DIMENSION_TILE)
+				{
+				final int length = Math.min(DIMENSION_TILE, dimensions - dimStart);
+				for (int q = 0; q < queries.length; q++)
+					{
+					final double[] query = queries[q];
+					if (query == null)
+						{
+						continue;
+						}
+					final int base = q * rows;
+					for (int row = rowStart; row < rowEnd; row++)
+						{
+						result[base + row] +=
+								DoubleArrayKernels.dot(query, dimStart, values, row * dimensions + dimStart, length);
+						}
+					}
+				}
+			}
+
+		// then convert them to distances in place
+		for (int q = 0; q < queries.length; q++)
+			{
+			final double[] query = queries[q];
+			if (query == null)
+				{
+				continue;
+				}
+			final double querySquaredNorm = DoubleArrayKernels.squaredNorm(query, 0, dimensions);
+			final int base = q * rows;
+			for (int row = 0; row < rows; row++)
+				{
+				result[base + row] = fromDot(result[base + row], querySquaredNorm, centroids.getRowSquaredNorm(row));
+				}
+			}
+		}
+
+	private double fromDot(final double dot, final double aSquaredNorm, final double bSquaredNorm)
+		{
+		if (cosine)
+			{
+			return DoubleArrayKernels.cosineDistanceFromSums(dot, aSquaredNorm, bSquaredNorm);
+			}
+		final double squared = Math.max(0, aSquaredNorm + bSquaredNorm - 2 * dot);
+		return takeSquareRoot ? Math.sqrt(squared) : squared;
+		}
+	}
@@ -10,6 +10,7 @@ import com.davidsoergel.dsutils.collections.DSCollectionUtils;
 import com.davidsoergel.dsutils.math.MathUtils;
 import com.davidsoergel.stats.DissimilarityMeasure;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.OutputStream;
 import java.io.PrintWriter;
@@ -54,25 +55,56 @@ public final class CentroidClusteringUtils //<T extends Clusterable<T>>
 	 * do that since the Cluster may not keep track of the samples it contains.
 	 *
 	 * @param theDataPointProvider
+	 * @return the number of distances computed, for the clustering method's metrics
 	 */
-	public static <T extends Clusterable<T>> void computeClusterStdDevs(
+	public static <T extends Clusterable<T>> int computeClusterStdDevs(
 			final Collection<? extends CentroidCluster<T>> theClusters, final DissimilarityMeasure<T> measure,
 			final Map<String, ? extends CentroidCluster<T>> assignments,
 			final ClusterableIterator<T> theDataPointProvider) //throws IOException
 		{
+		return computeClusterStdDevs(theClusters, measure, null, assignments, theDataPointProvider);
+		}
+
+	/**
+	 * As computeClusterStdDevs above, looking up each distance in the given memo before computing it.
+	 *
+	 * @param memo the distance cache to consult and fill; may be null
+	 * @return the number of distances computed, not counting those found in the memo
+	 */
+	public static <T extends Clusterable<T>> int computeClusterStdDevs(
+			final Collection<? extends CentroidCluster<T>> theClusters, final DissimilarityMeasure<T> measure,
+			@Nullable final DistanceMemo<T> memo, final Map<String, ? extends CentroidCluster<T>> assignments,
+			final ClusterableIterator<T> theDataPointProvider)
+		{
 		//theDataPointProvider.reset();
 		for (final CentroidCluster<T> c : theClusters)
 			{
 			c.setSumOfSquareDistances(0);
 			}
 
+		int computed = 0;
 		try
 			{
 			while (true) //(theDataPointProvider.hasNext())
 				{
 				final T p = theDataPointProvider.nextFullyLabelled();
 				final CentroidCluster<T> c = assignments.get(p.getId());
-				final double dist = measure.distanceFromTo(p, c.getCentroid());// c.distanceToCentroid(p);
+				final DistanceMemo.Key key = memo == null ? null : memo.keyFor(p, c);
+				final Double known = memo == null ? null : memo.get(key);
+				final double dist;
+				if (known != null)
+					{
+					dist = known;
+					}
+				else
+					{
+					dist = measure.distanceFromTo(p, c.getCentroid());// c.distanceToCentroid(p);
+					computed++;
+					if (key != null)
+						{
+						memo.put(key, dist);
+						}
+					}
 				c.addToSumOfSquareDistances(dist * dist);
 				}
 			}
@@ -80,6 +112,7 @@ public final class CentroidClusteringUtils //<T extends Clusterable<T>>
 			{
 			// iterator exhausted
 			}
+		return computed;
 		}
 
 	/**
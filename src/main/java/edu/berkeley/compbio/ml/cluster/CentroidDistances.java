@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+
+
+/**
+ * The precomputed distances from one sample to every row of a DenseCentroidMatrix, as a view onto a block of results
+ * from a BlockDistanceEngine.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class CentroidDistances<T extends Clusterable<T>, C extends Cluster<T>>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(CentroidDistances.class);
+
+	private final DenseCentroidMatrix<T, C> centroids;
+	private final double[] distances;
+	private final int offset;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param centroids the matrix whose rows the distances refer to
+	 * @param distances the array holding the distances
+	 * @param offset    the index in that array of the distance to row 0
+	 */
+	public CentroidDistances(final DenseCentroidMatrix<T, C> centroids, final double[] distances, final int offset)
+		{
+		this.centroids = centroids;
+		this.distances = distances;
+		this.offset = offset;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	public double get(final int row)
+		{
+		return distances[offset + row];
+		}
+
+	public C getCluster(final int row)
+		{
+		return centroids.getCluster(row);
+		}
+
+	public int getNumRows()
+		{
+		return centroids.getNumRows();
+		}
+
+	/**
+	 * @see DenseCentroidMatrix#getProhibitedRows(PointClusterFilter)
+	 */
+	@Nullable
+	public BitSet getProhibitedRows(@Nullable final PointClusterFilter<T> filter)
+		{
+		return centroids.getProhibitedRows(filter);
+		}
+
+	/**
+	 * Finds the nearest permitted centroid, updating bestCluster, bestDistance and secondBestDistance of the given
+	 * ClusterMove just as DenseCentroidMatrix.scan does.
+	 *
+	 * @param filter    clusters for which this filter answers isProhibited are skipped; may be null
+	 * @param inclusive if true, a later row at a distance equal to the best (or second-best) so far replaces it
+	 * @param result    the move to update
+	 */
+	public void scan(@Nullable final PointClusterFilter<T> filter, final boolean inclusive,
+	                 final ClusterMove<T, C> result)
+		{
+		final int rows = centroids.getNumRows();
+		final BitSet prohibited = centroids.getProhibitedRows(filter);
+		for (int row = ClusterMaskCache.nextPermitted(prohibited, 0); row < rows;
+		     row = ClusterMaskCache.nextPermitted(prohibited, row + 1))
+			{
+			if (prohibited == null && filter != null && filter.isProhibited(centroids.getCluster(row)))
+				{
+				continue;
+				}
+
+			final double d = distances[offset + row];
+			if (d < result.bestDistance || (inclusive && d == result.bestDistance))
+				{
+				result.secondBestDistance = result.bestDistance;
+				result.bestDistance = d;
+				result.bestCluster = centroids.getCluster(row);
+				}
+			else if (d < result.secondBestDistance || (inclusive && d == result.secondBestDistance))
+				{
+				result.secondBestDistance = d;
+				}
+			}
+		}
+	}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.jetbrains.annotations.Nullable;
+
+
+/**
+ * The classification of one sample by a ClassificationPipeline.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class Classification
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	@Nullable
+	private final String id;
+	@Nullable
+	private final String predictedLabel;
+	private final double confidence;
+	private final double distance;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	public Classification(@Nullable final String id, @Nullable final String predictedLabel, final double confidence,
+	                      final double distance)
+		{
+		this.id = id;
+		this.predictedLabel = predictedLabel;
+		this.confidence = confidence;
+		this.distance = distance;
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	/**
+	 * @return the proportion of the label weight that went to the predicted label, or 0 if there is none
+	 */
+	public double getConfidence()
+		{
+		return confidence;
+		}
+
+	/**
+	 * @return the distance from the sample to the best cluster (or, for voting-based methods, the weighted distance to
+	 *         the clusters voting for the predicted label), or NaN if no cluster was good enough
+	 */
+	public double getDistance()
+		{
+		return distance;
+		}
+
+	@Nullable
+	public String getId()
+		{
+		return id;
+		}
+
+	/**
+	 * @return the predicted label, or null if no cluster was good enough ("unknown") or the best cluster had none of the
+	 *         permitted labels ("other")
+	 */
+	@Nullable
+	public String getPredictedLabel()
+		{
+		return predictedLabel;
+		}
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+	@Override
+	public String toString()
+		{
+		return id + "\t" + predictedLabel + "\t" + confidence + "\t" + distance;
+		}
+	}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Classifies a stream of samples of any length against a trained clustering, emitting each classification to a sink as
+ * soon as it is made rather than accumulating ClusteringTestResults.
+ * <p/>
+ * The work is divided into three stages, each with its own threads on the pipeline's executor: decoding (pulling
+ * samples from the iterator, which is where they are typically parsed), scoring (finding the best clusters and their
+ * label weights, exactly as test() does), and voting (choosing the predicted label and emitting the result).  The
+ * stages are connected by bounded queues, so a slow sink eventually stalls the scoring and decoding threads rather
+ * than letting samples pile up in memory.  The depths of the queues are reported periodically to the clustering's
+ * metrics listener, if it has one.
+ * <p/>
+ * A pipeline may be run any number of times, but not concurrently with itself.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ClassificationPipeline<T extends Clusterable<T>>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ClassificationPipeline.class);
+
+	private final AbstractClusteringMethod<T, ?> method;
+
+	// the labels that may be predicted, compiled against the method's label dictionary as test() compiles them
+	private final LabelMask predictLabels;
+
+	private int decodeThreads = 1;
+	private int scoringThreads = Runtime.getRuntime().availableProcessors();
+	private int votingThreads = 1;
+	private int queueCapacity = 1024;
+
+	private ExecutorService executor = newDaemonPool();
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param method        the trained clustering to classify against
+	 * @param predictLabels the labels that may be predicted; later changes to the set are not seen
+	 */
+	public ClassificationPipeline(final AbstractClusteringMethod<T, ?> method, final Set<String> predictLabels)
+		{
+		this.method = method;
+		this.predictLabels = method.labelDictionary.mask(predictLabels);
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int getDecodeThreads()
+		{
+		return decodeThreads;
+		}
+
+	/**
+	 * @param decodeThreads the number of threads pulling samples from the iterator; more than one helps only if the
+	 *                      iterator can decode samples concurrently
+	 */
+	public void setDecodeThreads(final int decodeThreads)
+		{
+		this.decodeThreads = requirePositive(decodeThreads);
+		}
+
+	public ExecutorService getExecutor()
+		{
+		return executor;
+		}
+
+	/**
+	 * @param executor the executor running the threads of every stage.  Since the stages wait on one another, it must be
+	 *                 able to run all of them at once (i.e. decode + scoring + voting threads), as a cached pool or a
+	 *                 virtual thread per task executor can; a bounded pool shared with other work may deadlock.  It is
+	 *                 not shut down by the pipeline.  By default, each pipeline has its own cached pool of daemon threads,
+	 *                 which are reused from one run to the next.
+	 */
+	public void setExecutor(final ExecutorService executor)
+		{
+		this.executor = executor;
+		}
+
+	public int getQueueCapacity()
+		{
+		return queueCapacity;
+		}
+
+	/**
+	 * @param queueCapacity the number of samples that may wait between one stage and the next
+	 */
+	public void setQueueCapacity(final int queueCapacity)
+		{
+		this.queueCapacity = requirePositive(queueCapacity);
+		}
+
+	public int getScoringThreads()
+		{
+		return scoringThreads;
+		}
+
+	/**
+	 * @param scoringThreads the number of threads finding the best clusters; defaults to the number of processors
+	 */
+	public void setScoringThreads(final int scoringThreads)
+		{
+		this.scoringThreads = requirePositive(scoringThreads);
+		}
+
+	public int getVotingThreads()
+		{
+		return votingThreads;
+		}
+
+	/**
+	 * @param votingThreads the number of threads choosing labels and calling the sink; if more than one, the sink must be
+	 *                      thread-safe
+	 */
+	public void setVotingThreads(final int votingThreads)
+		{
+		this.votingThreads = requirePositive(votingThreads);
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Classifies every sample from the iterator, passing each result to the sink, and returns once all of them have been
+	 * passed.  The results are emitted in no particular order.  If any stage fails, the others are stopped and the
+	 * failure is rethrown.
+	 *
+	 * @param samples the samples to classify
+	 * @param sink    the consumer of the results
+	 * @throws ClusterException if any stage fails
+	 */
+	public void run(final ClusterableIterator<T> samples, final ClassificationSink sink) throws ClusterException
+		{
+		final BlockingQueue<PendingSample<T>> decoded = new ArrayBlockingQueue<PendingSample<T>>(queueCapacity);
+		final BlockingQueue<PendingSample<T>> scored = new ArrayBlockingQueue<PendingSample<T>>(queueCapacity);
+
+		final Stages stages = new Stages(executor, decodeThreads + scoringThreads + votingThreads);
+
+		// the last thread to leave a stage tells each thread of the next stage that there is no more input
+		final AtomicInteger decodersRunning = new AtomicInteger(decodeThreads);
+		final AtomicInteger scorersRunning = new AtomicInteger(scoringThreads);
+
+		// each consuming thread reports the depth of its input queue to the metrics listener once per queueCapacity samples
+		final ClusteringMetricsListener metricsListener = method.isMetricsEnabled() ? method.getMetricsListener() : null;
+
+		for (int i = 0; i < decodeThreads; i++)
+			{
+			stages.execute(new Stage(stages)
+			{
+			void process() throws InterruptedException
+				{
+				try
+					{
+					while (true)
+						{
+						decoded.put(new PendingSample<T>(samples.nextFullyLabelled()));
+						}
+					}
+				catch (NoSuchElementException e)
+					{
+					// the iterator is exhausted
+					}
+				if (decodersRunning.decrementAndGet() == 0)
+					{
+					for (int j = 0; j < scoringThreads; j++)
+						{
+						decoded.put(PendingSample.<T>end());
+						}
+					}
+				}
+			});
+			}
+
+		for (int i = 0; i < scoringThreads; i++)
+			{
+			stages.execute(new Stage(stages)
+			{
+			void process() throws InterruptedException
+				{
+				final LastClusterResult recorder = new LastClusterResult();
+				int taken = 0;
+				PendingSample<T> pending;
+				while ((pending = decoded.take()).sample != null)
+					{
+					if (metricsListener != null && ++taken % queueCapacity == 0)
+						{
+						metricsListener.queueDepth("decoded", decoded.size());
+						}
+					pending.labelWeights = method.predictLabelWeights(recorder, pending.sample);
+					pending.distance = recorder.bestDistance;
+					scored.put(pending);
+					}
+				if (scorersRunning.decrementAndGet() == 0)
+					{
+					for (int j = 0; j < votingThreads; j++)
+						{
+						scored.put(PendingSample.<T>end());
+						}
+					}
+				}
+			});
+			}
+
+		for (int i = 0; i < votingThreads; i++)
+			{
+			stages.execute(new Stage(stages)
+			{
+			void process() throws InterruptedException
+				{
+				int taken = 0;
+				PendingSample<T> pending;
+				while ((pending = scored.take()).sample != null)
+					{
+					if (metricsListener != null && ++taken % queueCapacity == 0)
+						{
+						metricsListener.queueDepth("scored", scored.size());
+						}
+					sink.accept(vote(pending));
+					}
+				}
+			});
+			}
+
+		try
+			{
+			stages.finished.await();
+			}
+		catch (InterruptedException e)
+			{
+			stages.fail(e);
+			Thread.currentThread().interrupt();
+			throw new ClusterException(e, "Interrupted while classifying");
+			}
+
+		final Throwable t = stages.failure.get();
+		if (t instanceof Error)
+			{
+			throw (Error) t;
+			}
+		if (t != null)
+			{
+			throw new ClusterException((Exception) t, "Classification pipeline failed");
+			}
+		}
+
+	/**
+	 * Chooses the predicted label from the label weights of a scored sample, as test() does, breaking ties at the
+	 * greatest weight the same way.
+	 */
+	private Classification vote(final PendingSample<T> pending)
+		{
+		final LabelWeights labelWeights = pending.labelWeights;
+		String predictedLabel = null;
+		double confidence = 0;
+		if (labelWeights != null)
+			{
+			try
+				{
+				final int predicted = labelWeights.getDominantIndexIn(predictLabels);
+				predictedLabel = labelWeights.getLabel(predicted);
+				confidence = labelWeights.getNormalizedWeight(predicted);
+				}
+			catch (NoSuchElementException e)
+				{
+				// a cluster was found, but it has no prediction label
+				}
+			}
+		return new Classification(pending.sample.getId(), predictedLabel, confidence, pending.distance);
+		}
+
+	private static ExecutorService newDaemonPool()
+		{
+		final AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory()
+		{
+		public Thread newThread(final Runnable r)
+			{
+			final Thread result = new Thread(r, "ClassificationPipeline-" + threadCount.incrementAndGet());
+			result.setDaemon(true);
+			return result;
+			}
+		});
+		}
+
+	private static int requirePositive(final int n)
+		{
+		if (n < 1)
+			{
+			throw new ClusterRuntimeException("Must be at least 1: " + n);
+			}
+		return n;
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * A sample on its way through the pipeline.  A PendingSample without a sample marks the end of the input.
+	 */
+	private static final class PendingSample<T>
+		{
+		private final T sample;
+		private LabelWeights labelWeights;
+		private double distance;
+
+		private PendingSample(final T sample)
+			{
+			this.sample = sample;
+			}
+
+		private static <T> PendingSample<T> end()
+			{
+			return new PendingSample<T>(null);
+			}
+		}
+
+	/**
+	 * The threads of all the stages of one run.  If any of them fails, the failure is recorded and the others are
+	 * interrupted; any that have not yet started then exit as soon as they do.
+	 */
+	private static final class Stages
+		{
+		private final ExecutorService executor;
+		private final CountDownLatch finished;
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		private final Set<Thread> running = new HashSet<Thread>();
+
+		private Stages(final ExecutorService executor, final int numThreads)
+			{
+			this.executor = executor;
+			finished = new CountDownLatch(numThreads);
+			}
+
+		private void execute(final Stage stage)
+			{
+			try
+				{
+				executor.execute(stage);
+				}
+			catch (RejectedExecutionException e)
+				{
+				fail(e);
+				finished.countDown();
+				}
+			}
+
+		private void fail(final Throwable t)
+			{
+			if (failure.compareAndSet(null, t))
+				{
+				logger.error("Error", t);
+				synchronized (running)
+					{
+					for (final Thread thread : running)
+						{
+						thread.interrupt();
+						}
+					}
+				}
+			}
+
+		private boolean enter()
+			{
+			synchronized (running)
+				{
+				if (failure.get() != null)
+					{
+					return false;
+					}
+				running.add(Thread.currentThread());
+				return true;
+				}
+			}
+
+		private void leave()
+			{
+			synchronized (running)
+				{
+				running.remove(Thread.currentThread());
+				// an interrupt meant for this stage must not linger on a pooled thread
+				Thread.interrupted();
+				}
+			finished.countDown();
+			}
+		}
+
+	/**
+	 * Runs one thread of a stage, and if it fails, records the failure and stops all the others.
+	 */
+	private abstract static class Stage implements Runnable
+		{
+		private final Stages stages;
+
+		private Stage(final Stages stages)
+			{
+			this.stages = stages;
+			}
+
+		abstract void process() throws InterruptedException;
+
+		public void run()
+			{
+			try
+				{
+				if (stages.enter())
+					{
+					process();
+					}
+				}
+			catch (InterruptedException e)
+				{
+				// another stage failed
+				}
+			catch (Throwable t)
+				{
+				stages.fail(t);
+				}
+			finally
+				{
+				stages.leave();
+				}
+			}
+		}
+
+	/**
+	 * Captures the distance of the most recent sample scored by predictLabelWeights(), without accumulating anything.
+	 * Each scoring thread has its own.
+	 */
+	private static final class LastClusterResult extends ClusteringTestResults<String>
+		{
+		private double bestDistance;
+
+		@Override
+		public void addClusterResult(final double bestDistance, final double secondToBestDistanceRatio,
+		                             final double bestVoteProportion, final double secondToBestVoteRatio)
+			{
+			this.bestDistance = bestDistance;
+			}
+
+		@Override
+		public void incrementUnknown()
+			{
+			}
+		}
+	}
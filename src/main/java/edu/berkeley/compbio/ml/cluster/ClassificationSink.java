@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+/**
+ * Receives the classifications emitted by a ClassificationPipeline.  Called concurrently if the pipeline has more than
+ * one voting thread.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public interface ClassificationSink
+	{
+// -------------------------- OTHER METHODS --------------------------
+
+	void accept(Classification classification);
+	}
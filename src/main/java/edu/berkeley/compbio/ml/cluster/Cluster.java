@@ -44,10 +44,28 @@ public interface Cluster<T extends Clusterable<T>> extends Labellable<String>//
 
 	/**
 	 * Gets the probabilities of String labels.  The labels need not be mutually exclusive, so the weights need not sum to
-	 * one.
+	 * one.  This is rebuilt from getDerivedLabelWeights(LabelDictionary) on every call, so code that runs per sample
+	 * should use that instead.
 	 */
 	WeightedSet<String> getDerivedLabelProbabilities();
 
+	/**
+	 * Gets the probabilities of String labels in the compact form in which they are stored, against the given dictionary.
+	 * If they are stored against another one, they are remapped, and kept against the given one from then on; so a
+	 * clustering method that always passes its own dictionary pays for that only once per cluster.
+	 *
+	 * @param dictionary the dictionary of the clustering method asking
+	 * @return the label probabilities, or null if there are none
+	 */
+	LabelWeights getDerivedLabelWeights(LabelDictionary dictionary);
+
+	/**
+	 * Sets the dictionary against which the derived label probabilities are stored, remapping any already present.
+	 * Until this is called, or getDerivedLabelWeights(LabelDictionary) asks for another one, a cluster uses a
+	 * dictionary of its own.
+	 */
+	void setLabelDictionary(LabelDictionary dictionary);
+
 	/**
 	 * Returns the id
 	 *
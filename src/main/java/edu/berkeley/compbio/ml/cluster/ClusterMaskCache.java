@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Caches, for a fixed list of clusters, the indexes of the clusters prohibited to each bin of a BinnedProhibitionModel.
+ * A scan over the list can then step from one permitted index to the next with nextPermitted(), skipping runs of
+ * prohibited clusters without asking the filter about each one.
+ * <p/>
+ * Each cached bin takes a bit per cluster.  The cache is valid only as long as the list of clusters is, so it should
+ * be discarded along with the list.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public final class ClusterMaskCache<T extends Clusterable<T>>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ClusterMaskCache.class);
+
+	private final List<? extends Cluster<T>> clusters;
+	private final ConcurrentMap<Object, BitSet> masks = new ConcurrentHashMap<Object, BitSet>();
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * @param prohibited the prohibited indexes, or null if every index is to be visited
+	 * @param from       the index at which to start looking
+	 * @return the first index at or after from that is not prohibited
+	 */
+	public static int nextPermitted(@Nullable final BitSet prohibited, final int from)
+		{
+		return prohibited == null ? from : prohibited.nextClearBit(from);
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param clusters the clusters whose indexes are cached, which must not change while the cache is in use
+	 */
+	public ClusterMaskCache(final List<? extends Cluster<T>> clusters)
+		{
+		this.clusters = clusters;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return true if this cache was built for exactly the given list (not merely an equal one)
+	 */
+	public boolean isFor(final List<?> clusters)
+		{
+		return this.clusters == clusters;
+		}
+
+	/**
+	 * Finds the indexes of the clusters that the given filter prohibits, compiling them on first use for its bin.
+	 *
+	 * @param filter the filter of the point about to be classified; may be null
+	 * @return the prohibited indexes, which must not be modified, or null if the filter is not a
+	 *         BinnedPointClusterFilter, in which case the caller should ask the filter about each cluster
+	 */
+	@Nullable
+	public BitSet getProhibited(@Nullable final PointClusterFilter<T> filter)
+		{
+		if (!(filter instanceof BinnedPointClusterFilter))
+			{
+			return null;
+			}
+		final BinnedPointClusterFilter<T> binned = (BinnedPointClusterFilter<T>) filter;
+
+		BitSet result = masks.get(binned.getBin());
+		if (result == null)
+			{
+			// two threads may compile the same bin at once; either result will do
+			result = compile(binned.getFilter());
+			final BitSet existing = masks.putIfAbsent(binned.getBin(), result);
+			if (existing != null)
+				{
+				result = existing;
+				}
+			}
+		return result;
+		}
+
+	private BitSet compile(final PointClusterFilter<T> filter)
+		{
+		final int numClusters = clusters.size();
+		final BitSet result = new BitSet(numClusters);
+		for (int i = 0; i < numClusters; i++)
+			{
+			if (filter.isProhibited(clusters.get(i)))
+				{
+				result.set(i);
+				}
+			}
+		return result;
+		}
+	}
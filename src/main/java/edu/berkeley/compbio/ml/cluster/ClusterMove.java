@@ -99,6 +99,12 @@ public class ClusterMove<T extends Clusterable<T>, C extends Cluster<T>> impleme
 	 */
 	public double oldDistance;
 
+	/**
+	 * The assignment ordinal of the point under consideration (see AssignmentStore), if it had one when the move was
+	 * found, so that applying the move need not look its id up again; otherwise -1
+	 */
+	public int sampleOrdinal = -1;
+
 
 // ------------------------ CANONICAL METHODS ------------------------
 
@@ -145,4 +151,15 @@ public class ClusterMove<T extends Clusterable<T>, C extends Cluster<T>> impleme
 		{
 		return (oldCluster == null || (!bestCluster.equals(oldCluster)));
 		}
+
+	/**
+	 * Returns the distance beyond which a further candidate could change neither bestDistance nor secondBestDistance, and
+	 * so need not be computed exactly; suitable as the upperBound for a BoundedDissimilarityMeasure.
+	 *
+	 * @return the larger of the best and second-best distances so far
+	 */
+	public double pruningBound()
+		{
+		return Math.max(bestDistance, secondBestDistance);
+		}
 	}
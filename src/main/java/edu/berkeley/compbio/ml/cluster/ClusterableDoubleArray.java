@@ -10,6 +10,7 @@ package edu.berkeley.compbio.ml.cluster;
 import com.davidsoergel.dsutils.DSArrayUtils;
 import com.davidsoergel.dsutils.LabellableImpl;
 import com.davidsoergel.stats.DoubleArrayContainer;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayKernels;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.log4j.Logger;
 
@@ -29,6 +30,7 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	protected String id;
 	protected double[] data;
 	protected Double dataSum;
+	protected Double squaredNorm;
 
 	private String label;
 
@@ -76,9 +78,17 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public void decrementBy(final ClusterableDoubleArray object)
 		{
-		//data = ArrayUtils.minus(data, object.data);
-		DSArrayUtils.decrementBy(data, object.data);
-		dataSum = null;
+		ensureDense();
+		if (object.data == null)
+			{
+			object.addWeightedInto(data, -1.0);
+			}
+		else
+			{
+			//data = ArrayUtils.minus(data, object.data);
+			DSArrayUtils.decrementBy(data, object.data);
+			}
+		dataChanged();
 		}
 
 	/**
@@ -86,9 +96,17 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public void decrementByWeighted(final ClusterableDoubleArray object, final double weight)
 		{
-		//data = ArrayUtils.minus(data, object.data);
-		DSArrayUtils.decrementByWeighted(data, object.data, weight);
-		dataSum = null;
+		ensureDense();
+		if (object.data == null)
+			{
+			object.addWeightedInto(data, -weight);
+			}
+		else
+			{
+			//data = ArrayUtils.minus(data, object.data);
+			DSArrayUtils.decrementByWeighted(data, object.data, weight);
+			}
+		dataChanged();
 		}
 
 	/**
@@ -96,9 +114,17 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public void incrementBy(final ClusterableDoubleArray object)
 		{
-		//data = ArrayUtils.plus(data, object.data);
-		DSArrayUtils.incrementBy(data, object.data);
-		dataSum = null;
+		ensureDense();
+		if (object.data == null)
+			{
+			object.addWeightedInto(data, 1.0);
+			}
+		else
+			{
+			//data = ArrayUtils.plus(data, object.data);
+			DSArrayUtils.incrementBy(data, object.data);
+			}
+		dataChanged();
 		}
 
 	/**
@@ -106,9 +132,62 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public void incrementByWeighted(final ClusterableDoubleArray object, final double weight)
 		{
-		//data = ArrayUtils.plus(data, object.data);
-		DSArrayUtils.incrementByWeighted(data, object.data, weight);
-		dataSum = null;
+		ensureDense();
+		if (object.data == null)
+			{
+			object.addWeightedInto(data, weight);
+			}
+		else
+			{
+			//data = ArrayUtils.plus(data, object.data);
+			DSArrayUtils.incrementByWeighted(data, object.data, weight);
+			}
+		dataChanged();
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void moveToward(final ClusterableDoubleArray object, final double motionFactor)
+		{
+		ensureDense();
+		if (object.data == null)
+			{
+			DSArrayUtils.multiplyBy(data, 1.0 - motionFactor);
+			object.addWeightedInto(data, motionFactor);
+			}
+		else
+			{
+			final double[] other = object.data;
+			for (int i = 0; i < data.length; i++)
+				{
+				data[i] += motionFactor * (other[i] - data[i]);
+				}
+			}
+		dataChanged();
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void weightedMixture(final ClusterableDoubleArray object, final double thisWeight,
+	                            final double pointWeight)
+		{
+		ensureDense();
+		if (object.data == null)
+			{
+			DSArrayUtils.multiplyBy(data, thisWeight);
+			object.addWeightedInto(data, pointWeight);
+			}
+		else
+			{
+			final double[] other = object.data;
+			for (int i = 0; i < data.length; i++)
+				{
+				data[i] = thisWeight * data[i] + pointWeight * other[i];
+				}
+			}
+		dataChanged();
 		}
 
 	/**
@@ -116,7 +195,7 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public ClusterableDoubleArray minus(final ClusterableDoubleArray object)
 		{
-		return new ClusterableDoubleArray(id + "+" + object.getId(), DSArrayUtils.minus(data, object.data));
+		return new ClusterableDoubleArray(id + "+" + object.getId(), DSArrayUtils.minus(getArray(), object.getArray()));
 		}
 
 	/**
@@ -125,8 +204,9 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	public void multiplyBy(final double scalar)
 		{
 		//data = ArrayUtils.times(data, scalar);
+		ensureDense();
 		DSArrayUtils.multiplyBy(data, scalar);
-		dataSum = null;  // we could multiply it by that might be less numerically precise...??
+		dataChanged();  // we could multiply it by that might be less numerically precise...??
 		}
 
 	/**
@@ -134,7 +214,7 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public ClusterableDoubleArray plus(final ClusterableDoubleArray object)
 		{
-		return new ClusterableDoubleArray(id + "+" + object.getId(), DSArrayUtils.plus(data, object.data));
+		return new ClusterableDoubleArray(id + "+" + object.getId(), DSArrayUtils.plus(getArray(), object.getArray()));
 		}
 
 	/**
@@ -142,7 +222,7 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public ClusterableDoubleArray times(final double scalar)
 		{
-		return new ClusterableDoubleArray(id + "*" + scalar, DSArrayUtils.times(data, scalar));
+		return new ClusterableDoubleArray(id + "*" + scalar, DSArrayUtils.times(getArray(), scalar));
 		}
 
 // --------------------- Interface Clusterable ---------------------
@@ -152,7 +232,7 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 	 */
 	public boolean equalValue(final ClusterableDoubleArray object)
 		{
-		return id.equals(object.id) && DSArrayUtils.equalWithinFPError(data, object.data);
+		return id.equals(object.id) && DSArrayUtils.equalWithinFPError(getArray(), object.getArray());
 		}
 
 	/**
@@ -182,8 +262,52 @@ public class ClusterableDoubleArray extends LabellableImpl<String>
 		return dataSum;
 		}
 
+	/**
+	 * Returns the sum of the squares of the elements, caching it until the array is next modified through this object.
+	 *
+	 * @return the squared Euclidean norm of this vector
+	 */
+	public double getSquaredNorm()
+		{
+		if (squaredNorm == null)
+			{
+			squaredNorm = DoubleArrayKernels.squaredNorm(data, 0, data.length);
+			}
+		return squaredNorm;
+		}
+
 // -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * Adds weight times this vector into the given array, which must have the same length.  The arithmetic methods use
+	 * this when the operand keeps no dense array of its own (i.e., its data field is null), so that a representation
+	 * such as SparseClusterableArray can be accumulated into a dense one touching only its stored entries.
+	 *
+	 * @param target the array to accumulate into
+	 * @param weight the factor to multiply this vector by before adding it
+	 */
+	protected void addWeightedInto(final double[] target, final double weight)
+		{
+		DSArrayUtils.incrementByWeighted(target, data, weight);
+		}
+
+	/**
+	 * Discards any cached summaries of the data, after it has been modified.
+	 */
+	protected void dataChanged()
+		{
+		dataSum = null;
+		squaredNorm = null;
+		}
+
+	/**
+	 * Makes sure that the data field holds the full dense array, so that it can be modified in place.  Nothing to do
+	 * here; representations that don't keep a dense array override this to materialize one.
+	 */
+	protected void ensureDense()
+		{
+		}
+
 	public double get(final int i)
 		{
 		return data[i];
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.LabellableImpl;
+import org.apache.commons.lang.NotImplementedException;
+import org.apache.log4j.Logger;
+
+
+/**
+ * A single-precision counterpart of ClusterableDoubleArray, using half the memory per element.  Useful where many
+ * vectors must be held at once, e.g. for nearest-neighbor methods that keep every training sample.
+ * <p/>
+ * The arithmetic methods compute in double precision but store the results as floats, so a centroid that accumulates a
+ * long series of updates drifts by the float rounding error at every step; prefer ClusterableDoubleArray for
+ * centroids that are updated online.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ClusterableFloatArray extends LabellableImpl<String> implements AdditiveClusterable<ClusterableFloatArray>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ClusterableFloatArray.class);
+
+	protected String id;
+	protected float[] data;
+	protected Double dataSum;
+
+	private String label;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Builds a float array holding the given values, rounded to single precision.
+	 *
+	 * @param id     the identifier of the new array
+	 * @param values the values, which are copied
+	 * @return the new float array
+	 */
+	public static ClusterableFloatArray fromDoubles(final String id, final double[] values)
+		{
+		final float[] data = new float[values.length];
+		for (int i = 0; i < values.length; i++)
+			{
+			data[i] = (float) values[i];
+			}
+		return new ClusterableFloatArray(id, data);
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	public ClusterableFloatArray()
+		{
+		}
+
+	public ClusterableFloatArray(final String id, final float[] data)
+		{
+		this.id = id;
+		this.data = data;
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public void setLabel(final String label)
+		{
+		this.label = label;
+		}
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ClusterableFloatArray clone()
+		{
+		return new ClusterableFloatArray(id, data.clone());
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AdditiveClusterable ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void decrementBy(final ClusterableFloatArray object)
+		{
+		addWeighted(object, -1.0);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void decrementByWeighted(final ClusterableFloatArray object, final double weight)
+		{
+		addWeighted(object, -weight);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void incrementBy(final ClusterableFloatArray object)
+		{
+		addWeighted(object, 1.0);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void incrementByWeighted(final ClusterableFloatArray object, final double weight)
+		{
+		addWeighted(object, weight);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void moveToward(final ClusterableFloatArray object, final double motionFactor)
+		{
+		checkLength(object);
+		final float[] other = object.data;
+		for (int i = 0; i < data.length; i++)
+			{
+			data[i] = (float) (data[i] + motionFactor * ((double) other[i] - data[i]));
+			}
+		dataSum = null;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void weightedMixture(final ClusterableFloatArray object, final double thisWeight, final double pointWeight)
+		{
+		checkLength(object);
+		final float[] other = object.data;
+		for (int i = 0; i < data.length; i++)
+			{
+			data[i] = (float) (thisWeight * data[i] + pointWeight * other[i]);
+			}
+		dataSum = null;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ClusterableFloatArray minus(final ClusterableFloatArray object)
+		{
+		final ClusterableFloatArray result = new ClusterableFloatArray(id + "-" + object.getId(), data.clone());
+		result.addWeighted(object, -1.0);
+		return result;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void multiplyBy(final double scalar)
+		{
+		for (int i = 0; i < data.length; i++)
+			{
+			data[i] = (float) (data[i] * scalar);
+			}
+		dataSum = null;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ClusterableFloatArray plus(final ClusterableFloatArray object)
+		{
+		final ClusterableFloatArray result = new ClusterableFloatArray(id + "+" + object.getId(), data.clone());
+		result.addWeighted(object, 1.0);
+		return result;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ClusterableFloatArray times(final double scalar)
+		{
+		final ClusterableFloatArray result = new ClusterableFloatArray(id + "*" + scalar, data.clone());
+		result.multiplyBy(scalar);
+		return result;
+		}
+
+// --------------------- Interface Clusterable ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean equalValue(final ClusterableFloatArray object)
+		{
+		if (!id.equals(object.id) || data.length != object.data.length)
+			{
+			return false;
+			}
+		for (int i = 0; i < data.length; i++)
+			{
+			if (Float.compare(data[i], object.data[i]) != 0)
+				{
+				return false;
+				}
+			}
+		return true;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getId()
+		{
+		return id;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	private void addWeighted(final ClusterableFloatArray object, final double weight)
+		{
+		checkLength(object);
+		final float[] other = object.data;
+		for (int i = 0; i < data.length; i++)
+			{
+			data[i] = (float) (data[i] + weight * other[i]);
+			}
+		dataSum = null;
+		}
+
+	private void checkLength(final ClusterableFloatArray object)
+		{
+		if (data.length != object.data.length)
+			{
+			throw new ClusterRuntimeException(
+					"Can't combine arrays of different lengths: " + data.length + " vs. " + object.data.length);
+			}
+		}
+
+	public float get(final int i)
+		{
+		return data[i];
+		}
+
+	public double getArraySum()
+		{
+		if (dataSum == null)
+			{
+			double sum = 0;
+			for (final float f : data)
+				{
+				sum += f;
+				}
+			dataSum = sum;
+			}
+		return dataSum;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getExclusiveLabel()
+		{
+		return label;
+		}
+
+	/**
+	 * Returns the underlying array.  It is live, not a copy, so it must not be modified.
+	 *
+	 * @return the single-precision values
+	 */
+	public float[] getFloatArray()
+		{
+		return data;
+		}
+
+	public String getSourceId()
+		{
+		throw new NotImplementedException();
+		}
+
+	public int length()
+		{
+		return data.length;
+		}
+
+	/**
+	 * @return a newly allocated double-precision copy of the values
+	 */
+	public double[] toDoubleArray()
+		{
+		final double[] result = new double[data.length];
+		for (int i = 0; i < data.length; i++)
+			{
+			result[i] = data[i];
+			}
+		return result;
+		}
+	}
@@ -21,6 +21,13 @@ public interface ClusteringMethod<T extends Clusterable<T>> extends ClusterList<
 
 	String bestLabel(T sample, Set<String> predictLabels) throws NoGoodClusterException;
 
+	/**
+	 * Creates a pipeline for classifying a stream of samples against this clustering without accumulating test results.
+	 *
+	 * @param predictLabels the labels that may be predicted
+	 */
+	ClassificationPipeline<T> classificationPipeline(Set<String> predictLabels);
+
 	ClusteringTestResults<String> test(ClusterableIterator<T> theTestIterator,
 	                                   final DissimilarityMeasure<String> intraLabelDistances)
 			throws DistributionException, ClusterException;
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+/**
+ * Receives throughput measurements from a clustering method as it trains and tests, so that they can be monitored
+ * without enabling debug logging.  All times are wall-clock nanoseconds.  Calls may come from several threads at once
+ * (queue depths in particular), so implementations must be thread-safe.
+ * <p/>
+ * Distance evaluations are those made through the shared helpers of AbstractClusteringMethod, the packed and blocked
+ * centroid scans, and the agglomerative methods; the Kohonen maps and CentroidClusteringUtils compute some distances
+ * that are not counted.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ * @see AbstractClusteringMethod#setMetricsListener(ClusteringMetricsListener)
+ */
+public interface ClusteringMetricsListener
+	{
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Called at the end of each training epoch of an unsupervised online clustering.
+	 *
+	 * @param epoch               the number of the epoch, starting from 0
+	 * @param samples             the number of samples presented during the epoch
+	 * @param reassignments       the number of samples whose cluster assignment changed
+	 * @param distanceEvaluations the number of distances computed during the epoch
+	 * @param nanos               the duration of the epoch
+	 */
+	void epochCompleted(int epoch, int samples, int reassignments, long distanceEvaluations, long nanos);
+
+	/**
+	 * Called as each agglomerative clustering finishes joining nodes.
+	 *
+	 * @param merges              the number of joins made
+	 * @param distanceEvaluations the number of distances computed while joining, including those that a linkage rule
+	 *                            derives from the distances already known
+	 * @param nanos               the time spent joining
+	 */
+	void mergesCompleted(int merges, long distanceEvaluations, long nanos);
+
+	/**
+	 * Called as each named phase of training finishes, e.g. "trainWithKnownTrainingLabels", "removeEmptyClusters",
+	 * "normalizeClusterLabelProbabilities", "preparePriors".
+	 *
+	 * @param phase the name of the phase
+	 * @param nanos the duration of the phase
+	 */
+	void phaseCompleted(String phase, long nanos);
+
+	/**
+	 * Called periodically with the number of items waiting in a named queue, e.g. between the stages of a
+	 * ClassificationPipeline.
+	 */
+	void queueDepth(String queue, int depth);
+
+	/**
+	 * Called when test() finishes.
+	 *
+	 * @param samples             the number of samples tested
+	 * @param distanceEvaluations the number of distances computed while testing
+	 * @param nanos               the duration of the test
+	 */
+	void testCompleted(int samples, long distanceEvaluations, long nanos);
+
+	/**
+	 * Called when a call to train() finishes.
+	 *
+	 * @param samples             the number of samples presented, counting each once per epoch, or -1 if not known
+	 * @param distanceEvaluations the number of distances computed while training
+	 * @param nanos               the duration of training
+	 */
+	void trainingCompleted(int samples, long distanceEvaluations, long nanos);
+	}
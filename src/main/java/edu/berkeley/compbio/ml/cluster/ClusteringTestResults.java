@@ -44,13 +44,20 @@ public class ClusteringTestResults<L extends Comparable>
 	/**
 	 * For voting-based classifiers, the proportion of votes that the best label got
 	 */
-	private final List<Double> bestVoteProportions = new ArrayList<Double>();
+	private List<Double> bestVoteProportions = new ArrayList<Double>();
 
 	/**
 	 * For voting-based classifiers, the second-best number of votes as a proportion of the best votes; 1.0 = tie
 	 */
 	private List<Double> secondToBestVoteRatios = new ArrayList<Double>();
 
+	// if streaming, the per-sample values above are summarized here instead, and the lists are not used
+	private final boolean streaming;
+	private StreamingStatistics computedDistanceStatistics;
+	private StreamingStatistics secondToBestDistanceRatioStatistics;
+	private StreamingStatistics bestVoteProportionStatistics;
+	private StreamingStatistics secondToBestVoteRatioStatistics;
+
 
 	//public double correct = 0;
 	//public double wrong = 0;
@@ -67,11 +74,69 @@ public class ClusteringTestResults<L extends Comparable>
 
 	private Map<L, String> friendlyLabelMap;
 
+	// if striped, each thread records per-sample results into a stripe of its own, and the stripes are merged in finish()
+	@Nullable
+	private final ThreadLocal<ClusteringTestResults<L>> localStripe;
+	private final List<ClusteringTestResults<L>> stripes = new ArrayList<ClusteringTestResults<L>>();
+
+	// once set, nothing more may be recorded; for a stripe, this means it has been merged and emptied
+	private volatile boolean finished = false;
+
 	public ClusteringTestResults() //final Map<String, String> friendlyLabelMap)
 	{
+	this(false);
 	//this.friendlyLabelMap = friendlyLabelMap;
 	}
 
+	/**
+	 * @param striped whether each thread should record per-sample results separately, rather than contending for a lock
+	 *                on this object.  The results are merged in finish(), and are the same either way except for the
+	 *                order of the per-sample lists; until then the getters don't reflect them.
+	 */
+	public ClusteringTestResults(final boolean striped)
+		{
+		this(striped, false);
+		}
+
+	/**
+	 * @param striped   as above
+	 * @param streaming whether to summarize the per-sample values in bounded memory (see {@link StreamingStatistics})
+	 *                  rather than keeping them all.  In that case the per-sample arrays are not available, and the
+	 *                  results report the count, mean, standard deviation, extremes, percentiles, and (for ratios and
+	 *                  proportions) histograms of each instead.
+	 */
+	public ClusteringTestResults(final boolean striped, final boolean streaming)
+		{
+		this.streaming = streaming;
+		if (streaming)
+			{
+			computedDistances = null;
+			secondToBestDistanceRatios = null;
+			bestVoteProportions = null;
+			secondToBestVoteRatios = null;
+			computedDistanceStatistics = new StreamingStatistics();
+			secondToBestDistanceRatioStatistics = new StreamingStatistics(0., 1., .01);
+			bestVoteProportionStatistics = new StreamingStatistics(0., 1., .01);
+			secondToBestVoteRatioStatistics = new StreamingStatistics(0., 1., .01);
+			}
+
+		localStripe = !striped ? null : new ThreadLocal<ClusteringTestResults<L>>()
+		{
+		@Override
+		protected ClusteringTestResults<L> initialValue()
+			{
+			final ClusteringTestResults<L> result = new ClusteringTestResults<L>(false, ClusteringTestResults.this.streaming);
+			synchronized (stripes)
+				{
+				// a stripe added after the merge would never be merged
+				checkNotFinished();
+				stripes.add(result);
+				}
+			return result;
+			}
+		};
+		}
+
 	public void setFriendlyLabelMap(final Map<L, String> friendlyLabelMap)
 		{
 		this.friendlyLabelMap = friendlyLabelMap;
@@ -144,30 +209,58 @@ public class ClusteringTestResults<L extends Comparable>
 		return error;
 		}
 
+	/**
+	 * @param predictionSetName the name under which the prediction results were recorded
+	 * @return the cross-validation results for that prediction set, which are empty if none were recorded
+	 */
+	public synchronized DistanceBasedMultiClassCrossValidationResults<L> getCrossValidationResults(
+			final String predictionSetName)
+		{
+		return cvResultMap.get(predictionSetName);
+		}
+
 	// -------------------------- OTHER METHODS --------------------------
 
-	public synchronized void addClusterResult(final double bestDistance, final double secondToBestDistanceRatio,
-	                                          final double bestVoteProportion, final double secondToBestVoteRatio)
+	public void addClusterResult(final double bestDistance, final double secondToBestDistanceRatio,
+	                             final double bestVoteProportion, final double secondToBestVoteRatio)
 		{
+		if (localStripe != null)
+			{
+			checkNotFinished();
+			localStripe.get()
+					.addClusterResult(bestDistance, secondToBestDistanceRatio, bestVoteProportion, secondToBestVoteRatio);
+			return;
+			}
 		/*
 		assert !(Double.isNaN(bestDistance) || Double.isInfinite(bestDistance));
 		assert !(Double.isNaN(secondToBestDistanceRatio) || Double.isInfinite(secondToBestDistanceRatio));
 		assert !(Double.isNaN(secondToBestVoteRatio) || Double.isInfinite(secondToBestVoteRatio));
 		*/
 
-		if (Double.isNaN(bestDistance) || Double.isInfinite(bestDistance) || Double.isNaN(secondToBestDistanceRatio)
-		    || Double.isInfinite(secondToBestDistanceRatio) || Double.isNaN(secondToBestVoteRatio) || Double
-				.isInfinite(secondToBestVoteRatio))
-			{
-			error++;
-			}
-		else
+		synchronized (this)
 			{
+			checkNotFinished();
+			if (Double.isNaN(bestDistance) || Double.isInfinite(bestDistance) || Double.isNaN(secondToBestDistanceRatio)
+			    || Double.isInfinite(secondToBestDistanceRatio) || Double.isNaN(secondToBestVoteRatio) || Double
+					.isInfinite(secondToBestVoteRatio))
+				{
+				error++;
+				}
+			else if (streaming)
+				{
+				computedDistanceStatistics.add(bestDistance);
+				secondToBestDistanceRatioStatistics.add(secondToBestDistanceRatio);
+				bestVoteProportionStatistics.add(bestVoteProportion);
+				secondToBestVoteRatioStatistics.add(secondToBestVoteRatio);
+				}
+			else
+				{
 
-			computedDistances.add(bestDistance);
-			secondToBestDistanceRatios.add(secondToBestDistanceRatio);
-			bestVoteProportions.add(bestVoteProportion);
-			secondToBestVoteRatios.add(secondToBestVoteRatio);
+				computedDistances.add(bestDistance);
+				secondToBestDistanceRatios.add(secondToBestDistanceRatio);
+				bestVoteProportions.add(bestVoteProportion);
+				secondToBestVoteRatios.add(secondToBestVoteRatio);
+				}
 			}
 		}
 
@@ -176,7 +269,7 @@ public class ClusteringTestResults<L extends Comparable>
 			{
 			public DistanceBasedMultiClassCrossValidationResults apply(@Nullable final String from)
 				{
-				return new DistanceBasedMultiClassCrossValidationResults();
+				return new DistanceBasedMultiClassCrossValidationResults(streaming);
 				/*
 				DistanceBasedMultiClassCrossValidationResults result = new DistanceBasedMultiClassCrossValidationResults();
 				result.setFriendlyLabelMap(friendlyLabelMap);
@@ -184,11 +277,30 @@ public class ClusteringTestResults<L extends Comparable>
 				}
 			});
 
-	public synchronized void addPredictionResult(final String predictionSetName, final String broadActualLabel,
-	                                             final String predictedLabel, final double clusterProb,
-	                                             final double broadWrongness, final double detailedWrongness)
+	public void addPredictionResult(final String predictionSetName, final String broadActualLabel,
+	                                final String predictedLabel, final double clusterProb, final double broadWrongness,
+	                                final double detailedWrongness)
 
 		{
+		if (localStripe != null)
+			{
+			checkNotFinished();
+			localStripe.get().addPredictionResult(predictionSetName, broadActualLabel, predictedLabel, clusterProb,
+			                                      broadWrongness, detailedWrongness);
+			return;
+			}
+		synchronized (this)
+			{
+			checkNotFinished();
+			recordPredictionResult(predictionSetName, broadActualLabel, predictedLabel, clusterProb, broadWrongness,
+			                       detailedWrongness);
+			}
+		}
+
+	private void recordPredictionResult(final String predictionSetName, final String broadActualLabel,
+	                                    final String predictedLabel, final double clusterProb,
+	                                    final double broadWrongness, final double detailedWrongness)
+		{
 		final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
 
 		if (Double.isNaN(broadWrongness) || Double.isInfinite(broadWrongness))
@@ -229,8 +341,21 @@ public class ClusteringTestResults<L extends Comparable>
 	//	public double[] correctPercentages;		//	public double[] wrongPercentages;
 
 	//	public double[] correctDistanceHistogram;		//	public double[] wrongDistanceHistogram;		//	public double[] distanceBinCenters;
+	/**
+	 * Merges the stripes, if any, and computes the final results.  Nothing more may be recorded afterwards.
+	 */
 	public synchronized void finish()
 		{
+		checkNotFinished();
+		finished = true;
+		mergeStripes();
+
+		if (streaming)
+			{
+			finishStreaming();
+			return;
+			}
+
 		// keep track of whether any good predictions are ever made
 		/*if (DSCollectionUtils.allElementsEqual(computedDistances, DissimilarityMeasure.UNKNOWN_DISTANCE))
 			{
@@ -308,6 +433,90 @@ public class ClusteringTestResults<L extends Comparable>
 		wrongDistanceHistogram = wHist.getCumulativeFractions();
 		*/
 		}
+
+	/**
+	 * Discards uninformative summaries, under the same conditions as finish() discards the corresponding lists
+	 */
+	private void finishStreaming()
+		{
+		if (computedDistanceStatistics.allNaN() || computedDistanceStatistics.allEqual(1.0))
+			{
+			computedDistanceStatistics = null;
+			}
+		if (secondToBestDistanceRatioStatistics.allEqual(0.0))
+			{
+			secondToBestDistanceRatioStatistics = null;
+			}
+		if (secondToBestVoteRatioStatistics.allEqual(0.0))
+			{
+			secondToBestVoteRatioStatistics = null;
+			}
+
+		for (final DistanceBasedMultiClassCrossValidationResults cvResults : cvResultMap.values())
+			{
+			cvResults.finish();
+			}
+		}
+
+	private void mergeStripes()
+		{
+		if (localStripe == null)
+			{
+			return;
+			}
+		synchronized (stripes)
+			{
+			for (final ClusteringTestResults<L> stripe : stripes)
+				{
+				synchronized (stripe)
+					{
+					error += stripe.error;
+					unknown += stripe.unknown;
+					if (streaming)
+						{
+						computedDistanceStatistics.addAll(stripe.computedDistanceStatistics);
+						secondToBestDistanceRatioStatistics.addAll(stripe.secondToBestDistanceRatioStatistics);
+						bestVoteProportionStatistics.addAll(stripe.bestVoteProportionStatistics);
+						secondToBestVoteRatioStatistics.addAll(stripe.secondToBestVoteRatioStatistics);
+						}
+					else
+						{
+						computedDistances.addAll(stripe.computedDistances);
+						secondToBestDistanceRatios.addAll(stripe.secondToBestDistanceRatios);
+						bestVoteProportions.addAll(stripe.bestVoteProportions);
+						secondToBestVoteRatios.addAll(stripe.secondToBestVoteRatios);
+						}
+					for (final Map.Entry<String, DistanceBasedMultiClassCrossValidationResults<L>> entry : stripe.cvResultMap
+							.entrySet())
+						{
+						cvResultMap.get(entry.getKey()).addAll(entry.getValue());
+						}
+
+					// the pooled threads keep their stripes for as long as they live, so leave only an empty shell
+					stripe.finished = true;
+					stripe.computedDistances = null;
+					stripe.secondToBestDistanceRatios = null;
+					stripe.bestVoteProportions = null;
+					stripe.secondToBestVoteRatios = null;
+					stripe.computedDistanceStatistics = null;
+					stripe.secondToBestDistanceRatioStatistics = null;
+					stripe.bestVoteProportionStatistics = null;
+					stripe.secondToBestVoteRatioStatistics = null;
+					stripe.cvResultMap.clear();
+					}
+				}
+			stripes.clear();
+			}
+		}
+
+	private void checkNotFinished()
+		{
+		if (finished)
+			{
+			throw new ClusterRuntimeException("Can't record test results after finish()");
+			}
+		}
+
 /*
 	public double getAccuracy()
 		{
@@ -322,6 +531,38 @@ public class ClusteringTestResults<L extends Comparable>
 			}
 		}*/
 
+	/**
+	 * @return the summary of the best distances, if streaming and not discarded as uninformative; otherwise null
+	 */
+	@Nullable
+	public synchronized StreamingStatistics getComputedDistanceStatistics()
+		{
+		return computedDistanceStatistics;
+		}
+
+	@Nullable
+	public synchronized StreamingStatistics getSecondToBestDistanceRatioStatistics()
+		{
+		return secondToBestDistanceRatioStatistics;
+		}
+
+	@Nullable
+	public synchronized StreamingStatistics getBestVoteProportionStatistics()
+		{
+		return bestVoteProportionStatistics;
+		}
+
+	@Nullable
+	public synchronized StreamingStatistics getSecondToBestVoteRatioStatistics()
+		{
+		return secondToBestVoteRatioStatistics;
+		}
+
+	public boolean isStreaming()
+		{
+		return streaming;
+		}
+
 	public synchronized Double[] getBestVoteProportionsArray()
 		{
 		return bestVoteProportions == null ? null : bestVoteProportions.toArray(DSArrayUtils.EMPTY_DOUBLE_OBJECT_ARRAY);
@@ -345,28 +586,68 @@ public class ClusteringTestResults<L extends Comparable>
 		       secondToBestVoteRatios.toArray(DSArrayUtils.EMPTY_DOUBLE_OBJECT_ARRAY);
 		}
 
-	public synchronized void incrementShouldHaveBeenUnknown(final String predictionSetName)
+	public void incrementShouldHaveBeenUnknown(final String predictionSetName)
 		{
-		final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
-		cvResults.incrementShouldHaveBeenUnknown();
+		if (localStripe != null)
+			{
+			checkNotFinished();
+			localStripe.get().incrementShouldHaveBeenUnknown(predictionSetName);
+			return;
+			}
+		synchronized (this)
+			{
+			checkNotFinished();
+			final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
+			cvResults.incrementShouldHaveBeenUnknown();
+			}
 		}
 
-	public synchronized void incrementShouldNotHaveBeenUnknown(final String predictionSetName)
+	public void incrementShouldNotHaveBeenUnknown(final String predictionSetName)
 		{
-		final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
-		cvResults.incrementShouldNotHaveBeenUnknown();
+		if (localStripe != null)
+			{
+			checkNotFinished();
+			localStripe.get().incrementShouldNotHaveBeenUnknown(predictionSetName);
+			return;
+			}
+		synchronized (this)
+			{
+			checkNotFinished();
+			final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
+			cvResults.incrementShouldNotHaveBeenUnknown();
+			}
 		}
 
-	public synchronized void incrementOther(final String predictionSetName)
+	public void incrementOther(final String predictionSetName)
 		{
-		final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
-		cvResults.incrementOther();
+		if (localStripe != null)
+			{
+			checkNotFinished();
+			localStripe.get().incrementOther(predictionSetName);
+			return;
+			}
+		synchronized (this)
+			{
+			checkNotFinished();
+			final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
+			cvResults.incrementOther();
+			}
 		}
 
-	public synchronized void incrementShouldNotHaveBeenOther(final String predictionSetName)
+	public void incrementShouldNotHaveBeenOther(final String predictionSetName)
 		{
-		final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
-		cvResults.incrementShouldNotHaveBeenOther();
+		if (localStripe != null)
+			{
+			checkNotFinished();
+			localStripe.get().incrementShouldNotHaveBeenOther(predictionSetName);
+			return;
+			}
+		synchronized (this)
+			{
+			checkNotFinished();
+			final DistanceBasedMultiClassCrossValidationResults cvResults = cvResultMap.get(predictionSetName);
+			cvResults.incrementShouldNotHaveBeenOther();
+			}
 		}
 
 
@@ -375,9 +656,19 @@ public class ClusteringTestResults<L extends Comparable>
 		totalTrainingMass += weightSum;
 		}
 
-	public synchronized void incrementUnknown()
+	public void incrementUnknown()
 		{
-		unknown++;
+		if (localStripe != null)
+			{
+			checkNotFinished();
+			localStripe.get().incrementUnknown();
+			return;
+			}
+		synchronized (this)
+			{
+			checkNotFinished();
+			unknown++;
+			}
 		}
 
 	/*	public void setCrossValidationResults(MultiClassCrossValidationResults crossValidationResults)
@@ -403,10 +694,20 @@ public class ClusteringTestResults<L extends Comparable>
 		innerResults.addChild("numClusters", getNumClusters());
 		//resultsNode.addChild("unknown", getUnknown());
 
-		innerResults.addChild("computedDistances", getComputedDistancesArray());
-		innerResults.addChild("secondToBestDistanceRatios", getSecondToBestDistanceRatiosArray());
-		innerResults.addChild("voteProportions", getBestVoteProportionsArray());
-		innerResults.addChild("secondToBestVoteRatios", getSecondToBestVoteRatiosArray());
+		if (streaming)
+			{
+			putStatistics(innerResults, "computedDistances", getComputedDistanceStatistics());
+			putStatistics(innerResults, "secondToBestDistanceRatios", getSecondToBestDistanceRatioStatistics());
+			putStatistics(innerResults, "voteProportions", getBestVoteProportionStatistics());
+			putStatistics(innerResults, "secondToBestVoteRatios", getSecondToBestVoteRatioStatistics());
+			}
+		else
+			{
+			innerResults.addChild("computedDistances", getComputedDistancesArray());
+			innerResults.addChild("secondToBestDistanceRatios", getSecondToBestDistanceRatiosArray());
+			innerResults.addChild("voteProportions", getBestVoteProportionsArray());
+			innerResults.addChild("secondToBestVoteRatios", getSecondToBestVoteRatiosArray());
+			}
 //		resultsNode.addChild("labelWithinClusterProbabilities", getLabelWithinClusterProbabilitiesArray());
 
 //		resultsNode.addChild("accuracy", getAccuracy()); // (double) perfect / (double) tr.labelDistances.size());
@@ -457,4 +758,17 @@ public class ClusteringTestResults<L extends Comparable>
 			entry.getValue().putResults(childResultsNode, labelDistancesName, friendlyLabelMap);
 			}
 		}
+	
+	private static void putStatistics(final HierarchicalTypedPropertyNode<String, Serializable, ?> resultsNode,
+	                                  final String name, @Nullable final StreamingStatistics statistics)
+		{
+		if (statistics == null)
+			{
+			resultsNode.addChild(name, (Serializable) null);
+			}
+		else
+			{
+			statistics.putResults(resultsNode, name);
+			}
+		}
 	}
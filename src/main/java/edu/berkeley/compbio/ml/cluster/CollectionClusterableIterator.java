@@ -10,15 +10,17 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
- * This will be threadsafe iff the underlying collection and its iterators are
+ * This will be threadsafe as long as the underlying collection is not modified while iterating; next() and nextBatch()
+ * both hold the lock on the underlying iterator.
  *
  * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
  * @version $Id$
  */
-public class CollectionClusterableIterator<T extends Clusterable<T>> implements ClusterableIterator<T>
+public class CollectionClusterableIterator<T extends Clusterable<T>> implements BatchClusterableIterator<T>
 	{
 	Iterator<T> it;
 	final Collection<T> underlyingCollection;
@@ -32,7 +34,10 @@ public class CollectionClusterableIterator<T extends Clusterable<T>> implements
 	@NotNull
 	public T next() throws NoSuchElementException
 		{
-		return it.next();
+		synchronized (it)
+			{
+			return it.next();
+			}
 		}
 
 	public T nextFullyLabelled()
@@ -42,6 +47,24 @@ public class CollectionClusterableIterator<T extends Clusterable<T>> implements
 		return s;
 		}
 
+	/**
+	 * Takes a batch under a single lock on the underlying iterator, so batches never interleave with each other or with
+	 * calls to next().
+	 */
+	public int nextBatch(final List<? super T> buffer, final int max)
+		{
+		int result = 0;
+		synchronized (it)
+			{
+			while (result < max && it.hasNext())
+				{
+				buffer.add(it.next());
+				result++;
+				}
+			}
+		return result;
+		}
+
 	/*
    public void reset()
 	   {
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.conja.Function;
+import com.davidsoergel.stats.DoubleArrayContainer;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayDissimilarityMeasure;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayKernels;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A packed, row-major copy of the centroids of a list of clusters, so that a nearest-centroid scan streams through one
+ * contiguous double[] instead of chasing a cluster object, a centroid object, and a separate array per cluster.
+ * <p/>
+ * Row i holds the centroid of the i'th cluster in the list the matrix was built from.  Clusters extending
+ * AbstractCentroidCluster are attached to their row and copy their centroid into it whenever it moves; other centroid
+ * clusters (e.g. hierarchical nodes) are assumed not to move after the matrix is built.  Anything the matrix can't keep
+ * up with marks it stale, whereupon the owner should discard it and build a new one.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class DenseCentroidMatrix<T extends Clusterable<T>, C extends Cluster<T>>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(DenseCentroidMatrix.class);
+
+	private final List<C> rowClusters;
+	private final ClusterMaskCache<T> rowMasks;
+	private final int dimensions;
+	private final double[] values;
+
+	// squared norm of each row, kept current with the row itself so that scoring threads only ever read it
+	private final double[] rowSquaredNorms;
+
+	private volatile boolean stale = false;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Packs the centroids of the given clusters into a new matrix, and attaches the clusters to it so that it stays in
+	 * sync.
+	 *
+	 * @param clusters the clusters whose centroids should be packed, in row order
+	 * @return the new matrix, or null if the clusters are not all centroid clusters whose centroids are double arrays of
+	 *         a common length
+	 */
+	@Nullable
+	public static <T extends Clusterable<T>, C extends Cluster<T>> DenseCentroidMatrix<T, C> build(
+			final List<C> clusters)
+		{
+		if (clusters.isEmpty())
+			{
+			return null;
+			}
+
+		int dimensions = -1;
+		for (final C c : clusters)
+			{
+			if (!(c instanceof CentroidCluster))
+				{
+				return null;
+				}
+			final T centroid = ((CentroidCluster<T>) c).getCentroid();
+			if (!(centroid instanceof DoubleArrayContainer))
+				{
+				return null;
+				}
+			final int length = ((DoubleArrayContainer) centroid).getArray().length;
+			if (dimensions == -1)
+				{
+				dimensions = length;
+				}
+			else if (length != dimensions)
+				{
+				logger.warn("Centroids have differing lengths; not packing them");
+				return null;
+				}
+			}
+
+		final DenseCentroidMatrix<T, C> result = new DenseCentroidMatrix<T, C>(clusters, dimensions);
+		int row = 0;
+		for (final C c : clusters)
+			{
+			if (c instanceof AbstractCentroidCluster)
+				{
+				((AbstractCentroidCluster<T>) c).attachDenseCentroids(result, row);
+				}
+			row++;
+			}
+		logger.debug("Packed " + clusters.size() + " centroids of " + dimensions + " dimensions");
+		return result;
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private DenseCentroidMatrix(final List<C> clusters, final int dimensions)
+		{
+		this.rowClusters = new ArrayList<C>(clusters);
+		this.rowMasks = new ClusterMaskCache<T>(rowClusters);
+		this.dimensions = dimensions;
+		this.values = new double[rowClusters.size() * dimensions];
+		this.rowSquaredNorms = new double[rowClusters.size()];
+
+		int row = 0;
+		for (final C c : rowClusters)
+			{
+			final double[] centroid = ((DoubleArrayContainer) ((CentroidCluster<T>) c).getCentroid()).getArray();
+			System.arraycopy(centroid, 0, values, row * dimensions, dimensions);
+			rowSquaredNorms[row] = DoubleArrayKernels.squaredNorm(values, row * dimensions, dimensions);
+			row++;
+			}
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int getDimensions()
+		{
+		return dimensions;
+		}
+
+	/**
+	 * Returns the packed centroids; row i occupies indices [i * getDimensions(), (i+1) * getDimensions()).  The array is
+	 * live, not a copy, so it must not be modified.
+	 *
+	 * @return the packed centroids
+	 */
+	public double[] getValues()
+		{
+		return values;
+		}
+
+	public boolean isStale()
+		{
+		return stale;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	public C getCluster(final int row)
+		{
+		return rowClusters.get(row);
+		}
+
+	public int getNumRows()
+		{
+		return rowClusters.size();
+		}
+
+	/**
+	 * @param filter the filter of the point about to be classified; may be null
+	 * @return the rows that a BinnedPointClusterFilter prohibits, which must not be modified, or null for any other
+	 *         filter
+	 */
+	@Nullable
+	public BitSet getProhibitedRows(@Nullable final PointClusterFilter<T> filter)
+		{
+		return rowMasks.getProhibited(filter);
+		}
+
+	/**
+	 * Returns the squared Euclidean norm of the given row, as computed when the row was last written.
+	 *
+	 * @param row the row whose norm is wanted
+	 * @return the sum of the squares of the row's elements
+	 */
+	public double getRowSquaredNorm(final int row)
+		{
+		return rowSquaredNorms[row];
+		}
+
+	/**
+	 * Tells the clusters packed here to stop reporting centroid changes to this matrix, and marks it stale.
+	 */
+	public void detach()
+		{
+		stale = true;
+		for (final C c : rowClusters)
+			{
+			if (c instanceof AbstractCentroidCluster)
+				{
+				((AbstractCentroidCluster<T>) c).detachDenseCentroids(this);
+				}
+			}
+		}
+
+	void markStale()
+		{
+		stale = true;
+		}
+
+	/**
+	 * Copies the given centroid into the given row.  If the centroid can no longer be represented here (e.g. it was
+	 * replaced by null, or by something that is not a double array of the right length), the matrix is marked stale
+	 * instead.
+	 *
+	 * @param row      the row to overwrite
+	 * @param centroid the new value of the centroid for that row
+	 */
+	void updateRow(final int row, final T centroid)
+		{
+		if (centroid instanceof DoubleArrayContainer)
+			{
+			final double[] data = ((DoubleArrayContainer) centroid).getArray();
+			if (data.length == dimensions)
+				{
+				System.arraycopy(data, 0, values, row * dimensions, dimensions);
+				rowSquaredNorms[row] = DoubleArrayKernels.squaredNorm(data, 0, dimensions);
+				return;
+				}
+			}
+		stale = true;
+		}
+
+	/**
+	 * Scans every permitted row for the centroid nearest to the query, updating bestCluster, bestDistance and
+	 * secondBestDistance of the given ClusterMove exactly as the cluster-by-cluster loops do.
+	 *
+	 * @param query     the point to classify
+	 * @param measure   the distance measure, evaluated directly on the packed rows
+	 * @param filter    clusters for which this filter answers isProhibited are skipped; may be null
+	 * @param inclusive if true, a later row at a distance equal to the best (or second-best) so far replaces it, as with
+	 *                  a <= comparison; otherwise the earlier row is kept, as with <
+	 * @param result    the move to update
+	 */
+	public void scan(final double[] query, final DoubleArrayDissimilarityMeasure measure,
+	                 @Nullable final PointClusterFilter<T> filter, final boolean inclusive,
+	                 final ClusterMove<T, C> result)
+		{
+		scanRows(query, measure, filter, rowMasks.getProhibited(filter), inclusive, 0, rowClusters.size(), result);
+		}
+
+	/**
+	 * As scan(), but dividing the rows into partitions that are scanned in parallel, for a single query against very many
+	 * centroids.  Each partition is scanned from scratch, and the partial results are then folded into the given move in
+	 * row order, starting from its existing best and second-best, so that the result is the same as scan() would give.
+	 *
+	 * @param policy        how to run the partitions, or null to scan every row in the calling thread; this must not be
+	 *                      run from a task on a bounded pool that the policy also uses
+	 * @param partitionRows the number of rows per partition; with no more rows than this, the rows are just scanned
+	 */
+	public void scan(final double[] query, final DoubleArrayDissimilarityMeasure measure,
+	                 @Nullable final PointClusterFilter<T> filter, final boolean inclusive,
+	                 final ClusterMove<T, C> result, @Nullable final ExecutionPolicy policy,
+	                 final int partitionRows)
+		{
+		final int rows = rowClusters.size();
+		if (policy == null || partitionRows < 1 || rows <= partitionRows)
+			{
+			scan(query, measure, filter, inclusive, result);
+			return;
+			}
+
+		final BitSet prohibited = rowMasks.getProhibited(filter);
+		final int numPartitions = (rows + partitionRows - 1) / partitionRows;
+		final AtomicReferenceArray<ClusterMove<T, C>> partials =
+				new AtomicReferenceArray<ClusterMove<T, C>>(numPartitions);
+		final List<Integer> partitions = new ArrayList<Integer>(numPartitions);
+		for (int i = 0; i < numPartitions; i++)
+			{
+			partitions.add(i);
+			}
+		policy.forEach(partitions, new Function<Integer, Void>()
+		{
+		public Void apply(@Nullable final Integer i)
+			{
+			final ClusterMove<T, C> partial = new ClusterMove<T, C>();
+			partial.secondBestDistance = Double.POSITIVE_INFINITY;
+			final int from = i * partitionRows;
+			scanRows(query, measure, filter, prohibited, inclusive, from, Math.min(from + partitionRows, rows), partial);
+			partials.set(i, partial);
+			return null;
+			}
+		});
+
+		// fold the partitions in row order, so that ties are resolved as in a single scan
+		C bestCluster = result.bestCluster;
+		double bestDistance = result.bestDistance;
+		double secondBestDistance = result.secondBestDistance;
+		for (int i = 0; i < numPartitions; i++)
+			{
+			final ClusterMove<T, C> partial = partials.get(i);
+			if (partial.bestCluster == null)
+				{
+				continue;
+				}
+			if (partial.bestDistance < bestDistance || (inclusive && partial.bestDistance == bestDistance))
+				{
+				secondBestDistance = Math.min(bestDistance, partial.secondBestDistance);
+				bestDistance = partial.bestDistance;
+				bestCluster = partial.bestCluster;
+				}
+			else
+				{
+				secondBestDistance = Math.min(secondBestDistance, partial.bestDistance);
+				}
+			}
+		result.bestCluster = bestCluster;
+		result.bestDistance = bestDistance;
+		result.secondBestDistance = secondBestDistance;
+		}
+
+	private void scanRows(final double[] query, final DoubleArrayDissimilarityMeasure measure,
+	                      @Nullable final PointClusterFilter<T> filter, @Nullable final BitSet prohibited,
+	                      final boolean inclusive, final int from, final int to, final ClusterMove<T, C> result)
+		{
+		for (int row = ClusterMaskCache.nextPermitted(prohibited, from); row < to;
+		     row = ClusterMaskCache.nextPermitted(prohibited, row + 1))
+			{
+			if (prohibited == null && filter != null && filter.isProhibited(rowClusters.get(row)))
+				{
+				continue;
+				}
+
+			final double d = measure.distanceFromToBounded(query, 0, values, row * dimensions, dimensions,
+			                                               result.pruningBound());
+			if (d < result.bestDistance || (inclusive && d == result.bestDistance))
+				{
+				result.secondBestDistance = result.bestDistance;
+				result.bestDistance = d;
+				result.bestCluster = rowClusters.get(row);
+				}
+			else if (d < result.secondBestDistance || (inclusive && d == result.secondBestDistance))
+				{
+				result.secondBestDistance = d;
+				}
+			}
+		}
+	}
@@ -14,6 +14,7 @@ import com.davidsoergel.stats.StatsException;
 import com.davidsoergel.trees.htpn.HierarchicalTypedPropertyNode;
 import edu.berkeley.compbio.ml.MultiClassCrossValidationResults;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -48,17 +49,98 @@ public class DistanceBasedMultiClassCrossValidationResults<L extends Comparable>
 	private int shouldNotHaveBeenOther = 0;
 	private int ignoredSamples;  // samples that were not considered because they violated some condition
 
+	/**
+	 * If streaming, the per-sample values above are summarized here instead, and the lists are left empty.  The
+	 * prediction distances are summarized only for classified samples, as storeLabelDistances() would consider them.
+	 */
+	private final boolean streaming;
+	private StreamingStatistics predictionDistanceStatistics;
+	private StreamingStatistics predictionDistanceWithPrecisionCostStatistics;
+	private StreamingStatistics labelWithinClusterProbabilityStatistics;
+
+	public DistanceBasedMultiClassCrossValidationResults()
+		{
+		this(false);
+		}
+
+	/**
+	 * @param streaming whether to summarize the per-sample values in bounded memory (see {@link StreamingStatistics})
+	 *                  rather than keeping them all
+	 */
+	public DistanceBasedMultiClassCrossValidationResults(final boolean streaming)
+		{
+		this.streaming = streaming;
+		if (streaming)
+			{
+			predictionDistanceStatistics = new StreamingStatistics();
+			predictionDistanceWithPrecisionCostStatistics = new StreamingStatistics();
+			labelWithinClusterProbabilityStatistics = new StreamingStatistics(0., 1., .01);
+			}
+		}
+
 	public void addSample(final L realLabel, final L predictedLabel, final double clusterProb,
 	                      final double broadWrongness, final double detailedWrongness)
 		{
 		super.addSample(realLabel, predictedLabel);
 
-		predictionDistances.add(broadWrongness);
-		predictionDistancesWithPrecisionCost.add(detailedWrongness);
-		labelWithinClusterProbabilities.add(clusterProb);
+		if (streaming)
+			{
+			addGivenClassified(predictionDistanceStatistics, broadWrongness);
+			addGivenClassified(predictionDistanceWithPrecisionCostStatistics, detailedWrongness);
+			labelWithinClusterProbabilityStatistics.add(clusterProb);
+			}
+		else
+			{
+			predictionDistances.add(broadWrongness);
+			predictionDistancesWithPrecisionCost.add(detailedWrongness);
+			labelWithinClusterProbabilities.add(clusterProb);
+			}
+		}
+
+	private static void addGivenClassified(final StreamingStatistics statistics, final double labelDistance)
+		{
+		// as in storeLabelDistances()
+		if (labelDistance < 0)
+			{
+			statistics.add(0.);
+			}
+		else if (labelDistance <= 1e100)
+			{
+			statistics.add(labelDistance);
+			}
 		}
 
 
+	/**
+	 * Adds every sample and count recorded in the given results to these, exactly as though each had been added here
+	 * directly.  Must be called before finish().
+	 *
+	 * @param from the results to merge into these; not modified, and not yet finished
+	 */
+	public void addAll(final DistanceBasedMultiClassCrossValidationResults<L> from)
+		{
+		super.addAll(from);
+
+		if (streaming)
+			{
+			predictionDistanceStatistics.addAll(from.predictionDistanceStatistics);
+			predictionDistanceWithPrecisionCostStatistics.addAll(from.predictionDistanceWithPrecisionCostStatistics);
+			labelWithinClusterProbabilityStatistics.addAll(from.labelWithinClusterProbabilityStatistics);
+			}
+		else
+			{
+			predictionDistances.addAll(from.predictionDistances);
+			predictionDistancesWithPrecisionCost.addAll(from.predictionDistancesWithPrecisionCost);
+			labelWithinClusterProbabilities.addAll(from.labelWithinClusterProbabilities);
+			}
+
+		shouldHaveBeenUnknown += from.shouldHaveBeenUnknown;
+		shouldNotHaveBeenUnknown += from.shouldNotHaveBeenUnknown;
+		other += from.other;
+		shouldNotHaveBeenOther += from.shouldNotHaveBeenOther;
+		ignoredSamples += from.ignoredSamples;
+		}
+
 	public void addIgnoredSample()
 		{
 		ignoredSamples++;
@@ -74,14 +156,69 @@ public class DistanceBasedMultiClassCrossValidationResults<L extends Comparable>
 		return predictionDistancesWithPrecisionCost;
 		}
 
+	public int getShouldHaveBeenUnknown()
+		{
+		return shouldHaveBeenUnknown;
+		}
+
+	public int getShouldNotHaveBeenUnknown()
+		{
+		return shouldNotHaveBeenUnknown;
+		}
+
+	public int getOther()
+		{
+		return other;
+		}
+
+	public int getShouldNotHaveBeenOther()
+		{
+		return shouldNotHaveBeenOther;
+		}
+
+	public int getIgnoredSamples()
+		{
+		return ignoredSamples;
+		}
+
 	public void finish()
 		{
-		if (DSCollectionUtils.allElementsEqual(labelWithinClusterProbabilities, 1.0))
+		if (streaming)
+			{
+			if (labelWithinClusterProbabilityStatistics.allEqual(1.0))
+				{
+				labelWithinClusterProbabilityStatistics = null;
+				}
+			}
+		else if (DSCollectionUtils.allElementsEqual(labelWithinClusterProbabilities, 1.0))
 			{
 			labelWithinClusterProbabilities = null;
 			}
 		}
 
+	@Nullable
+	public StreamingStatistics getLabelWithinClusterProbabilityStatistics()
+		{
+		return labelWithinClusterProbabilityStatistics;
+		}
+
+	@Nullable
+	public StreamingStatistics getPredictionDistanceStatistics()
+		{
+		return predictionDistanceStatistics;
+		}
+
+	@Nullable
+	public StreamingStatistics getPredictionDistanceWithPrecisionCostStatistics()
+		{
+		return predictionDistanceWithPrecisionCostStatistics;
+		}
+
+	public boolean isStreaming()
+		{
+		return streaming;
+		}
+
 	public Double[] getLabelWithinClusterProbabilitiesArray()
 		{
 		return labelWithinClusterProbabilities == null ? null :
@@ -103,7 +240,14 @@ public class DistanceBasedMultiClassCrossValidationResults<L extends Comparable>
 		resultsNode.addChild("numPopulatedRealLabels", numPopulatedRealLabels());
 		resultsNode.addChild("numPredictedLabels", numPredictedLabels());
 
-		resultsNode.addChild("labelWithinClusterProbabilities", getLabelWithinClusterProbabilitiesArray());
+		if (streaming && labelWithinClusterProbabilityStatistics != null)
+			{
+			labelWithinClusterProbabilityStatistics.putResults(resultsNode, "labelWithinClusterProbabilities");
+			}
+		else
+			{
+			resultsNode.addChild("labelWithinClusterProbabilities", getLabelWithinClusterProbabilitiesArray());
+			}
 
 		resultsNode.addChild("accuracy", new Double(accuracy()));
 		resultsNode.addChild("accuracyGivenClassified", accuracyGivenClassified());
@@ -123,8 +267,18 @@ public class DistanceBasedMultiClassCrossValidationResults<L extends Comparable>
 			             + " samples remained");
 			}
 
-		storeLabelDistances(labelDistancesName, getPredictionDistances(), resultsNode);
-		storeLabelDistances(labelDistancesName + "ToSample", getPredictionDistancesWithPrecisionCost(), resultsNode);
+		if (streaming)
+			{
+			storeLabelDistances(labelDistancesName, predictionDistanceStatistics, resultsNode);
+			storeLabelDistances(labelDistancesName + "ToSample", predictionDistanceWithPrecisionCostStatistics,
+			                    resultsNode);
+			}
+		else
+			{
+			storeLabelDistances(labelDistancesName, getPredictionDistances(), resultsNode);
+			storeLabelDistances(labelDistancesName + "ToSample", getPredictionDistancesWithPrecisionCost(),
+			                    resultsNode);
+			}
 
 		resultsNode.addChild("classLabels", getLabels().toArray(DSArrayUtils.EMPTY_STRING_ARRAY));
 		resultsNode.addChild("friendlyLabels", getFriendlyLabels(friendlyLabelMap));
@@ -213,6 +367,40 @@ public class DistanceBasedMultiClassCrossValidationResults<L extends Comparable>
 			}
 		}
 
+	/**
+	 * Stores the same percentiles, mean, and standard deviation as storeLabelDistances(String, List, ...) would, from a
+	 * summary of the distances of the classified samples.  In place of the distances themselves, stores their count.
+	 */
+	private void storeLabelDistances(final String labelDistanceName, final StreamingStatistics givenClassified,
+	                                 final HierarchicalTypedPropertyNode<String, Serializable, ?> resultsNode)
+		{
+		resultsNode.addChild(labelDistanceName + "CountGivenClassified", givenClassified.getCount());
+
+		if (givenClassified.getCount() == 0)
+			{
+			if (numExamples != 0)
+				{
+				logger.warn("All distances were enormous (e.g., UNKNOWN_DISTANCE); no samples were predicted at all");
+				}
+			return;
+			}
+
+		resultsNode.addChild(labelDistanceName + "90", givenClassified.getQuantile(0.90));
+		resultsNode.addChild(labelDistanceName + "95", givenClassified.getQuantile(0.95));
+		resultsNode.addChild(labelDistanceName + "99", givenClassified.getQuantile(0.99));
+
+		final double mean = givenClassified.getMean();
+		if (Double.isInfinite(mean))
+			{
+			logger.warn("labelDistance mean is Infinity");
+			}
+		else
+			{
+			resultsNode.addChild(labelDistanceName + "MeanGivenClassified", mean);
+			resultsNode.addChild(labelDistanceName + "StdDevGivenClassified", givenClassified.getStdDev());
+			}
+		}
+
 	public void incrementShouldHaveBeenUnknown()
 		{
 		shouldHaveBeenUnknown++;
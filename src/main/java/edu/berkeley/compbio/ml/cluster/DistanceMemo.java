@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded cache of distances from points to cluster centroids, for use with measures that are expensive enough (e.g.
+ * Markov model likelihoods) that the same point-cluster pair should not be scored twice.
+ * <p/>
+ * Entries are keyed by the point id, the cluster id, the version of the cluster's centroid, and the prior (if any) that
+ * was passed to a ProbabilisticDissimilarityMeasure.  A centroid that moves gets a new version, so its stale entries
+ * simply stop being found and are eventually evicted; clusters whose centroids never move (as in supervised
+ * nearest-neighbor classification) are scored only once per point.  Points without ids, and clusters that are not
+ * AbstractCentroidClusters (and so carry no version), are never cached.
+ * <p/>
+ * Point ids must identify the point's values uniquely.  The entries are divided among several independently locked
+ * stripes, each evicting its least recently used entries once it holds its share of the maximum size.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class DistanceMemo<T extends Clusterable<T>>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(DistanceMemo.class);
+
+	private static final int STRIPES = 16;
+
+	private static final long NO_PRIOR = Double.doubleToLongBits(Double.NaN);
+
+	private final int maxEntries;
+	private final Map<Key, Double>[] stripes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param maxEntries the approximate maximum number of distances to retain
+	 */
+	public DistanceMemo(final int maxEntries)
+		{
+		this.maxEntries = maxEntries;
+		final int stripeCapacity = Math.max(1, maxEntries / STRIPES);
+		stripes = new Map[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			{
+			stripes[i] = new LinkedHashMap<Key, Double>(16, 0.75f, true)
+			{
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Key, Double> eldest)
+				{
+				return size() > stripeCapacity;
+				}
+			};
+			}
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public long getHits()
+		{
+		return hits.get();
+		}
+
+	public int getMaxEntries()
+		{
+		return maxEntries;
+		}
+
+	public long getMisses()
+		{
+		return misses.get();
+		}
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+	@Override
+	public String toString()
+		{
+		return "DistanceMemo{size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get() + ", hitRate="
+		       + getHitRate() + "}";
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Forgets every cached distance.  The hit and miss counts are kept.
+	 */
+	public void clear()
+		{
+		for (final Map<Key, Double> stripe : stripes)
+			{
+			synchronized (stripe)
+				{
+				stripe.clear();
+				}
+			}
+		}
+
+	/**
+	 * @return the fraction of lookups of cacheable pairs that found a cached distance, or NaN if there have been none
+	 */
+	public double getHitRate()
+		{
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return total == 0 ? Double.NaN : (double) h / (double) total;
+		}
+
+	/**
+	 * Returns the key under which the distance from the point to the current centroid of the cluster is cached.  The key
+	 * captures the centroid version, so a key obtained before computing a distance remains correct for storing it even if
+	 * the centroid moves in the meantime.
+	 *
+	 * @return the key, or null if this pair can't be cached
+	 */
+	@Nullable
+	public Key keyFor(final T point, final Cluster<T> cluster)
+		{
+		return makeKey(point, cluster, NO_PRIOR);
+		}
+
+	/**
+	 * As keyFor(point, cluster), for a distance computed by a ProbabilisticDissimilarityMeasure given the prior.
+	 */
+	@Nullable
+	public Key keyFor(final T point, final Cluster<T> cluster, final double prior)
+		{
+		return makeKey(point, cluster, Double.doubleToLongBits(prior));
+		}
+
+	public int size()
+		{
+		int result = 0;
+		for (final Map<Key, Double> stripe : stripes)
+			{
+			synchronized (stripe)
+				{
+				result += stripe.size();
+				}
+			}
+		return result;
+		}
+
+	/**
+	 * Returns the cached distance for the given key, if any.
+	 *
+	 * @param key a key from keyFor(), or null
+	 * @return the distance, or null if it is not cached (or not cacheable)
+	 */
+	@Nullable
+	public Double get(@Nullable final Key key)
+		{
+		if (key == null)
+			{
+			return null;
+			}
+		final Map<Key, Double> stripe = stripeFor(key);
+		final Double result;
+		synchronized (stripe)
+			{
+			result = stripe.get(key);
+			}
+		if (result == null)
+			{
+			misses.incrementAndGet();
+			}
+		else
+			{
+			hits.incrementAndGet();
+			}
+		return result;
+		}
+
+	/**
+	 * Caches the exact distance for the given key.
+	 *
+	 * @param key      a key from keyFor(), or null to do nothing
+	 * @param distance the distance
+	 */
+	public void put(@Nullable final Key key, final double distance)
+		{
+		if (key == null)
+			{
+			return;
+			}
+		final Map<Key, Double> stripe = stripeFor(key);
+		synchronized (stripe)
+			{
+			stripe.put(key, distance);
+			}
+		}
+
+	@Nullable
+	private Key makeKey(final T point, final Cluster<T> cluster, final long priorBits)
+		{
+		final String pointId = point.getId();
+		if (pointId == null || !(cluster instanceof AbstractCentroidCluster))
+			{
+			return null;
+			}
+		return new Key(pointId, cluster.getId(), ((AbstractCentroidCluster<T>) cluster).getCentroidVersion(),
+		               priorBits);
+		}
+
+	private Map<Key, Double> stripeFor(final Key key)
+		{
+		return stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Identifies a point-cluster pair, at a particular centroid version and prior
+	 */
+	public static final class Key
+		{
+		private final String pointId;
+		private final int clusterId;
+		private final int clusterVersion;
+		private final long priorBits;
+
+		private Key(final String pointId, final int clusterId, final int clusterVersion, final long priorBits)
+			{
+			this.pointId = pointId;
+			this.clusterId = clusterId;
+			this.clusterVersion = clusterVersion;
+			this.priorBits = priorBits;
+			}
+
+		@Override
+		public boolean equals(final Object o)
+			{
+			if (this == o)
+				{
+				return true;
+				}
+			if (!(o instanceof Key))
+				{
+				return false;
+				}
+			final Key key = (Key) o;
+			return clusterId == key.clusterId && clusterVersion == key.clusterVersion && priorBits == key.priorBits
+			       && pointId.equals(key.pointId);
+			}
+
+		@Override
+		public int hashCode()
+			{
+			int result = pointId.hashCode();
+			result = 31 * result + clusterId;
+			result = 31 * result + clusterVersion;
+			result = 31 * result + (int) (priorBits ^ (priorBits >>> 32));
+			return result;
+			}
+		}
+	}
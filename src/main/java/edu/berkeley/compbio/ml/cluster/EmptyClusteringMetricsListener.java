@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+/**
+ * A metrics listener that ignores everything.  Clustering methods with this listener don't bother counting distance
+ * evaluations or timing their phases at all.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class EmptyClusteringMetricsListener implements ClusteringMetricsListener
+	{
+	public void epochCompleted(final int epoch, final int samples, final int reassignments,
+	                           final long distanceEvaluations, final long nanos)
+		{
+		}
+
+	public void mergesCompleted(final int merges, final long distanceEvaluations, final long nanos)
+		{
+		}
+
+	public void phaseCompleted(final String phase, final long nanos)
+		{
+		}
+
+	public void queueDepth(final String queue, final int depth)
+		{
+		}
+
+	public void testCompleted(final int samples, final long distanceEvaluations, final long nanos)
+		{
+		}
+
+	public void trainingCompleted(final int samples, final long distanceEvaluations, final long nanos)
+		{
+		}
+	}
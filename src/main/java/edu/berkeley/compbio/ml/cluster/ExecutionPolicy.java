@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.conja.Function;
+import com.davidsoergel.conja.Parallel;
+import com.davidsoergel.conja.ThreadSafeNextOnlyIterator;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Decides how the parallel loops of a clustering method (over training samples, test samples, and clusters) are run.
+ * <p/>
+ * The default runs them with conja's Parallel.forEach, as always.  Alternatively they may run in the calling thread, or
+ * on any ExecutorService supplied by the caller: a fixed pool shared with other work (so as not to oversubscribe the
+ * cores), a ForkJoinPool, or, on JVMs that have them, an executor creating a virtual thread per task (in which case the
+ * parallelism may usefully exceed the number of cores when the iterators block on I/O).  A loop run on a bounded pool
+ * waits for tasks on that pool, so it must not itself be run from a task on the same pool.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public abstract class ExecutionPolicy
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ExecutionPolicy.class);
+
+	private static final ExecutionPolicy CONJA = new ConjaExecutionPolicy();
+	private static final ExecutionPolicy CALLER_RUNS = new CallerRunsExecutionPolicy();
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * @return a policy running each loop in the calling thread
+	 */
+	public static ExecutionPolicy callerRuns()
+		{
+		return CALLER_RUNS;
+		}
+
+	/**
+	 * @return the default policy, running each loop with conja's Parallel.forEach
+	 */
+	public static ExecutionPolicy conja()
+		{
+		return CONJA;
+		}
+
+	/**
+	 * Creates a policy running each loop on a new pool of daemon threads, shared by every loop that uses the policy.
+	 * The policy owns the pool, so shutdown() should be called once it is no longer needed.
+	 *
+	 * @param threads   the number of threads
+	 * @param chunkSize the number of items each thread takes from the iterator at a time
+	 */
+	public static ExecutionPolicy fixedPool(final int threads, final int chunkSize)
+		{
+		checkSizes(threads, chunkSize);
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+		public Thread newThread(final Runnable r)
+			{
+			final Thread result = new Thread(r, "ExecutionPolicy-" + threadCount.incrementAndGet());
+			result.setDaemon(true);
+			return result;
+			}
+		});
+		return new ExecutorExecutionPolicy(executor, threads, chunkSize, true);
+		}
+
+	/**
+	 * Creates a policy running each loop as the given number of tasks on the given executor, each of which repeatedly
+	 * takes a chunk of items from the iterator and processes them.  The executor remains the caller's: the policy's
+	 * shutdown() leaves it alone.
+	 *
+	 * @param executor    the executor to run the tasks, e.g. a shared fixed pool, a ForkJoinPool, or a virtual thread per
+	 *                    task executor
+	 * @param parallelism the number of tasks to submit per loop, i.e. the maximum number of items processed at once
+	 * @param chunkSize   the number of items each task takes from the iterator at a time
+	 */
+	public static ExecutionPolicy using(final ExecutorService executor, final int parallelism, final int chunkSize)
+		{
+		checkSizes(parallelism, chunkSize);
+		return new ExecutorExecutionPolicy(executor, parallelism, chunkSize, false);
+		}
+
+	private static void checkSizes(final int parallelism, final int chunkSize)
+		{
+		if (parallelism < 1 || chunkSize < 1)
+			{
+			throw new ClusterRuntimeException(
+					"Parallelism and chunk size must be at least 1: " + parallelism + ", " + chunkSize);
+			}
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Applies the function to every item from the iterator, returning once all have been processed.
+	 */
+	public abstract <T> void forEach(ThreadSafeNextOnlyIterator<T> items, Function<T, Void> function);
+
+	/**
+	 * Applies the function to every item in the collection, returning once all have been processed.
+	 */
+	public <T> void forEach(final Collection<T> items, final Function<T, Void> function)
+		{
+		forEach(new CollectionNextOnlyIterator<T>(items), function);
+		}
+
+	/**
+	 * Releases any threads the policy owns, once loops already under way have finished; the policy must not be used
+	 * afterwards.  Policies that own no threads (including those using a caller's executor) ignore this.
+	 */
+	public void shutdown()
+		{
+		}
+
+	/**
+	 * Applies the function to every sample from the iterator, returning once all have been processed.  The samples are
+	 * taken from the iterator in batches, and each batch is processed by a single thread.  If the iterator is a
+	 * BatchClusterableIterator, its lock is then taken once per batch rather than once per sample.
+	 *
+	 * @param batchSize the number of samples to take at a time; 0 or 1 to take them one at a time with next()
+	 */
+	public <T extends Clusterable<T>> void forEach(final ClusterableIterator<T> items, final int batchSize,
+	                                               final Function<T, Void> function)
+		{
+		if (batchSize <= 1)
+			{
+			forEach(items, function);
+			return;
+			}
+		forEach(new BatchIterator<T>(items, batchSize), new Function<List<T>, Void>()
+		{
+		public Void apply(@Nullable final List<T> batch)
+			{
+			for (final T item : batch)
+				{
+				function.apply(item);
+				}
+			return null;
+			}
+		});
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Groups the samples from an underlying iterator into lists of the given size (except perhaps the last), taking them
+	 * with as few calls to nextBatch() as the iterator allows, or with next() if it is not a BatchClusterableIterator.  An
+	 * iterator may return fewer samples than requested without being exhausted (as a PrefetchingClusterableIterator
+	 * does), so each list is topped up until it is full or the iterator is exhausted.
+	 */
+	static class BatchIterator<T extends Clusterable<T>> implements ThreadSafeNextOnlyIterator<List<T>>
+		{
+		private final ClusterableIterator<T> underlying;
+		private final int batchSize;
+
+		BatchIterator(final ClusterableIterator<T> underlying, final int batchSize)
+			{
+			this.underlying = underlying;
+			this.batchSize = batchSize;
+			}
+
+		public List<T> next() throws NoSuchElementException
+			{
+			final List<T> result = new ArrayList<T>(batchSize);
+			while (result.size() < batchSize)
+				{
+				if (take(underlying, result, batchSize - result.size()) == 0)
+					{
+					break;
+					}
+				}
+			if (result.isEmpty())
+				{
+				throw new NoSuchElementException();
+				}
+			return result;
+			}
+
+		/**
+		 * As BatchClusterableIterator.nextBatch(), for any ClusterableIterator.  One that does not implement it is read
+		 * with next(), a sample at a time, until max samples are taken or it is exhausted.
+		 *
+		 * @return the number of samples appended; 0 if and only if the iterator is exhausted (or max is 0)
+		 */
+		static <T extends Clusterable<T>> int take(final ClusterableIterator<T> iterator, final List<? super T> buffer,
+		                                           final int max)
+			{
+			if (iterator instanceof BatchClusterableIterator)
+				{
+				return ((BatchClusterableIterator<T>) iterator).nextBatch(buffer, max);
+				}
+			int result = 0;
+			try
+				{
+				while (result < max)
+					{
+					buffer.add(iterator.next());
+					result++;
+					}
+				}
+			catch (NoSuchElementException e)
+				{
+				// exhausted; return what we have
+				}
+			return result;
+			}
+		}
+
+	private static class CollectionNextOnlyIterator<T> implements ThreadSafeNextOnlyIterator<T>
+		{
+		private final Iterator<T> iterator;
+
+		private CollectionNextOnlyIterator(final Collection<T> items)
+			{
+			iterator = items.iterator();
+			}
+
+		public synchronized T next() throws NoSuchElementException
+			{
+			return iterator.next();
+			}
+		}
+
+	private static class ConjaExecutionPolicy extends ExecutionPolicy
+		{
+		public <T> void forEach(final ThreadSafeNextOnlyIterator<T> items, final Function<T, Void> function)
+			{
+			Parallel.forEach(items, function);
+			}
+
+		@Override
+		public String toString()
+			{
+			return "conja";
+			}
+		}
+
+	private static class CallerRunsExecutionPolicy extends ExecutionPolicy
+		{
+		public <T> void forEach(final ThreadSafeNextOnlyIterator<T> items, final Function<T, Void> function)
+			{
+			try
+				{
+				while (true)
+					{
+					function.apply(items.next());
+					}
+				}
+			catch (NoSuchElementException e)
+				{
+				// done
+				}
+			}
+
+		@Override
+		public String toString()
+			{
+			return "callerRuns";
+			}
+		}
+
+	private static class ExecutorExecutionPolicy extends ExecutionPolicy
+		{
+		private final ExecutorService executor;
+		private final int parallelism;
+		private final int chunkSize;
+		private final boolean ownsExecutor;
+
+		private ExecutorExecutionPolicy(final ExecutorService executor, final int parallelism, final int chunkSize,
+		                                final boolean ownsExecutor)
+			{
+			this.executor = executor;
+			this.parallelism = parallelism;
+			this.chunkSize = chunkSize;
+			this.ownsExecutor = ownsExecutor;
+			}
+
+		@Override
+		public void shutdown()
+			{
+			if (ownsExecutor)
+				{
+				executor.shutdown();
+				}
+			}
+
+		public <T> void forEach(final ThreadSafeNextOnlyIterator<T> items, final Function<T, Void> function)
+			{
+			// once any task fails, the others stop taking new items
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+			final List<Future<?>> tasks = new ArrayList<Future<?>>(parallelism);
+			for (int i = 0; i < parallelism; i++)
+				{
+				tasks.add(executor.submit(new Runnable()
+				{
+				public void run()
+					{
+					final List<T> chunk = new ArrayList<T>(chunkSize);
+					boolean exhausted = false;
+					try
+						{
+						while (!exhausted && failure.get() == null)
+							{
+							chunk.clear();
+							try
+								{
+								while (chunk.size() < chunkSize)
+									{
+									chunk.add(items.next());
+									}
+								}
+							catch (NoSuchElementException e)
+								{
+								exhausted = true;
+								}
+							for (final T item : chunk)
+								{
+								function.apply(item);
+								}
+							}
+						}
+					catch (Throwable t)
+						{
+						failure.compareAndSet(null, t);
+						}
+					}
+				}));
+				}
+
+			for (final Future<?> task : tasks)
+				{
+				try
+					{
+					task.get();
+					}
+				catch (InterruptedException e)
+					{
+					Thread.currentThread().interrupt();
+					throw new ClusterRuntimeException(e, "Interrupted while waiting for parallel tasks");
+					}
+				catch (ExecutionException e)
+					{
+					failure.compareAndSet(null, e.getCause());
+					}
+				}
+
+			final Throwable t = failure.get();
+			if (t instanceof RuntimeException)
+				{
+				throw (RuntimeException) t;
+				}
+			if (t instanceof Error)
+				{
+				throw (Error) t;
+				}
+			if (t != null)
+				{
+				throw new ClusterRuntimeException((Exception) t, "Parallel task failed");
+				}
+			}
+
+		@Override
+		public String toString()
+			{
+			return "ExecutionPolicy{executor=" + executor + ", parallelism=" + parallelism + ", chunkSize=" + chunkSize
+			       + "}";
+			}
+		}
+	}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.collections.WeightedSet;
+import com.davidsoergel.stats.DissimilarityMeasure;
+import com.davidsoergel.stats.DoubleArrayContainer;
+import com.davidsoergel.stats.ProbabilisticDissimilarityMeasure;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayDissimilarityMeasure;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * An immutable nearest-centroid classifier compiled from the clusters of a trained clustering method, for classifying
+ * samples from many threads at once without touching the method itself.  The centroids are packed into a single array
+ * and the labels of each cluster into LabelWeights, so that classifying a sample takes no locks and allocates nothing
+ * but the result.
+ * <p/>
+ * bestLabel() and predictLabelWeights() answer as the clustering method's own methods of the same names would, with
+ * these exceptions: no prohibition model is applied, since it depends on the labels of test samples, and a sample that
+ * matches no cluster always raises NoGoodClusterException.  Later training of the method does not affect the
+ * classifier.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public final class FrozenCentroidClassifier
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(FrozenCentroidClassifier.class);
+
+	private final DoubleArrayDissimilarityMeasure measure;
+	private final double unknownDistanceThreshold;
+	private final boolean inclusive;
+
+	private final int numClusters;
+	private final int dimensions;
+	private final double[] centroids;
+	private final int[] clusterIds;
+
+	private final LabelDictionary dictionary = new LabelDictionary();
+
+	// the local labels, used by bestLabel(), and the derived label probabilities, used by predictLabelWeights()
+	private final LabelWeights[] localLabels;
+	private final LabelWeights[] derivedLabels;
+	private final WeightedSet<String>[] derivedLabelSets;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Compiles a classifier from the given clusters.
+	 *
+	 * @param clusters                 the trained clusters, whose centroids must all be DoubleArrayContainers of the same
+	 *                                 length
+	 * @param measure                  the distance measure of the clustering method, which must be a
+	 *                                 DoubleArrayDissimilarityMeasure
+	 * @param unknownDistanceThreshold samples farther than this from every centroid are not classified
+	 * @param inclusive                if true, a later cluster at a distance equal to the best so far replaces it, as with
+	 *                                 a <= comparison; otherwise the earlier cluster is kept, as with <
+	 * @throws ClusterRuntimeException if the clusters or the measure can't be compiled
+	 */
+	public static FrozenCentroidClassifier compile(final List<? extends CentroidCluster<?>> clusters,
+	                                               final DissimilarityMeasure<?> measure,
+	                                               final double unknownDistanceThreshold, final boolean inclusive)
+		{
+		if (!(measure instanceof DoubleArrayDissimilarityMeasure) || measure instanceof ProbabilisticDissimilarityMeasure)
+			{
+			throw new ClusterRuntimeException("Can't freeze a classifier using distance measure " + measure);
+			}
+		return new FrozenCentroidClassifier(clusters, (DoubleArrayDissimilarityMeasure) measure,
+		                                    unknownDistanceThreshold, inclusive);
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private FrozenCentroidClassifier(final List<? extends CentroidCluster<?>> clusters,
+	                                 final DoubleArrayDissimilarityMeasure measure,
+	                                 final double unknownDistanceThreshold, final boolean inclusive)
+		{
+		this.measure = measure;
+		this.unknownDistanceThreshold = unknownDistanceThreshold;
+		this.inclusive = inclusive;
+
+		numClusters = clusters.size();
+		clusterIds = new int[numClusters];
+		localLabels = new LabelWeights[numClusters];
+		derivedLabels = new LabelWeights[numClusters];
+		derivedLabelSets = new WeightedSet[numClusters];
+
+		int dims = -1;
+		double[] packed = null;
+		for (int i = 0; i < numClusters; i++)
+			{
+			final CentroidCluster<?> c = clusters.get(i);
+			final Object centroid = c.getCentroid();
+			if (!(centroid instanceof DoubleArrayContainer))
+				{
+				throw new ClusterRuntimeException("Can't freeze a cluster whose centroid is not a double array: " + c);
+				}
+			final double[] values = ((DoubleArrayContainer) centroid).getArray();
+			if (packed == null)
+				{
+				dims = values.length;
+				packed = new double[numClusters * dims];
+				}
+			else if (values.length != dims)
+				{
+				throw new ClusterRuntimeException(
+						"Centroid of cluster " + c.getId() + " has length " + values.length + "; expected " + dims);
+				}
+			System.arraycopy(values, 0, packed, i * dims, dims);
+
+			clusterIds[i] = c.getId();
+			localLabels[i] = LabelWeights.of(c.getImmutableWeightedLabels(), dictionary);
+			final WeightedSet<String> derived = c.getDerivedLabelProbabilities();
+			derivedLabelSets[i] = derived;
+			derivedLabels[i] = derived == null ? null : LabelWeights.of(derived, dictionary);
+			}
+		dimensions = Math.max(dims, 0);
+		centroids = packed == null ? new double[0] : packed;
+
+		logger.debug("Froze " + numClusters + " clusters of " + dimensions + " dimensions");
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	/**
+	 * @return the dictionary against which the labels of this classifier are interned
+	 */
+	public LabelDictionary getDictionary()
+		{
+		return dictionary;
+		}
+
+	public int getDimensions()
+		{
+		return dimensions;
+		}
+
+	public int getNumClusters()
+		{
+		return numClusters;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * As ClusteringMethod.bestLabel(): chooses the dominant label of the nearest cluster among the permissible ones.
+	 *
+	 * @throws NoGoodClusterException if no cluster is near enough
+	 * @throws java.util.NoSuchElementException
+	 *                                if the nearest cluster has none of the permissible labels
+	 */
+	public String bestLabel(final Clusterable<?> sample, final Set<String> predictLabels) throws NoGoodClusterException
+		{
+		return bestLabel(arrayOf(sample), compileLabels(predictLabels));
+		}
+
+	/**
+	 * As bestLabel(sample, predictLabels), with the labels precompiled by compileLabels(), to be reused across samples.
+	 */
+	public String bestLabel(final double[] sample, final LabelMask predictLabels) throws NoGoodClusterException
+		{
+		return localLabels[nearestCluster(sample)].getDominantLabelIn(predictLabels);
+		}
+
+	/**
+	 * Compiles a set of labels for use with bestLabel().  The result may be shared among threads.
+	 */
+	public LabelMask compileLabels(final Set<String> labels)
+		{
+		return dictionary.mask(labels);
+		}
+
+	/**
+	 * @return the id of the cluster at the given index
+	 */
+	public int getClusterId(final int index)
+		{
+		return clusterIds[index];
+		}
+
+	/**
+	 * @return the derived label probabilities of the cluster at the given index, or null if it has none
+	 */
+	public LabelWeights getLabelWeights(final int index)
+		{
+		return derivedLabels[index];
+		}
+
+	/**
+	 * Finds the cluster whose centroid is nearest to the given sample.
+	 *
+	 * @return the index of the nearest cluster
+	 * @throws NoGoodClusterException if there is none within the unknown distance threshold
+	 */
+	public int nearestCluster(final double[] sample) throws NoGoodClusterException
+		{
+		if (sample.length != dimensions)
+			{
+			throw new ClusterRuntimeException("Sample has length " + sample.length + "; expected " + dimensions);
+			}
+
+		int best = -1;
+		double bestDistance = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < numClusters; i++)
+			{
+			final double d =
+					measure.distanceFromToBounded(sample, 0, centroids, i * dimensions, dimensions, bestDistance);
+			if (d < bestDistance || (inclusive && d == bestDistance))
+				{
+				bestDistance = d;
+				best = i;
+				}
+			}
+
+		if (best == -1)
+			{
+			throw new NoGoodClusterException("None of the " + numClusters + " clusters matched");
+			}
+		if (bestDistance > unknownDistanceThreshold)
+			{
+			throw new NoGoodClusterException(
+					"Best distance " + bestDistance + " > threshold " + unknownDistanceThreshold);
+			}
+		return best;
+		}
+
+	/**
+	 * As the clustering method's predictLabelWeights(): the derived label probabilities of the nearest cluster.
+	 *
+	 * @return the label probabilities, which are immutable, or null if the nearest cluster has none
+	 * @throws NoGoodClusterException if no cluster is near enough
+	 */
+	public WeightedSet<String> predictLabelWeights(final Clusterable<?> sample) throws NoGoodClusterException
+		{
+		return derivedLabelSets[nearestCluster(arrayOf(sample))];
+		}
+
+	private static double[] arrayOf(final Clusterable<?> sample)
+		{
+		if (!(sample instanceof DoubleArrayContainer))
+			{
+			throw new ClusterRuntimeException("Can't classify a sample that is not a double array: " + sample);
+			}
+		return ((DoubleArrayContainer) sample).getArray();
+		}
+	}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Interns String labels to dense int ids, in order of first sighting, so that label weights and sets of labels can be
+ * held as primitive arrays and bitmasks (see {@link LabelWeights} and {@link LabelMask}).  Ids are never reused or
+ * forgotten.  Looking up a label that has already been seen takes no lock; only the first sighting of a new one does.
+ * <p/>
+ * Each clustering method has its own dictionary, against which it compiles its label sets and asks its clusters for
+ * their label probabilities; ids from different dictionaries can't be compared, so weights compiled against another
+ * dictionary are remapped (see {@link LabelWeights#remappedTo(LabelDictionary)}).  A model snapshot carries the
+ * dictionary of the labels it holds.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class LabelDictionary
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(LabelDictionary.class);
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	// indexed by id; replaced, never modified in place, so that readers need not lock
+	private volatile String[] labels = new String[16];
+	private volatile int size = 0;
+
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	/**
+	 * @return the number of labels interned so far, which is also one more than the largest id
+	 */
+	public int size()
+		{
+		return size;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return the id of the given label, or -1 if it has not been interned
+	 */
+	public int idOf(final String label)
+		{
+		final Integer result = ids.get(label);
+		return result == null ? -1 : result;
+		}
+
+	/**
+	 * @return the id of the given label, assigning the next one if the label has not been seen before
+	 */
+	public int intern(final String label)
+		{
+		final Integer result = ids.get(label);
+		if (result != null)
+			{
+			return result;
+			}
+		synchronized (this)
+			{
+			final Integer existing = ids.get(label);
+			if (existing != null)
+				{
+				return existing;
+				}
+			final int id = size;
+			String[] newLabels = labels;
+			if (id == newLabels.length)
+				{
+				newLabels = Arrays.copyOf(newLabels, id * 2);
+				}
+			newLabels[id] = label;
+			labels = newLabels;
+			size = id + 1;
+
+			// published last, so that anyone finding the id can also find the label
+			ids.put(label, id);
+			return id;
+			}
+		}
+
+	/**
+	 * @return the label with the given id
+	 * @throws ClusterRuntimeException if no label has that id
+	 */
+	public String labelOf(final int id)
+		{
+		if (id < 0 || id >= size)
+			{
+			throw new ClusterRuntimeException("No label with id " + id);
+			}
+		return labels[id];
+		}
+
+	/**
+	 * Compiles a set of labels into a bitmask over their ids, interning any that have not been seen before.  The mask
+	 * reflects the set as it is now; later changes to the set are not seen.
+	 */
+	public LabelMask mask(final Collection<String> labelSet)
+		{
+		final int[] memberIds = new int[labelSet.size()];
+		int i = 0;
+		for (final String label : labelSet)
+			{
+			memberIds[i++] = intern(label);
+			}
+		return new LabelMask(memberIds);
+		}
+	}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+/**
+ * An immutable set of label ids from a {@link LabelDictionary}, as a bitmask, standing in for a Set&lt;String&gt; of
+ * labels when testing membership on a hot path.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ * @see LabelDictionary#mask(java.util.Collection)
+ */
+public final class LabelMask
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private final long[] words;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	LabelMask(final int[] ids)
+		{
+		int max = -1;
+		for (final int id : ids)
+			{
+			max = Math.max(max, id);
+			}
+		words = new long[(max >> 6) + 1];
+		for (final int id : ids)
+			{
+			words[id >> 6] |= 1L << id;
+			}
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	public boolean contains(final int id)
+		{
+		final int word = id >> 6;
+		return id >= 0 && word < words.length && (words[word] & (1L << id)) != 0;
+		}
+	}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.collections.ConcurrentHashWeightedSet;
+import com.davidsoergel.dsutils.collections.ImmutableHashWeightedSet;
+import com.davidsoergel.dsutils.collections.MutableWeightedSet;
+import com.davidsoergel.dsutils.collections.WeightedSet;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * An immutable, compact form of a WeightedSet of String labels, held as parallel arrays of label ids (from a {@link
+ * LabelDictionary}, in increasing order), item-normalized weights, and normalized weights, along with the item count.
+ * Finding the dominant label among a set of labels given as a {@link LabelMask} is then a scan over a few primitives,
+ * with no String hashing or HashMap iteration.  Clusters store their derived label probabilities in this form.
+ * <p/>
+ * Where several labels in the set share the greatest weight, the one that sorts first is dominant, so that the answer
+ * does not depend on the order in which labels were interned.  This is the rule for choosing a dominant label everywhere
+ * a clustering method predicts one, including bestLabel().
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public final class LabelWeights
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private final LabelDictionary dictionary;
+	private final int[] ids;
+	private final double[] weights;
+	private final double[] normalizedWeights;
+	private final int itemCount;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Copies the given weighted labels, interning any labels not already in the dictionary.
+	 */
+	public static LabelWeights of(final WeightedSet<String> labels, final LabelDictionary dictionary)
+		{
+		return compile(labels, dictionary, true);
+		}
+
+	/**
+	 * Copies those of the given weighted labels that are already in the dictionary, without interning the others.  This
+	 * suits the labels of a test sample: one never seen before could not be in any mask anyway, and the dictionary does not
+	 * grow with every sample.
+	 */
+	public static LabelWeights lookUp(final WeightedSet<String> labels, final LabelDictionary dictionary)
+		{
+		return compile(labels, dictionary, false);
+		}
+
+	private static LabelWeights compile(final WeightedSet<String> labels, final LabelDictionary dictionary,
+	                                    final boolean intern)
+		{
+		final Map<String, Double> itemNormalized = labels.getItemNormalizedMap();
+		int[] ids = new int[itemNormalized.size()];
+		double[] weights = new double[ids.length];
+		double[] normalizedWeights = new double[ids.length];
+		int n = 0;
+		for (final Map.Entry<String, Double> entry : itemNormalized.entrySet())
+			{
+			final String label = entry.getKey();
+			final int id = intern ? dictionary.intern(label) : dictionary.idOf(label);
+			if (id < 0)
+				{
+				continue;
+				}
+
+			insert(ids, weights, normalizedWeights, n++, id, entry.getValue(), labels.getNormalized(label));
+			}
+		if (n < ids.length)
+			{
+			ids = Arrays.copyOf(ids, n);
+			weights = Arrays.copyOf(weights, n);
+			normalizedWeights = Arrays.copyOf(normalizedWeights, n);
+			}
+		return new LabelWeights(dictionary, ids, weights, normalizedWeights, labels.getItemCount());
+		}
+
+	/**
+	 * Inserts an entry into the first n entries of the given arrays, which are sorted by id; label sets are small, so an
+	 * insertion sort does.
+	 */
+	private static void insert(final int[] ids, final double[] weights, final double[] normalizedWeights, final int n,
+	                           final int id, final double weight, final double normalizedWeight)
+		{
+		int i = n;
+		while (i > 0 && ids[i - 1] > id)
+			{
+			ids[i] = ids[i - 1];
+			weights[i] = weights[i - 1];
+			normalizedWeights[i] = normalizedWeights[i - 1];
+			i--;
+			}
+		ids[i] = id;
+		weights[i] = weight;
+		normalizedWeights[i] = normalizedWeight;
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private LabelWeights(final LabelDictionary dictionary, final int[] ids, final double[] weights,
+	                     final double[] normalizedWeights, final int itemCount)
+		{
+		this.dictionary = dictionary;
+		this.ids = ids;
+		this.weights = weights;
+		this.normalizedWeights = normalizedWeights;
+		this.itemCount = itemCount;
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public LabelDictionary getDictionary()
+		{
+		return dictionary;
+		}
+
+	public int getItemCount()
+		{
+		return itemCount;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * As WeightedSet.getDominantKeyInSet(), with the set given as a mask.
+	 *
+	 * @return the label with the greatest weight among those in the mask
+	 * @throws NoSuchElementException if none of the labels is in the mask
+	 */
+	public String getDominantLabelIn(final LabelMask mask)
+		{
+		return getLabel(getDominantIndexIn(mask));
+		}
+
+	/**
+	 * @return the index of the label with the greatest weight among those in the mask, for use with getLabel() and the
+	 *         like
+	 * @throws NoSuchElementException if none of the labels is in the mask
+	 */
+	public int getDominantIndexIn(final LabelMask mask)
+		{
+		int result = -1;
+		for (int i = 0; i < ids.length; i++)
+			{
+			if (mask.contains(ids[i]) && (result < 0 || weights[i] > weights[result] || (weights[i] == weights[result]
+			                                                                              && sortsBefore(i, result))))
+				{
+				result = i;
+				}
+			}
+		if (result < 0)
+			{
+			throw new NoSuchElementException("No label in the requested set");
+			}
+		return result;
+		}
+
+	/**
+	 * @return the id of the i'th label, in increasing order of id
+	 */
+	public int getId(final int i)
+		{
+		return ids[i];
+		}
+
+	/**
+	 * @return the i'th label, in increasing order of id
+	 */
+	public String getLabel(final int i)
+		{
+		return dictionary.labelOf(ids[i]);
+		}
+
+	/**
+	 * @return the weight of the i'th label divided by the item count, as in WeightedSet.getItemNormalizedMap()
+	 */
+	public double getWeight(final int i)
+		{
+		return weights[i];
+		}
+
+	/**
+	 * @return the normalized weight of the i'th label, as WeightedSet.getNormalized() gave it
+	 */
+	public double getNormalizedWeight(final int i)
+		{
+		return normalizedWeights[i];
+		}
+
+	private boolean sortsBefore(final int i, final int j)
+		{
+		return getLabel(i).compareTo(getLabel(j)) < 0;
+		}
+
+	/**
+	 * Translates these weights to another dictionary, interning any labels that it has not seen before.
+	 *
+	 * @return these weights if they are already against the given dictionary; otherwise a copy against it
+	 */
+	public LabelWeights remappedTo(final LabelDictionary target)
+		{
+		if (target == dictionary)
+			{
+			return this;
+			}
+		final int[] newIds = new int[ids.length];
+		final double[] newWeights = new double[ids.length];
+		final double[] newNormalizedWeights = new double[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			{
+			insert(newIds, newWeights, newNormalizedWeights, i, target.intern(getLabel(i)), weights[i],
+			       normalizedWeights[i]);
+			}
+		return new LabelWeights(target, newIds, newWeights, newNormalizedWeights, itemCount);
+		}
+
+	/**
+	 * @return the number of labels
+	 */
+	public int size()
+		{
+		return ids.length;
+		}
+
+	/**
+	 * Rebuilds the weighted labels in their WeightedSet form, as MappedModelSnapshot restores stored labels.  This
+	 * allocates a new set on every call.
+	 */
+	public ImmutableHashWeightedSet<String> toWeightedSet()
+		{
+		final MutableWeightedSet<String> result = new ConcurrentHashWeightedSet<String>();
+		for (int i = 0; i < ids.length; i++)
+			{
+			result.add(getLabel(i), weights[i] * itemCount, 0);
+			}
+		result.incrementItemCount(itemCount);
+		return new ImmutableHashWeightedSet<String>(result);
+		}
+	}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.collections.MutableWeightedSet;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Provides iterators over a dataset written by a BinaryDatasetWriter, without loading it into memory.
+ * <p/>
+ * The vectors are memory-mapped once, read-only, and shared by every iterator this factory provides, so repeated
+ * training epochs read them straight from the OS page cache rather than from the Java heap; only the sample currently
+ * being processed is copied into a ClusterableDoubleArray.  Datasets larger than the 2GB limit of a single mapping are
+ * mapped in several segments.  The ids and labels are read sequentially from the metadata column by each iterator.
+ * <p/>
+ * Each iterator holds the file open until it has been exhausted, so iterators should be run to the end.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class MappedClusterableIteratorFactory extends ClusterableIteratorFactory<ClusterableDoubleArray>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(MappedClusterableIteratorFactory.class);
+
+	private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+	private final File file;
+	private final int numSamples;
+	private final int dimensions;
+	private final long metadataOffset;
+	private final int samplesPerSegment;
+	private final DoubleBuffer[] segments;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param file a dataset written by a BinaryDatasetWriter
+	 * @throws IOException if the file can't be read or is not in the expected format
+	 */
+	public MappedClusterableIteratorFactory(final File file) throws IOException
+		{
+		super(Collections.<ClusterableDoubleArray>emptyList());
+		this.file = file;
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+			{
+			if (raf.readInt() != BinaryDatasetWriter.MAGIC)
+				{
+				throw new IOException("Not a binary dataset: " + file);
+				}
+			final int version = raf.readInt();
+			if (version != BinaryDatasetWriter.VERSION)
+				{
+				throw new IOException("Unsupported binary dataset version " + version + ": " + file);
+				}
+			numSamples = raf.readInt();
+			dimensions = raf.readInt();
+			metadataOffset = raf.readLong();
+
+			final long recordBytes = (long) dimensions * 8;
+			if (recordBytes > MAX_SEGMENT_BYTES)
+				{
+				throw new IOException("Samples of " + dimensions + " dimensions are too large to map: " + file);
+				}
+			samplesPerSegment = recordBytes == 0 ? Integer.MAX_VALUE : (int) (MAX_SEGMENT_BYTES / recordBytes);
+			final int numSegments = recordBytes == 0 ? 0 : (numSamples + samplesPerSegment - 1) / samplesPerSegment;
+
+			// the mappings remain valid after the file is closed
+			final FileChannel channel = raf.getChannel();
+			segments = new DoubleBuffer[numSegments];
+			for (int s = 0; s < numSegments; s++)
+				{
+				final int samplesInSegment = Math.min(samplesPerSegment, numSamples - s * samplesPerSegment);
+				final long position = BinaryDatasetWriter.HEADER_SIZE + (long) s * samplesPerSegment * recordBytes;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, samplesInSegment * recordBytes)
+						.asDoubleBuffer();
+				}
+			}
+		finally
+			{
+			raf.close();
+			}
+
+		logger.debug("Mapped " + numSamples + " samples of " + dimensions + " dimensions from " + file);
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int getDimensions()
+		{
+		return dimensions;
+		}
+
+	public int getNumSamples()
+		{
+		return numSamples;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface Iterator ---------------------
+
+	@Override
+	public ClusterableIterator<ClusterableDoubleArray> next()
+		{
+		try
+			{
+			return new MappedClusterableIterator();
+			}
+		catch (IOException e)
+			{
+			throw new ClusterRuntimeException(e, "Could not read binary dataset " + file);
+			}
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Copies the values of the given sample out of the mapped file.
+	 *
+	 * @param index the index of the sample
+	 * @return a newly allocated array of the sample's values
+	 */
+	public double[] getValues(final int index)
+		{
+		final double[] result = new double[dimensions];
+		if (dimensions > 0)
+			{
+			// a duplicate has its own position, so concurrent readers don't interfere
+			final DoubleBuffer segment = segments[index / samplesPerSegment].duplicate();
+			segment.position((index % samplesPerSegment) * dimensions);
+			segment.get(result);
+			}
+		return result;
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	private class MappedClusterableIterator implements BatchClusterableIterator<ClusterableDoubleArray>
+		{
+		private int nextIndex = 0;
+		private DataInputStream metadata;
+
+		private MappedClusterableIterator() throws IOException
+			{
+			final FileInputStream in = new FileInputStream(file);
+			in.getChannel().position(metadataOffset);
+			metadata = new DataInputStream(new BufferedInputStream(in));
+			}
+
+		public synchronized ClusterableDoubleArray next() throws NoSuchElementException
+			{
+			if (nextIndex >= numSamples)
+				{
+				closeMetadata();
+				throw new NoSuchElementException();
+				}
+			return readNext();
+			}
+
+		public synchronized int nextBatch(final List<? super ClusterableDoubleArray> buffer, final int max)
+			{
+			int result = 0;
+			while (result < max && nextIndex < numSamples)
+				{
+				buffer.add(readNext());
+				result++;
+				}
+			if (nextIndex >= numSamples)
+				{
+				closeMetadata();
+				}
+			return result;
+			}
+
+		public ClusterableDoubleArray nextFullyLabelled()
+			{
+			final ClusterableDoubleArray result = next();
+			result.doneLabelling();
+			return result;
+			}
+
+		/**
+		 * Reads the sample at nextIndex, which the caller has checked exists, while holding the lock.
+		 */
+		private ClusterableDoubleArray readNext()
+			{
+			try
+				{
+				final ClusterableDoubleArray result =
+						new ClusterableDoubleArray(readNullableUTF(), getValues(nextIndex));
+				result.setLabel(readNullableUTF());
+
+				final int itemCount = metadata.readInt();
+				final int numLabels = metadata.readInt();
+				final MutableWeightedSet<String> labels = result.getMutableWeightedLabels();
+				for (int i = 0; i < numLabels; i++)
+					{
+					final String label = metadata.readUTF();
+					labels.add(label, metadata.readDouble() * itemCount, 0);
+					}
+				labels.incrementItemCount(itemCount);
+
+				nextIndex++;
+				return result;
+				}
+			catch (IOException e)
+				{
+				closeMetadata();
+				throw new ClusterRuntimeException(e, "Could not read binary dataset " + file);
+				}
+			}
+
+		private String readNullableUTF() throws IOException
+			{
+			return metadata.readBoolean() ? metadata.readUTF() : null;
+			}
+
+		private void closeMetadata()
+			{
+			if (metadata != null)
+				{
+				try
+					{
+					metadata.close();
+					}
+				catch (IOException e)
+					{
+					logger.warn("Could not close " + file, e);
+					}
+				metadata = null;
+				}
+			}
+		}
+	}
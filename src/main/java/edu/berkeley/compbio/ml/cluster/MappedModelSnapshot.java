@@ -0,0 +1,563 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.collections.MutableWeightedSet;
+import edu.berkeley.compbio.ml.cluster.hierarchical.HierarchicalCentroidCluster;
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Loads a snapshot written by a ModelSnapshotWriter, without reading it into memory.
+ * <p/>
+ * The file is memory-mapped read-only, so that opening even a very large snapshot reads only its structure and an index
+ * of its metadata; the clusters are built only when asked for, and the centroid of each is copied out of the mapped
+ * vectors only when first used.  The clusters so built are read-only: they can classify samples but not be trained
+ * further.  A clustering method is populated from a snapshot by its restoreFrom() method.
+ * <p/>
+ * The centroids are restored as ClusterableDoubleArrays, so the snapshot can be restored only into clustering methods
+ * over ClusterableDoubleArrays.  The label probabilities are restored as both the local and the derived labels of each
+ * cluster.  The snapshot carries its own label dictionary, against which the restored clusters first hold their derived
+ * labels; a clustering method restoring them remaps them to its own dictionary.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class MappedModelSnapshot
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(MappedModelSnapshot.class);
+
+	private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+	private final File file;
+	private final int kind;
+	private final int numClusters;
+	private final int dimensions;
+	private final int clustersPerSegment;
+	private final DoubleBuffer[] segments;
+
+	// the metadata column, and the position within it of each cluster's record
+	private final ByteBuffer metadata;
+	private final int[] metadataPositions;
+	private final int[] ids;
+	private final byte[] flags;
+	private final LabelDictionary dictionary = new LabelDictionary();
+
+	private final int[] cellsPerDimension;
+	private final int time;
+
+	private final int root;
+	private final int[] parents;
+	private final double[] lengths;
+	private final double[] weights;
+
+	private final AtomicReferenceArray<CentroidCluster<ClusterableDoubleArray>> clusters;
+	private List<HierarchicalCentroidCluster<ClusterableDoubleArray>> treeNodes;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param file a snapshot written by a ModelSnapshotWriter
+	 * @throws IOException if the file can't be read or is not in the expected format
+	 */
+	public MappedModelSnapshot(final File file) throws IOException
+		{
+		this.file = file;
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+			{
+			if (raf.readInt() != ModelSnapshotWriter.MAGIC)
+				{
+				throw new IOException("Not a model snapshot: " + file);
+				}
+			final int version = raf.readInt();
+			if (version != ModelSnapshotWriter.VERSION)
+				{
+				throw new IOException("Unsupported model snapshot version " + version + ": " + file);
+				}
+			kind = raf.readInt();
+			numClusters = raf.readInt();
+			dimensions = raf.readInt();
+			final long metadataOffset = raf.readLong();
+
+			final long recordBytes = (long) dimensions * 8;
+			if (recordBytes > MAX_SEGMENT_BYTES)
+				{
+				throw new IOException("Centroids of " + dimensions + " dimensions are too large to map: " + file);
+				}
+			clustersPerSegment = recordBytes == 0 ? Integer.MAX_VALUE : (int) (MAX_SEGMENT_BYTES / recordBytes);
+			final int numSegments = recordBytes == 0 ? 0 : (numClusters + clustersPerSegment - 1) / clustersPerSegment;
+
+			// the mappings remain valid after the file is closed
+			final FileChannel channel = raf.getChannel();
+			segments = new DoubleBuffer[numSegments];
+			for (int s = 0; s < numSegments; s++)
+				{
+				final int clustersInSegment = Math.min(clustersPerSegment, numClusters - s * clustersPerSegment);
+				final long position = ModelSnapshotWriter.HEADER_SIZE + (long) s * clustersPerSegment * recordBytes;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, clustersInSegment * recordBytes)
+						.asDoubleBuffer();
+				}
+
+			// the structure and the metadata together, which are small compared to the vectors
+			final long structureOffset = ModelSnapshotWriter.HEADER_SIZE + (long) numClusters * recordBytes;
+			final long tailBytes = channel.size() - structureOffset;
+			if (tailBytes > MAX_SEGMENT_BYTES || metadataOffset < structureOffset)
+				{
+				throw new IOException("Malformed or oversized model snapshot: " + file);
+				}
+			final ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, structureOffset, tailBytes);
+
+			if (kind == ModelSnapshotWriter.KIND_GRID)
+				{
+				cellsPerDimension = new int[tail.getInt()];
+				for (int d = 0; d < cellsPerDimension.length; d++)
+					{
+					cellsPerDimension[d] = tail.getInt();
+					}
+				time = tail.getInt();
+				}
+			else
+				{
+				cellsPerDimension = null;
+				time = 0;
+				}
+
+			if (kind == ModelSnapshotWriter.KIND_TREE)
+				{
+				root = tail.getInt();
+				parents = new int[numClusters];
+				lengths = new double[numClusters];
+				weights = new double[numClusters];
+				for (int i = 0; i < numClusters; i++)
+					{
+					parents[i] = tail.getInt();
+					lengths[i] = tail.getDouble();
+					weights[i] = tail.getDouble();
+					}
+				}
+			else if (kind == ModelSnapshotWriter.KIND_FLAT || kind == ModelSnapshotWriter.KIND_GRID)
+				{
+				root = -1;
+				parents = null;
+				lengths = null;
+				weights = null;
+				}
+			else
+				{
+				throw new IOException("Unknown model snapshot kind " + kind + ": " + file);
+				}
+
+			tail.position((int) (metadataOffset - structureOffset));
+			metadata = tail.slice();
+			}
+		finally
+			{
+			raf.close();
+			}
+
+		// read the label dictionary, and index the metadata of the clusters, skipping over their labels
+		final ByteBuffer scan = metadata.duplicate();
+		final DataInputStream labels = new DataInputStream(new ByteBufferInputStream(scan));
+		final int numLabels = scan.getInt();
+		for (int id = 0; id < numLabels; id++)
+			{
+			dictionary.intern(labels.readUTF());
+			}
+		if (dictionary.size() != numLabels)
+			{
+			throw new IOException("Duplicate labels in model snapshot: " + file);
+			}
+
+		metadataPositions = new int[numClusters];
+		ids = new int[numClusters];
+		flags = new byte[numClusters];
+		for (int i = 0; i < numClusters; i++)
+			{
+			metadataPositions[i] = scan.position();
+			ids[i] = scan.getInt();
+			flags[i] = scan.get();
+			if ((flags[i] & ModelSnapshotWriter.FLAG_CENTROID) != 0 && scan.get() != 0)
+				{
+				skipUTF(scan);
+				}
+			scan.getInt();  // item count
+			scan.position(scan.position() + scan.getInt() * (4 + 8));
+			}
+
+		clusters = new AtomicReferenceArray<CentroidCluster<ClusterableDoubleArray>>(numClusters);
+
+		logger.debug("Mapped snapshot of " + numClusters + " clusters of " + dimensions + " dimensions from " + file);
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	/**
+	 * @return the number of cells along each axis of the grid, or null if this is not a snapshot of a Kohonen map
+	 */
+	public int[] getCellsPerDimension()
+		{
+		return cellsPerDimension == null ? null : cellsPerDimension.clone();
+		}
+
+	public int getDimensions()
+		{
+		return dimensions;
+		}
+
+	/**
+	 * @return the dictionary of the labels in this snapshot, against which the clusters it builds hold their labels
+	 */
+	public LabelDictionary getLabelDictionary()
+		{
+		return dictionary;
+		}
+
+	/**
+	 * @return one of ModelSnapshotWriter.KIND_FLAT, KIND_GRID, or KIND_TREE
+	 */
+	public int getKind()
+		{
+		return kind;
+		}
+
+	public int getNumClusters()
+		{
+		return numClusters;
+		}
+
+	/**
+	 * @return the training time of the Kohonen map, or 0 if this is not a snapshot of one
+	 */
+	public int getTime()
+		{
+		return time;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Returns the given cluster, building it on first request.  Concurrent callers get the same instance.
+	 *
+	 * @param index the index of the cluster in the snapshot
+	 * @return a read-only cluster whose centroid is loaded on first use
+	 */
+	public CentroidCluster<ClusterableDoubleArray> getCluster(final int index)
+		{
+		CentroidCluster<ClusterableDoubleArray> result = clusters.get(index);
+		if (result == null)
+			{
+			final MappedCentroidCluster c = new MappedCentroidCluster(index);
+			restoreLabels(index, c);
+			clusters.compareAndSet(index, null, c);
+			result = clusters.get(index);
+			}
+		return result;
+		}
+
+	/**
+	 * Returns a view of the clusters that the clustering method listed, each built on first access.  For a flat list or
+	 * a grid, these are all of the clusters in the snapshot; for a tree, use getListedTreeNodes() instead.
+	 *
+	 * @return an unmodifiable list of the listed clusters, in the order they were written
+	 */
+	public List<CentroidCluster<ClusterableDoubleArray>> getClusters()
+		{
+		final List<Integer> listed = listedIndexes();
+		return new AbstractList<CentroidCluster<ClusterableDoubleArray>>()
+		{
+		@Override
+		public CentroidCluster<ClusterableDoubleArray> get(final int i)
+			{
+			return getCluster(listed.get(i));
+			}
+
+		@Override
+		public int size()
+			{
+			return listed.size();
+			}
+		};
+		}
+
+	/**
+	 * @return the id of the given cluster
+	 */
+	public int getId(final int index)
+		{
+		return ids[index];
+		}
+
+	/**
+	 * Returns the nodes of the tree that the clustering method listed among its clusters, building the tree first if
+	 * necessary.
+	 *
+	 * @return the listed nodes, in depth-first order from the root
+	 */
+	public List<HierarchicalCentroidCluster<ClusterableDoubleArray>> getListedTreeNodes()
+		{
+		final List<HierarchicalCentroidCluster<ClusterableDoubleArray>> nodes = getTreeNodes();
+		final List<HierarchicalCentroidCluster<ClusterableDoubleArray>> result =
+				new ArrayList<HierarchicalCentroidCluster<ClusterableDoubleArray>>();
+		for (final int i : listedIndexes())
+			{
+			result.add(nodes.get(i));
+			}
+		return result;
+		}
+
+	/**
+	 * Returns the root of the tree, building the whole tree on first request.  The nodes are built eagerly, since the tree
+	 * can't be navigated otherwise, but their centroids are still loaded only on first use.
+	 *
+	 * @return the root of the tree
+	 * @throws ClusterRuntimeException if this is not a snapshot of a tree
+	 */
+	public HierarchicalCentroidCluster<ClusterableDoubleArray> getTree()
+		{
+		return getTreeNodes().get(root);
+		}
+
+	/**
+	 * Copies the values of the given cluster's centroid out of the mapped file.
+	 *
+	 * @param index the index of the cluster in the snapshot
+	 * @return a newly allocated array of the centroid's values; all zeros if the cluster has no centroid
+	 */
+	public double[] getValues(final int index)
+		{
+		final double[] result = new double[dimensions];
+		if (dimensions > 0)
+			{
+			// a duplicate has its own position, so concurrent readers don't interfere
+			final DoubleBuffer segment = segments[index / clustersPerSegment].duplicate();
+			segment.position((index % clustersPerSegment) * dimensions);
+			segment.get(result);
+			}
+		return result;
+		}
+
+	/**
+	 * @return true if the given cluster has a centroid
+	 */
+	public boolean hasCentroid(final int index)
+		{
+		return (flags[index] & ModelSnapshotWriter.FLAG_CENTROID) != 0;
+		}
+
+	/**
+	 * @return true if the given cluster was among those listed by the clustering method
+	 */
+	public boolean isListed(final int index)
+		{
+		return (flags[index] & ModelSnapshotWriter.FLAG_LISTED) != 0;
+		}
+
+	/**
+	 * Reads the id of the given cluster's centroid.
+	 *
+	 * @param index the index of the cluster in the snapshot
+	 * @return the centroid id, or null if the centroid had none or there is no centroid
+	 */
+	public String readCentroidId(final int index)
+		{
+		if (!hasCentroid(index))
+			{
+			return null;
+			}
+		final DataInputStream in = metadataAt(index);
+		try
+			{
+			in.readInt();
+			in.readByte();
+			return in.readBoolean() ? in.readUTF() : null;
+			}
+		catch (IOException e)
+			{
+			throw new ClusterRuntimeException(e, "Could not read model snapshot " + file);
+			}
+		}
+
+	/**
+	 * Adds the stored label probabilities of the given cluster to the local labels of the target, and makes them its
+	 * derived labels too, against this snapshot's dictionary.  The target's labels should be empty beforehand.
+	 *
+	 * @param index  the index of the cluster in the snapshot
+	 * @param target the cluster to label
+	 */
+	public void restoreLabels(final int index, final Cluster<?> target)
+		{
+		final DataInputStream in = metadataAt(index);
+		try
+			{
+			in.readInt();
+			if ((in.readByte() & ModelSnapshotWriter.FLAG_CENTROID) != 0 && in.readBoolean())
+				{
+				in.readUTF();
+				}
+
+			final int itemCount = in.readInt();
+			final int numLabels = in.readInt();
+			final MutableWeightedSet<String> labels = target.getMutableWeightedLabels();
+			for (int j = 0; j < numLabels; j++)
+				{
+				final String label = dictionary.labelOf(in.readInt());
+				labels.add(label, in.readDouble() * itemCount, 0);
+				}
+			labels.incrementItemCount(itemCount);
+			}
+		catch (IOException e)
+			{
+			throw new ClusterRuntimeException(e, "Could not read model snapshot " + file);
+			}
+		target.doneLabelling();
+		target.setLabelDictionary(dictionary);
+		target.updateDerivedWeightedLabelsFromLocal();
+		}
+
+	private List<Integer> listedIndexes()
+		{
+		final List<Integer> result = new ArrayList<Integer>();
+		for (int i = 0; i < numClusters; i++)
+			{
+			if (isListed(i))
+				{
+				result.add(i);
+				}
+			}
+		return result;
+		}
+
+	private DataInputStream metadataAt(final int index)
+		{
+		final ByteBuffer buffer = metadata.duplicate();
+		buffer.position(metadataPositions[index]);
+		return new DataInputStream(new ByteBufferInputStream(buffer));
+		}
+
+	private synchronized List<HierarchicalCentroidCluster<ClusterableDoubleArray>> getTreeNodes()
+		{
+		if (kind != ModelSnapshotWriter.KIND_TREE)
+			{
+			throw new ClusterRuntimeException("Not a snapshot of a tree: " + file);
+			}
+		if (treeNodes == null)
+			{
+			final List<HierarchicalCentroidCluster<ClusterableDoubleArray>> nodes =
+					new ArrayList<HierarchicalCentroidCluster<ClusterableDoubleArray>>(numClusters);
+			for (int i = 0; i < numClusters; i++)
+				{
+				final HierarchicalCentroidCluster<ClusterableDoubleArray> node =
+						new HierarchicalCentroidCluster<ClusterableDoubleArray>(getCluster(i));
+				node.setLength(Double.isNaN(lengths[i]) ? null : lengths[i]);
+				if (!Double.isNaN(weights[i]))
+					{
+					node.setWeight(weights[i]);
+					}
+				nodes.add(node);
+				}
+
+			// parents precede their children in depth-first order, but link them only once all exist anyway
+			for (int i = 0; i < numClusters; i++)
+				{
+				if (parents[i] >= 0)
+					{
+					nodes.get(i).setParent(nodes.get(parents[i]));
+					}
+				}
+			treeNodes = Collections.unmodifiableList(nodes);
+			}
+		return treeNodes;
+		}
+
+	private static void skipUTF(final ByteBuffer buffer)
+		{
+		final int length = buffer.getShort() & 0xffff;
+		buffer.position(buffer.position() + length);
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * A read-only cluster whose centroid stays in the mapped file until first asked for.
+	 */
+	private class MappedCentroidCluster extends BasicCentroidCluster<ClusterableDoubleArray>
+		{
+		private final int index;
+		private volatile ClusterableDoubleArray mappedCentroid;
+
+		private MappedCentroidCluster(final int index)
+			{
+			super(ids[index], null);
+			this.index = index;
+			}
+
+		@Override
+		public ClusterableDoubleArray getCentroid()
+			{
+			ClusterableDoubleArray result = mappedCentroid;
+			if (result == null && hasCentroid(index))
+				{
+				// a benign race: concurrent callers may each copy an equal centroid, and one of them wins
+				result = new ClusterableDoubleArray(readCentroidId(index), getValues(index));
+				result.doneLabelling();
+				mappedCentroid = result;
+				centroid = result;
+				}
+			return result;
+			}
+		}
+
+	/**
+	 * Reads a ByteBuffer from its current position, so that DataInputStream can decode the strings in it.
+	 */
+	private static class ByteBufferInputStream extends InputStream
+		{
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(final ByteBuffer buffer)
+			{
+			this.buffer = buffer;
+			}
+
+		@Override
+		public int read()
+			{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+			}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+			{
+			if (!buffer.hasRemaining())
+				{
+				return -1;
+				}
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+			}
+		}
+	}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.collections.WeightedSet;
+import com.davidsoergel.stats.DoubleArrayContainer;
+import com.davidsoergel.trees.PhylogenyNode;
+import edu.berkeley.compbio.ml.cluster.hierarchical.HierarchicalCentroidCluster;
+import edu.berkeley.compbio.ml.cluster.hierarchical.HierarchicalClusteringMethod;
+import edu.berkeley.compbio.ml.cluster.kohonen.KohonenSOM2D;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Writes the clusters of a trained clustering method to a compact binary snapshot, to be loaded by a
+ * MappedModelSnapshot.  This is much smaller and much faster to load than a serialized object graph, but records only
+ * what is needed to classify new samples: the centroids, the derived label probabilities, and for a Kohonen map or a
+ * hierarchical clustering the geometry of the grid or the shape of the tree.
+ * <p/>
+ * The file consists of a header, the vectors, the structure, and a metadata column:
+ * <ul>
+ * <li>the header: the int MAGIC, the int VERSION, the int kind (KIND_FLAT, KIND_GRID, or KIND_TREE), the int number of
+ * clusters, the int number of dimensions, the long offset of the metadata column, and an int reserved for future
+ * use;</li>
+ * <li>the vectors: for each cluster in turn, the values of its centroid as big-endian doubles, so that cluster i starts
+ * at HEADER_SIZE + i * dimensions * 8 and the whole block can be mapped into memory as is.  A cluster without a centroid
+ * has zeros here;</li>
+ * <li>the structure: nothing for KIND_FLAT; for KIND_GRID, the int number of grid dimensions, the int number of cells
+ * along each, and the int training time; for KIND_TREE, the int index of the root, and for each cluster in turn the int
+ * index of its parent (-1 for the root), its double branch length (NaN if none), and its double weight;</li>
+ * <li>the metadata: the label dictionary, as the int number of labels followed by each label in order of id; then for
+ * each cluster in turn, its int id, a flags byte (FLAG_CENTROID if it has a centroid, FLAG_LISTED if it is among the
+ * clusters listed by the clustering method), the id of its centroid if it has one, the int item count of its label
+ * probabilities, the int number of labels, and the int id of each label followed by its normalized weight.  Strings are
+ * written with DataOutput.writeUTF, the centroid id preceded by a boolean telling whether it is present.</li>
+ * </ul>
+ * The clusters of a tree are written in depth-first order from the root.  Centroids must be DoubleArrayContainers.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public final class ModelSnapshotWriter
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ModelSnapshotWriter.class);
+
+	public static final int MAGIC = 0x434c4d53;  // "CLMS"
+	public static final int VERSION = 2;
+	public static final int HEADER_SIZE = 32;
+
+	public static final int KIND_FLAT = 0;
+	public static final int KIND_GRID = 1;
+	public static final int KIND_TREE = 2;
+
+	public static final int FLAG_CENTROID = 1;
+	public static final int FLAG_LISTED = 2;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Writes a snapshot of the given clustering method, as a grid if it is a KohonenSOM2D, as a tree if it is a
+	 * HierarchicalClusteringMethod, and otherwise as a flat list of its clusters.
+	 *
+	 * @param method the trained clustering method
+	 * @param file   the file to create or overwrite
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(final ClusteringMethod<?> method, final File file) throws IOException
+		{
+		if (method instanceof KohonenSOM2D)
+			{
+			final KohonenSOM2D<?> som = (KohonenSOM2D<?>) method;
+			final List<? extends Cluster<?>> clusters = som.getClusters();
+			write(file, KIND_GRID, clusters, allListed(clusters.size()), som.getCellsPerDimension(), som.getTime(), -1,
+			      null, null, null);
+			}
+		else if (method instanceof HierarchicalClusteringMethod)
+			{
+			writeTree(((HierarchicalClusteringMethod<?>) method).getTree(), method.getClusters(), file);
+			}
+		else
+			{
+			writeFlat(method.getClusters(), file);
+			}
+		}
+
+	/**
+	 * Writes a snapshot of the given clusters as a flat list.
+	 *
+	 * @param clusters the clusters, which must all be CentroidClusters
+	 * @param file     the file to create or overwrite
+	 * @throws IOException if the file can't be written
+	 */
+	public static void writeFlat(final List<? extends Cluster<?>> clusters, final File file) throws IOException
+		{
+		write(file, KIND_FLAT, clusters, allListed(clusters.size()), null, 0, -1, null, null, null);
+		}
+
+	/**
+	 * Writes a snapshot of the tree below the given root, marking those nodes that are among the listed clusters.
+	 *
+	 * @param root   the root of the tree
+	 * @param listed the clusters listed by the clustering method, which are some of the nodes of the tree
+	 * @param file   the file to create or overwrite
+	 * @throws IOException if the file can't be written
+	 */
+	public static <T extends Clusterable<T>> void writeTree(final HierarchicalCentroidCluster<T> root,
+	                                                        final Collection<?> listed, final File file)
+			throws IOException
+		{
+		final Set<Object> listedSet = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		listedSet.addAll(listed);
+
+		final List<Cluster<T>> clusters = new ArrayList<Cluster<T>>();
+		final List<Integer> parents = new ArrayList<Integer>();
+		final List<Double> lengths = new ArrayList<Double>();
+		final List<Double> weights = new ArrayList<Double>();
+		final List<Boolean> isListed = new ArrayList<Boolean>();
+
+		// depth-first from the root, with an explicit stack since the tree may be very deep
+		final List<PhylogenyNode<CentroidCluster<T>>> stack = new ArrayList<PhylogenyNode<CentroidCluster<T>>>();
+		final List<Integer> stackParents = new ArrayList<Integer>();
+		stack.add(root);
+		stackParents.add(-1);
+		while (!stack.isEmpty())
+			{
+			final PhylogenyNode<CentroidCluster<T>> node = stack.remove(stack.size() - 1);
+			final int parent = stackParents.remove(stackParents.size() - 1);
+			final int index = clusters.size();
+
+			clusters.add(node.getPayload());
+			parents.add(parent);
+			final Double length = node.getLength();
+			lengths.add(length == null ? Double.NaN : length);
+			final Double weight = node.getWeight();
+			weights.add(weight == null ? Double.NaN : weight);
+			isListed.add(listedSet.contains(node));
+
+			for (final PhylogenyNode<CentroidCluster<T>> child : node.getChildren())
+				{
+				stack.add(child);
+				stackParents.add(index);
+				}
+			}
+
+		final int n = clusters.size();
+		final boolean[] listedArray = new boolean[n];
+		final int[] parentArray = new int[n];
+		final double[] lengthArray = new double[n];
+		final double[] weightArray = new double[n];
+		for (int i = 0; i < n; i++)
+			{
+			listedArray[i] = isListed.get(i);
+			parentArray[i] = parents.get(i);
+			lengthArray[i] = lengths.get(i);
+			weightArray[i] = weights.get(i);
+			}
+		write(file, KIND_TREE, clusters, listedArray, null, 0, 0, parentArray, lengthArray, weightArray);
+		}
+
+	private static boolean[] allListed(final int n)
+		{
+		final boolean[] result = new boolean[n];
+		Arrays.fill(result, true);
+		return result;
+		}
+
+	private static void write(final File file, final int kind, final List<? extends Cluster<?>> clusters,
+	                          final boolean[] listed, final int[] cellsPerDimension, final int time, final int root,
+	                          final int[] parents, final double[] lengths, final double[] weights) throws IOException
+		{
+		final int numClusters = clusters.size();
+
+		// collect the centroids first, so as to know the dimensions before writing anything
+		final double[][] centroids = new double[numClusters][];
+		final String[] centroidIds = new String[numClusters];
+		int dimensions = -1;
+		for (int i = 0; i < numClusters; i++)
+			{
+			final Cluster<?> c = clusters.get(i);
+			if (!(c instanceof CentroidCluster))
+				{
+				throw new ClusterRuntimeException("Can't snapshot a cluster without a centroid: " + c);
+				}
+			final Object centroid = ((CentroidCluster<?>) c).getCentroid();
+			if (centroid == null)
+				{
+				continue;
+				}
+			if (!(centroid instanceof DoubleArrayContainer))
+				{
+				throw new ClusterRuntimeException("Can't snapshot a centroid that is not a double array: " + centroid);
+				}
+			centroids[i] = ((DoubleArrayContainer) centroid).getArray();
+
+			// the id field directly, since ClusterableDoubleArray.getId() doesn't expose it
+			centroidIds[i] = centroid instanceof ClusterableDoubleArray ? ((ClusterableDoubleArray) centroid).id
+			                                                            : ((Clusterable<?>) centroid).getId();
+			if (dimensions == -1)
+				{
+				dimensions = centroids[i].length;
+				}
+			else if (centroids[i].length != dimensions)
+				{
+				throw new ClusterRuntimeException(
+						"Centroid of cluster " + c.getId() + " has length " + centroids[i].length + "; expected "
+						+ dimensions);
+				}
+			}
+		if (dimensions == -1)
+			{
+			dimensions = 0;
+			}
+
+		// the labels of every cluster, against a dictionary of the snapshot's own that is written once ahead of them
+		final LabelDictionary dictionary = new LabelDictionary();
+		final LabelWeights[] labels = new LabelWeights[numClusters];
+		for (int i = 0; i < numClusters; i++)
+			{
+			// the derived probabilities are what classification uses; fall back on the local labels if there are none
+			final Cluster<?> c = clusters.get(i);
+			final WeightedSet<String> derived = c.getDerivedLabelProbabilities();
+			labels[i] = LabelWeights.of(derived == null ? c.getImmutableWeightedLabels() : derived, dictionary);
+			}
+
+		final long structureBytes;
+		if (kind == KIND_GRID)
+			{
+			structureBytes = 4 + 4 * cellsPerDimension.length + 4;
+			}
+		else if (kind == KIND_TREE)
+			{
+			structureBytes = 4 + (long) numClusters * (4 + 8 + 8);
+			}
+		else
+			{
+			structureBytes = 0;
+			}
+		final long metadataOffset = HEADER_SIZE + (long) numClusters * dimensions * 8 + structureBytes;
+
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+			{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(kind);
+			out.writeInt(numClusters);
+			out.writeInt(dimensions);
+			out.writeLong(metadataOffset);
+			out.writeInt(0);
+
+			for (final double[] centroid : centroids)
+				{
+				for (int j = 0; j < dimensions; j++)
+					{
+					out.writeDouble(centroid == null ? 0 : centroid[j]);
+					}
+				}
+
+			if (kind == KIND_GRID)
+				{
+				out.writeInt(cellsPerDimension.length);
+				for (final int cells : cellsPerDimension)
+					{
+					out.writeInt(cells);
+					}
+				out.writeInt(time);
+				}
+			else if (kind == KIND_TREE)
+				{
+				out.writeInt(root);
+				for (int i = 0; i < numClusters; i++)
+					{
+					out.writeInt(parents[i]);
+					out.writeDouble(lengths[i]);
+					out.writeDouble(weights[i]);
+					}
+				}
+
+			out.writeInt(dictionary.size());
+			for (int id = 0; id < dictionary.size(); id++)
+				{
+				out.writeUTF(dictionary.labelOf(id));
+				}
+
+			for (int i = 0; i < numClusters; i++)
+				{
+				final Cluster<?> c = clusters.get(i);
+				out.writeInt(c.getId());
+				out.writeByte((centroids[i] == null ? 0 : FLAG_CENTROID) | (listed[i] ? FLAG_LISTED : 0));
+				if (centroids[i] != null)
+					{
+					out.writeBoolean(centroidIds[i] != null);
+					if (centroidIds[i] != null)
+						{
+						out.writeUTF(centroidIds[i]);
+						}
+					}
+
+				out.writeInt(labels[i].getItemCount());
+				out.writeInt(labels[i].size());
+				for (int j = 0; j < labels[i].size(); j++)
+					{
+					out.writeInt(labels[i].getId(j));
+					out.writeDouble(labels[i].getWeight(j));
+					}
+				}
+			}
+		finally
+			{
+			out.close();
+			}
+
+		logger.info("Wrote snapshot of " + numClusters + " clusters of " + dimensions + " dimensions to " + file);
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private ModelSnapshotWriter()
+		{
+		}
+	}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Decorates a ClusterableIterator whose next() is slow (e.g., because it parses samples from a file and computes their
+ * features) by running it on dedicated producer threads, which keep a bounded buffer of samples filled ahead of the
+ * consumers.  Decoding then overlaps with whatever the consumers do with the samples.
+ * <p/>
+ * With a single producer the samples arrive in the underlying order; with more, they may be reordered.  Once the
+ * underlying iterator is exhausted, next() throws NoSuchElementException as usual; if it instead failed, the failure is
+ * rethrown to the consumers in place of the NoSuchElementException, after the samples produced before it.
+ * <p/>
+ * The producers are daemon threads that stop when the underlying iterator is exhausted.  A consumer that abandons the
+ * iterator before then should call close(), or the producers will wait for buffer space forever.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class PrefetchingClusterableIterator<T extends Clusterable<T>>
+		implements BatchClusterableIterator<T>, Closeable
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(PrefetchingClusterableIterator.class);
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	// marks the end of the samples; once taken, it is put back for the other consumers to see
+	private static final Object END = new Object();
+
+	private final ClusterableIterator<T> underlying;
+	private final BlockingQueue<Object> buffer;
+	private final AtomicInteger activeProducers;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private final List<Thread> producers;
+
+	private volatile boolean closed = false;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * Creates the iterator and starts its producer threads.
+	 *
+	 * @param underlying   the iterator to prefetch from, which must not be used by anything else
+	 * @param capacity     the number of samples to buffer ahead of the consumers
+	 * @param numProducers the number of threads to call the underlying next(); more than one makes sense only if the
+	 *                     underlying iterator decodes samples outside of its lock
+	 */
+	public PrefetchingClusterableIterator(final ClusterableIterator<T> underlying, final int capacity,
+	                                      final int numProducers)
+		{
+		if (capacity < 1 || numProducers < 1)
+			{
+			throw new ClusterRuntimeException(
+					"Capacity and number of producers must be at least 1: " + capacity + ", " + numProducers);
+			}
+		this.underlying = underlying;
+		buffer = new ArrayBlockingQueue<Object>(capacity);
+		activeProducers = new AtomicInteger(numProducers);
+
+		producers = new ArrayList<Thread>(numProducers);
+		for (int i = 0; i < numProducers; i++)
+			{
+			final Thread t = new Thread(new Producer(), "PrefetchingClusterableIterator-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			producers.add(t);
+			}
+		for (final Thread t : producers)
+			{
+			t.start();
+			}
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface Closeable ---------------------
+
+	/**
+	 * Stops the producers and discards the buffered samples.  Subsequent calls to next() throw NoSuchElementException.
+	 * Closing an iterator more than once has no further effect.
+	 */
+	public void close()
+		{
+		closed = true;
+		for (final Thread t : producers)
+			{
+			t.interrupt();
+			}
+		// wake any waiting consumer
+		buffer.clear();
+		buffer.offer(END);
+		}
+
+// --------------------- Interface ClusterableIterator ---------------------
+
+	public synchronized T next() throws NoSuchElementException
+		{
+		final Object result = take();
+		if (result == END || closed)
+			{
+			endReached();
+			}
+		return (T) result;
+		}
+
+	public T nextFullyLabelled()
+		{
+		final T result = next();
+		result.doneLabelling();
+		return result;
+		}
+
+	/**
+	 * Waits for the first sample, then takes whichever of the rest up to max are already buffered.
+	 */
+	public synchronized int nextBatch(final List<? super T> batch, final int max)
+		{
+		if (max <= 0)
+			{
+			return 0;
+			}
+		Object o = take();
+		int result = 0;
+		while (o != null)
+			{
+			if (o == END || closed)
+				{
+				if (result == 0)
+					{
+					try
+						{
+						endReached();
+						}
+					catch (NoSuchElementException e)
+						{
+						return 0;
+						}
+					}
+				// leave the end, or the failure, for the next call
+				buffer.offer(END);
+				return result;
+				}
+			batch.add((T) o);
+			result++;
+			o = result < max ? buffer.poll() : null;
+			}
+		return result;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Puts the end marker back for the other consumers, then throws the producers' failure if there was one, or else
+	 * NoSuchElementException.
+	 */
+	private void endReached()
+		{
+		buffer.offer(END);
+		final Throwable t = closed ? null : failure.get();
+		if (t instanceof RuntimeException)
+			{
+			throw (RuntimeException) t;
+			}
+		if (t instanceof Error)
+			{
+			throw (Error) t;
+			}
+		if (t != null)
+			{
+			throw new ClusterRuntimeException((Exception) t, "Prefetching failed");
+			}
+		throw new NoSuchElementException();
+		}
+
+	private Object take()
+		{
+		try
+			{
+			return buffer.take();
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			throw new ClusterRuntimeException(e, "Interrupted while waiting for a prefetched sample");
+			}
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	private class Producer implements Runnable
+		{
+		public void run()
+			{
+			try
+				{
+				// once any producer fails, the others stop too
+				while (!closed && failure.get() == null)
+					{
+					buffer.put(underlying.next());
+					}
+				}
+			catch (NoSuchElementException e)
+				{
+				// done
+				}
+			catch (InterruptedException e)
+				{
+				// closed
+				}
+			catch (Throwable t)
+				{
+				logger.debug("Prefetching failed", t);
+				failure.compareAndSet(null, t);
+				}
+			finally
+				{
+				if (activeProducers.decrementAndGet() == 0 && !closed)
+					{
+					// the other producers are finished, so there will be room for it eventually
+					try
+						{
+						buffer.put(END);
+						}
+					catch (InterruptedException e)
+						{
+						// closed
+						}
+					}
+				}
+			}
+		}
+	}
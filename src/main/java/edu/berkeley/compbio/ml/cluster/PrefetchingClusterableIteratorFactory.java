@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.Collections;
+
+
+/**
+ * Wraps each iterator provided by an underlying factory in a PrefetchingClusterableIterator, so that every training
+ * epoch decodes its samples ahead of the clustering method.
+ * <p/>
+ * Only one epoch's iterator is live at a time: next() closes the previous one, stopping its producers even if the
+ * consumer abandoned it part way through.  close() does the same for the last one.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class PrefetchingClusterableIteratorFactory<T extends Clusterable<T>> extends ClusterableIteratorFactory<T>
+		implements Closeable
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(PrefetchingClusterableIteratorFactory.class);
+
+	private final ClusterableIteratorFactory<T> underlying;
+	private final int capacity;
+	private final int numProducers;
+
+	private PrefetchingClusterableIterator<T> current = null;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param underlying   the factory whose iterators are to be prefetched
+	 * @param capacity     the number of samples to buffer ahead of the consumers
+	 * @param numProducers the number of threads to call the underlying next() of each iterator
+	 */
+	public PrefetchingClusterableIteratorFactory(final ClusterableIteratorFactory<T> underlying, final int capacity,
+	                                             final int numProducers)
+		{
+		super(Collections.<T>emptyList());
+		this.underlying = underlying;
+		this.capacity = capacity;
+		this.numProducers = numProducers;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface Closeable ---------------------
+
+	/**
+	 * Closes the iterator provided most recently, if any.
+	 */
+	public synchronized void close()
+		{
+		if (current != null)
+			{
+			current.close();
+			current = null;
+			}
+		}
+
+// --------------------- Interface Iterator ---------------------
+
+	@Override
+	public boolean hasNext()
+		{
+		return underlying.hasNext();
+		}
+
+	@Override
+	public synchronized ClusterableIterator<T> next()
+		{
+		close();
+		current = new PrefetchingClusterableIterator<T>(underlying.next(), capacity, numProducers);
+		return current;
+		}
+	}
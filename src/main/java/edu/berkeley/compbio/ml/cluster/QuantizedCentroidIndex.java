@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.stats.DoubleArrayContainer;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * An 8-bit scalar-quantized shadow copy of the centroids of a list of clusters, used to narrow a k-nearest-neighbor
+ * search under the Euclidean distance to a few candidates before they are compared at full precision.
+ * <p/>
+ * Each centroid is stored as one signed byte per dimension times a per-row scale, along with the exact Euclidean norm
+ * of its quantization error.  By the triangle inequality the true distance from a query to a centroid differs from the
+ * distance to its quantized copy by at most that error, so each row gets a lower and an upper bound on its true
+ * distance while streaming through a quarter of the bytes (compared to doubles) that the full scan would.  Any row
+ * whose lower bound exceeds the k'th smallest upper bound cannot be among the k nearest, so re-ranking the remaining
+ * candidates at full precision gives exactly the result of the full scan.
+ * <p/>
+ * The centroids are assumed not to move after the index is built, as is the case when each cluster is a single
+ * training sample.  The bounds are valid only for the (unweighted) Euclidean distance.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class QuantizedCentroidIndex<T extends Clusterable<T>, C extends CentroidCluster<T>>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(QuantizedCentroidIndex.class);
+
+	/**
+	 * The bounds are widened by this relative margin, so that rounding in computing them can never exclude a true
+	 * neighbor
+	 */
+	private static final double BOUND_SLACK = 1e-9;
+
+	private final List<C> rowClusters;
+	private final ClusterMaskCache<T> rowMasks;
+	private final int dimensions;
+	private final byte[] codes;
+	private final double[] scales;
+	private final double[] errors;
+
+	// per-thread work space for candidates(), so that a query allocates nothing but its result
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+	{
+	@Override
+	protected Scratch initialValue()
+		{
+		return new Scratch(rowClusters.size());
+		}
+	};
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Quantizes the centroids of the given clusters into a new index.
+	 *
+	 * @param clusters the clusters whose centroids should be quantized, in row order
+	 * @return the new index, or null if the centroids are not all double or float arrays of a common length
+	 */
+	@Nullable
+	public static <T extends Clusterable<T>, C extends CentroidCluster<T>> QuantizedCentroidIndex<T, C> build(
+			final List<C> clusters)
+		{
+		if (clusters.isEmpty())
+			{
+			return null;
+			}
+
+		final int dimensions = dimensionsOf(clusters.get(0).getCentroid());
+		if (dimensions < 0)
+			{
+			return null;
+			}
+		for (final C c : clusters)
+			{
+			if (dimensionsOf(c.getCentroid()) != dimensions)
+				{
+				logger.warn("Centroids are not all arrays of length " + dimensions + "; not quantizing them");
+				return null;
+				}
+			}
+
+		final QuantizedCentroidIndex<T, C> result = new QuantizedCentroidIndex<T, C>(clusters, dimensions);
+		logger.debug("Quantized " + clusters.size() + " centroids of " + dimensions + " dimensions");
+		return result;
+		}
+
+	/**
+	 * Returns the values of the given point as doubles, if it is a kind of array this index understands.
+	 *
+	 * @param point the point to examine
+	 * @return the values, which may be a live array that must not be modified; or null if the point is neither a
+	 *         DoubleArrayContainer nor a ClusterableFloatArray
+	 */
+	@Nullable
+	public static double[] valuesOf(final Object point)
+		{
+		if (point instanceof DoubleArrayContainer)
+			{
+			return ((DoubleArrayContainer) point).getArray();
+			}
+		if (point instanceof ClusterableFloatArray)
+			{
+			return ((ClusterableFloatArray) point).toDoubleArray();
+			}
+		return null;
+		}
+
+	private static int dimensionsOf(final Object point)
+		{
+		if (point instanceof ClusterableDoubleArray)
+			{
+			// avoids materializing a sparse array just to learn its length
+			return ((ClusterableDoubleArray) point).length();
+			}
+		if (point instanceof ClusterableFloatArray)
+			{
+			return ((ClusterableFloatArray) point).length();
+			}
+		if (point instanceof DoubleArrayContainer)
+			{
+			return ((DoubleArrayContainer) point).getArray().length;
+			}
+		return -1;
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private QuantizedCentroidIndex(final List<C> clusters, final int dimensions)
+		{
+		this.rowClusters = new ArrayList<C>(clusters);
+		this.rowMasks = new ClusterMaskCache<T>(rowClusters);
+		this.dimensions = dimensions;
+		final int rows = rowClusters.size();
+		this.codes = new byte[rows * dimensions];
+		this.scales = new double[rows];
+		this.errors = new double[rows];
+
+		for (int row = 0; row < rows; row++)
+			{
+			final double[] centroid = valuesOf(rowClusters.get(row).getCentroid());
+			final int offset = row * dimensions;
+
+			double maxAbs = 0;
+			for (final double v : centroid)
+				{
+				maxAbs = Math.max(maxAbs, Math.abs(v));
+				}
+			final double scale = maxAbs / 127.0;
+			scales[row] = scale;
+
+			double errorSquared = 0;
+			for (int i = 0; i < dimensions; i++)
+				{
+				final long code = scale == 0 ? 0 : Math.round(centroid[i] / scale);
+				codes[offset + i] = (byte) Math.max(-127, Math.min(127, code));
+				final double e = centroid[i] - codes[offset + i] * scale;
+				errorSquared += e * e;
+				}
+			errors[row] = Math.sqrt(errorSquared);
+			}
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int getDimensions()
+		{
+		return dimensions;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	public C getCluster(final int row)
+		{
+		return rowClusters.get(row);
+		}
+
+	public int getNumRows()
+		{
+		return rowClusters.size();
+		}
+
+	/**
+	 * Finds the clusters that could be among the k nearest to the query (under the Euclidean distance) at a distance
+	 * strictly less than the given threshold.  Comparing just these at full precision, in the order given, produces
+	 * exactly the same k nearest neighbors as comparing all of them.
+	 *
+	 * @param query     the values of the point to classify
+	 * @param k         the number of neighbors that will be kept
+	 * @param threshold neighbors at this distance or beyond will be discarded anyway
+	 * @param filter    clusters for which this filter answers isProhibited are excluded; may be null
+	 * @return the candidate clusters, in row order
+	 */
+	public List<C> candidates(final double[] query, final int k, final double threshold,
+	                          @Nullable final PointClusterFilter<T> filter)
+		{
+		final int rows = rowClusters.size();
+		final Scratch work = scratch.get();
+		final double[] lowerBounds = work.lowerBounds;
+
+		// the k smallest upper bounds so far, as a max-heap, so that the k'th smallest is at the top
+		final double[] nearestUpperBounds = work.nearestUpperBounds;
+		int heapSize = 0;
+
+		final BitSet prohibited = rowMasks.getProhibited(filter);
+		for (int row = 0; row < rows; row++)
+			{
+			if (prohibited == null ? filter != null && filter.isProhibited(rowClusters.get(row)) : prohibited.get(row))
+				{
+				lowerBounds[row] = Double.POSITIVE_INFINITY;
+				continue;
+				}
+			final double approximate = Math.sqrt(squaredDistanceToRow(query, row));
+			final double slack = BOUND_SLACK * (approximate + errors[row]);
+			lowerBounds[row] = approximate - errors[row] - slack;
+			final double upperBound = approximate + errors[row] + slack;
+			if (heapSize < k)
+				{
+				siftUp(nearestUpperBounds, heapSize++, upperBound);
+				}
+			else if (k > 0 && upperBound < nearestUpperBounds[0])
+				{
+				siftDown(nearestUpperBounds, heapSize, upperBound);
+				}
+			}
+
+		// the k'th nearest neighbor can be no farther than the k'th smallest upper bound
+		double cutoff = threshold;
+		if (heapSize == k && k > 0)
+			{
+			cutoff = Math.min(cutoff, nearestUpperBounds[0]);
+			}
+
+		final List<C> result = new ArrayList<C>();
+		for (int row = 0; row < rows; row++)
+			{
+			// rows at exactly the cutoff are kept, since a tie at the k'th distance is broken by cluster id
+			if (lowerBounds[row] <= cutoff && lowerBounds[row] < threshold)
+				{
+				result.add(rowClusters.get(row));
+				}
+			}
+		return result;
+		}
+
+	/**
+	 * Adds a value to a max-heap of the given size, which has room for it.
+	 */
+	private static void siftUp(final double[] heap, final int size, final double value)
+		{
+		int i = size;
+		while (i > 0)
+			{
+			final int parent = (i - 1) >> 1;
+			if (heap[parent] >= value)
+				{
+				break;
+				}
+			heap[i] = heap[parent];
+			i = parent;
+			}
+		heap[i] = value;
+		}
+
+	/**
+	 * Replaces the greatest value in a max-heap of the given size with a smaller one.
+	 */
+	private static void siftDown(final double[] heap, final int size, final double value)
+		{
+		int i = 0;
+		while (true)
+			{
+			int child = 2 * i + 1;
+			if (child >= size)
+				{
+				break;
+				}
+			if (child + 1 < size && heap[child + 1] > heap[child])
+				{
+				child++;
+				}
+			if (heap[child] <= value)
+				{
+				break;
+				}
+			heap[i] = heap[child];
+			i = child;
+			}
+		heap[i] = value;
+		}
+
+	private double squaredDistanceToRow(final double[] query, final int row)
+		{
+		final double scale = scales[row];
+		final int offset = row * dimensions;
+		double s0 = 0;
+		double s1 = 0;
+		final int unrolledEnd = dimensions & ~1;
+		int i = 0;
+		for (; i < unrolledEnd; i += 2)
+			{
+			final double d0 = query[i] - codes[offset + i] * scale;
+			final double d1 = query[i + 1] - codes[offset + i + 1] * scale;
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			}
+		if (i < dimensions)
+			{
+			final double d = query[i] - codes[offset + i] * scale;
+			s0 += d * d;
+			}
+		return s0 + s1;
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	private static final class Scratch
+		{
+		private final double[] lowerBounds;
+		private final double[] nearestUpperBounds;
+
+		private Scratch(final int rows)
+			{
+			lowerBounds = new double[rows];
+			nearestUpperBounds = new double[rows];
+			}
+		}
+	}
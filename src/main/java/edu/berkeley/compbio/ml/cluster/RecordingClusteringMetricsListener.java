@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A metrics listener that keeps every measurement in memory, in the order received, and can write them out as CSV.
+ * Each measurement becomes one row, with an event type ("epoch", "merges", "phase", "queue", "test", or "training"),
+ * a name (the epoch number, phase name, or queue name, where there is one), a count (of samples, merges, or queued
+ * items), the number of reassignments and distance evaluations where applicable, the duration in seconds, and the
+ * count per second.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class RecordingClusteringMetricsListener implements ClusteringMetricsListener
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(RecordingClusteringMetricsListener.class);
+
+	public static final String CSV_HEADER =
+			"event,name,count,reassignments,distanceEvaluations,seconds,perSecond";
+
+	private final List<Row> rows = new ArrayList<Row>();
+
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	/**
+	 * @return a copy of the rows recorded so far
+	 */
+	public List<Row> getRows()
+		{
+		synchronized (rows)
+			{
+			return new ArrayList<Row>(rows);
+			}
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface ClusteringMetricsListener ---------------------
+
+	public void epochCompleted(final int epoch, final int samples, final int reassignments,
+	                           final long distanceEvaluations, final long nanos)
+		{
+		add(new Row("epoch", String.valueOf(epoch), samples, reassignments, distanceEvaluations, nanos));
+		}
+
+	public void mergesCompleted(final int merges, final long distanceEvaluations, final long nanos)
+		{
+		add(new Row("merges", "", merges, 0, distanceEvaluations, nanos));
+		}
+
+	public void phaseCompleted(final String phase, final long nanos)
+		{
+		add(new Row("phase", phase, 0, 0, 0, nanos));
+		}
+
+	public void queueDepth(final String queue, final int depth)
+		{
+		add(new Row("queue", queue, depth, 0, 0, 0));
+		}
+
+	public void testCompleted(final int samples, final long distanceEvaluations, final long nanos)
+		{
+		add(new Row("test", "", samples, 0, distanceEvaluations, nanos));
+		}
+
+	public void trainingCompleted(final int samples, final long distanceEvaluations, final long nanos)
+		{
+		add(new Row("training", "", samples, 0, distanceEvaluations, nanos));
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	public void clear()
+		{
+		synchronized (rows)
+			{
+			rows.clear();
+			}
+		}
+
+	/**
+	 * Writes the header and all the rows recorded so far as CSV.  The writer is flushed but not closed.
+	 *
+	 * @throws IOException if the writer fails
+	 */
+	public void writeCsv(final Writer out) throws IOException
+		{
+		out.write(CSV_HEADER);
+		out.write("\n");
+		for (final Row row : getRows())
+			{
+			out.write(row.toString());
+			out.write("\n");
+			}
+		out.flush();
+		}
+
+	private void add(final Row row)
+		{
+		synchronized (rows)
+			{
+			rows.add(row);
+			}
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * One recorded measurement.
+	 */
+	public static class Row
+		{
+		private final String event;
+		private final String name;
+		private final long count;
+		private final long reassignments;
+		private final long distanceEvaluations;
+		private final long nanos;
+
+		public Row(final String event, final String name, final long count, final long reassignments,
+		           final long distanceEvaluations, final long nanos)
+			{
+			this.event = event;
+			this.name = name;
+			this.count = count;
+			this.reassignments = reassignments;
+			this.distanceEvaluations = distanceEvaluations;
+			this.nanos = nanos;
+			}
+
+		public long getCount()
+			{
+			return count;
+			}
+
+		public long getDistanceEvaluations()
+			{
+			return distanceEvaluations;
+			}
+
+		public String getEvent()
+			{
+			return event;
+			}
+
+		public String getName()
+			{
+			return name;
+			}
+
+		public long getNanos()
+			{
+			return nanos;
+			}
+
+		/**
+		 * @return the count per second of wall time, e.g. samples/sec for an epoch or merges/sec, or NaN if no time was
+		 *         recorded
+		 */
+		public double getPerSecond()
+			{
+			return nanos <= 0 ? Double.NaN : count / getSeconds();
+			}
+
+		public long getReassignments()
+			{
+			return reassignments;
+			}
+
+		public double getSeconds()
+			{
+			return nanos / 1e9;
+			}
+
+		@Override
+		public String toString()
+			{
+			return event + "," + name + "," + count + "," + reassignments + "," + distanceEvaluations + ","
+			       + getSeconds() + "," + getPerSecond();
+			}
+		}
+	}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.conja.ThreadSafeNextOnlyIterator;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A Factory for new Iterators based on a List, where each new Iterator provides the contents in a random order, like
+ * PermutingClusterableIteratorFactory, but without touching the List itself.
+ * <p/>
+ * Each epoch shuffles a permutation of int indexes into the List, rather than the List, and with a seeded random number
+ * generator, so that the sequence of epochs is reproducible.  An epoch's permutation may be consumed by one shared
+ * iterator (next()), by a number of disjoint shards, each to be consumed by a single worker (nextShards()), or in
+ * chunks of consecutive samples taken by workers as they become free (nextChunks()).  Neither the shards nor the chunks
+ * are contended for sample by sample.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ShardedPermutingClusterableIteratorFactory<T extends Clusterable<T>> extends ClusterableIteratorFactory<T>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ShardedPermutingClusterableIteratorFactory.class);
+
+	private final List<T> samples;
+	private final Random random;
+
+	// the most recent permutation, from which the next is shuffled
+	private int[] permutation;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * @return the list itself if it supports fast random access, or else a copy of the references that does
+	 */
+	private static <T> List<T> randomAccess(final List<T> list)
+		{
+		return list instanceof RandomAccess ? list : new ArrayList<T>(list);
+		}
+
+	/**
+	 * Claims up to n positions, never advancing the position past end, so that it cannot overflow however many callers
+	 * keep asking after the end is reached.
+	 *
+	 * @return the first position claimed; the last is min(result + n, end) - 1.  If the result is end, none were claimed.
+	 */
+	private static int claim(final AtomicInteger position, final int n, final int end)
+		{
+		while (true)
+			{
+			final int start = position.get();
+			if (start >= end)
+				{
+				return end;
+				}
+			if (position.compareAndSet(start, (int) Math.min((long) start + n, end)))
+				{
+				return start;
+				}
+			}
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	public ShardedPermutingClusterableIteratorFactory(final List<T> underlyingList)
+		{
+		this(underlyingList, new Random());
+		}
+
+	/**
+	 * @param underlyingList the samples, which must not change while the factory is in use
+	 * @param seed           the seed of the shuffles, so that the same seed gives the same sequence of epochs
+	 */
+	public ShardedPermutingClusterableIteratorFactory(final List<T> underlyingList, final long seed)
+		{
+		this(underlyingList, new Random(seed));
+		}
+
+	private ShardedPermutingClusterableIteratorFactory(final List<T> underlyingList, final Random random)
+		{
+		super(randomAccess(underlyingList));
+		samples = (List<T>) underlyingCollection;
+		this.random = random;
+
+		permutation = new int[samples.size()];
+		for (int i = 0; i < permutation.length; i++)
+			{
+			permutation[i] = i;
+			}
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface Iterator ---------------------
+
+	/**
+	 * Starts a new epoch, returning a single iterator over all of it that may be shared among threads.
+	 */
+	@Override
+	public ClusterableIterator<T> next()
+		{
+		return new RangeIterator(nextPermutation(), 0, samples.size());
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Starts a new epoch, providing its samples in chunks of consecutive elements of its permutation.  The chunk iterator
+	 * may be shared among threads, and works with ExecutionPolicy.forEach().
+	 *
+	 * @param chunkSize the number of samples in each chunk; the last may have fewer
+	 */
+	public ThreadSafeNextOnlyIterator<List<T>> nextChunks(final int chunkSize)
+		{
+		if (chunkSize < 1)
+			{
+			throw new ClusterRuntimeException("Chunk size must be at least 1: " + chunkSize);
+			}
+		final int[] epoch = nextPermutation();
+		final AtomicInteger position = new AtomicInteger();
+		return new ThreadSafeNextOnlyIterator<List<T>>()
+		{
+		public List<T> next() throws NoSuchElementException
+			{
+			final int start = claim(position, chunkSize, epoch.length);
+			if (start == epoch.length)
+				{
+				throw new NoSuchElementException();
+				}
+			final int end = (int) Math.min((long) start + chunkSize, epoch.length);
+			final List<T> result = new ArrayList<T>(end - start);
+			for (int i = start; i < end; i++)
+				{
+				result.add(samples.get(epoch[i]));
+				}
+			return result;
+			}
+		};
+		}
+
+	/**
+	 * Starts a new epoch, dividing it into the given number of disjoint shards of as nearly equal size as possible.  Each
+	 * shard should be consumed by a single worker.
+	 *
+	 * @param numShards the number of shards
+	 * @return the shards, which together provide every sample exactly once
+	 */
+	public List<ClusterableIterator<T>> nextShards(final int numShards)
+		{
+		if (numShards < 1)
+			{
+			throw new ClusterRuntimeException("Number of shards must be at least 1: " + numShards);
+			}
+		final int[] epoch = nextPermutation();
+		final List<ClusterableIterator<T>> result = new ArrayList<ClusterableIterator<T>>(numShards);
+		for (int s = 0; s < numShards; s++)
+			{
+			result.add(new RangeIterator(epoch, (int) ((long) s * epoch.length / numShards),
+			                             (int) ((long) (s + 1) * epoch.length / numShards)));
+			}
+		return result;
+		}
+
+	/**
+	 * Shuffles a copy of the previous permutation, so that iterators over the previous epoch are unaffected.
+	 */
+	private synchronized int[] nextPermutation()
+		{
+		final int[] result = Arrays.copyOf(permutation, permutation.length);
+
+		// Fisher-Yates
+		for (int i = result.length - 1; i > 0; i--)
+			{
+			final int j = random.nextInt(i + 1);
+			final int tmp = result[i];
+			result[i] = result[j];
+			result[j] = tmp;
+			}
+		permutation = result;
+		return result;
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Iterates over a range of a permutation, claiming positions with a compare-and-set rather than a lock.
+	 */
+	private class RangeIterator implements BatchClusterableIterator<T>
+		{
+		private final int[] epoch;
+		private final AtomicInteger position;
+		private final int end;
+
+		private RangeIterator(final int[] epoch, final int start, final int end)
+			{
+			this.epoch = epoch;
+			position = new AtomicInteger(start);
+			this.end = end;
+			}
+
+		public T next() throws NoSuchElementException
+			{
+			final int i = claim(position, 1, end);
+			if (i == end)
+				{
+				throw new NoSuchElementException();
+				}
+			return samples.get(epoch[i]);
+			}
+
+		public T nextFullyLabelled()
+			{
+			final T result = next();
+			result.doneLabelling();
+			return result;
+			}
+
+		public int nextBatch(final List<? super T> buffer, final int max)
+			{
+			if (max <= 0)
+				{
+				return 0;
+				}
+			final int start = claim(position, max, end);
+			final int stop = (int) Math.min((long) start + max, end);
+			for (int i = start; i < stop; i++)
+				{
+				buffer.add(samples.get(epoch[i]));
+				}
+			return stop - start;
+			}
+		}
+	}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayKernels;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+
+/**
+ * A ClusterableDoubleArray that stores only its nonzero entries, as parallel arrays of strictly increasing indices and
+ * their values.  This suits inputs such as k-mer count profiles, which are mostly zeros: the memory used is
+ * proportional to the number of nonzeros rather than to the length of the vector.
+ * <p/>
+ * A sparse array can be used anywhere a ClusterableDoubleArray can.  Adding one into a dense array (e.g. into the
+ * centroid of an AdditiveCentroidCluster) touches only the stored entries, and EuclideanDistance and
+ * SquaredEuclideanDistance compare it with another vector in time proportional to the nonzeros (given the other's
+ * cached squared norm, if it is dense).  Other operations fall back on getArray(), which materializes a dense copy each
+ * time it is called.
+ * <p/>
+ * Modifying a sparse array in place (other than by multiplyBy) first converts it to the dense representation for good,
+ * since a vector being accumulated into, like a centroid, soon stops being sparse anyway.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class SparseClusterableArray extends ClusterableDoubleArray
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(SparseClusterableArray.class);
+
+	private final int length;
+
+	// both null once the array has been made dense
+	private int[] indices;
+	private double[] values;
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * Builds a sparse array holding the nonzero entries of the given dense array.
+	 *
+	 * @param id    the identifier of the new array
+	 * @param dense the values, which are copied
+	 * @return the new sparse array
+	 */
+	public static SparseClusterableArray fromDense(final String id, final double[] dense)
+		{
+		int nnz = 0;
+		for (final double d : dense)
+			{
+			if (d != 0)
+				{
+				nnz++;
+				}
+			}
+		final int[] indices = new int[nnz];
+		final double[] values = new double[nnz];
+		int k = 0;
+		for (int i = 0; i < dense.length; i++)
+			{
+			if (dense[i] != 0)
+				{
+				indices[k] = i;
+				values[k] = dense[i];
+				k++;
+				}
+			}
+		return new SparseClusterableArray(id, dense.length, indices, values);
+		}
+
+	/**
+	 * Computes the squared Euclidean distance between two arrays, either of which may be sparse, in time proportional to
+	 * the number of nonzeros of the sparse one(s).
+	 *
+	 * @return the squared distance, or NaN if neither array is currently sparse, in which case the caller should use a
+	 *         dense kernel
+	 */
+	public static double squaredEuclidean(final ClusterableDoubleArray a, final ClusterableDoubleArray b)
+		{
+		final boolean aSparse = a instanceof SparseClusterableArray && ((SparseClusterableArray) a).isSparse();
+		final boolean bSparse = b instanceof SparseClusterableArray && ((SparseClusterableArray) b).isSparse();
+		if (aSparse && bSparse)
+			{
+			final SparseClusterableArray sa = (SparseClusterableArray) a;
+			final SparseClusterableArray sb = (SparseClusterableArray) b;
+			checkLengths(sa, sb);
+			return DoubleArrayKernels.squaredEuclideanSparseSparse(sa.indices, sa.values, sa.indices.length, sb.indices,
+			                                                       sb.values, sb.indices.length);
+			}
+		else if (aSparse)
+			{
+			return ((SparseClusterableArray) a).squaredEuclideanToDense(b);
+			}
+		else if (bSparse)
+			{
+			return ((SparseClusterableArray) b).squaredEuclideanToDense(a);
+			}
+		return Double.NaN;
+		}
+
+	private static void checkLengths(final ClusterableDoubleArray a, final ClusterableDoubleArray b)
+		{
+		if (a.length() != b.length())
+			{
+			throw new ClusterRuntimeException(
+					"Can't compare arrays of different lengths: " + a.length() + " vs. " + b.length());
+			}
+		}
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * Constructs a sparse array from its nonzero entries.  As with ClusterableDoubleArray, the given arrays are used
+	 * directly, not copied.
+	 *
+	 * @param id      the identifier of the new array
+	 * @param length  the number of dimensions of the vector
+	 * @param indices the positions of the stored entries, strictly increasing and in the range [0, length)
+	 * @param values  the values at those positions
+	 */
+	public SparseClusterableArray(final String id, final int length, final int[] indices, final double[] values)
+		{
+		if (indices.length != values.length)
+			{
+			throw new ClusterRuntimeException(
+					"Sparse array has " + indices.length + " indices but " + values.length + " values");
+			}
+		int previous = -1;
+		for (final int i : indices)
+			{
+			if (i <= previous || i >= length)
+				{
+				throw new ClusterRuntimeException(
+						"Sparse array indices must be strictly increasing and less than " + length + "; found " + i
+						+ " after " + previous);
+				}
+			previous = i;
+			}
+
+		this.id = id;
+		this.length = length;
+		this.indices = indices;
+		this.values = values;
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	/**
+	 * @return true if this array still holds only its nonzero entries, false if it has been converted to a dense array
+	 */
+	public boolean isSparse()
+		{
+		return data == null;
+		}
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ClusterableDoubleArray clone()
+		{
+		if (isSparse())
+			{
+			return new SparseClusterableArray(id, length, indices.clone(), values.clone());
+			}
+		return super.clone();
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AdditiveClusterable ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void multiplyBy(final double scalar)
+		{
+		if (isSparse())
+			{
+			for (int k = 0; k < values.length; k++)
+				{
+				values[k] *= scalar;
+				}
+			dataChanged();
+			}
+		else
+			{
+			super.multiplyBy(scalar);
+			}
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ClusterableDoubleArray times(final double scalar)
+		{
+		if (isSparse())
+			{
+			final double[] scaled = new double[values.length];
+			for (int k = 0; k < values.length; k++)
+				{
+				scaled[k] = values[k] * scalar;
+				}
+			return new SparseClusterableArray(id + "*" + scalar, length, indices.clone(), scaled);
+			}
+		return super.times(scalar);
+		}
+
+// --------------------- Interface DoubleArrayContainer ---------------------
+
+	/**
+	 * Returns the dense array.  While this array is still sparse, that is a newly allocated copy each time, so changes
+	 * to it are not reflected here; prefer get(i), or the sparse-aware distance measures, in inner loops.
+	 */
+	@Override
+	public double[] getArray()
+		{
+		if (isSparse())
+			{
+			return materialize();
+			}
+		return data;
+		}
+
+	@Override
+	public double getArraySum()
+		{
+		if (isSparse())
+			{
+			if (dataSum == null)
+				{
+				double sum = 0;
+				for (final double v : values)
+					{
+					sum += v;
+					}
+				dataSum = sum;
+				}
+			return dataSum;
+			}
+		return super.getArraySum();
+		}
+
+	@Override
+	public double getSquaredNorm()
+		{
+		if (isSparse())
+			{
+			if (squaredNorm == null)
+				{
+				squaredNorm = DoubleArrayKernels.squaredNorm(values, 0, values.length);
+				}
+			return squaredNorm;
+			}
+		return super.getSquaredNorm();
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Override
+	protected void addWeightedInto(final double[] target, final double weight)
+		{
+		if (isSparse())
+			{
+			for (int k = 0; k < indices.length; k++)
+				{
+				target[indices[k]] += weight * values[k];
+				}
+			}
+		else
+			{
+			super.addWeightedInto(target, weight);
+			}
+		}
+
+	@Override
+	protected void ensureDense()
+		{
+		if (isSparse())
+			{
+			data = materialize();
+			indices = null;
+			values = null;
+			}
+		}
+
+	@Override
+	public double get(final int i)
+		{
+		if (isSparse())
+			{
+			final int k = Arrays.binarySearch(indices, i);
+			return k < 0 ? 0 : values[k];
+			}
+		return super.get(i);
+		}
+
+	/**
+	 * @return the number of stored entries while this array is sparse, or its length once it has been made dense
+	 */
+	public int getNumStored()
+		{
+		return isSparse() ? indices.length : length;
+		}
+
+	@Override
+	public int length()
+		{
+		return length;
+		}
+
+	private double[] materialize()
+		{
+		final double[] result = new double[length];
+		for (int k = 0; k < indices.length; k++)
+			{
+			result[indices[k]] = values[k];
+			}
+		return result;
+		}
+
+	private double squaredEuclideanToDense(final ClusterableDoubleArray dense)
+		{
+		checkLengths(this, dense);
+		return DoubleArrayKernels.squaredEuclideanSparseDense(indices, values, indices.length, getSquaredNorm(),
+		                                                      dense.getArray(), 0, dense.getSquaredNorm(), length);
+		}
+	}
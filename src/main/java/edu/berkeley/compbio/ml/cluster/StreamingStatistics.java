@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.trees.htpn.HierarchicalTypedPropertyNode;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+
+
+/**
+ * Summarizes a stream of values in bounded memory, for test runs too large to keep every per-sample value.
+ * <p/>
+ * Tracks the count, mean, standard deviation, minimum, and maximum exactly, and the quantiles approximately: each value
+ * is counted in a logarithmically sized bucket, so any reported quantile is within a fixed relative accuracy (1% by
+ * default) of a value actually observed at that rank.  At most MAX_BUCKETS buckets are kept for each sign; if the
+ * values span a wider range than that, the buckets nearest zero are merged, so only the smallest magnitudes lose
+ * accuracy.  Optionally, the values are also counted in a fixed-width histogram over a given range, binned as by a
+ * FixedWidthHistogram1D.
+ * <p/>
+ * Two instances with the same accuracy and histogram range may be merged, giving exactly the summary that a single
+ * instance would have given for both streams (up to floating-point rounding of the mean and variance).  Not thread-safe.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class StreamingStatistics
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(StreamingStatistics.class);
+
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+	private static final int MAX_BUCKETS = 4096;
+
+	private final double relativeAccuracy;
+	private final double logGamma;
+
+	private long count = 0;
+	private long nanCount = 0;
+	private double mean = 0;
+	private double sumSquaredDeviations = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	private long zeroCount = 0;
+	private final LogBuckets positive = new LogBuckets();
+	private final LogBuckets negative = new LogBuckets();
+
+	// optional fixed-width histogram
+	private final double histogramMin;
+	private final double histogramMax;
+	private final double binWidth;
+	@Nullable
+	private final long[] bins;
+	private long underflow = 0;
+	private long overflow = 0;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * Creates a summary without a fixed-width histogram, with the default quantile accuracy
+	 */
+	public StreamingStatistics()
+		{
+		this(DEFAULT_RELATIVE_ACCURACY);
+		}
+
+	/**
+	 * Creates a summary without a fixed-width histogram
+	 *
+	 * @param relativeAccuracy the maximum relative error of the reported quantiles, between 0 and 1 exclusive
+	 */
+	public StreamingStatistics(final double relativeAccuracy)
+		{
+		this(relativeAccuracy, 0, 0, 0);
+		}
+
+	/**
+	 * Creates a summary that also counts the values in a fixed-width histogram, with the default quantile accuracy.
+	 * Values outside [histogramMin, histogramMax) are counted as underflow or overflow.
+	 *
+	 * @param histogramMin the lower bound of the lowest bin
+	 * @param histogramMax the upper bound of the highest bin
+	 * @param binWidth     the width of each bin
+	 */
+	public StreamingStatistics(final double histogramMin, final double histogramMax, final double binWidth)
+		{
+		this(DEFAULT_RELATIVE_ACCURACY, histogramMin, histogramMax, binWidth);
+		}
+
+	private StreamingStatistics(final double relativeAccuracy, final double histogramMin, final double histogramMax,
+	                            final double binWidth)
+		{
+		if (!(relativeAccuracy > 0 && relativeAccuracy < 1))
+			{
+			throw new ClusterRuntimeException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+			}
+		this.relativeAccuracy = relativeAccuracy;
+		logGamma = Math.log((1 + relativeAccuracy) / (1 - relativeAccuracy));
+
+		this.histogramMin = histogramMin;
+		this.histogramMax = histogramMax;
+		this.binWidth = binWidth;
+		if (binWidth > 0)
+			{
+			if (!(histogramMax > histogramMin))
+				{
+				throw new ClusterRuntimeException(
+						"Histogram range is empty: [" + histogramMin + ", " + histogramMax + ")");
+				}
+			bins = new long[(int) Math.ceil((histogramMax - histogramMin) / binWidth)];
+			}
+		else
+			{
+			bins = null;
+			}
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	/**
+	 * @return the number of values added, not counting NaNs
+	 */
+	public long getCount()
+		{
+		return count;
+		}
+
+	public double getMax()
+		{
+		return count == 0 ? Double.NaN : max;
+		}
+
+	public double getMin()
+		{
+		return count == 0 ? Double.NaN : min;
+		}
+
+	public long getNaNCount()
+		{
+		return nanCount;
+		}
+
+	public double getRelativeAccuracy()
+		{
+		return relativeAccuracy;
+		}
+
+// ------------------------ CANONICAL METHODS ------------------------
+
+	@Override
+	public String toString()
+		{
+		return "StreamingStatistics{count=" + count + ", mean=" + getMean() + ", stdDev=" + getStdDev() + ", min="
+		       + getMin() + ", max=" + getMax() + "}";
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Adds a value to the summary.  NaNs are counted separately and otherwise ignored.
+	 */
+	public void add(final double x)
+		{
+		if (Double.isNaN(x))
+			{
+			nanCount++;
+			return;
+			}
+
+		count++;
+		final double delta = x - mean;
+		mean += delta / count;
+		sumSquaredDeviations += delta * (x - mean);
+		min = Math.min(min, x);
+		max = Math.max(max, x);
+
+		if (x > 0)
+			{
+			positive.add(keyFor(x), 1);
+			}
+		else if (x < 0)
+			{
+			negative.add(keyFor(-x), 1);
+			}
+		else
+			{
+			zeroCount++;
+			}
+
+		if (bins != null)
+			{
+			if (x < histogramMin)
+				{
+				underflow++;
+				}
+			else if (x >= histogramMax)
+				{
+				overflow++;
+				}
+			else
+				{
+				bins[Math.min(bins.length - 1, (int) ((x - histogramMin) / binWidth))]++;
+				}
+			}
+		}
+
+	/**
+	 * Adds every value summarized by the given statistics to these.
+	 *
+	 * @param from statistics with the same accuracy and histogram range as these; not modified
+	 */
+	public void addAll(final StreamingStatistics from)
+		{
+		if (from.relativeAccuracy != relativeAccuracy || from.histogramMin != histogramMin
+		    || from.histogramMax != histogramMax || from.binWidth != binWidth)
+			{
+			throw new ClusterRuntimeException("Can't merge statistics with different accuracies or histograms");
+			}
+
+		nanCount += from.nanCount;
+		if (from.count == 0)
+			{
+			return;
+			}
+
+		final long total = count + from.count;
+		final double delta = from.mean - mean;
+		sumSquaredDeviations +=
+				from.sumSquaredDeviations + delta * delta * ((double) count * (double) from.count / (double) total);
+		mean += delta * ((double) from.count / (double) total);
+		count = total;
+		min = Math.min(min, from.min);
+		max = Math.max(max, from.max);
+
+		zeroCount += from.zeroCount;
+		positive.addAll(from.positive);
+		negative.addAll(from.negative);
+
+		if (bins != null)
+			{
+			for (int i = 0; i < bins.length; i++)
+				{
+				bins[i] += from.bins[i];
+				}
+			underflow += from.underflow;
+			overflow += from.overflow;
+			}
+		}
+
+	/**
+	 * @return true if every value added (if any) was equal to x, as DSCollectionUtils.allElementsEqual would say of the
+	 *         list of values
+	 */
+	public boolean allEqual(final double x)
+		{
+		return nanCount == 0 && (count == 0 || (min == x && max == x));
+		}
+
+	/**
+	 * @return true if every value added (if any) was NaN, as DSCollectionUtils.allElementsNaN would say of the list of
+	 *         values
+	 */
+	public boolean allNaN()
+		{
+		return count == 0;
+		}
+
+	/**
+	 * @return the center of each bin of the fixed-width histogram, or null if there is none
+	 */
+	@Nullable
+	public double[] getBinCenters()
+		{
+		if (bins == null)
+			{
+			return null;
+			}
+		final double[] result = new double[bins.length];
+		for (int i = 0; i < bins.length; i++)
+			{
+			result[i] = histogramMin + (i + 0.5) * binWidth;
+			}
+		return result;
+		}
+
+	/**
+	 * @return the counts in each bin of the fixed-width histogram, or null if there is none
+	 */
+	@Nullable
+	public long[] getHistogramCounts()
+		{
+		return bins == null ? null : bins.clone();
+		}
+
+	public double getMean()
+		{
+		return count == 0 ? Double.NaN : mean;
+		}
+
+	/**
+	 * Returns an approximation of the value at the given quantile, within the relative accuracy of some value actually
+	 * observed at that rank.
+	 *
+	 * @param q the quantile, between 0 and 1 inclusive
+	 * @return the approximate value, or NaN if no values have been added
+	 */
+	public double getQuantile(final double q)
+		{
+		if (count == 0)
+			{
+			return Double.NaN;
+			}
+
+		final long rank = (long) Math.floor(q * (count - 1));
+
+		// walk from the most negative values up
+		long seen = 0;
+		for (int key = negative.maxKey(); key >= negative.minKey; key--)
+			{
+			seen += negative.count(key);
+			if (seen > rank)
+				{
+				return clamp(-valueFor(key));
+				}
+			}
+		seen += zeroCount;
+		if (seen > rank)
+			{
+			return 0;
+			}
+		for (int key = positive.minKey; key <= positive.maxKey(); key++)
+			{
+			seen += positive.count(key);
+			if (seen > rank)
+				{
+				return clamp(valueFor(key));
+				}
+			}
+		return max;
+		}
+
+	/**
+	 * @return the standard deviation of the values added (dividing by the count, not by one less), or NaN if there are
+	 *         none
+	 */
+	public double getStdDev()
+		{
+		return count == 0 ? Double.NaN : Math.sqrt(sumSquaredDeviations / count);
+		}
+
+	/**
+	 * Stores a summary of these statistics as children of the given results node, each named with the given prefix: the
+	 * count, mean, standard deviation, minimum, maximum, and 50th, 90th, 95th, and 99th percentiles, and the histogram
+	 * counts and bin centers if there is a histogram.
+	 */
+	public void putResults(final HierarchicalTypedPropertyNode<String, Serializable, ?> resultsNode,
+	                       final String name)
+		{
+		resultsNode.addChild(name + "Count", count);
+		resultsNode.addChild(name + "Mean", getMean());
+		resultsNode.addChild(name + "StdDev", getStdDev());
+		resultsNode.addChild(name + "Min", getMin());
+		resultsNode.addChild(name + "Max", getMax());
+		resultsNode.addChild(name + "50", getQuantile(0.50));
+		resultsNode.addChild(name + "90", getQuantile(0.90));
+		resultsNode.addChild(name + "95", getQuantile(0.95));
+		resultsNode.addChild(name + "99", getQuantile(0.99));
+		if (bins != null)
+			{
+			resultsNode.addChild(name + "Histogram", getHistogramCounts());
+			resultsNode.addChild(name + "HistogramBinCenters", getBinCenters());
+			}
+		}
+
+	private double clamp(final double x)
+		{
+		return Math.max(min, Math.min(max, x));
+		}
+
+	private int keyFor(final double magnitude)
+		{
+		// infinite magnitudes share the bucket of the largest finite one
+		return (int) Math.ceil(Math.log(Math.min(magnitude, Double.MAX_VALUE)) / logGamma);
+		}
+
+	private double valueFor(final int key)
+		{
+		// the midpoint of the bucket (gamma^(key-1), gamma^key], in the sense that minimizes the relative error
+		return 2 * Math.exp(key * logGamma) / (1 + Math.exp(logGamma));
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Counts in a contiguous range of at most MAX_BUCKETS keys, merging the lowest keys together as needed to stay within
+	 * that range
+	 */
+	private static final class LogBuckets
+		{
+		private long[] counts = new long[0];
+		private int minKey = 0;
+
+		private int maxKey()
+			{
+			return minKey + counts.length - 1;
+			}
+
+		private long count(final int key)
+			{
+			return counts[key - minKey];
+			}
+
+		private void add(final int key, final long n)
+			{
+			if (counts.length == 0)
+				{
+				counts = new long[1];
+				minKey = key;
+				}
+			else if (key < minKey)
+				{
+				// a key below the retained range goes into the lowest bucket if the range can't grow
+				final int newMinKey = Math.max(key, maxKey() - MAX_BUCKETS + 1);
+				if (newMinKey < minKey)
+					{
+					final long[] grown = new long[counts.length + (minKey - newMinKey)];
+					System.arraycopy(counts, 0, grown, minKey - newMinKey, counts.length);
+					counts = grown;
+					minKey = newMinKey;
+					}
+				counts[0] += n;
+				return;
+				}
+			else if (key > maxKey())
+				{
+				final int newMinKey = Math.max(minKey, key - MAX_BUCKETS + 1);
+				final long[] grown = new long[key - newMinKey + 1];
+				for (int i = 0; i < counts.length; i++)
+					{
+					grown[Math.max(0, minKey + i - newMinKey)] += counts[i];
+					}
+				counts = grown;
+				minKey = newMinKey;
+				}
+			counts[key - minKey] += n;
+			}
+
+		private void addAll(final LogBuckets from)
+			{
+			// add the highest keys first, so that the range is fixed before any lower keys are merged into it
+			for (int i = from.counts.length - 1; i >= 0; i--)
+				{
+				if (from.counts[i] != 0)
+					{
+					add(from.minKey + i, from.counts[i]);
+					}
+				}
+			}
+		}
+	}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * A counter that many threads may increment without contending, since each increments its own cell; the total is the
+ * sum of the cells.  The total is exact once the incrementing threads have been joined (e.g. by the end of a parallel
+ * loop), and otherwise approximate.
+ * <p/>
+ * The cells of threads that have died are folded into the total whenever a new thread first increments the counter, so
+ * the counter does not grow without bound when used from short-lived pools.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class StripedCounter
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(StripedCounter.class);
+
+	private final ThreadLocal<Cell> cell = new ThreadLocal<Cell>()
+	{
+	@Override
+	protected Cell initialValue()
+		{
+		return register();
+		}
+	};
+
+	private final List<Cell> cells = new ArrayList<Cell>();
+
+	// the counts of cells that have been discarded, guarded by cells
+	private long retired = 0;
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	public void add(final long n)
+		{
+		cell.get().value += n;
+		}
+
+	/**
+	 * @return the sum of the counts of all threads
+	 */
+	public long get()
+		{
+		synchronized (cells)
+			{
+			long result = retired;
+			for (final Cell c : cells)
+				{
+				result += c.value;
+				}
+			return result;
+			}
+		}
+
+	public void increment()
+		{
+		cell.get().value++;
+		}
+
+	private Cell register()
+		{
+		final Cell result = new Cell(Thread.currentThread());
+		synchronized (cells)
+			{
+			final Iterator<Cell> i = cells.iterator();
+			while (i.hasNext())
+				{
+				final Cell c = i.next();
+				if (!c.owner.isAlive())
+					{
+					retired += c.value;
+					i.remove();
+					}
+				}
+			cells.add(result);
+			}
+		return result;
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	private static final class Cell
+		{
+		private final Thread owner;
+		private volatile long value;
+
+		private Cell(final Thread owner)
+			{
+			this.owner = owner;
+			}
+		}
+	}
@@ -8,7 +8,6 @@
 package edu.berkeley.compbio.ml.cluster.bayesian;
 
 import com.davidsoergel.conja.Function;
-import com.davidsoergel.conja.Parallel;
 import com.davidsoergel.dsutils.GenericFactory;
 import com.davidsoergel.dsutils.GenericFactoryException;
 import com.davidsoergel.stats.DissimilarityMeasure;
@@ -107,7 +106,7 @@ public class BayesianClustering<T extends AdditiveClusterable<T>> extends Neares
 
 		final AtomicInteger i = new AtomicInteger(0);
 
-		Parallel.forEach(trainingIterator, new Function<T, Void>()
+		getExecutionPolicy().forEach(trainingIterator, getSampleBatchSize(), new Function<T, Void>()
 		{
 
 		public Void apply(@Nullable final T point)
@@ -13,11 +13,14 @@ import com.davidsoergel.stats.SimpleFunction;
 import com.google.common.collect.TreeMultimap;
 import edu.berkeley.compbio.ml.cluster.AdditiveClusterable;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
+import edu.berkeley.compbio.ml.cluster.CentroidDistances;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
 import edu.berkeley.compbio.ml.cluster.ClusteringTestResults;
+import edu.berkeley.compbio.ml.cluster.LabelWeights;
 import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Map;
 import java.util.Set;
@@ -70,6 +73,18 @@ public class KNNClustering<T extends AdditiveClusterable<T>>
 
 // -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Only the nearest maxNeighbors clusters are ever consulted for voting, so don't bother computing the rest exactly.
+	 */
+	@Override
+	protected TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> scoredClusterMoves(final T p)
+			throws NoGoodClusterException
+		{
+		return nearestClusterMoves(p, maxNeighbors);
+		}
+
 	/**
 	 * allow an overriding clustering method to tweak the distances, set vote weights, etc.
 	 *
@@ -189,7 +204,17 @@ public class KNNClustering<T extends AdditiveClusterable<T>>
 	  WeightedSet<String> predictedLabelWeights = predictLabelWeights(tr, frag);
 	  testAgainstPredictionLabels(intraLabelDistances, tr, populatedPredictLabelSets, frag, predictedLabelWeights);
 	  }*/
-	protected WeightedSet<String> predictLabelWeights(final ClusteringTestResults tr, final T frag)
+	protected LabelWeights predictLabelWeights(final ClusteringTestResults tr, final T frag)
+		{
+		return predictLabelWeights(tr, frag, null);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected LabelWeights predictLabelWeights(final ClusteringTestResults tr, final T frag,
+	                                           @Nullable final CentroidDistances<T, CentroidCluster<T>> distances)
 		//                    Set<String> populatedTrainingLabels)
 		{
 		//double secondToBestDistanceRatio = 0;
@@ -210,7 +235,8 @@ public class KNNClustering<T extends AdditiveClusterable<T>>
 		try
 			{
 			// make the prediction
-			final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> moves = scoredClusterMoves(frag);
+			final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> moves =
+					distances == null ? scoredClusterMoves(frag) : nearestClusterMoves(frag, maxNeighbors, distances);
 
 			// consider up to maxNeighbors neighbors.  If fewer neighbors than that passed the unknown threshold, so be it.
 			final VotingResults votingResults = addUpNeighborVotes(moves); //, populatedTrainingLabels);
@@ -302,6 +328,15 @@ public class KNNClustering<T extends AdditiveClusterable<T>>
 
 		tr.addClusterResult(bestWeightedDistance, secondToBestDistanceRatio, voteProportion, secondToBestVoteRatio);
 
-		return labelWeights;
+		return labelWeights == null ? null : LabelWeights.of(labelWeights, labelDictionary);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean acceptsPrecomputedDistances()
+		{
+		return true;
 		}
 	}
@@ -7,7 +7,6 @@
 package edu.berkeley.compbio.ml.cluster.bayesian;
 
 import com.davidsoergel.conja.Function;
-import com.davidsoergel.conja.Parallel;
 import com.davidsoergel.dsutils.collections.ConcurrentHashWeightedSet;
 import com.davidsoergel.dsutils.collections.MutableWeightedSet;
 import com.davidsoergel.dsutils.collections.WeightedSet;
@@ -18,22 +17,34 @@ import edu.berkeley.compbio.ml.cluster.AbstractSupervisedOnlineClusteringMethod;
 import edu.berkeley.compbio.ml.cluster.AdditiveClusterable;
 import edu.berkeley.compbio.ml.cluster.BasicCentroidCluster;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
+import edu.berkeley.compbio.ml.cluster.CentroidDistances;
+import edu.berkeley.compbio.ml.cluster.ClusterMaskCache;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
 import edu.berkeley.compbio.ml.cluster.ClusterRuntimeException;
 import edu.berkeley.compbio.ml.cluster.ClusterableIterator;
+import edu.berkeley.compbio.ml.cluster.ExecutionPolicy;
+import edu.berkeley.compbio.ml.cluster.LabelWeights;
+import edu.berkeley.compbio.ml.cluster.MappedModelSnapshot;
 import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
 import edu.berkeley.compbio.ml.cluster.PointClusterFilter;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
+import edu.berkeley.compbio.ml.cluster.QuantizedCentroidIndex;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import edu.berkeley.compbio.ml.distancemeasure.FloatEuclideanDistance;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Note we use CentroidClusters internally, but th e centroids are in fact just the training samples, not new
@@ -54,6 +65,10 @@ public abstract class MultiNeighborClustering<T extends AdditiveClusterable<T>>
 
 	protected final double unknownDistanceThreshold;
 
+	private boolean useQuantizedCentroids = false;
+	private volatile QuantizedCentroidIndex<T, CentroidCluster<T>> quantizedCentroids;
+	private volatile boolean quantizedCentroidsUnavailable = false;
+
 
 // --------------------------- CONSTRUCTORS ---------------------------
 
@@ -68,6 +83,30 @@ public abstract class MultiNeighborClustering<T extends AdditiveClusterable<T>>
 		this.unknownDistanceThreshold = unknownDistanceThreshold;
 		}
 
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public boolean isUseQuantizedCentroids()
+		{
+		return useQuantizedCentroids;
+		}
+
+	/**
+	 * Enables or disables narrowing the k-nearest-neighbor search with an 8-bit quantized copy of the training samples
+	 * (see {@link QuantizedCentroidIndex}), re-ranking the surviving candidates at full precision.  The neighbors found
+	 * are the same either way.  This takes effect only where the measure is EuclideanDistance or
+	 * FloatEuclideanDistance; otherwise every sample is compared at full precision anyway.
+	 *
+	 * @param useQuantizedCentroids whether to use a quantized first pass where possible
+	 */
+	public void setUseQuantizedCentroids(final boolean useQuantizedCentroids)
+		{
+		this.useQuantizedCentroids = useQuantizedCentroids;
+		synchronized (theClusters)
+			{
+			clustersChanged();
+			}
+		}
+
 // ------------------------ INTERFACE METHODS ------------------------
 
 
@@ -119,7 +158,7 @@ public abstract class MultiNeighborClustering<T extends AdditiveClusterable<T>>
 
 		final AtomicInteger i = new AtomicInteger(0);
 
-		Parallel.forEach(trainingIterator, new Function<T, Void>()
+		getExecutionPolicy().forEach(trainingIterator, getSampleBatchSize(), new Function<T, Void>()
 		{
 		public Void apply(@Nullable final T point)
 			{
@@ -148,6 +187,16 @@ public abstract class MultiNeighborClustering<T extends AdditiveClusterable<T>>
 
 // -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void restoreFrom(final MappedModelSnapshot snapshot)
+		{
+		restoreFlatClusters(snapshot);
+		preparePriors();
+		}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -189,16 +238,14 @@ public abstract class MultiNeighborClustering<T extends AdditiveClusterable<T>>
 			assert cm.bestDistance >= lastDistance;
 			lastDistance = cm.bestDistance;
 
-			final WeightedSet<String> labelsOnThisCluster = cm.bestCluster.getDerivedLabelProbabilities();
+			// the cluster stores its labels in compact form, so this avoids iterating a HashMap per neighbor per sample
+			final LabelWeights labelsOnThisCluster = cm.bestCluster.getDerivedLabelWeights(labelDictionary);
 
 			result.addVotes(labelsOnThisCluster, cm.voteWeight);
 
-			for (final Map.Entry<String, Double> entry : labelsOnThisCluster.getItemNormalizedMap().entrySet())
+			for (int i = 0; i < labelsOnThisCluster.size(); i++)
 				{
-				final String label = entry.getKey();
-				final Double labelProbability = entry.getValue();
-
-				result.addContribution(cm, label, labelProbability);
+				result.addContribution(cm, labelsOnThisCluster.getLabel(i), labelsOnThisCluster.getWeight(i));
 				}
 
 			neighborsCounted++;
@@ -229,64 +276,277 @@ public abstract class MultiNeighborClustering<T extends AdditiveClusterable<T>>
 	protected TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> scoredClusterMoves(final T p)
 			throws NoGoodClusterException
 		{
+		final PointClusterFilter<T> clusterFilter = getClusterFilter(p);
+		final List<CentroidCluster<T>> clusters = getClusters();
 		final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> result =
-				TreeMultimap.create(); //<Double, ClusterMove<T, CentroidCluster<T>>>();
+				scanClusters(p, clusters, clusterFilter, getProhibitedClusters(clusterFilter, clusters), 0);
+
+		//result = result.headMap(unknownDistanceThreshold);
 
+		if (result.isEmpty())
+			{
+			throw new NoGoodClusterException("No clusters passed the unknown threshold");
+			}
 
-		//ProgressReportingThreadPoolExecutor execService = new ProgressReportingThreadPoolExecutor();
+		return result;
+		}
 
-		PointClusterFilter<T> clusterFilter = prohibitionModel == null ? null : prohibitionModel.getFilter(p);
-		for (final CentroidCluster<T> cluster : getClusters())
+	/**
+	 * Returns the (up to) k nearest clusters that pass the unknown threshold, as a map from distance to cluster sorted by
+	 * distance.  The result is exactly the first k entries of scoredClusterMoves(p), but clusters that are already known to
+	 * be farther than the current k'th best are abandoned early where the measure allows it.
+	 * <p/>
+	 * This relies on makeClusterMove leaving bestDistance equal to the raw distance, so subclasses that transform the
+	 * distance there must not use it.
+	 *
+	 * @param p the point to classify
+	 * @param k the number of neighbors to keep
+	 * @return the k nearest cluster moves
+	 * @throws NoGoodClusterException if no cluster passes the unknown threshold
+	 */
+	protected TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> nearestClusterMoves(final T p, final int k)
+			throws NoGoodClusterException
+		{
+		final PointClusterFilter<T> clusterFilter = getClusterFilter(p);
+
+		// where possible, a quantized first pass rules out most clusters before any full-precision comparison
+		List<CentroidCluster<T>> candidates = getClusters();
+		BitSet prohibited = getProhibitedClusters(clusterFilter, candidates);
+		PointClusterFilter<T> candidateFilter = clusterFilter;
+		final QuantizedCentroidIndex<T, CentroidCluster<T>> quantized = getQuantizedCentroids();
+		final double[] query = quantized == null ? null : QuantizedCentroidIndex.valuesOf(p);
+		if (query != null && query.length == quantized.getDimensions())
 			{
-			if (clusterFilter != null && clusterFilter.isProhibited(cluster))
+			// the candidates are all permitted already
+			candidates = quantized.candidates(query, k, unknownDistanceThreshold, clusterFilter);
+			prohibited = null;
+			candidateFilter = null;
+			}
+
+		final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> result =
+				scanClusters(p, candidates, candidateFilter, prohibited, k);
+
+		if (result.isEmpty())
+			{
+			throw new NoGoodClusterException("No clusters passed the unknown threshold");
+			}
+
+		return result;
+		}
+
+	/**
+	 * As nearestClusterMoves(p, k), but taking the distances from the given precomputed ones where available.
+	 *
+	 * @param p         the point to classify
+	 * @param k         the number of neighbors to keep
+	 * @param distances the distances from p to the rows of a DenseCentroidMatrix of the clusters, or null to compute them
+	 * @return the k nearest cluster moves
+	 * @throws NoGoodClusterException if no cluster passes the unknown threshold
+	 */
+	protected TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> nearestClusterMoves(final T p, final int k,
+	                                                                                   @Nullable
+	                                                                                   final CentroidDistances<T, CentroidCluster<T>> distances)
+			throws NoGoodClusterException
+		{
+		if (distances == null)
+			{
+			return nearestClusterMoves(p, k);
+			}
+
+		final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> result = TreeMultimap.create();
+
+		final PointClusterFilter<T> clusterFilter = getClusterFilter(p);
+
+		final int rows = distances.getNumRows();
+		final BitSet prohibited = distances.getProhibitedRows(clusterFilter);
+		for (int row = ClusterMaskCache.nextPermitted(prohibited, 0); row < rows;
+		     row = ClusterMaskCache.nextPermitted(prohibited, row + 1))
+			{
+			final CentroidCluster<T> cluster = distances.getCluster(row);
+			if (prohibited == null && clusterFilter != null && clusterFilter.isProhibited(cluster))
 				{
-				// ignore this cluster
+				continue;
 				}
-			else
-				{
-				//	execService.submit(new Runnable()
-				//	{
-				//	public void run()
-				//		{
-				// Note that different distance measures may need to deal with the priors differently:
-				// if it's probability, multiply; if log probability, add; for other distance types, who knows?
-				// so, just pass the priors in and let the distance measure decide what to do with them
+			keepNearest(result, makeClusterMove(cluster, distances.get(row)), k);
+			}
+
+		if (result.isEmpty())
+			{
+			throw new NoGoodClusterException("No clusters passed the unknown threshold");
+			}
 
-				final double distance;
+		return result;
+		}
 
-				if (measure instanceof ProbabilisticDissimilarityMeasure)
-					{
-					distance = ((ProbabilisticDissimilarityMeasure) measure)
-							.distanceFromTo(p, cluster.getCentroid(), clusterPriors.get(cluster));
-					}
-				else
+	/**
+	 * Scans the given clusters for those that pass the unknown threshold, in partitions in parallel if a partitioned scan
+	 * is configured and there are enough clusters (see setPartitionedScan()).
+	 *
+	 * @param k the number of nearest neighbors to keep, or 0 to keep them all
+	 */
+	private TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> scanClusters(final T p,
+	                                                                          final List<CentroidCluster<T>> clusters,
+	                                                                          @Nullable
+	                                                                          final PointClusterFilter<T> clusterFilter,
+	                                                                          @Nullable final BitSet prohibited,
+	                                                                          final int k)
+		{
+		final int numClusters = clusters.size();
+		final ExecutionPolicy scanPolicy = getScanPolicy();
+		final int partitionSize = getScanPartitionSize();
+		if (scanPolicy == null || numClusters <= partitionSize)
+			{
+			final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> result = TreeMultimap.create();
+			scanClusterRange(p, clusters, clusterFilter, prohibited, 0, numClusters, k, result);
+			return result;
+			}
+
+		final int numPartitions = (numClusters + partitionSize - 1) / partitionSize;
+		final AtomicReferenceArray<TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>>> partials =
+				new AtomicReferenceArray<TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>>>(numPartitions);
+		final List<Integer> partitions = new ArrayList<Integer>(numPartitions);
+		for (int i = 0; i < numPartitions; i++)
+			{
+			partitions.add(i);
+			}
+		scanPolicy.forEach(partitions, new Function<Integer, Void>()
+		{
+		public Void apply(@Nullable final Integer i)
+			{
+			final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> partial = TreeMultimap.create();
+			final int from = i * partitionSize;
+			scanClusterRange(p, clusters, clusterFilter, prohibited, from, Math.min(from + partitionSize, numClusters), k,
+			                 partial);
+			partials.set(i, partial);
+			return null;
+			}
+		});
+
+		// the k nearest overall are among the k nearest of each partition
+		final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> result = TreeMultimap.create();
+		for (int i = 0; i < numPartitions; i++)
+			{
+			if (k > 0)
+				{
+				for (final ClusterMove<T, CentroidCluster<T>> cm : partials.get(i).values())
 					{
-					distance = measure.distanceFromTo(p, cluster.getCentroid());
+					keepNearest(result, cm, k);
 					}
+				}
+			else
+				{
+				result.putAll(partials.get(i));
+				}
+			}
+		return result;
+		}
 
-				final ClusterMove<T, CentroidCluster<T>> cm = makeClusterMove(cluster, distance);
-
-				// ignore the secondBestDistance, we don't need it here
+	private void scanClusterRange(final T p, final List<CentroidCluster<T>> clusters,
+	                              @Nullable final PointClusterFilter<T> clusterFilter, @Nullable final BitSet prohibited,
+	                              final int from, final int to, final int k,
+	                              final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> result)
+		{
+		for (int i = ClusterMaskCache.nextPermitted(prohibited, from); i < to;
+		     i = ClusterMaskCache.nextPermitted(prohibited, i + 1))
+			{
+			final CentroidCluster<T> cluster = clusters.get(i);
+			if (prohibited == null && clusterFilter != null && clusterFilter.isProhibited(cluster))
+				{
+				continue;
+				}
 
-				//** note we usually want this not to kick in so we can plot vs. the threshold in Jandy
-				if (cm.bestDistance < unknownDistanceThreshold)
+			// Note that different distance measures may need to deal with the priors differently:
+			// if it's probability, multiply; if log probability, add; for other distance types, who knows?
+			// so, just pass the priors in and let the distance measure decide what to do with them
+			final double distance;
+			if (measure instanceof ProbabilisticDissimilarityMeasure)
+				{
+				distance = probabilisticDistanceToCentroid(p, cluster, clusterPriors.get(cluster));
+				}
+			else if (k > 0)
+				{
+				// anything beyond the current k'th neighbor, or beyond the threshold, won't be kept anyway
+				double upperBound = unknownDistanceThreshold;
+				if (result.size() >= k)
 					{
-					result.put(cm.bestDistance, cm);
+					upperBound = Math.min(upperBound, result.keySet().last());
 					}
-				//	}
-				//	});
+				distance = distanceToCentroid(p, cluster, upperBound);
+				}
+			else
+				{
+				distance = distanceToCentroid(p, cluster, Double.POSITIVE_INFINITY);
+				}
+
+			final ClusterMove<T, CentroidCluster<T>> cm = makeClusterMove(cluster, distance);
+			if (k > 0)
+				{
+				keepNearest(result, cm, k);
+				}
+			//** note we usually want this not to kick in so we can plot vs. the threshold in Jandy
+			else if (cm.bestDistance < unknownDistanceThreshold)
+				{
+				// ignore the secondBestDistance, we don't need it here
+				result.put(cm.bestDistance, cm);
 				}
 			}
+		}
 
-		//	execService.finish("Tested sample against %d clusters", 30);
+	private void keepNearest(final TreeMultimap<Double, ClusterMove<T, CentroidCluster<T>>> result,
+	                         final ClusterMove<T, CentroidCluster<T>> cm, final int k)
+		{
+		if (cm.bestDistance < unknownDistanceThreshold)
+			{
+			result.put(cm.bestDistance, cm);
+			if (result.size() > k)
+				{
+				// ties at the k'th distance are broken by cluster id, just as in the full sorted map
+				final Double lastDistance = result.keySet().last();
+				result.remove(lastDistance, result.get(lastDistance).last());
+				}
+			}
+		}
 
-		//result = result.headMap(unknownDistanceThreshold);
+	/**
+	 * Discards the quantized centroids along with any other derived indexes, so that they are rebuilt on next use.
+	 */
+	@Override
+	protected void clustersChanged()
+		{
+		super.clustersChanged();
+		quantizedCentroids = null;
+		quantizedCentroidsUnavailable = false;
+		}
 
-		if (result.isEmpty())
+	/**
+	 * Returns the quantized copy of the training samples with which to narrow the neighbor search, building it first if
+	 * necessary.
+	 *
+	 * @return the quantized centroids, or null if they are disabled or not applicable to this measure or set of clusters
+	 */
+	@Nullable
+	protected QuantizedCentroidIndex<T, CentroidCluster<T>> getQuantizedCentroids()
+		{
+		if (!useQuantizedCentroids || quantizedCentroidsUnavailable
+		    || !(measure instanceof EuclideanDistance || measure instanceof FloatEuclideanDistance))
 			{
-			throw new NoGoodClusterException("No clusters passed the unknown threshold");
+			return null;
 			}
 
+		QuantizedCentroidIndex<T, CentroidCluster<T>> result = quantizedCentroids;
+		if (result == null)
+			{
+			synchronized (theClusters)
+				{
+				result = quantizedCentroids;
+				if (result == null && !quantizedCentroidsUnavailable)
+					{
+					result = QuantizedCentroidIndex.build(theClusters);
+					quantizedCentroids = result;
+					quantizedCentroidsUnavailable = result == null;
+					}
+				}
+			}
 		return result;
 		}
 
@@ -360,6 +620,20 @@ public abstract class MultiNeighborClustering<T extends AdditiveClusterable<T>>
 			labelVotes.addAll(labelsOnThisCluster, multiplier);
 			}
 
+		/**
+		 * As addVotes(WeightedSet, double), for labels in compact form
+		 */
+		public void addVotes(final LabelWeights labelsOnThisCluster, final double multiplier)
+			{
+			final int itemCount = labelsOnThisCluster.getItemCount();
+			for (int i = 0; i < labelsOnThisCluster.size(); i++)
+				{
+				labelVotes.add(labelsOnThisCluster.getLabel(i), labelsOnThisCluster.getWeight(i) * itemCount * multiplier,
+				               0);
+				}
+			labelVotes.incrementItemCount(itemCount);
+			}
+
 		/*public WeightedSet<ClusterMove<T, CentroidCluster<T>>> getContributions(String label)
 			{
 			return labelContributions.get(label);
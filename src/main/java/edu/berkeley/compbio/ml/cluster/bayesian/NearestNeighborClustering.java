@@ -7,22 +7,32 @@
 package edu.berkeley.compbio.ml.cluster.bayesian;
 
 import com.davidsoergel.stats.DissimilarityMeasure;
+import com.davidsoergel.stats.DoubleArrayContainer;
 import com.davidsoergel.stats.ProbabilisticDissimilarityMeasure;
 import edu.berkeley.compbio.ml.cluster.AbstractSupervisedOnlineClusteringMethod;
 import edu.berkeley.compbio.ml.cluster.AdditiveClusterable;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
 import edu.berkeley.compbio.ml.cluster.CentroidClusteringUtils;
+import edu.berkeley.compbio.ml.cluster.CentroidDistances;
+import edu.berkeley.compbio.ml.cluster.ClusterMaskCache;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
 import edu.berkeley.compbio.ml.cluster.ClusterableIterator;
+import edu.berkeley.compbio.ml.cluster.DenseCentroidMatrix;
+import edu.berkeley.compbio.ml.cluster.FrozenCentroidClassifier;
+import edu.berkeley.compbio.ml.cluster.MappedModelSnapshot;
 import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
 import edu.berkeley.compbio.ml.cluster.PointClusterFilter;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
 import edu.berkeley.compbio.ml.cluster.PrototypeBasedCentroidClusteringMethod;
 import edu.berkeley.compbio.ml.distancemeasure.DistanceMeasureRuntimeException;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayDissimilarityMeasure;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -75,7 +85,8 @@ public abstract class NearestNeighborClustering<T extends AdditiveClusterable<T>
 */
 	public void computeClusterStdDevs(final ClusterableIterator<T> theDataPointProvider)
 		{
-		CentroidClusteringUtils.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider);
+		countDistanceEvaluations(CentroidClusteringUtils
+				.computeClusterStdDevs(getClusters(), measure, getDistanceMemo(), getAssignments(), theDataPointProvider));
 		}
 
 	@Override
@@ -115,12 +126,45 @@ public abstract class NearestNeighborClustering<T extends AdditiveClusterable<T>
 
 // -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * Compiles the current clusters into an immutable classifier that can be shared among threads.
+	 *
+	 * @return a classifier choosing the nearest centroid, within the unknown distance threshold, as bestClusterMove() does
+	 * @throws edu.berkeley.compbio.ml.cluster.ClusterRuntimeException
+	 *          if the centroids are not double arrays or the distance measure can't be evaluated on them directly
+	 */
+	public FrozenCentroidClassifier freeze()
+		{
+		return FrozenCentroidClassifier.compile(getClusters(), measure, unknownDistanceThreshold, true);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void restoreFrom(final MappedModelSnapshot snapshot)
+		{
+		restoreFlatClusters(snapshot);
+		preparePriors();
+		}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public ClusterMove<T, CentroidCluster<T>> bestClusterMove(final T p) throws NoGoodClusterException
 		{
+		return bestClusterMove(p, null);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ClusterMove<T, CentroidCluster<T>> bestClusterMove(final T p,
+	                                                             @Nullable final CentroidDistances<T, CentroidCluster<T>> distances)
+			throws NoGoodClusterException
+		{
 		final ClusterMove result = new ClusterMove();
 
 		result.secondBestDistance = Double.POSITIVE_INFINITY;
@@ -141,52 +185,70 @@ public abstract class NearestNeighborClustering<T extends AdditiveClusterable<T>
 		   }*/
 
 
-		PointClusterFilter<T> clusterFilter = prohibitionModel == null ? null : prohibitionModel.getFilter(p);
+		final PointClusterFilter<T> clusterFilter = getClusterFilter(p);
 
-		for (final CentroidCluster<T> cluster : getClusters())
+		final DenseCentroidMatrix<T, CentroidCluster<T>> dense = distances == null ? getDenseCentroidsFor(p) : null;
+		if (distances != null)
 			{
-			if (clusterFilter != null && clusterFilter.isProhibited(cluster))
-				//if (disallowedLabels != null && disallowedLabels
-				//		.containsAny(cluster.getWeightedLabels())) //.getDominantKeyInSet(leaveOneOutLabels)))
-				{
-				// ignore this cluster
-				}
-			else
+			distances.scan(clusterFilter, true, result);
+			}
+		else if (dense != null)
+			{
+			dense.scan(((DoubleArrayContainer) p).getArray(), (DoubleArrayDissimilarityMeasure) measure, clusterFilter,
+			           true, result, getScanPolicy(), getScanPartitionSize());
+			countDistanceEvaluations(dense.getNumRows());
+			}
+		else
+			{
+			final List<CentroidCluster<T>> clusters = getClusters();
+			final BitSet prohibited = getProhibitedClusters(clusterFilter, clusters);
+			final int numClusters = clusters.size();
+			for (int i = ClusterMaskCache.nextPermitted(prohibited, 0); i < numClusters;
+			     i = ClusterMaskCache.nextPermitted(prohibited, i + 1))
 				{
-				try
+				final CentroidCluster<T> cluster = clusters.get(i);
+				if (prohibited == null && clusterFilter != null && clusterFilter.isProhibited(cluster))
+					//if (disallowedLabels != null && disallowedLabels
+					//		.containsAny(cluster.getWeightedLabels())) //.getDominantKeyInSet(leaveOneOutLabels)))
 					{
-					// Note that different distance measures may need to deal with the priors differently:
-					// if it's probability, multiply; if log probability, add; for other distance types, who knows?
-					// so, just pass the priors in and let the distance measure decide what to do with them
-					final double distance;
-					if (measure instanceof ProbabilisticDissimilarityMeasure)
-						{
-						distance = ((ProbabilisticDissimilarityMeasure) measure)
-								.distanceFromTo(p, cluster.getCentroid(), clusterPriors.get(cluster));
-						}
-					else
+					// ignore this cluster
+					}
+				else
+					{
+					try
 						{
-						distance = measure.distanceFromTo(p, cluster.getCentroid());
-						}
+						// Note that different distance measures may need to deal with the priors differently:
+						// if it's probability, multiply; if log probability, add; for other distance types, who knows?
+						// so, just pass the priors in and let the distance measure decide what to do with them
+						final double distance;
+						if (measure instanceof ProbabilisticDissimilarityMeasure)
+							{
+							distance = probabilisticDistanceToCentroid(p, cluster, clusterPriors.get(cluster));
+							}
+						else
+							{
+							distance = distanceToCentroid(p, cluster, result.pruningBound());
+							}
 
-					if (distance <= result.bestDistance)
-						{
-						result.secondBestDistance = result.bestDistance;
-						result.bestDistance = distance;
-						result.bestCluster = cluster;
+						if (distance <= result.bestDistance)
+							{
+							result.secondBestDistance = result.bestDistance;
+							result.bestDistance = distance;
+							result.bestCluster = cluster;
+							}
+						else if (distance <= result.secondBestDistance)
+							{
+							result.secondBestDistance = distance;
+							}
 						}
-					else if (distance <= result.secondBestDistance)
+					catch (DistanceMeasureRuntimeException e)
 						{
-						result.secondBestDistance = distance;
+						// unable to compute a distance between the point and this cluster, for some reason.
+						// Too bad, just ignore this cluster and see if we can assign to another one instead.
+						// If the fault lies with the point, we'll end up with bestCluster == null
+						logger.debug("Ignoring cluster " + cluster.getId() + "; couldn't compute distance");
 						}
 					}
-				catch (DistanceMeasureRuntimeException e)
-					{
-					// unable to compute a distance between the point and this cluster, for some reason.
-					// Too bad, just ignore this cluster and see if we can assign to another one instead.
-					// If the fault lies with the point, we'll end up with bestCluster == null
-					logger.debug("Ignoring cluster " + cluster.getId() + "; couldn't compute distance");
-					}
 				}
 			}
 
@@ -202,4 +264,13 @@ public abstract class NearestNeighborClustering<T extends AdditiveClusterable<T>
 			}
 		return result;
 		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean acceptsPrecomputedDistances()
+		{
+		return true;
+		}
 	}
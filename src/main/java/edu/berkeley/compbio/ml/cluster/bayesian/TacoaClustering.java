@@ -20,6 +20,7 @@ import edu.berkeley.compbio.ml.cluster.Cluster;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
 import edu.berkeley.compbio.ml.cluster.ClusterRuntimeException;
 import edu.berkeley.compbio.ml.cluster.ClusteringTestResults;
+import edu.berkeley.compbio.ml.cluster.LabelWeights;
 import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
 import org.apache.log4j.Logger;
@@ -183,8 +184,8 @@ public class TacoaClustering<T extends AdditiveClusterable<T>> extends MultiNeig
 		return cm;
 		}
 
-	protected WeightedSet<String> predictLabelWeights(final ClusteringTestResults tr,
-	                                                  final T frag) //, Set<String> populatedTrainingLabels)
+	protected LabelWeights predictLabelWeights(final ClusteringTestResults tr,
+	                                           final T frag) //, Set<String> populatedTrainingLabels)
 		{
 		//double secondToBestDistanceRatio = 0;
 
@@ -258,7 +259,7 @@ public class TacoaClustering<T extends AdditiveClusterable<T>> extends MultiNeig
 		final double secondToBestDistanceRatio = 1.0 / secondToBestVoteRatio;
 		tr.addClusterResult(bestDistance, secondToBestDistanceRatio, voteProportion, secondToBestVoteRatio);
 
-		return labelWeights;
+		return labelWeights == null ? null : LabelWeights.of(labelWeights, labelDictionary);
 		}
 
 
@@ -10,16 +10,26 @@ import com.davidsoergel.dsutils.collections.IndexedSymmetric2dBiMapWithDefault;
 import com.davidsoergel.dsutils.collections.OrderedPair;
 import com.davidsoergel.dsutils.collections.UnorderedPair;
 import com.davidsoergel.stats.DissimilarityMeasure;
+import com.davidsoergel.stats.DoubleArrayContainer;
+import edu.berkeley.compbio.ml.cluster.AssignmentStore;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
+import edu.berkeley.compbio.ml.cluster.ClusterMaskCache;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
+import edu.berkeley.compbio.ml.cluster.ClusterRuntimeException;
 import edu.berkeley.compbio.ml.cluster.Clusterable;
+import edu.berkeley.compbio.ml.cluster.DenseCentroidMatrix;
+import edu.berkeley.compbio.ml.cluster.MappedModelSnapshot;
+import edu.berkeley.compbio.ml.cluster.ModelSnapshotWriter;
 import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
 import edu.berkeley.compbio.ml.cluster.PointClusterFilter;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayDissimilarityMeasure;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -83,7 +93,7 @@ public class BatchAgglomerativeClusteringMethod<T extends Clusterable<T>> extend
 	                                          final Map<String, Set<String>> predictLabelSets,
 	                                          final ProhibitionModel<T> prohibitionModel, final Set<String> testLabels,
 	                                          final ArrayList<HierarchicalCentroidCluster<T>> theClusters,
-	                                          final Map<String, HierarchicalCentroidCluster<T>> assignments,
+	                                          final AssignmentStore<HierarchicalCentroidCluster<T>> assignments,
 	                                          final int n, Agglomerator agg,
 	                                          IndexedSymmetric2dBiMapWithDefault<HierarchicalCentroidCluster<T>, Float> theActiveNodeDistanceMatrix)
 		{
@@ -120,6 +130,10 @@ public class BatchAgglomerativeClusteringMethod<T extends Clusterable<T>> extend
 	 */
 	public synchronized void train()  // aka performClustering
 		{
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
+		int merges = 0;
+
 		setN(theActiveNodeDistanceMatrix.numKeys());
 
 		// ** sanity checks
@@ -160,6 +174,8 @@ public class BatchAgglomerativeClusteringMethod<T extends Clusterable<T>> extend
 			assert a.getWeight() != null;
 			assert b.getWeight() != null;
 
+			// the agglomerator derives the distance from the composite to every other node from the matrix
+			countDistanceEvaluations(theActiveNodeDistanceMatrix.numKeys() - 2);
 			final HierarchicalCentroidCluster<T> composite =
 					agglomerator.joinNodes(nextId.getAndIncrement(), a, b, theActiveNodeDistanceMatrix);
 
@@ -173,6 +189,7 @@ public class BatchAgglomerativeClusteringMethod<T extends Clusterable<T>> extend
 
 			addCluster(composite);
 			theRoot = composite;  // this may actually be true on the last iteration
+			merges++;
 
 			assert composite.getParent() == null;
 			assert !composite.getChildren().isEmpty();
@@ -209,7 +226,12 @@ public class BatchAgglomerativeClusteringMethod<T extends Clusterable<T>> extend
 		theRoot = remainingKeys.iterator().next();
 		}
 
+		getMetricsListener().mergesCompleted(merges, getDistanceEvaluations() - startDistanceEvaluations,
+		                                     System.nanoTime() - startNanos);
+
+		final long phaseStart = System.nanoTime();
 		normalizeClusterLabelProbabilities();
+		phaseCompleted("normalizeClusterLabelProbabilities", phaseStart);
 		}
 
 
@@ -274,21 +296,40 @@ public class BatchAgglomerativeClusteringMethod<T extends Clusterable<T>> extend
 			}
 			*/
 
-		PointClusterFilter<T> clusterFilter = prohibitionModel == null ? null : prohibitionModel.getFilter(p);
+		final PointClusterFilter<T> clusterFilter = getClusterFilter(p);
 
-		for (final CentroidCluster<T> theCluster : getClusters())
+		final DenseCentroidMatrix<T, HierarchicalCentroidCluster<T>> dense = getDenseCentroidsFor(p);
+		if (dense != null)
 			{
-			if (clusterFilter != null && clusterFilter.isProhibited(theCluster))
-				{
-				// ignore this cluster
-				}
-			else
+			dense.scan(((DoubleArrayContainer) p).getArray(), (DoubleArrayDissimilarityMeasure) measure, clusterFilter,
+			           false, result, getScanPolicy(), getScanPartitionSize());
+			countDistanceEvaluations(dense.getNumRows());
+
+			// this method has never reported a second-best distance, so don't start now
+			result.secondBestDistance = 0;
+			}
+		else
+			{
+			final List<HierarchicalCentroidCluster<T>> clusters = getClusters();
+			final BitSet prohibited = getProhibitedClusters(clusterFilter, clusters);
+			final int numClusters = clusters.size();
+			for (int i = ClusterMaskCache.nextPermitted(prohibited, 0); i < numClusters;
+			     i = ClusterMaskCache.nextPermitted(prohibited, i + 1))
 				{
-				final double distance = measure.distanceFromTo(p, theCluster.getCentroid());
-				if (distance < result.bestDistance)
+				final CentroidCluster<T> theCluster = clusters.get(i);
+				if (prohibited == null && clusterFilter != null && clusterFilter.isProhibited(theCluster))
+					{
+					// ignore this cluster
+					}
+				else
 					{
-					result.bestCluster = theCluster;
-					result.bestDistance = distance;
+					final double distance = measure.distanceFromTo(p, theCluster.getCentroid());
+					countDistanceEvaluations(1);
+					if (distance < result.bestDistance)
+						{
+						result.bestCluster = theCluster;
+						result.bestDistance = distance;
+						}
 					}
 				}
 			}
@@ -306,4 +347,20 @@ public class BatchAgglomerativeClusteringMethod<T extends Clusterable<T>> extend
 		{
 		return theRoot;
 		}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The whole tree is rebuilt from the snapshot, but the centroids of its nodes are loaded only on first use.
+	 */
+	@Override
+	public void restoreFrom(final MappedModelSnapshot snapshot)
+		{
+		if (snapshot.getKind() != ModelSnapshotWriter.KIND_TREE)
+			{
+			throw new ClusterRuntimeException("Expected a snapshot of a tree");
+			}
+		restoreClusters((List) snapshot.getListedTreeNodes());
+		theRoot = (HierarchicalCentroidCluster<T>) (HierarchicalCentroidCluster) snapshot.getTree();
+		}
 	}
@@ -8,6 +8,7 @@ package edu.berkeley.compbio.ml.cluster.hierarchical;
 
 import com.davidsoergel.stats.DissimilarityMeasure;
 import edu.berkeley.compbio.ml.cluster.AbstractClusteringMethod;
+import edu.berkeley.compbio.ml.cluster.AssignmentStore;
 import edu.berkeley.compbio.ml.cluster.CentroidClusteringMethod;
 import edu.berkeley.compbio.ml.cluster.CentroidClusteringUtils;
 import edu.berkeley.compbio.ml.cluster.Clusterable;
@@ -56,7 +57,7 @@ public abstract class BatchHierarchicalClusteringMethod<T extends Clusterable<T>
 	                                         final Map<String, Set<String>> predictLabelSets,
 	                                         final ProhibitionModel<T> tProhibitionModel, final Set<String> testLabels,
 	                                         final ArrayList<HierarchicalCentroidCluster<T>> theClusters,
-	                                         final Map<String, HierarchicalCentroidCluster<T>> assignments, final int n)
+	                                         final AssignmentStore<HierarchicalCentroidCluster<T>> assignments, final int n)
 		{
 		super(dm, potentialTrainingBins, predictLabelSets, tProhibitionModel, testLabels, theClusters, assignments, n);
 		}
@@ -75,7 +76,8 @@ public abstract class BatchHierarchicalClusteringMethod<T extends Clusterable<T>
 
 	public void computeClusterStdDevs(final ClusterableIterator<T> theDataPointProvider)
 		{
-		CentroidClusteringUtils.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider);
+		countDistanceEvaluations(CentroidClusteringUtils
+				.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider));
 		}
 
 	@Override
@@ -18,6 +18,8 @@ import edu.berkeley.compbio.ml.cluster.BatchCluster;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
 import edu.berkeley.compbio.ml.cluster.Cluster;
 import edu.berkeley.compbio.ml.cluster.Clusterable;
+import edu.berkeley.compbio.ml.cluster.LabelDictionary;
+import edu.berkeley.compbio.ml.cluster.LabelWeights;
 import org.apache.commons.lang.NotImplementedException;
 import org.jetbrains.annotations.NotNull;
 
@@ -190,6 +192,22 @@ public class HierarchicalCentroidCluster<T extends Clusterable<T>> extends Basic
 //		throw new NotImplementedException();
 		}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public LabelWeights getDerivedLabelWeights(final LabelDictionary dictionary)
+		{
+		return getPayload().getDerivedLabelWeights(dictionary);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setLabelDictionary(final LabelDictionary dictionary)
+		{
+		getPayload().setLabelDictionary(dictionary);
+		}
+
 	/**
 	 * {@inheritDoc}
 	 */
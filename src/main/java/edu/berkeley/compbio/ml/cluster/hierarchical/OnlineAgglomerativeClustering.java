@@ -7,21 +7,26 @@
 package edu.berkeley.compbio.ml.cluster.hierarchical;
 
 import com.davidsoergel.conja.Function;
-import com.davidsoergel.conja.Parallel;
 import com.davidsoergel.dsutils.collections.IndexedSymmetric2dBiMapWithDefault;
 import com.davidsoergel.stats.DissimilarityMeasure;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
+import edu.berkeley.compbio.ml.cluster.ClusterMaskCache;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
+import edu.berkeley.compbio.ml.cluster.ClusterRuntimeException;
 import edu.berkeley.compbio.ml.cluster.Clusterable;
 import edu.berkeley.compbio.ml.cluster.ClusterableIterator;
+import edu.berkeley.compbio.ml.cluster.MappedModelSnapshot;
+import edu.berkeley.compbio.ml.cluster.ModelSnapshotWriter;
 import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
 import edu.berkeley.compbio.ml.cluster.PointClusterFilter;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
 import org.apache.log4j.Logger;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -87,17 +92,23 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 		return result;
 		}
 
-	PointClusterFilter<T> clusterFilter = prohibitionModel == null ? null : prohibitionModel.getFilter(p);
+	final PointClusterFilter<T> clusterFilter = getClusterFilter(p);
 
-	for (final CentroidCluster<T> theCluster : getClusters())
+	final List<HierarchicalCentroidCluster<T>> clusters = getClusters();
+	final BitSet prohibited = getProhibitedClusters(clusterFilter, clusters);
+	final int numClusters = clusters.size();
+	for (int i = ClusterMaskCache.nextPermitted(prohibited, 0); i < numClusters;
+	     i = ClusterMaskCache.nextPermitted(prohibited, i + 1))
 		{
-		if (clusterFilter != null && clusterFilter.isProhibited(theCluster))
+		final CentroidCluster<T> theCluster = clusters.get(i);
+		if (prohibited == null && clusterFilter != null && clusterFilter.isProhibited(theCluster))
 			{
 			// ignore this cluster
 			}
 		else
 			{
 			final double distance = measure.distanceFromTo(p, theCluster.getCentroid());
+			countDistanceEvaluations(1);
 			if (distance < result.bestDistance)
 				{
 				result.bestCluster = theCluster;
@@ -114,6 +125,10 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 
 	protected synchronized void trainWithKnownTrainingLabels( final ClusterableIterator<T> samples )
 		{
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
+		final AtomicInteger merges = new AtomicInteger(0);
+
 		// initialize with two samples
 		T s1 = samples.next();
 		T s2 = samples.next();
@@ -125,12 +140,13 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 		s2c.doneLabelling();
 
 		float d = (float) measure.distanceFromTo(s1c.getPayload().getCentroid(), s2c.getPayload().getCentroid());
+		countDistanceEvaluations(1);
 		theActiveNodeDistanceMatrix.put(s1c, s2c, d);
 
 
 		// careful, synchronization is very tricksy here
 
-		Parallel.forEach(samples, new Function<T, Void>()
+		getExecutionPolicy().forEach(samples, getSampleBatchSize(), new Function<T, Void>()
 		{
 		public Void apply( final T sample )
 			{
@@ -152,7 +168,7 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 			// then things are purely local for a while
 			final int ahc = c.hashCode();
 			// store up the results in this thread before copying them to the synchronized store at the end
-			final Map<HierarchicalCentroidCluster<T>, Float> distancesToC = new HashMap<HierarchicalCentroidCluster<T>, Float>(getClusters().size());
+			final Map<HierarchicalCentroidCluster<T>, Float> distancesToC = new HashMap<HierarchicalCentroidCluster<T>, Float>(activeClusters.size());
 
 
 			for (HierarchicalCentroidCluster<T> b : activeClusters)
@@ -165,6 +181,7 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 				if (ahc <= b.hashCode() && !c.equals(b))
 					{
 					final float d = (float) measure.distanceFromTo(c.getPayload().getCentroid(), b.getPayload().getCentroid());
+					countDistanceEvaluations(1);
 
 					// concurrency bottleneck
 					//theActiveNodeDistanceMatrix.put(a, b, d);
@@ -208,6 +225,7 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 					for (HierarchicalCentroidCluster<T> b : remainingActiveKeys)
 						{
 						final float d = (float) measure.distanceFromTo(c.getCentroid(), b.getCentroid());
+						countDistanceEvaluations(1);
 						theActiveNodeDistanceMatrix.put(c, b, d);
 						}
 
@@ -228,6 +246,7 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 							theActiveNodeDistanceMatrix.remove(b);
 							//agglomerator.removeJoinedNodes(a, b, theActiveNodeDistanceMatrix);
 							addCluster(composite);
+							merges.incrementAndGet();
 							}
 						}
 					catch (NoSuchElementException e)
@@ -243,6 +262,9 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 
 		                );
 
+		getMetricsListener().mergesCompleted(merges.get(), getDistanceEvaluations() - startDistanceEvaluations,
+		                                     System.nanoTime() - startNanos);
+
 		logger.info("Batch clustering remaining " + theActiveNodeDistanceMatrix.numKeys() + " nodes");
 		// note the batch clustering phase it not necessary if we just want to count OTUs, but it allows us to use a consistent DepthFirstIterator to find the OTUs later
 
@@ -250,7 +272,16 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 				new BatchAgglomerativeClusteringMethod<T>(measure, potentialTrainingBins, predictLabelSets, prohibitionModel, testLabels, theClusters, assignments, n, agglomerator,
 				                                          theActiveNodeDistanceMatrix);
 
+		batchClustering.setExecutionPolicy(getExecutionPolicy());
+		batchClustering.setMetricsListener(getMetricsListener());
 		batchClustering.train();
+
+		// the batch clustering added clusters to the shared list behind our back
+		synchronized (theClusters)
+			{
+			clustersChanged();
+			}
+
 		theRoot = batchClustering.getTree();
 		normalizeClusterLabelProbabilities();
 		doneLabellingClusters();
@@ -263,4 +294,21 @@ public class OnlineAgglomerativeClustering<T extends Clusterable<T>> extends Onl
 		{
 		return theRoot;
 		}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The whole tree is rebuilt from the snapshot, but the centroids of its nodes are loaded only on first use.
+	 */
+	@Override
+	public void restoreFrom(final MappedModelSnapshot snapshot)
+		{
+		if (snapshot.getKind() != ModelSnapshotWriter.KIND_TREE)
+			{
+			throw new ClusterRuntimeException("Expected a snapshot of a tree");
+			}
+		restoreClusters((List) snapshot.getListedTreeNodes());
+		theRoot = (HierarchicalCentroidCluster<T>) (HierarchicalCentroidCluster) snapshot.getTree();
+		preparePriors();
+		}
 	}
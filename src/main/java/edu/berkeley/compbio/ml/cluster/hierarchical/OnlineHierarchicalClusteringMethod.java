@@ -54,7 +54,8 @@ public abstract class OnlineHierarchicalClusteringMethod<T extends Clusterable<T
 
 	public void computeClusterStdDevs(final ClusterableIterator<T> theDataPointProvider)
 		{
-		CentroidClusteringUtils.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider);
+		countDistanceEvaluations(CentroidClusteringUtils
+				.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider));
 		}
 
 	@Override
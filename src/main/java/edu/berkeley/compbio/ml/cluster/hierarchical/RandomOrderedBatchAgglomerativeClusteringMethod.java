@@ -11,6 +11,7 @@ import com.davidsoergel.dsutils.collections.IndexedSymmetric2dBiMapWithDefault;
 import com.davidsoergel.stats.DissimilarityMeasure;
 import com.davidsoergel.trees.BasicPhylogenyNode;
 import com.davidsoergel.trees.PhylogenyNode;
+import edu.berkeley.compbio.ml.cluster.AssignmentStore;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
 import edu.berkeley.compbio.ml.cluster.Clusterable;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
@@ -48,7 +49,7 @@ public class RandomOrderedBatchAgglomerativeClusteringMethod<T extends Clusterab
 	                                                       final ProhibitionModel<T> tProhibitionModel,
 	                                                       final Set<String> testLabels,
 	                                                       final ArrayList<HierarchicalCentroidCluster<T>> theClusters,
-	                                                       final Map<String, HierarchicalCentroidCluster<T>> assignments,
+	                                                       final AssignmentStore<HierarchicalCentroidCluster<T>> assignments,
 	                                                       final int n, Agglomerator agg,
 	                                                       IndexedSymmetric2dBiMapWithDefault<HierarchicalCentroidCluster<T>, Float> theActiveNodeDistanceMatrix)
 		{
@@ -58,6 +59,10 @@ public class RandomOrderedBatchAgglomerativeClusteringMethod<T extends Clusterab
 
 	public synchronized void train()  // aka performClustering
 		{
+		final long startNanos = System.nanoTime();
+		final long startDistanceEvaluations = getDistanceEvaluations();
+		int merges = 0;
+
 		setN(theActiveNodeDistanceMatrix.numKeys());
 
 		//	List<HierarchicalCentroidCluster<T>> theLeaves = new ArrayList(theActiveNodeDistanceMatrix.getActiveKeys());
@@ -114,7 +119,7 @@ public class RandomOrderedBatchAgglomerativeClusteringMethod<T extends Clusterab
 				assert ancestorChildren.contains(bestCluster);
 
 				ancestorChildren.removeAll(ancestors);
-				theClusters.removeAll(ancestors);
+				removeClusters(ancestors);
 				parentlessNodes.removeAll(ancestors);
 				//theActiveNodeDistanceMatrix.removeAll(ancestors);
 
@@ -131,6 +136,8 @@ public class RandomOrderedBatchAgglomerativeClusteringMethod<T extends Clusterab
 
 			// join the leaf with that cluster
 
+			// the agglomerator derives the distance from the composite to every other node from the matrix
+			countDistanceEvaluations(theActiveNodeDistanceMatrix.numKeys() - 2);
 			final HierarchicalCentroidCluster<T> composite =
 					agglomerator.joinNodes(nextId.getAndIncrement(), node, bestCluster, theActiveNodeDistanceMatrix);
 
@@ -142,6 +149,7 @@ public class RandomOrderedBatchAgglomerativeClusteringMethod<T extends Clusterab
 
 			addCluster(composite);
 			theRoot = composite;  // this will actually be true on the last iteration
+			merges++;
 
 
 			/*int numKeys = parentlessNodes.size();
@@ -155,6 +163,11 @@ public class RandomOrderedBatchAgglomerativeClusteringMethod<T extends Clusterab
 				}*/
 			}
 
+		getMetricsListener().mergesCompleted(merges, getDistanceEvaluations() - startDistanceEvaluations,
+		                                     System.nanoTime() - startNanos);
+
+		final long phaseStart = System.nanoTime();
 		normalizeClusterLabelProbabilities();
+		phaseCompleted("normalizeClusterLabelProbabilities", phaseStart);
 		}
 	}
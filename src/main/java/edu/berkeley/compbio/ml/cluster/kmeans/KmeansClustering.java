@@ -8,6 +8,7 @@
 package edu.berkeley.compbio.ml.cluster.kmeans;
 
 import com.davidsoergel.stats.DissimilarityMeasure;
+import com.davidsoergel.stats.DoubleArrayContainer;
 import edu.berkeley.compbio.ml.cluster.AbstractCentroidCluster;
 import edu.berkeley.compbio.ml.cluster.AbstractUnsupervisedOnlineClusteringMethod;
 import edu.berkeley.compbio.ml.cluster.AdditiveCentroidCluster;
@@ -15,12 +16,18 @@ import edu.berkeley.compbio.ml.cluster.AdditiveClusterable;
 import edu.berkeley.compbio.ml.cluster.CentroidCluster;
 import edu.berkeley.compbio.ml.cluster.CentroidClusteringMethod;
 import edu.berkeley.compbio.ml.cluster.CentroidClusteringUtils;
+import edu.berkeley.compbio.ml.cluster.CentroidDistances;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
 import edu.berkeley.compbio.ml.cluster.ClusterableIterator;
+import edu.berkeley.compbio.ml.cluster.DenseCentroidMatrix;
+import edu.berkeley.compbio.ml.cluster.FrozenCentroidClassifier;
+import edu.berkeley.compbio.ml.cluster.MappedModelSnapshot;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
 import edu.berkeley.compbio.ml.cluster.SampleInitializedOnlineClusteringMethod;
 import edu.berkeley.compbio.ml.cluster.SemisupervisedClusteringMethod;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayDissimilarityMeasure;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
@@ -72,7 +79,8 @@ public class KmeansClustering<T extends AdditiveClusterable<T>>
 
 	public void computeClusterStdDevs(final ClusterableIterator<T> theDataPointProvider)
 		{
-		CentroidClusteringUtils.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider);
+		countDistanceEvaluations(CentroidClusteringUtils
+				.computeClusterStdDevs(getClusters(), measure, getDistanceMemo(), getAssignments(), theDataPointProvider));
 		}
 
 	@Override
@@ -97,8 +105,16 @@ public class KmeansClustering<T extends AdditiveClusterable<T>>
 
 		assert p != null;
 		//n++;
+		return applyMove(p, bestClusterMove(p));
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean applyMove(final T p, final ClusterMove<T, CentroidCluster<T>> cm)
+		{
 		final String id = p.getId();
-		final ClusterMove<T, CentroidCluster<T>> cm = bestClusterMove(p);
 		//secondBestDistances.add(cm.secondBestDistance);
 		if (cm.isChanged())
 			{
@@ -110,7 +126,7 @@ public class KmeansClustering<T extends AdditiveClusterable<T>>
 				{// probably just the first round
 				}
 			cm.bestCluster.add(p);//, cm.bestDistance);  // this will automatically recalculate the centroid, etc.
-			putAssignment(id, cm.bestCluster);
+			putAssignment(id, cm.sampleOrdinal, cm.bestCluster);
 			return true;
 			}
 		return false;
@@ -140,6 +156,27 @@ public class KmeansClustering<T extends AdditiveClusterable<T>>
 
 // -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * Compiles the current clusters into an immutable classifier that can be shared among threads.
+	 *
+	 * @return a classifier choosing the nearest centroid as bestClusterMove() does
+	 * @throws edu.berkeley.compbio.ml.cluster.ClusterRuntimeException
+	 *          if the centroids are not double arrays or the distance measure can't be evaluated on them directly
+	 */
+	public FrozenCentroidClassifier freeze()
+		{
+		return FrozenCentroidClassifier.compile(getClusters(), measure, Double.POSITIVE_INFINITY, false);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void restoreFrom(final MappedModelSnapshot snapshot)
+		{
+		restoreFlatClusters(snapshot);
+		}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -156,33 +193,57 @@ public class KmeansClustering<T extends AdditiveClusterable<T>>
 	@Override
 	public ClusterMove<T, CentroidCluster<T>> bestClusterMove(final T p)
 		{
+		return bestClusterMove(p, null);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ClusterMove<T, CentroidCluster<T>> bestClusterMove(final T p,
+	                                                             @Nullable final CentroidDistances<T, CentroidCluster<T>> distances)
+		{
 		final ClusterMove<T, CentroidCluster<T>> result = new ClusterMove<T, CentroidCluster<T>>();
 		//double bestDistance = Double.MAX_VALUE;
 		//Cluster<T> bestCluster = null;
 
 		final String id = p.getId();
-		result.oldCluster = getAssignment(id);
+		findOldCluster(id, result);
 
 		if (logger.isTraceEnabled())
 			{
 			logger.trace("Choosing best cluster for " + p + " (previous = " + result.oldCluster + ")");
 			}
-		for (final CentroidCluster<T> c : getClusters())
+		final DenseCentroidMatrix<T, CentroidCluster<T>> dense = distances == null ? getDenseCentroidsFor(p) : null;
+		if (distances != null)
 			{
-			final double d = measure.distanceFromTo(p, c.getCentroid());//c.distanceToCentroid(p);
-			if (logger.isTraceEnabled())
-				{
-				logger.trace("Trying " + c + "; distance = " + d + "; best so far = " + result.bestDistance);
-				}
-			if (d < result.bestDistance)
-				{
-				result.secondBestDistance = result.bestDistance;
-				result.bestDistance = d;
-				result.bestCluster = c;
-				}
-			else if (d < result.secondBestDistance)
+			distances.scan(null, false, result);
+			}
+		else if (dense != null)
+			{
+			dense.scan(((DoubleArrayContainer) p).getArray(), (DoubleArrayDissimilarityMeasure) measure, null, false,
+			           result, getScanPolicy(), getScanPartitionSize());
+			countDistanceEvaluations(dense.getNumRows());
+			}
+		else
+			{
+			for (final CentroidCluster<T> c : getClusters())
 				{
-				result.secondBestDistance = d;
+				final double d = distanceToCentroid(p, c, result.pruningBound());
+				if (logger.isTraceEnabled())
+					{
+					logger.trace("Trying " + c + "; distance = " + d + "; best so far = " + result.bestDistance);
+					}
+				if (d < result.bestDistance)
+					{
+					result.secondBestDistance = result.bestDistance;
+					result.bestDistance = d;
+					result.bestCluster = c;
+					}
+				else if (d < result.secondBestDistance)
+					{
+					result.secondBestDistance = d;
+					}
 				}
 			}
 		if (logger.isTraceEnabled())
@@ -197,4 +258,13 @@ public class KmeansClustering<T extends AdditiveClusterable<T>>
 			}
 		return result;
 		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean acceptsPrecomputedDistances()
+		{
+		return true;
+		}
 	}
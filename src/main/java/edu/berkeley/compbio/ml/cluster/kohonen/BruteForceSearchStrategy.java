@@ -6,8 +6,11 @@
 
 package edu.berkeley.compbio.ml.cluster.kohonen;
 
+import com.davidsoergel.stats.DoubleArrayContainer;
 import edu.berkeley.compbio.ml.cluster.AdditiveClusterable;
 import edu.berkeley.compbio.ml.cluster.ClusterMove;
+import edu.berkeley.compbio.ml.cluster.DenseCentroidMatrix;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayDissimilarityMeasure;
 import org.apache.log4j.Logger;
 
 
@@ -39,44 +42,54 @@ public class BruteForceSearchStrategy<T extends AdditiveClusterable<T>> extends
 		//Cluster<T> bestCluster = null;
 
 		final String id = p.getId();
-		result.oldCluster = som.getAssignment(id);
+		som.findOldCluster(id, result);
 
 		if (logger.isTraceEnabled())
 			{
 			logger.trace("Choosing best cluster for " + p + " (previous = " + result.oldCluster + ")");
 			}
-		for (final KohonenSOMCell<T> c : som.getClusters())
+		final DenseCentroidMatrix<T, KohonenSOMCell<T>> dense = som.getDenseCentroidsFor(p);
+		if (dense != null && measure instanceof DoubleArrayDissimilarityMeasure)
 			{
-			// grid already initialized with prototype, never mind all this stuff
-
-			/*
-				  // while initializing the grid, cell centroids are null.  In that case, just assign the present point.
-				  // no, this won't work right at all
-				  // why not?? PCA would be better, but this should work, just slowly.
-				  //  aha: if there are more grid points than samples
-				  if (c.getCentroid() == null)
-					  {
-					  c.setCentroid(p.clone());
-					  result.bestDistance = 0;
-					  result.bestCluster = c;
-					  return result;
-					  }
-	  */
-			// otherwise find the nearest cluster
-			final double d = measure.distanceFromTo(p, c.getCentroid());//c.distanceToCentroid(p);
-			/*	if (logger.isDebugEnabled())
-			   {
-			   logger.debug("Trying " + c + "; distance = " + d + "; best so far = " + result.bestDistance);
-			   }*/
-			if (d < result.bestDistance)
-				{
-				result.secondBestDistance = result.bestDistance;
-				result.bestDistance = d;
-				result.bestCluster = c;
-				}
-			else if (d < result.secondBestDistance)
+			dense.scan(((DoubleArrayContainer) p).getArray(), (DoubleArrayDissimilarityMeasure) measure, null, false,
+			           result, som.getScanPolicy(), som.getScanPartitionSize());
+			som.countCellDistances(dense.getNumRows());
+			}
+		else
+			{
+			for (final KohonenSOMCell<T> c : som.getClusters())
 				{
-				result.secondBestDistance = d;
+				// grid already initialized with prototype, never mind all this stuff
+
+				/*
+					  // while initializing the grid, cell centroids are null.  In that case, just assign the present point.
+					  // no, this won't work right at all
+					  // why not?? PCA would be better, but this should work, just slowly.
+					  //  aha: if there are more grid points than samples
+					  if (c.getCentroid() == null)
+						  {
+						  c.setCentroid(p.clone());
+						  result.bestDistance = 0;
+						  result.bestCluster = c;
+						  return result;
+						  }
+		  */
+				// otherwise find the nearest cluster
+				final double d = som.distanceToCell(p, c, result.pruningBound());
+				/*	if (logger.isDebugEnabled())
+				   {
+				   logger.debug("Trying " + c + "; distance = " + d + "; best so far = " + result.bestDistance);
+				   }*/
+				if (d < result.bestDistance)
+					{
+					result.secondBestDistance = result.bestDistance;
+					result.bestDistance = d;
+					result.bestCluster = c;
+					}
+				else if (d < result.secondBestDistance)
+					{
+					result.secondBestDistance = d;
+					}
 				}
 			}
 		if (logger.isTraceEnabled())
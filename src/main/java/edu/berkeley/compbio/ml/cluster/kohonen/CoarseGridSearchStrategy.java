@@ -56,7 +56,7 @@ public class CoarseGridSearchStrategy<T extends AdditiveClusterable<T>> extends
 		final ClusterMove<T, KohonenSOMCell<T>> result = new ClusterMove<T, KohonenSOMCell<T>>();
 
 		final String id = p.getId();
-		result.oldCluster = som.getAssignment(id);
+		som.findOldCluster(id, result);
 
 		if (logger.isTraceEnabled())
 			{
@@ -64,7 +64,7 @@ public class CoarseGridSearchStrategy<T extends AdditiveClusterable<T>> extends
 			}
 		for (final KohonenSOMCell<T> c : sparseGrid)
 			{
-			final double d = measure.distanceFromTo(p, c.getCentroid());//c.distanceToCentroid(p);
+			final double d = som.distanceToCell(p, c, result.pruningBound());
 			if (d < result.bestDistance)
 				{
 				result.secondBestDistance = result.bestDistance;
@@ -82,7 +82,7 @@ public class CoarseGridSearchStrategy<T extends AdditiveClusterable<T>> extends
 				som.getWeightedMask(gridSpacing * 2).iterator(result.bestCluster); i.hasNext();)
 			{
 			final KohonenSOMCell<T> c = i.next().theCell;
-			final double d = measure.distanceFromTo(p, c.getCentroid());//c.distanceToCentroid(p);
+			final double d = som.distanceToCell(p, c, result.pruningBound());
 			if (d < result.bestDistance)
 				{
 				result.secondBestDistance = result.bestDistance;
@@ -50,7 +50,7 @@ public class HillClimbingSearchStrategy<T extends AdditiveClusterable<T>> extend
 		final ClusterMove<T, KohonenSOMCell<T>> result = new ClusterMove<T, KohonenSOMCell<T>>();
 
 		final String id = p.getId();
-		result.oldCluster = som.getAssignment(id);
+		som.findOldCluster(id, result);
 
 		if (result.oldCluster == null)
 			{
@@ -67,7 +67,7 @@ public class HillClimbingSearchStrategy<T extends AdditiveClusterable<T>> extend
 		final Set<CentroidCluster<T>> alreadyTested = new HashSet<CentroidCluster<T>>(10);
 
 		result.bestCluster = result.oldCluster;
-		result.bestDistance = measure.distanceFromTo(p, result.bestCluster.getCentroid());
+		result.bestDistance = som.distanceToCell(p, result.bestCluster, Double.POSITIVE_INFINITY);
 		alreadyTested.add(result.bestCluster);
 		boolean changed = true;
 
@@ -80,7 +80,7 @@ public class HillClimbingSearchStrategy<T extends AdditiveClusterable<T>> extend
 				if (!alreadyTested.contains(c))
 					{
 					alreadyTested.add(c);
-					final double d = measure.distanceFromTo(p, c.getCentroid());//c.distanceToCentroid(p);
+					final double d = som.distanceToCell(p, c, result.pruningBound());
 					if (d < result.bestDistance)
 						{
 						result.secondBestDistance = result.bestDistance;
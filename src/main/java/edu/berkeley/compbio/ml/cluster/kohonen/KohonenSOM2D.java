@@ -20,6 +20,8 @@ import edu.berkeley.compbio.ml.cluster.ClusterMove;
 import edu.berkeley.compbio.ml.cluster.ClusterRuntimeException;
 import edu.berkeley.compbio.ml.cluster.ClusterableIterator;
 import edu.berkeley.compbio.ml.cluster.ClusterableIteratorFactory;
+import edu.berkeley.compbio.ml.cluster.MappedModelSnapshot;
+import edu.berkeley.compbio.ml.cluster.ModelSnapshotWriter;
 import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
 import edu.berkeley.compbio.ml.cluster.ProhibitionModel;
 import org.apache.commons.lang.NotImplementedException;
@@ -150,6 +152,14 @@ public class KohonenSOM2D<T extends AdditiveClusterable<T>> extends AbstractUnsu
 
 // --------------------- GETTER / SETTER METHODS ---------------------
 
+	/**
+	 * @return the number of cells along each axis of the grid
+	 */
+	public int[] getCellsPerDimension()
+		{
+		return cellsPerDimension.clone();
+		}
+
 	public int getChanged()
 		{
 		return changed;
@@ -160,6 +170,14 @@ public class KohonenSOM2D<T extends AdditiveClusterable<T>> extends AbstractUnsu
 		this.labeler = labeler;
 		}
 
+	/**
+	 * @return the number of training samples seen so far, which drives the move factor and radius schedules
+	 */
+	public int getTime()
+		{
+		return time;
+		}
+
 	/**
 	 * empty clusters are essential in the SOM context, so override the removal
 	 */
@@ -180,7 +198,8 @@ public class KohonenSOM2D<T extends AdditiveClusterable<T>> extends AbstractUnsu
 
 	public void computeClusterStdDevs( final ClusterableIterator<T> theDataPointProvider )
 		{
-		CentroidClusteringUtils.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider);
+		countDistanceEvaluations(CentroidClusteringUtils
+				.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider));
 		}
 
 	@Override
@@ -219,12 +238,19 @@ public class KohonenSOM2D<T extends AdditiveClusterable<T>> extends AbstractUnsu
 		// ** this is not synchronized!  I think it's OK, but be careful...
 		// that should really only cause trouble if the same point gets added twice and simultaneously, and gets assiged to different clusters.  That seems highly unlikely.
 
-		final ClusterMove<T, KohonenSOMCell<T>> cm = bestClusterMove(p);
+		return applyMove(p, bestClusterMove(p));
+		}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean applyMove( final T p, final ClusterMove<T, KohonenSOMCell<T>> cm )
+		{
 		if (cm.isChanged())
 			{
 			changed++;
-			putAssignment(p.getId(), cm.bestCluster);
+			putAssignment(p.getId(), cm.sampleOrdinal, cm.bestCluster);
 			}
 
 		// do the moves whether or not the assignment changed
@@ -376,6 +402,39 @@ public class KohonenSOM2D<T extends AdditiveClusterable<T>> extends AbstractUnsu
 
 // -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The cells are built eagerly, since the grid must be complete, and their centroids are copied out of the snapshot.
+	 */
+	@Override
+	public void restoreFrom( final MappedModelSnapshot snapshot )
+		{
+		if (snapshot.getKind() != ModelSnapshotWriter.KIND_GRID)
+			{
+			throw new ClusterRuntimeException("Expected a snapshot of a Kohonen map");
+			}
+		if (!Arrays.equals(snapshot.getCellsPerDimension(), cellsPerDimension))
+			{
+			throw new ClusterRuntimeException(
+					"Snapshot grid " + Arrays.toString(snapshot.getCellsPerDimension()) + " does not match " + Arrays
+							.toString(cellsPerDimension));
+			}
+
+		final List<KohonenSOMCell<T>> cells = new ArrayList<KohonenSOMCell<T>>(snapshot.getNumClusters());
+		for (int i = 0; i < snapshot.getNumClusters(); i++)
+			{
+			final KohonenSOMCell<T> cell = new KohonenSOMCell<T>(snapshot.getId(i),
+			                                                     (T) snapshot.getCluster(i).getCentroid().clone());
+			snapshot.restoreLabels(i, cell);
+			cells.add(cell);
+			}
+		restoreClusters(cells);
+		time = snapshot.getTime();
+
+		searchStrategy.setSOM(this);
+		}
+
 	public void addToRandomCell( final T p )
 		{
 		final KohonenSOMCell<T> winner = (KohonenSOMCell<T>) chooseRandomCluster();
@@ -418,6 +477,26 @@ public class KohonenSOM2D<T extends AdditiveClusterable<T>> extends AbstractUnsu
 	return searchStrategy.bestClusterMove(p);
 	}
 
+	/**
+	 * Computes the distance from the point to the given cell's centroid on behalf of the search strategy, allowing the
+	 * measure to give up early beyond the given bound; like any other distance computed by this method, it is looked up
+	 * in the distance memo if one is set, and counted.
+	 *
+	 * @return exactly the distance if that is <= upperBound; otherwise any larger value
+	 */
+	double distanceToCell(final T p, final KohonenSOMCell<T> c, final double upperBound)
+		{
+		return distanceToCentroid(p, c, upperBound);
+		}
+
+	/**
+	 * Counts distances that the search strategy computed itself, by scanning the dense centroid matrix.
+	 */
+	void countCellDistances(final int count)
+		{
+		countDistanceEvaluations(count);
+		}
+
 	/**
 	 * assumes inputs are entirely positive and within the bounds given by cellsPerDimension
 	 *
@@ -453,14 +532,14 @@ public class KohonenSOM2D<T extends AdditiveClusterable<T>> extends AbstractUnsu
 				final CentroidCluster<T> here = clusterAt(x, y);
 
 				final CentroidCluster<T> right = clusterAt(x + 1, y);
-				final double d = measure.distanceFromTo(here.getCentroid(), right.getCentroid());//here.distanceToCentroid(right.getCentroid());
+				final double d = distanceFromToBounded(here.getCentroid(), right.getCentroid(), Double.POSITIVE_INFINITY);
 
 				result[listIndexFor(x, y)] += d;
 				result[listIndexFor(x + 1, y)] += d;
 
 
 				final CentroidCluster<T> down = clusterAt(x, y + 1);
-				final double d1 = measure.distanceFromTo(here.getCentroid(), down.getCentroid());
+				final double d1 = distanceFromToBounded(here.getCentroid(), down.getCentroid(), Double.POSITIVE_INFINITY);
 
 				result[listIndexFor(x, y)] += d1;
 				result[listIndexFor(x, y + 1)] += d1;
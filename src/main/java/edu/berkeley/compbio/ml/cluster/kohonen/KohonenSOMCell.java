@@ -39,6 +39,7 @@ public class KohonenSOMCell<T extends AdditiveClusterable<T>> extends AbstractCe
 		{
 		// we don't increment n here, because moving the centroid and actually assigning a sample to this cell are two different things
 		centroid.incrementBy(point);
+		centroidChanged();
 		return true;
 		}
 
@@ -58,6 +59,7 @@ public class KohonenSOMCell<T extends AdditiveClusterable<T>> extends AbstractCe
 	public boolean remove(final T point)
 		{
 		centroid.decrementBy(point);
+		centroidChanged();
 
 
 		return true;
@@ -87,6 +89,20 @@ public class KohonenSOMCell<T extends AdditiveClusterable<T>> extends AbstractCe
 		//centroid.incrementBy(point.times(motionFactor));
 
 		centroid.incrementByWeighted(point, motionFactor);
+		centroidChanged();
+		}
+
+	/**
+	 * Moves the centroid the given fraction of the way toward the given point, in place; a negative factor moves it away.
+	 * This is the usual SOM update, without allocating the difference between the point and the centroid.
+	 *
+	 * @param point        the point to move toward
+	 * @param motionFactor the fraction of the way to move
+	 */
+	public void recenterToward(final T point, final double motionFactor)
+		{
+		centroid.moveToward(point, motionFactor);
+		centroidChanged();
 		}
 
 	public void recenterByRemovingWeighted(final T point, final double motionFactor)
@@ -97,5 +113,6 @@ public class KohonenSOMCell<T extends AdditiveClusterable<T>> extends AbstractCe
 		   centroid.multiplyBy(1 - motionFactor);
 		   }*/
 		centroid.decrementByWeighted(point, motionFactor);
+		centroidChanged();
 		}
 	}
@@ -211,7 +211,8 @@ public class KohonenSOMnD<T extends AdditiveClusterable<T>>
 
 	public void computeClusterStdDevs(final ClusterableIterator<T> theDataPointProvider)
 		{
-		CentroidClusteringUtils.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider);
+		countDistanceEvaluations(CentroidClusteringUtils
+				.computeClusterStdDevs(getClusters(), measure, getAssignments(), theDataPointProvider));
 		}
 
 	@Override
@@ -252,18 +253,14 @@ public class KohonenSOMnD<T extends AdditiveClusterable<T>>
 			for (Iterator<KohonenSOMCell<T>> i = new NeighborhoodIterator(loser, time); i.hasNext();)
 				{
 				final KohonenSOMCell<T> neighbor = i.next();
-				final T motion = p.minus(neighbor.getCentroid());
-				motion.multiplyBy(-moveFactor(time));
-				neighbor.add(motion);
+				neighbor.recenterToward(p, -moveFactor(time));
 				}
 			}
 
 		for (Iterator<KohonenSOMCell<T>> i = new NeighborhoodIterator(winner, time); i.hasNext();)
 			{
 			final KohonenSOMCell<T> neighbor = i.next();
-			final T motion = p.minus(neighbor.getCentroid());
-			motion.multiplyBy(moveFactor(time));
-			neighbor.add(motion);
+			neighbor.recenterToward(p, moveFactor(time));
 			}
 		time++;
 		return true;
@@ -357,7 +354,7 @@ public class KohonenSOMnD<T extends AdditiveClusterable<T>>
 				}
 */
 			// otherwise find the nearest cluster
-			final double d = measure.distanceFromTo(p, c.getCentroid());//c.distanceToCentroid(p);
+			final double d = distanceToCentroid(p, c, result.pruningBound());
 			if (logger.isTraceEnabled())
 				{
 				logger.trace("Trying " + c + "; distance = " + d + "; best so far = " + result.bestDistance);
@@ -47,7 +47,7 @@ public class NearCurrentPositionSearchStrategy<T extends AdditiveClusterable<T>>
 		final ClusterMove<T, KohonenSOMCell<T>> result = new ClusterMove<T, KohonenSOMCell<T>>();
 
 		final String id = p.getId();
-		result.oldCluster = som.getAssignment(id);
+		som.findOldCluster(id, result);
 
 		if (result.oldCluster == null)
 			{
@@ -63,7 +63,7 @@ public class NearCurrentPositionSearchStrategy<T extends AdditiveClusterable<T>>
 				som.getWeightedMask((int) getSearchRadius()).iterator(result.oldCluster); i.hasNext();)
 			{
 			final KohonenSOMCell<T> c = i.next().theCell;
-			final double d = measure.distanceFromTo(p, c.getCentroid());//c.distanceToCentroid(p);
+			final double d = som.distanceToCell(p, c, result.pruningBound());
 			if (d < result.bestDistance)
 				{
 				result.secondBestDistance = result.bestDistance;
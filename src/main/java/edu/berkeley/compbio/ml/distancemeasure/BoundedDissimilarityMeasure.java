@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+/**
+ * Optional companion to DissimilarityMeasure for measures that can abandon a computation as soon as it is clear that the
+ * result will exceed some bound.  Best-match searches use this to avoid completing the arithmetic for candidates that
+ * have already lost.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public interface BoundedDissimilarityMeasure<T>
+	{
+	/**
+	 * Computes the dissimilarity between a and b, unless it exceeds upperBound.
+	 *
+	 * @param a          the first object
+	 * @param b          the second object
+	 * @param upperBound the largest dissimilarity of interest to the caller
+	 * @return exactly the value distanceFromTo(a, b) would return, if that is <= upperBound; otherwise any value greater
+	 *         than upperBound (typically Double.POSITIVE_INFINITY)
+	 */
+	double distanceFromToBounded(T a, T b, double upperBound);
+	}
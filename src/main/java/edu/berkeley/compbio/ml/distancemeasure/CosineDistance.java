@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+import com.davidsoergel.stats.DissimilarityMeasure;
+import edu.berkeley.compbio.ml.cluster.ClusterableDoubleArray;
+import org.apache.log4j.Logger;
+
+/**
+ * One minus the cosine of the angle between two vectors, so 0 for vectors pointing the same way and 2 for opposite
+ * ones.  Insensitive to the magnitudes of the vectors, which makes it useful for comparing count profiles of differing
+ * total counts.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class CosineDistance implements DissimilarityMeasure<ClusterableDoubleArray>, DoubleArrayDissimilarityMeasure
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(CosineDistance.class);
+
+	private static final CosineDistance _instance = new CosineDistance();
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	public static CosineDistance getInstance()
+		{
+		return _instance;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface DissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromTo(final ClusterableDoubleArray a, final ClusterableDoubleArray b)
+		{
+		return DoubleArrayKernels.cosineDistance(a.getArray(), 0, b.getArray(), 0, a.length());
+		}
+
+// --------------------- Interface DoubleArrayDissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromTo(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                             final int length)
+		{
+		return DoubleArrayKernels.cosineDistance(a, aOffset, b, bOffset, length);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromToBounded(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                                    final int length, final double upperBound)
+		{
+		// the cosine is not monotone in the partial sums, so there is nothing to abandon early
+		return distanceFromTo(a, aOffset, b, bOffset, length);
+		}
+	}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+/**
+ * A dissimilarity measure that can be evaluated directly on regions of primitive double arrays, so that callers holding
+ * vectors in a packed layout (e.g. one row of a {@link edu.berkeley.compbio.ml.cluster.DenseCentroidMatrix}) need not
+ * wrap each vector in an object first.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public interface DoubleArrayDissimilarityMeasure
+	{
+	/**
+	 * Computes the dissimilarity between a[aOffset .. aOffset+length) and b[bOffset .. bOffset+length).
+	 *
+	 * @param a       the array holding the first vector
+	 * @param aOffset the index of the first element of the first vector
+	 * @param b       the array holding the second vector
+	 * @param bOffset the index of the first element of the second vector
+	 * @param length  the number of dimensions to compare
+	 * @return the dissimilarity between the two vectors
+	 */
+	double distanceFromTo(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+	/**
+	 * As distanceFromTo, but the computation may be abandoned early once the result is known to exceed upperBound.
+	 *
+	 * @return exactly the value distanceFromTo would return, if that is <= upperBound; otherwise any value greater than
+	 *         upperBound (typically Double.POSITIVE_INFINITY)
+	 * @see BoundedDissimilarityMeasure
+	 */
+	double distanceFromToBounded(double[] a, int aOffset, double[] b, int bOffset, int length, double upperBound);
+	}
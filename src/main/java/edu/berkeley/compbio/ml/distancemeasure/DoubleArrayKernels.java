@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+
+/**
+ * Distance and similarity kernels operating directly on regions of primitive double arrays.
+ * <p/>
+ * Each loop is unrolled by four with independent accumulators, which breaks the serial dependency on a single running
+ * sum so that the JIT can keep several multiply-adds in flight (and, where it is able, pack them into SIMD registers).
+ * A plain scalar loop handles the remaining 0-3 elements.  Note that the summation order therefore differs from a naive
+ * loop, so results may differ from one in the last few bits.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public final class DoubleArrayKernels
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	/**
+	 * The bounded kernels compare the partial sum against the bound once per this many elements
+	 */
+	private static final int BOUND_CHECK_INTERVAL = 16;
+
+	/**
+	 * The bounded kernels give up only when the partial sum exceeds the bound by this relative margin, so that rounding
+	 * in squaring the bound (or in the final square root) can never cause a distance exactly at the bound to be abandoned
+	 */
+	private static final double BOUND_SLACK = 1.0 + 1e-12;
+
+	/**
+	 * A sparse-dense squared distance obtained from the dense vector's norm is trusted only if it is at least this
+	 * fraction of the two squared norms together; any smaller, and the rounding error left over from cancelling the norm
+	 * could be a significant part of it
+	 */
+	private static final double SPARSE_CANCELLATION_THRESHOLD = 1e-6;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private DoubleArrayKernels()
+		{
+		}
+
+// -------------------------- STATIC METHODS --------------------------
+
+	public static double squaredEuclidean(final double[] a, final double[] b)
+		{
+		checkLengths(a, b);
+		return squaredEuclidean(a, 0, b, 0, a.length);
+		}
+
+	public static double squaredEuclidean(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                                      final int length)
+		{
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		final int unrolledEnd = length & ~3;
+		int i = 0;
+		for (; i < unrolledEnd; i += 4)
+			{
+			final double d0 = a[aOffset + i] - b[bOffset + i];
+			final double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+			final double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+			final double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			}
+		for (; i < length; i++)
+			{
+			final double d = a[aOffset + i] - b[bOffset + i];
+			s0 += d * d;
+			}
+		return (s0 + s1) + (s2 + s3);
+		}
+
+	/**
+	 * Computes the squared Euclidean distance exactly as squaredEuclidean does, unless it exceeds upperBound, in which
+	 * case the computation may be abandoned early and Double.POSITIVE_INFINITY returned.
+	 */
+	public static double squaredEuclideanBounded(final double[] a, final int aOffset, final double[] b,
+	                                             final int bOffset, final int length, final double upperBound)
+		{
+		if (upperBound == Double.POSITIVE_INFINITY)
+			{
+			return squaredEuclidean(a, aOffset, b, bOffset, length);
+			}
+		final double threshold = upperBound * BOUND_SLACK;
+
+		// same accumulators and summation order as squaredEuclidean, so an unabandoned result is bit-identical
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		final int unrolledEnd = length & ~3;
+		int i = 0;
+		int nextCheck = BOUND_CHECK_INTERVAL;
+		for (; i < unrolledEnd; i += 4)
+			{
+			final double d0 = a[aOffset + i] - b[bOffset + i];
+			final double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+			final double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+			final double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			if (i + 4 >= nextCheck)
+				{
+				if ((s0 + s1) + (s2 + s3) > threshold)
+					{
+					return Double.POSITIVE_INFINITY;
+					}
+				nextCheck += BOUND_CHECK_INTERVAL;
+				}
+			}
+		for (; i < length; i++)
+			{
+			final double d = a[aOffset + i] - b[bOffset + i];
+			s0 += d * d;
+			}
+		return (s0 + s1) + (s2 + s3);
+		}
+
+	public static double euclidean(final double[] a, final double[] b)
+		{
+		return Math.sqrt(squaredEuclidean(a, b));
+		}
+
+	public static double euclidean(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                               final int length)
+		{
+		return Math.sqrt(squaredEuclidean(a, aOffset, b, bOffset, length));
+		}
+
+	/**
+	 * Computes the Euclidean distance exactly as euclidean does, unless it exceeds upperBound, in which case the
+	 * computation may be abandoned early and Double.POSITIVE_INFINITY returned.
+	 */
+	public static double euclideanBounded(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                                      final int length, final double upperBound)
+		{
+		final double squared = squaredEuclideanBounded(a, aOffset, b, bOffset, length, upperBound * upperBound);
+		return squared == Double.POSITIVE_INFINITY ? squared : Math.sqrt(squared);
+		}
+
+	public static double manhattan(final double[] a, final double[] b)
+		{
+		checkLengths(a, b);
+		return manhattan(a, 0, b, 0, a.length);
+		}
+
+	public static double manhattan(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                               final int length)
+		{
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		final int unrolledEnd = length & ~3;
+		int i = 0;
+		for (; i < unrolledEnd; i += 4)
+			{
+			s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+			s1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+			s2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+			s3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+			}
+		for (; i < length; i++)
+			{
+			s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+			}
+		return (s0 + s1) + (s2 + s3);
+		}
+
+	/**
+	 * Computes the Manhattan distance exactly as manhattan does, unless it exceeds upperBound, in which case the
+	 * computation may be abandoned early and Double.POSITIVE_INFINITY returned.
+	 */
+	public static double manhattanBounded(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                                      final int length, final double upperBound)
+		{
+		if (upperBound == Double.POSITIVE_INFINITY)
+			{
+			return manhattan(a, aOffset, b, bOffset, length);
+			}
+		final double threshold = upperBound * BOUND_SLACK;
+
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		final int unrolledEnd = length & ~3;
+		int i = 0;
+		int nextCheck = BOUND_CHECK_INTERVAL;
+		for (; i < unrolledEnd; i += 4)
+			{
+			s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+			s1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+			s2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+			s3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+			if (i + 4 >= nextCheck)
+				{
+				if ((s0 + s1) + (s2 + s3) > threshold)
+					{
+					return Double.POSITIVE_INFINITY;
+					}
+				nextCheck += BOUND_CHECK_INTERVAL;
+				}
+			}
+		for (; i < length; i++)
+			{
+			s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+			}
+		return (s0 + s1) + (s2 + s3);
+		}
+
+	public static double dot(final double[] a, final double[] b)
+		{
+		checkLengths(a, b);
+		return dot(a, 0, b, 0, a.length);
+		}
+
+	public static double dot(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                         final int length)
+		{
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		final int unrolledEnd = length & ~3;
+		int i = 0;
+		for (; i < unrolledEnd; i += 4)
+			{
+			s0 += a[aOffset + i] * b[bOffset + i];
+			s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+			}
+		for (; i < length; i++)
+			{
+			s0 += a[aOffset + i] * b[bOffset + i];
+			}
+		return (s0 + s1) + (s2 + s3);
+		}
+
+	public static double squaredNorm(final double[] a, final int aOffset, final int length)
+		{
+		return dot(a, aOffset, a, aOffset, length);
+		}
+
+	public static double cosineDistance(final double[] a, final double[] b)
+		{
+		checkLengths(a, b);
+		return cosineDistance(a, 0, b, 0, a.length);
+		}
+
+	/**
+	 * Computes one minus the cosine of the angle between the two vectors, accumulating the dot product and both norms in
+	 * a single pass.  If either vector is all zeros the angle is undefined, and NaN is returned.
+	 */
+	public static double cosineDistance(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                                    final int length)
+		{
+		double ab0 = 0;
+		double ab1 = 0;
+		double aa0 = 0;
+		double aa1 = 0;
+		double bb0 = 0;
+		double bb1 = 0;
+		final int unrolledEnd = length & ~1;
+		int i = 0;
+		for (; i < unrolledEnd; i += 2)
+			{
+			final double x0 = a[aOffset + i];
+			final double y0 = b[bOffset + i];
+			final double x1 = a[aOffset + i + 1];
+			final double y1 = b[bOffset + i + 1];
+			ab0 += x0 * y0;
+			aa0 += x0 * x0;
+			bb0 += y0 * y0;
+			ab1 += x1 * y1;
+			aa1 += x1 * x1;
+			bb1 += y1 * y1;
+			}
+		if (i < length)
+			{
+			final double x = a[aOffset + i];
+			final double y = b[bOffset + i];
+			ab0 += x * y;
+			aa0 += x * x;
+			bb0 += y * y;
+			}
+		return cosineDistanceFromSums(ab0 + ab1, aa0 + aa1, bb0 + bb1);
+		}
+
+	/**
+	 * Computes one minus the cosine of the angle between two vectors, given their dot product and squared norms.
+	 */
+	public static double cosineDistanceFromSums(final double dot, final double aSquaredNorm, final double bSquaredNorm)
+		{
+		if (aSquaredNorm == 0 || bSquaredNorm == 0)
+			{
+			return Double.NaN;
+			}
+		return 1.0 - dot / Math.sqrt(aSquaredNorm * bSquaredNorm);
+		}
+
+	/**
+	 * Computes the dot product of a sparse vector, given as the first nnz entries of parallel arrays of strictly
+	 * increasing indices and their values, with the dense vector starting at dense[denseOffset].
+	 */
+	public static double sparseDot(final int[] indices, final double[] values, final int nnz, final double[] dense,
+	                               final int denseOffset)
+		{
+		double s0 = 0;
+		double s1 = 0;
+		final int unrolledEnd = nnz & ~1;
+		int k = 0;
+		for (; k < unrolledEnd; k += 2)
+			{
+			s0 += values[k] * dense[denseOffset + indices[k]];
+			s1 += values[k + 1] * dense[denseOffset + indices[k + 1]];
+			}
+		if (k < nnz)
+			{
+			s0 += values[k] * dense[denseOffset + indices[k]];
+			}
+		return s0 + s1;
+		}
+
+	/**
+	 * Computes the squared Euclidean distance between a sparse vector (as for sparseDot) and the dense vector of the given
+	 * length starting at dense[denseOffset], in time proportional to the number of nonzeros.  Wherever the sparse vector
+	 * is zero the squared difference is just the square of the dense element, so given the squared norm of the dense
+	 * vector only the stored positions need be visited, each adding v^2 - 2vc to it.
+	 * <p/>
+	 * When the vectors are close, that sum cancels most of the norm, leaving a result dominated by rounding error; so if
+	 * it comes out small relative to the norms the squared differences are summed over every position instead, so that
+	 * (for instance) a sparse vector is at distance exactly zero from its dense copy.
+	 *
+	 * @param sparseSquaredNorm the squared norm of the sparse vector
+	 * @param denseSquaredNorm  the squared norm of the dense vector
+	 */
+	public static double squaredEuclideanSparseDense(final int[] indices, final double[] values, final int nnz,
+	                                                 final double sparseSquaredNorm, final double[] dense,
+	                                                 final int denseOffset, final double denseSquaredNorm,
+	                                                 final int length)
+		{
+		double s0 = 0;
+		double s1 = 0;
+		final int unrolledEnd = nnz & ~1;
+		int k = 0;
+		for (; k < unrolledEnd; k += 2)
+			{
+			final double v0 = values[k];
+			final double v1 = values[k + 1];
+			s0 += v0 * (v0 - 2 * dense[denseOffset + indices[k]]);
+			s1 += v1 * (v1 - 2 * dense[denseOffset + indices[k + 1]]);
+			}
+		if (k < nnz)
+			{
+			final double v = values[k];
+			s0 += v * (v - 2 * dense[denseOffset + indices[k]]);
+			}
+		final double result = denseSquaredNorm + (s0 + s1);
+		if (result < SPARSE_CANCELLATION_THRESHOLD * (sparseSquaredNorm + denseSquaredNorm))
+			{
+			return squaredEuclideanSparseDenseExact(indices, values, nnz, dense, denseOffset, length);
+			}
+		return result;
+		}
+
+	/**
+	 * Computes the squared Euclidean distance between a sparse vector (as for sparseDot) and the dense vector of the given
+	 * length starting at dense[denseOffset] by summing the squared differences directly, as (v - c)^2 at the stored
+	 * positions and c^2 at the others.  This takes time proportional to the length, but suffers no cancellation.
+	 */
+	public static double squaredEuclideanSparseDenseExact(final int[] indices, final double[] values, final int nnz,
+	                                                      final double[] dense, final int denseOffset,
+	                                                      final int length)
+		{
+		// stored positions and uncovered positions are summed separately
+		double stored = 0;
+		double uncovered = 0;
+		int next = 0;
+		for (int k = 0; k < nnz; k++)
+			{
+			final int index = indices[k];
+			for (; next < index; next++)
+				{
+				final double c = dense[denseOffset + next];
+				uncovered += c * c;
+				}
+			final double d = values[k] - dense[denseOffset + index];
+			stored += d * d;
+			next = index + 1;
+			}
+		for (; next < length; next++)
+			{
+			final double c = dense[denseOffset + next];
+			uncovered += c * c;
+			}
+		return stored + uncovered;
+		}
+
+	/**
+	 * Computes the squared Euclidean distance between two sparse vectors (as for sparseDot) by merging their index lists.
+	 */
+	public static double squaredEuclideanSparseSparse(final int[] aIndices, final double[] aValues, final int aNnz,
+	                                                  final int[] bIndices, final double[] bValues, final int bNnz)
+		{
+		double s = 0;
+		int i = 0;
+		int j = 0;
+		while (i < aNnz && j < bNnz)
+			{
+			final int ai = aIndices[i];
+			final int bj = bIndices[j];
+			final double d;
+			if (ai == bj)
+				{
+				d = aValues[i++] - bValues[j++];
+				}
+			else if (ai < bj)
+				{
+				d = aValues[i++];
+				}
+			else
+				{
+				d = bValues[j++];
+				}
+			s += d * d;
+			}
+		for (; i < aNnz; i++)
+			{
+			s += aValues[i] * aValues[i];
+			}
+		for (; j < bNnz; j++)
+			{
+			s += bValues[j] * bValues[j];
+			}
+		return s;
+		}
+
+	private static void checkLengths(final double[] a, final double[] b)
+		{
+		if (a.length != b.length)
+			{
+			throw new DistanceMeasureRuntimeException("Can't compare arrays of different lengths: " + a.length + " vs. "
+			                                          + b.length);
+			}
+		}
+	}
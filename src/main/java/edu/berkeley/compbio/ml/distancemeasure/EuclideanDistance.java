@@ -9,12 +9,14 @@ package edu.berkeley.compbio.ml.distancemeasure;
 
 import com.davidsoergel.stats.DissimilarityMeasure;
 import edu.berkeley.compbio.ml.cluster.ClusterableDoubleArray;
+import edu.berkeley.compbio.ml.cluster.SparseClusterableArray;
 import org.apache.log4j.Logger;
 
 /**
  * @version 1.0
  */
-public class EuclideanDistance implements DissimilarityMeasure<ClusterableDoubleArray>
+public class EuclideanDistance implements DissimilarityMeasure<ClusterableDoubleArray>, BoundedDissimilarityMeasure<ClusterableDoubleArray>,
+	           DoubleArrayDissimilarityMeasure
 	{
 // ------------------------------ FIELDS ------------------------------
 
@@ -40,14 +42,47 @@ public class EuclideanDistance implements DissimilarityMeasure<ClusterableDouble
 	 */
 	public double distanceFromTo(final ClusterableDoubleArray a, final ClusterableDoubleArray b)
 		{
-		double sum = 0;
-		final int l = a.length();
-		for (int i = 0; i < l; i++)
+		final double sparse = SparseClusterableArray.squaredEuclidean(a, b);
+		if (!Double.isNaN(sparse))
 			{
-			double x = a.get(i);
-			double y = b.get(i);
-			sum += (x - y) * (x - y);
+			return Math.sqrt(sparse);
 			}
-		return Math.sqrt(sum);
+		return DoubleArrayKernels.euclidean(a.getArray(), 0, b.getArray(), 0, a.length());
+		}
+
+// --------------------- Interface BoundedDissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromToBounded(final ClusterableDoubleArray a, final ClusterableDoubleArray b,
+	                                    final double upperBound)
+		{
+		final double sparse = SparseClusterableArray.squaredEuclidean(a, b);
+		if (!Double.isNaN(sparse))
+			{
+			return Math.sqrt(sparse);
+			}
+		return DoubleArrayKernels.euclideanBounded(a.getArray(), 0, b.getArray(), 0, a.length(), upperBound);
+		}
+
+// --------------------- Interface DoubleArrayDissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromTo(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                             final int length)
+		{
+		return DoubleArrayKernels.euclidean(a, aOffset, b, bOffset, length);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromToBounded(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                                    final int length, final double upperBound)
+		{
+		return DoubleArrayKernels.euclideanBounded(a, aOffset, b, bOffset, length, upperBound);
 		}
 	}
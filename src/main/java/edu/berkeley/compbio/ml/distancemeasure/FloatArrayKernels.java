@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Distance kernels operating directly on regions of primitive float arrays.  The elements are widened to double before
+ * they are subtracted, and the sums are accumulated in double precision, so only the storage is single-precision.
+ * Otherwise these follow DoubleArrayKernels, including the four-way unrolling.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ * @see DoubleArrayKernels
+ */
+public final class FloatArrayKernels
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(FloatArrayKernels.class);
+
+	private static final int BOUND_CHECK_INTERVAL = 16;
+	private static final double BOUND_SLACK = 1.0 + 1e-12;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private FloatArrayKernels()
+		{
+		}
+
+// -------------------------- STATIC METHODS --------------------------
+
+	public static double squaredEuclidean(final float[] a, final int aOffset, final float[] b, final int bOffset,
+	                                      final int length)
+		{
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		final int unrolledEnd = length & ~3;
+		int i = 0;
+		for (; i < unrolledEnd; i += 4)
+			{
+			final double d0 = (double) a[aOffset + i] - b[bOffset + i];
+			final double d1 = (double) a[aOffset + i + 1] - b[bOffset + i + 1];
+			final double d2 = (double) a[aOffset + i + 2] - b[bOffset + i + 2];
+			final double d3 = (double) a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			}
+		for (; i < length; i++)
+			{
+			final double d = (double) a[aOffset + i] - b[bOffset + i];
+			s0 += d * d;
+			}
+		return (s0 + s1) + (s2 + s3);
+		}
+
+	/**
+	 * Computes the squared Euclidean distance exactly as squaredEuclidean does, unless it exceeds upperBound, in which
+	 * case the computation may be abandoned early and Double.POSITIVE_INFINITY returned.
+	 */
+	public static double squaredEuclideanBounded(final float[] a, final int aOffset, final float[] b,
+	                                             final int bOffset, final int length, final double upperBound)
+		{
+		if (upperBound == Double.POSITIVE_INFINITY)
+			{
+			return squaredEuclidean(a, aOffset, b, bOffset, length);
+			}
+		final double threshold = upperBound * BOUND_SLACK;
+
+		double s0 = 0;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		final int unrolledEnd = length & ~3;
+		int i = 0;
+		int nextCheck = BOUND_CHECK_INTERVAL;
+		for (; i < unrolledEnd; i += 4)
+			{
+			final double d0 = (double) a[aOffset + i] - b[bOffset + i];
+			final double d1 = (double) a[aOffset + i + 1] - b[bOffset + i + 1];
+			final double d2 = (double) a[aOffset + i + 2] - b[bOffset + i + 2];
+			final double d3 = (double) a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			if (i + 4 >= nextCheck)
+				{
+				if ((s0 + s1) + (s2 + s3) > threshold)
+					{
+					return Double.POSITIVE_INFINITY;
+					}
+				nextCheck += BOUND_CHECK_INTERVAL;
+				}
+			}
+		for (; i < length; i++)
+			{
+			final double d = (double) a[aOffset + i] - b[bOffset + i];
+			s0 += d * d;
+			}
+		return (s0 + s1) + (s2 + s3);
+		}
+
+	public static double euclidean(final float[] a, final int aOffset, final float[] b, final int bOffset,
+	                               final int length)
+		{
+		return Math.sqrt(squaredEuclidean(a, aOffset, b, bOffset, length));
+		}
+
+	/**
+	 * Computes the Euclidean distance exactly as euclidean does, unless it exceeds upperBound, in which case the
+	 * computation may be abandoned early and Double.POSITIVE_INFINITY returned.
+	 */
+	public static double euclideanBounded(final float[] a, final int aOffset, final float[] b, final int bOffset,
+	                                      final int length, final double upperBound)
+		{
+		final double squared = squaredEuclideanBounded(a, aOffset, b, bOffset, length, upperBound * upperBound);
+		return squared == Double.POSITIVE_INFINITY ? squared : Math.sqrt(squared);
+		}
+	}
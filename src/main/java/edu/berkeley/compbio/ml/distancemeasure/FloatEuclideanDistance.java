@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+import com.davidsoergel.stats.DissimilarityMeasure;
+import edu.berkeley.compbio.ml.cluster.ClusterableFloatArray;
+import org.apache.log4j.Logger;
+
+/**
+ * The Euclidean distance between single-precision vectors, computed in double precision.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class FloatEuclideanDistance
+		implements DissimilarityMeasure<ClusterableFloatArray>, BoundedDissimilarityMeasure<ClusterableFloatArray>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(FloatEuclideanDistance.class);
+
+	private static final FloatEuclideanDistance _instance = new FloatEuclideanDistance();
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	public static FloatEuclideanDistance getInstance()
+		{
+		return _instance;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface DissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromTo(final ClusterableFloatArray a, final ClusterableFloatArray b)
+		{
+		return FloatArrayKernels.euclidean(a.getFloatArray(), 0, b.getFloatArray(), 0, a.length());
+		}
+
+// --------------------- Interface BoundedDissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromToBounded(final ClusterableFloatArray a, final ClusterableFloatArray b,
+	                                    final double upperBound)
+		{
+		return FloatArrayKernels.euclideanBounded(a.getFloatArray(), 0, b.getFloatArray(), 0, a.length(), upperBound);
+		}
+	}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+import com.davidsoergel.stats.DissimilarityMeasure;
+import edu.berkeley.compbio.ml.cluster.ClusterableDoubleArray;
+import org.apache.log4j.Logger;
+
+/**
+ * The L1 (city-block) distance: the sum of the absolute differences in each dimension.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ManhattanDistance implements DissimilarityMeasure<ClusterableDoubleArray>, BoundedDissimilarityMeasure<ClusterableDoubleArray>,
+	           DoubleArrayDissimilarityMeasure
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ManhattanDistance.class);
+
+	private static final ManhattanDistance _instance = new ManhattanDistance();
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	public static ManhattanDistance getInstance()
+		{
+		return _instance;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface DissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromTo(final ClusterableDoubleArray a, final ClusterableDoubleArray b)
+		{
+		return DoubleArrayKernels.manhattan(a.getArray(), 0, b.getArray(), 0, a.length());
+		}
+
+// --------------------- Interface BoundedDissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromToBounded(final ClusterableDoubleArray a, final ClusterableDoubleArray b,
+	                                    final double upperBound)
+		{
+		return DoubleArrayKernels.manhattanBounded(a.getArray(), 0, b.getArray(), 0, a.length(), upperBound);
+		}
+
+// --------------------- Interface DoubleArrayDissimilarityMeasure ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromTo(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                             final int length)
+		{
+		return DoubleArrayKernels.manhattan(a, aOffset, b, bOffset, length);
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double distanceFromToBounded(final double[] a, final int aOffset, final double[] b, final int bOffset,
+	                                    final int length, final double upperBound)
+		{
+		return DoubleArrayKernels.manhattanBounded(a, aOffset, b, bOffset, length, upperBound);
+		}
+	}
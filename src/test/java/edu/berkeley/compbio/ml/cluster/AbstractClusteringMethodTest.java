@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import edu.berkeley.compbio.ml.cluster.kmeans.KmeansClustering;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class AbstractClusteringMethodTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(AbstractClusteringMethodTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void everyMutatorReplacesTheClusterSnapshot()
+		{
+		final KmeansClustering<ClusterableDoubleArray> method =
+				new KmeansClustering<ClusterableDoubleArray>(EuclideanDistance.getInstance(), new HashSet<String>(),
+				                                             new HashMap<String, Set<String>>(), null,
+				                                             new HashSet<String>());
+		final CentroidCluster<ClusterableDoubleArray> a = cluster(0, 1);
+		final CentroidCluster<ClusterableDoubleArray> b = cluster(1, 1);
+		final CentroidCluster<ClusterableDoubleArray> c = cluster(2, 0);
+		final CentroidCluster<ClusterableDoubleArray> d = cluster(3, 1);
+
+		method.addCluster(a);
+		method.addCluster(b);
+		List<CentroidCluster<ClusterableDoubleArray>> snapshot = method.getClusters();
+		assert method.getClusters() == snapshot;
+
+		method.addCluster(c);
+		snapshot = checkReplaced(method, snapshot, Arrays.asList(a, b, c));
+
+		method.setCluster(0, d);
+		snapshot = checkReplaced(method, snapshot, Arrays.asList(d, b, c));
+
+		method.removeClusters(Collections.singleton(b));
+		snapshot = checkReplaced(method, snapshot, Arrays.asList(d, c));
+
+		method.removeEmptyClusters();
+		snapshot = checkReplaced(method, snapshot, Arrays.asList(d));
+
+		method.restoreClusters(Arrays.asList(a, b, c));
+		checkReplaced(method, snapshot, Arrays.asList(a, b, c));
+		}
+
+	private static CentroidCluster<ClusterableDoubleArray> cluster(final int id, final int n)
+		{
+		final CentroidCluster<ClusterableDoubleArray> result =
+				new BasicCentroidCluster<ClusterableDoubleArray>(id, new ClusterableDoubleArray("c" + id, new double[]{id}));
+		result.getMutableWeightedLabels().incrementItemCount(n);
+		return result;
+		}
+
+	/**
+	 * Checks that the method now provides a new snapshot with the expected clusters, and that the previous one is
+	 * unchanged.
+	 */
+	private static List<CentroidCluster<ClusterableDoubleArray>> checkReplaced(
+			final KmeansClustering<ClusterableDoubleArray> method,
+			final List<CentroidCluster<ClusterableDoubleArray>> previous,
+			final List<CentroidCluster<ClusterableDoubleArray>> expected)
+		{
+		final int previousSize = previous.size();
+		final List<CentroidCluster<ClusterableDoubleArray>> result = method.getClusters();
+		assert result != previous;
+		assert result.equals(expected);
+		assert method.getClusters() == result;
+		assert previous.size() == previousSize;
+		return result;
+		}
+	}
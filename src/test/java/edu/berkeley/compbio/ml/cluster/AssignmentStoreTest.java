@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class AssignmentStoreTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(AssignmentStoreTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void storeBehavesLikeAHashMap()
+		{
+		final AssignmentStore<String> store = new AssignmentStore<String>();
+		final Map<String, String> expected = new HashMap<String, String>();
+		for (int i = 0; i < 200000; i++)
+			{
+			final String id = "p" + (i % 150000);
+			final String cluster = "c" + (i % 7);
+			assert store.put(id, cluster) == expected.put(id, cluster);
+			}
+		assert store.put(null, "c0") == null;
+		expected.put(null, "c0");
+		assert store.remove("p3").equals(expected.remove("p3"));
+
+		assert store.getNumOrdinals() == 150000;
+		assert store.size() == expected.size();
+		assert store.get("p3") == null;
+		assert store.get("unknown") == null;
+		assert store.get(null).equals("c0");
+		assert new HashMap<String, String>(store).equals(expected);
+		}
+
+	@Test
+	public void equalButDistinctClustersAreKeptApart()
+		{
+		final String a = new String("cluster");
+		final String b = new String("cluster");
+		final AssignmentStore<String> store = new AssignmentStore<String>();
+		store.put("x", a);
+		store.put("y", b);
+		assert store.get("x") == a;
+		assert store.get("y") == b;
+		}
+
+	@Test
+	public void manyClustersAreIndexedAndReleased()
+		{
+		final AssignmentStore<String> store = new AssignmentStore<String>();
+		final List<String> clusters = new ArrayList<String>();
+		for (int i = 0; i < 10000; i++)
+			{
+			clusters.add(new String("c"));
+			store.put("p" + i, clusters.get(i));
+			}
+		for (int i = 0; i < 10000; i++)
+			{
+			assert store.get("p" + i) == clusters.get(i);
+			}
+
+		store.release(clusters.subList(0, 5000));
+		assert store.get("p0") == null;
+		assert store.get("p4999") == null;
+		assert store.get("p5000") == clusters.get(5000);
+		assert store.size() == 5000;
+
+		// the released indexes are reused without disturbing the remaining assignments
+		final List<String> replacements = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++)
+			{
+			replacements.add(new String("c"));
+			store.put("q" + i, replacements.get(i));
+			}
+		for (int i = 0; i < 5000; i++)
+			{
+			assert store.get("q" + i) == replacements.get(i);
+			assert store.get("p" + (i + 5000)) == clusters.get(i + 5000);
+			}
+		}
+
+	@Test
+	public void ordinalsAreLookedUpWithoutInterning()
+		{
+		final AssignmentStore<String> store = new AssignmentStore<String>();
+		assert store.ordinalOf("x") == -1;
+		store.put("x", "c");
+		final int ordinal = store.ordinalOf("x");
+		assert ordinal >= 0;
+		assert store.setByOrdinal(ordinal, "d").equals("c");
+		assert store.get("x").equals("d");
+		assert store.getNumOrdinals() == 1;
+		}
+
+	@Test
+	public void idsWithCollidingHashesGetDistinctOrdinals()
+		{
+		// "Aa" and "BB" have the same hashCode, and so do all strings built from them
+		final AssignmentStore<String> store = new AssignmentStore<String>();
+		final List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 1 << 10; i++)
+			{
+			final StringBuilder sb = new StringBuilder();
+			for (int bit = 0; bit < 10; bit++)
+				{
+				sb.append((i & (1 << bit)) == 0 ? "Aa" : "BB");
+				}
+			ids.add(sb.toString());
+			store.put(ids.get(i), "c" + i);
+			}
+		for (int i = 0; i < ids.size(); i++)
+			{
+			assert store.ordinalOf(ids.get(i)) == i;
+			assert store.get(ids.get(i)).equals("c" + i);
+			}
+		assert store.ordinalOf("AaAaAaAaAaAaAaAaAaBBBB") == -1;
+		}
+
+	@Test
+	public void spilledAssignmentsSurviveAndGrow() throws IOException
+		{
+		final AssignmentStore<String> store = new AssignmentStore<String>();
+		for (int i = 0; i < 100000; i++)
+			{
+			store.put("p" + i, "c" + (i % 3));
+			}
+
+		final File file = File.createTempFile("assignments", ".bin");
+		file.deleteOnExit();
+		store.spillTo(file);
+
+		for (int i = 100000; i < 200000; i++)
+			{
+			store.put("p" + i, "c" + (i % 3));
+			}
+		for (int i = 0; i < 200000; i++)
+			{
+			assert store.get("p" + i).equals("c" + (i % 3));
+			}
+		assert store.size() == 200000;
+		store.close();
+
+		assert !new File(file.getPath() + ".tmp").exists();
+		assert file.length() == 4L * 65536 * 4;
+		}
+
+	@Test
+	public void failedSpillLeavesTheStoreOnTheHeap() throws IOException
+		{
+		final AssignmentStore<String> store = new AssignmentStore<String>();
+		store.put("x", "c");
+
+		final File dir = File.createTempFile("assignments", ".dir");
+		dir.delete();
+		final File file = new File(dir, "assignments.bin");
+		try
+			{
+			store.spillTo(file);
+			assert false;
+			}
+		catch (IOException e)
+			{
+			// expected, since the directory doesn't exist
+			}
+		assert !file.exists();
+
+		store.put("y", "d");
+		assert store.get("x").equals("c");
+		assert store.get("y").equals("d");
+
+		// and the store can still be spilled once there is somewhere to put it
+		dir.mkdir();
+		dir.deleteOnExit();
+		file.deleteOnExit();
+		store.spillTo(file);
+		assert store.get("y").equals("d");
+		store.close();
+		}
+	}
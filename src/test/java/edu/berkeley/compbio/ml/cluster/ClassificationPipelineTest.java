@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import edu.berkeley.compbio.ml.cluster.kmeans.KmeansClustering;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ClassificationPipelineTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ClassificationPipelineTest.class);
+
+	private static final Set<String> PREDICT_LABELS = new HashSet<String>(Arrays.asList("a", "b"));
+
+	// the sample whose scoring, decoding, or emitting fails in the failure tests
+	private static final int FAILING_SAMPLE = 50;
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test(timeOut = 30000)
+	public void singleThreadedStagesEmitInOrder() throws ClusterException
+		{
+		final ClassificationPipeline<ClusterableDoubleArray> pipeline =
+				new ClassificationPipeline<ClusterableDoubleArray>(makeMethod(), PREDICT_LABELS);
+		pipeline.setScoringThreads(1);
+		pipeline.setQueueCapacity(2);
+
+		// the pipeline's threads are reused from one run to the next
+		for (int run = 0; run < 3; run++)
+			{
+			final List<Classification> results = new ArrayList<Classification>();
+			pipeline.run(new CollectionClusterableIterator<ClusterableDoubleArray>(makeSamples(100)),
+			             new ClassificationSink()
+			             {
+			             public void accept(final Classification classification)
+				             {
+				             results.add(classification);
+				             }
+			             });
+
+			assert results.size() == 100;
+			for (int i = 0; i < results.size(); i++)
+				{
+				checkClassification(results.get(i), i);
+				}
+			}
+		}
+
+	@Test(timeOut = 30000)
+	public void manyThreadsEmitEverySampleOnce() throws ClusterException
+		{
+		final ClassificationPipeline<ClusterableDoubleArray> pipeline =
+				new ClassificationPipeline<ClusterableDoubleArray>(makeMethod(), PREDICT_LABELS);
+		pipeline.setDecodeThreads(3);
+		pipeline.setScoringThreads(4);
+		pipeline.setVotingThreads(2);
+		pipeline.setQueueCapacity(3);
+
+		final int[] emitted = new int[1000];
+		pipeline.run(new CollectionClusterableIterator<ClusterableDoubleArray>(makeSamples(emitted.length)),
+		             new ClassificationSink()
+		             {
+		             public synchronized void accept(final Classification classification)
+			             {
+			             final int i = (int) classification.getDistance();
+			             checkClassification(classification, i);
+			             emitted[i]++;
+			             }
+		             });
+
+		// every thread of every stage saw the end of its input, or run() would not have returned
+		for (final int count : emitted)
+			{
+			assert count == 1;
+			}
+		}
+
+	@Test(timeOut = 30000)
+	public void tiedLabelsGoToTheOneThatSortsFirst() throws ClusterException
+		{
+		final KmeansClustering<ClusterableDoubleArray> method =
+				new KmeansClustering<ClusterableDoubleArray>(EuclideanDistance.getInstance(), new HashSet<String>(),
+				                                             new HashMap<String, Set<String>>(), null,
+				                                             new HashSet<String>());
+		final ClusterableDoubleArray centroid = new ClusterableDoubleArray("c0", new double[]{0, 0});
+		centroid.getMutableWeightedLabels().add("b", 1.0, 0);
+		centroid.getMutableWeightedLabels().add("a", 1.0, 1);
+		final CentroidCluster<ClusterableDoubleArray> c = new BasicCentroidCluster<ClusterableDoubleArray>(0, centroid);
+		c.updateDerivedWeightedLabelsFromLocal();
+		method.addCluster(c);
+
+		// "b" is interned first, so a tie-break by id would choose it
+		final ClassificationPipeline<ClusterableDoubleArray> pipeline =
+				new ClassificationPipeline<ClusterableDoubleArray>(method,
+				                                                   new LinkedHashSet<String>(Arrays.asList("b", "a")));
+		final List<Classification> results = new ArrayList<Classification>();
+		pipeline.run(new CollectionClusterableIterator<ClusterableDoubleArray>(makeSamples(1)), new ClassificationSink()
+		{
+		public void accept(final Classification classification)
+			{
+			results.add(classification);
+			}
+		});
+
+		assert results.size() == 1;
+		assert results.get(0).getPredictedLabel().equals("a");
+		}
+
+	@Test(timeOut = 30000)
+	public void failureInDecodingStopsThePipeline() throws InterruptedException
+		{
+		final RuntimeException failure = new RuntimeException("decoding failed");
+		final ClusterableIterator<ClusterableDoubleArray> samples =
+				new CollectionClusterableIterator<ClusterableDoubleArray>(makeSamples(1000))
+				{
+				@Override
+				public ClusterableDoubleArray nextFullyLabelled()
+					{
+					final ClusterableDoubleArray result = super.nextFullyLabelled();
+					if (result.get(1) == FAILING_SAMPLE)
+						{
+						throw failure;
+						}
+					return result;
+					}
+				};
+		checkFailure(makeMethod(), samples, new ClassificationSink()
+		{
+		public void accept(final Classification classification)
+			{
+			}
+		}, failure);
+		}
+
+	@Test(timeOut = 30000)
+	public void failureInScoringStopsThePipeline() throws InterruptedException
+		{
+		final RuntimeException failure = new RuntimeException("scoring failed");
+		final KmeansClustering<ClusterableDoubleArray> method =
+				new KmeansClustering<ClusterableDoubleArray>(EuclideanDistance.getInstance(), new HashSet<String>(),
+				                                             new HashMap<String, Set<String>>(), null,
+				                                             new HashSet<String>())
+				{
+				@Override
+				protected ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> bestClusterMove(
+						final ClusterableDoubleArray p,
+						@Nullable final CentroidDistances<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> distances)
+					{
+					if (p.get(1) == FAILING_SAMPLE)
+						{
+						throw failure;
+						}
+					return super.bestClusterMove(p, distances);
+					}
+				};
+		addClusters(method);
+		checkFailure(method, new CollectionClusterableIterator<ClusterableDoubleArray>(makeSamples(1000)),
+		             new ClassificationSink()
+		             {
+		             public void accept(final Classification classification)
+			             {
+			             }
+		             }, failure);
+		}
+
+	@Test(timeOut = 30000)
+	public void failureInVotingStopsThePipeline() throws InterruptedException
+		{
+		final RuntimeException failure = new RuntimeException("voting failed");
+		checkFailure(makeMethod(), new CollectionClusterableIterator<ClusterableDoubleArray>(makeSamples(1000)),
+		             new ClassificationSink()
+		             {
+		             public void accept(final Classification classification)
+			             {
+			             if (classification.getDistance() == FAILING_SAMPLE)
+				             {
+				             throw failure;
+				             }
+			             }
+		             }, failure);
+		}
+
+	/**
+	 * Runs a pipeline that is expected to fail, on an executor of our own, and checks that the failure is rethrown, that
+	 * the executor is left running, and that every thread of every stage has stopped.
+	 */
+	private static void checkFailure(final KmeansClustering<ClusterableDoubleArray> method,
+	                                 final ClusterableIterator<ClusterableDoubleArray> samples,
+	                                 final ClassificationSink sink, final RuntimeException expected)
+			throws InterruptedException
+		{
+		final ClassificationPipeline<ClusterableDoubleArray> pipeline =
+				new ClassificationPipeline<ClusterableDoubleArray>(method, PREDICT_LABELS);
+		pipeline.setDecodeThreads(2);
+		pipeline.setScoringThreads(3);
+		pipeline.setVotingThreads(2);
+		pipeline.setQueueCapacity(4);
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		pipeline.setExecutor(executor);
+
+		try
+			{
+			pipeline.run(samples, sink);
+			assert false;
+			}
+		catch (ClusterException e)
+			{
+			assert e.getCause() == expected;
+			}
+
+		assert !executor.isShutdown();
+		executor.shutdown();
+		assert executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+
+	private static void checkClassification(final Classification classification, final int i)
+		{
+		assert classification.getDistance() == i;
+		assert classification.getPredictedLabel().equals(i % 2 == 0 ? "a" : "b");
+		assert classification.getConfidence() == 1;
+		}
+
+	private static KmeansClustering<ClusterableDoubleArray> makeMethod()
+		{
+		final KmeansClustering<ClusterableDoubleArray> result =
+				new KmeansClustering<ClusterableDoubleArray>(EuclideanDistance.getInstance(), new HashSet<String>(),
+				                                             new HashMap<String, Set<String>>(), null,
+				                                             new HashSet<String>());
+		addClusters(result);
+		return result;
+		}
+
+	/**
+	 * Adds a cluster labelled "a" at the origin and one labelled "b" far along the first axis
+	 */
+	private static void addClusters(final KmeansClustering<ClusterableDoubleArray> method)
+		{
+		final String[] labels = {"a", "b"};
+		for (int i = 0; i < labels.length; i++)
+			{
+			final ClusterableDoubleArray centroid = new ClusterableDoubleArray("c" + i, new double[]{1000 * i, 0});
+			centroid.getMutableWeightedLabels().add(labels[i], 1.0, 1);
+			final CentroidCluster<ClusterableDoubleArray> c = new BasicCentroidCluster<ClusterableDoubleArray>(i, centroid);
+			c.updateDerivedWeightedLabelsFromLocal();
+			method.addCluster(c);
+			}
+		}
+
+	/**
+	 * Sample i lies at distance i from cluster "a" if i is even, or from cluster "b" if it is odd, so that each
+	 * classification identifies its sample by its distance.
+	 */
+	private static List<ClusterableDoubleArray> makeSamples(final int n)
+		{
+		final List<ClusterableDoubleArray> result = new ArrayList<ClusterableDoubleArray>(n);
+		for (int i = 0; i < n; i++)
+			{
+			result.add(new ClusterableDoubleArray("s" + i, new double[]{1000 * (i % 2), i}));
+			}
+		return result;
+		}
+	}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ClusterMaskCacheTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ClusterMaskCacheTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void binnedFiltersAreCompiledOncePerBin()
+		{
+		final List<CentroidCluster<ClusterableDoubleArray>> clusters =
+				new ArrayList<CentroidCluster<ClusterableDoubleArray>>();
+		for (int i = 0; i < 10; i++)
+			{
+			clusters.add(new BasicCentroidCluster<ClusterableDoubleArray>(i, new ClusterableDoubleArray("c" + i,
+			                                                                                          new double[]{i})));
+			}
+		final ClusterMaskCache<ClusterableDoubleArray> cache = new ClusterMaskCache<ClusterableDoubleArray>(clusters);
+		assert cache.isFor(clusters);
+		assert !cache.isFor(new ArrayList<CentroidCluster<ClusterableDoubleArray>>(clusters));
+
+		final AtomicInteger calls = new AtomicInteger();
+		final PointClusterFilter<ClusterableDoubleArray> evenIds = new PointClusterFilter<ClusterableDoubleArray>()
+		{
+		public boolean isProhibited(final Cluster<ClusterableDoubleArray> cluster)
+			{
+			calls.incrementAndGet();
+			return cluster.getId() % 2 == 0;
+			}
+		};
+
+		assert cache.getProhibited(evenIds) == null;
+
+		final BitSet prohibited =
+				cache.getProhibited(new BinnedPointClusterFilter<ClusterableDoubleArray>("even", evenIds));
+		assert calls.get() == 10;
+		assert cache.getProhibited(new BinnedPointClusterFilter<ClusterableDoubleArray>("even", evenIds)) == prohibited;
+		assert calls.get() == 10;
+
+		final List<Integer> permitted = new ArrayList<Integer>();
+		for (int i = ClusterMaskCache.nextPermitted(prohibited, 0); i < clusters.size();
+		     i = ClusterMaskCache.nextPermitted(prohibited, i + 1))
+			{
+			permitted.add(i);
+			}
+		assert permitted.equals(Arrays.asList(1, 3, 5, 7, 9));
+		assert ClusterMaskCache.nextPermitted(null, 4) == 4;
+		}
+	}
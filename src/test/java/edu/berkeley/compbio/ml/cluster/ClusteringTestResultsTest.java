@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ClusteringTestResultsTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ClusteringTestResultsTest.class);
+
+	private static final String[] LABELS = new String[]{"a", "b", "c"};
+	private static final String[] PREDICTION_SETS = new String[]{"broad", "detailed"};
+
+	private static final int SAMPLES = 2000;
+	private static final int THREADS = 4;
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void stripedResultsMatchUnstripedResults() throws InterruptedException
+		{
+		final ClusteringTestResults<String> unstriped = new ClusteringTestResults<String>(false);
+		for (int i = 0; i < SAMPLES; i++)
+			{
+			record(unstriped, i);
+			}
+		unstriped.finish();
+
+		final ClusteringTestResults<String> striped = new ClusteringTestResults<String>(true);
+		final Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < threads.length; t++)
+			{
+			final int first = t;
+			threads[t] = new Thread()
+			{
+			@Override
+			public void run()
+				{
+				for (int i = first; i < SAMPLES; i += THREADS)
+					{
+					record(striped, i);
+					}
+				}
+			};
+			threads[t].start();
+			}
+		for (final Thread thread : threads)
+			{
+			thread.join();
+			}
+		striped.finish();
+
+		assert unstriped.getError() > 0;
+		assert unstriped.getUnknown() > 0;
+		assert striped.getError() == unstriped.getError();
+		assert striped.getUnknown() == unstriped.getUnknown();
+
+		// the stripes are merged in no particular order
+		assert sorted(striped.getComputedDistancesArray()).equals(sorted(unstriped.getComputedDistancesArray()));
+		assert sorted(striped.getSecondToBestDistanceRatiosArray())
+				.equals(sorted(unstriped.getSecondToBestDistanceRatiosArray()));
+		assert sorted(striped.getBestVoteProportionsArray()).equals(sorted(unstriped.getBestVoteProportionsArray()));
+		assert sorted(striped.getSecondToBestVoteRatiosArray())
+				.equals(sorted(unstriped.getSecondToBestVoteRatiosArray()));
+
+		for (final String predictionSetName : PREDICTION_SETS)
+			{
+			checkSame(striped.getCrossValidationResults(predictionSetName),
+			          unstriped.getCrossValidationResults(predictionSetName));
+			}
+		}
+
+	@Test
+	public void resultsRecordedAfterFinishAreRejected() throws InterruptedException
+		{
+		final ClusteringTestResults<String> striped = new ClusteringTestResults<String>(true);
+		record(striped, 1);
+		striped.finish();
+		assert striped.getComputedDistancesArray().length == 1;
+
+		// both from the thread whose stripe was merged, and from a thread that never had one
+		try
+			{
+			record(striped, 2);
+			assert false;
+			}
+		catch (ClusterRuntimeException e)
+			{
+			// ok
+			}
+		final boolean[] rejected = new boolean[1];
+		final Thread other = new Thread()
+		{
+		@Override
+		public void run()
+			{
+			try
+				{
+				record(striped, 3);
+				}
+			catch (ClusterRuntimeException e)
+				{
+				rejected[0] = true;
+				}
+			}
+		};
+		other.start();
+		other.join();
+		assert rejected[0];
+		assert striped.getComputedDistancesArray().length == 1;
+		}
+
+	@Test
+	public void mergedCrossValidationResultsMatchDirectlyRecordedOnes()
+		{
+		final DistanceBasedMultiClassCrossValidationResults<String> direct =
+				new DistanceBasedMultiClassCrossValidationResults<String>();
+		final DistanceBasedMultiClassCrossValidationResults<String> firstHalf =
+				new DistanceBasedMultiClassCrossValidationResults<String>();
+		final DistanceBasedMultiClassCrossValidationResults<String> secondHalf =
+				new DistanceBasedMultiClassCrossValidationResults<String>();
+		for (int i = 0; i < SAMPLES; i++)
+			{
+			record(direct, i);
+			record(i < SAMPLES / 3 ? firstHalf : secondHalf, i);
+			}
+
+		final DistanceBasedMultiClassCrossValidationResults<String> merged =
+				new DistanceBasedMultiClassCrossValidationResults<String>();
+		merged.addAll(firstHalf);
+		merged.addAll(secondHalf);
+
+		// samples with no actual label are kept apart from the confusion matrix
+		assert direct.getTotalActual(null) > 0;
+		assert merged.getTotalActual(null) == direct.getTotalActual(null);
+
+		// the inputs are untouched
+		assert firstHalf.getPredictionDistances().size() + secondHalf.getPredictionDistances().size() == SAMPLES;
+
+		direct.finish();
+		merged.finish();
+		checkSame(merged, direct);
+
+		// merged in order, so even the per-sample lists match exactly
+		assert merged.getPredictionDistances().equals(direct.getPredictionDistances());
+		}
+
+	/**
+	 * Records the results of one imaginary test sample, which are determined by its index alone
+	 */
+	private static void record(final ClusteringTestResults<String> results, final int i)
+		{
+		final Random random = new Random(i);
+		final String predictionSetName = PREDICTION_SETS[i % PREDICTION_SETS.length];
+
+		if (i % 10 == 0)
+			{
+			results.addClusterResult(Double.NaN, random.nextDouble(), random.nextDouble(), random.nextDouble());
+			}
+		else
+			{
+			results.addClusterResult(random.nextDouble(), random.nextDouble(), random.nextDouble(), random.nextDouble());
+			}
+
+		final String actual = LABELS[random.nextInt(LABELS.length)];
+		final String predicted = i % 7 == 0 ? null : LABELS[random.nextInt(LABELS.length)];
+		final double broadWrongness = i % 13 == 0 ? Double.NaN : random.nextDouble();
+		results.addPredictionResult(predictionSetName, actual, predicted, random.nextDouble(), broadWrongness,
+		                            random.nextDouble());
+
+		if (predicted == null)
+			{
+			results.incrementUnknown();
+			results.incrementShouldNotHaveBeenUnknown(predictionSetName);
+			}
+		if (i % 5 == 0)
+			{
+			results.incrementOther(predictionSetName);
+			}
+		if (i % 11 == 0)
+			{
+			results.incrementShouldHaveBeenUnknown(predictionSetName);
+			}
+		if (i % 17 == 0)
+			{
+			results.incrementShouldNotHaveBeenOther(predictionSetName);
+			}
+		}
+
+	/**
+	 * Records the results of one imaginary test sample directly, including some with no actual label
+	 */
+	private static void record(final DistanceBasedMultiClassCrossValidationResults<String> results, final int i)
+		{
+		final Random random = new Random(i);
+		final String actual = i % 19 == 0 ? null : LABELS[random.nextInt(LABELS.length)];
+		final String predicted = i % 7 == 0 ? null : LABELS[random.nextInt(LABELS.length)];
+		results.addSample(actual, predicted, random.nextDouble(), random.nextDouble(), random.nextDouble());
+
+		if (i % 13 == 0)
+			{
+			results.addIgnoredSample();
+			}
+		if (i % 5 == 0)
+			{
+			results.incrementOther();
+			}
+		if (i % 11 == 0)
+			{
+			results.incrementShouldHaveBeenUnknown();
+			}
+		if (i % 17 == 0)
+			{
+			results.incrementShouldNotHaveBeenUnknown();
+			}
+		if (i % 23 == 0)
+			{
+			results.incrementShouldNotHaveBeenOther();
+			}
+		}
+
+	private static void checkSame(final DistanceBasedMultiClassCrossValidationResults<String> actual,
+	                              final DistanceBasedMultiClassCrossValidationResults<String> expected)
+		{
+		assert actual.getLabels().equals(expected.getLabels());
+		assert !expected.getLabels().isEmpty();
+		for (final String real : expected.getLabels())
+			{
+			assert actual.getCount(real, null) == expected.getCount(real, null);
+			for (final String predicted : expected.getLabels())
+				{
+				assert actual.getCount(real, predicted) == expected.getCount(real, predicted);
+				}
+			}
+		assert Arrays.equals(actual.getActualCounts(), expected.getActualCounts());
+		assert Arrays.equals(actual.getPredictedCounts(), expected.getPredictedCounts());
+		assert actual.accuracy() == expected.accuracy();
+		assert actual.unknown() == expected.unknown();
+
+		assert actual.getShouldHaveBeenUnknown() == expected.getShouldHaveBeenUnknown();
+		assert actual.getShouldNotHaveBeenUnknown() == expected.getShouldNotHaveBeenUnknown();
+		assert actual.getOther() == expected.getOther();
+		assert actual.getShouldNotHaveBeenOther() == expected.getShouldNotHaveBeenOther();
+		assert actual.getIgnoredSamples() == expected.getIgnoredSamples();
+
+		assert sorted(actual.getPredictionDistances()).equals(sorted(expected.getPredictionDistances()));
+		assert sorted(actual.getPredictionDistancesWithPrecisionCost())
+				.equals(sorted(expected.getPredictionDistancesWithPrecisionCost()));
+		assert sorted(actual.getLabelWithinClusterProbabilitiesArray())
+				.equals(sorted(expected.getLabelWithinClusterProbabilitiesArray()));
+		}
+
+	private static List<Double> sorted(final Double[] values)
+		{
+		return sorted(Arrays.asList(values));
+		}
+
+	private static List<Double> sorted(final List<Double> values)
+		{
+		final List<Double> result = new ArrayList<Double>(values);
+		Collections.sort(result);
+		return result;
+		}
+	}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class DenseCentroidMatrixTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(DenseCentroidMatrixTest.class);
+
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * @return 500 centroids on a coarse grid, so that there are plenty of ties
+	 */
+	private static DenseCentroidMatrix<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> gridMatrix(
+			final Random random)
+		{
+		final List<CentroidCluster<ClusterableDoubleArray>> clusters =
+				new ArrayList<CentroidCluster<ClusterableDoubleArray>>();
+		for (int i = 0; i < 500; i++)
+			{
+			final double[] centroid = new double[]{random.nextInt(8), random.nextInt(8), random.nextInt(8)};
+			clusters.add(new BasicCentroidCluster<ClusterableDoubleArray>(i, new ClusterableDoubleArray("c" + i,
+			                                                                                          centroid)));
+			}
+		return DenseCentroidMatrix.build(clusters);
+		}
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void partitionedScanFindsTheSameNearestCentroid()
+		{
+		final Random random = new Random(1234);
+		final DenseCentroidMatrix<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> matrix =
+				gridMatrix(random);
+
+		final PointClusterFilter<ClusterableDoubleArray> oddIds = new PointClusterFilter<ClusterableDoubleArray>()
+		{
+		public boolean isProhibited(final Cluster<ClusterableDoubleArray> cluster)
+			{
+			return cluster.getId() % 2 == 1;
+			}
+		};
+		final List<PointClusterFilter<ClusterableDoubleArray>> filters =
+				new ArrayList<PointClusterFilter<ClusterableDoubleArray>>();
+		filters.add(null);
+		filters.add(oddIds);
+
+		final ExecutionPolicy policy = ExecutionPolicy.fixedPool(4, 1);
+		for (int q = 0; q < 50; q++)
+			{
+			final double[] query = new double[]{random.nextDouble() * 8, random.nextDouble() * 8, random.nextInt(8)};
+			for (final PointClusterFilter<ClusterableDoubleArray> filter : filters)
+				{
+				for (final boolean inclusive : new boolean[]{false, true})
+					{
+					final ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> expected =
+							new ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>>();
+					expected.secondBestDistance = Double.POSITIVE_INFINITY;
+					matrix.scan(query, EuclideanDistance.getInstance(), filter, inclusive, expected);
+
+					for (final int partitionRows : new int[]{1, 7, 64, 499})
+						{
+						final ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> actual =
+								new ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>>();
+						actual.secondBestDistance = Double.POSITIVE_INFINITY;
+						matrix.scan(query, EuclideanDistance.getInstance(), filter, inclusive, actual, policy,
+						            partitionRows);
+
+						assert actual.bestCluster == expected.bestCluster;
+						assert actual.bestDistance == expected.bestDistance;
+						assert actual.secondBestDistance == expected.secondBestDistance;
+						}
+					}
+				}
+			}
+		}
+
+	@Test
+	public void partitionedScanStartsFromTheGivenMove()
+		{
+		final Random random = new Random(5678);
+		final DenseCentroidMatrix<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> matrix =
+				gridMatrix(random);
+		final CentroidCluster<ClusterableDoubleArray> preset =
+				new BasicCentroidCluster<ClusterableDoubleArray>(-1, null);
+
+		// a preset best that the rows sometimes beat and sometimes don't, with a sensible, a tight and the default (zero)
+		// second-best
+		final double[][] presets = new double[][]{{1, 2}, {1, 1}, {0.5, 0}, {3, 4}, {0, 0}};
+		final ExecutionPolicy policy = ExecutionPolicy.fixedPool(4, 1);
+		for (int q = 0; q < 50; q++)
+			{
+			final double[] query = new double[]{random.nextDouble() * 8, random.nextDouble() * 8, random.nextInt(8)};
+			for (final double[] bests : presets)
+				{
+				for (final boolean inclusive : new boolean[]{false, true})
+					{
+					final ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> expected =
+							new ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>>();
+					expected.bestCluster = preset;
+					expected.bestDistance = bests[0];
+					expected.secondBestDistance = bests[1];
+					matrix.scan(query, EuclideanDistance.getInstance(), null, inclusive, expected);
+
+					for (final int partitionRows : new int[]{1, 7, 64, 499})
+						{
+						final ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> actual =
+								new ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>>();
+						actual.bestCluster = preset;
+						actual.bestDistance = bests[0];
+						actual.secondBestDistance = bests[1];
+						matrix.scan(query, EuclideanDistance.getInstance(), null, inclusive, actual, policy,
+						            partitionRows);
+
+						assert actual.bestCluster == expected.bestCluster;
+						assert actual.bestDistance == expected.bestDistance;
+						assert actual.secondBestDistance == expected.secondBestDistance;
+						}
+					}
+				}
+			}
+		}
+	}
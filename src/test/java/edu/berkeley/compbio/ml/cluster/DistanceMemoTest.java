@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import edu.berkeley.compbio.ml.cluster.kmeans.KmeansClustering;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class DistanceMemoTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(DistanceMemoTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void sameVersionIsAHit()
+		{
+		final DistanceMemo<ClusterableDoubleArray> memo = new DistanceMemo<ClusterableDoubleArray>(100);
+		final ClusterableDoubleArray p = TestSamples.withId("p", 1, 2);
+		final CentroidCluster<ClusterableDoubleArray> c =
+				new BasicCentroidCluster<ClusterableDoubleArray>(7, TestSamples.withId("c", 0, 0));
+
+		assert memo.get(memo.keyFor(p, c)) == null;
+		memo.put(memo.keyFor(p, c), 3.0);
+		assert memo.get(memo.keyFor(p, c)) == 3.0;
+		assert memo.getHits() == 1;
+		assert memo.getMisses() == 1;
+
+		// a different prior is a different distance
+		assert memo.get(memo.keyFor(p, c, 0.5)) == null;
+		memo.put(memo.keyFor(p, c, 0.5), 4.0);
+		assert memo.get(memo.keyFor(p, c, 0.5)) == 4.0;
+		assert memo.get(memo.keyFor(p, c)) == 3.0;
+
+		// points without ids are never cached
+		final ClusterableDoubleArray anonymous = new ClusterableDoubleArray("a", new double[]{1, 2});
+		assert memo.keyFor(anonymous, c) == null;
+		assert memo.get(null) == null;
+		memo.put(null, 5.0);
+		assert memo.size() == 2;
+		assert memo.getHits() == 3;
+		assert memo.getMisses() == 2;
+		}
+
+	@Test
+	public void movedCentroidIsAMiss()
+		{
+		final DistanceMemo<ClusterableDoubleArray> memo = new DistanceMemo<ClusterableDoubleArray>(100);
+		final ClusterableDoubleArray p = TestSamples.withId("p", 1, 2);
+		final AdditiveCentroidCluster<ClusterableDoubleArray> c =
+				new AdditiveCentroidCluster<ClusterableDoubleArray>(7, TestSamples.withId("c", 0, 0));
+
+		final DistanceMemo.Key before = memo.keyFor(p, c);
+		memo.put(before, 3.0);
+
+		// centroidChanged() gives the centroid a new version
+		c.add(TestSamples.withId("q", 1, 1));
+		assert memo.get(memo.keyFor(p, c)) == null;
+
+		// a key taken before the move still refers to the old centroid
+		assert memo.get(before) == 3.0;
+
+		memo.put(memo.keyFor(p, c), 2.0);
+		assert memo.get(memo.keyFor(p, c)) == 2.0;
+		}
+
+	@Test
+	public void boundedDistancesAreCachedOnlyIfExact()
+		{
+		final KmeansClustering<ClusterableDoubleArray> method =
+				new KmeansClustering<ClusterableDoubleArray>(EuclideanDistance.getInstance(), new HashSet<String>(),
+				                                             new HashMap<String, Set<String>>(), null,
+				                                             new HashSet<String>());
+		final DistanceMemo<ClusterableDoubleArray> memo = new DistanceMemo<ClusterableDoubleArray>(100);
+		method.setDistanceMemo(memo);
+
+		final ClusterableDoubleArray p = TestSamples.withId("p", 0, 0, 0, 0, 0, 0, 0, 0);
+		final CentroidCluster<ClusterableDoubleArray> c =
+				new BasicCentroidCluster<ClusterableDoubleArray>(7, TestSamples.withId("c", 3, 3, 3, 3, 3, 3, 3, 3));
+		final double exact = EuclideanDistance.getInstance().distanceFromTo(p, c.getCentroid());
+
+		// abandoned beyond the bound, so the result may be anything larger, and must not be reused
+		assert method.distanceToCentroid(p, c, 1) > 1;
+		assert memo.size() == 0;
+
+		assert method.distanceToCentroid(p, c, exact) == exact;
+		assert memo.size() == 1;
+		assert memo.getHits() == 0;
+
+		// now found in the memo, whatever the bound
+		assert method.distanceToCentroid(p, c, 1) == exact;
+		assert method.distanceToCentroid(p, c, Double.POSITIVE_INFINITY) == exact;
+		assert memo.getHits() == 2;
+		}
+
+	@Test
+	public void leastRecentlyUsedEntriesAreEvicted()
+		{
+		final DistanceMemo<ClusterableDoubleArray> memo = new DistanceMemo<ClusterableDoubleArray>(64);
+		final CentroidCluster<ClusterableDoubleArray> c =
+				new BasicCentroidCluster<ClusterableDoubleArray>(7, TestSamples.withId("c", 0));
+
+		final DistanceMemo.Key kept = memo.keyFor(TestSamples.withId("kept", 0), c);
+		memo.put(kept, -1.0);
+		final DistanceMemo.Key first = memo.keyFor(TestSamples.withId("p0", 0), c);
+		memo.put(first, 0.0);
+
+		for (int i = 1; i < 1000; i++)
+			{
+			memo.put(memo.keyFor(TestSamples.withId("p" + i, i), c), i);
+			assert memo.size() <= memo.getMaxEntries();
+
+			// using an entry keeps it from being the eldest in its stripe
+			assert memo.get(kept) == -1.0;
+			}
+
+		assert memo.get(first) == null;
+		assert memo.get(memo.keyFor(TestSamples.withId("p999", 999), c)) == 999.0;
+
+		memo.clear();
+		assert memo.size() == 0;
+		assert memo.get(kept) == null;
+		}
+	}
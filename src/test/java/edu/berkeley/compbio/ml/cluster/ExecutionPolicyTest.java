@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.conja.Function;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ExecutionPolicyTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ExecutionPolicyTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void everyPolicyProcessesEveryItemOnce()
+		{
+		final List<Integer> items = new ArrayList<Integer>();
+		for (int i = 1; i <= 10000; i++)
+			{
+			items.add(i);
+			}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(3);
+		final ExecutionPolicy fixedPool = ExecutionPolicy.fixedPool(4, 1);
+		try
+			{
+			for (final ExecutionPolicy policy : new ExecutionPolicy[]{
+					ExecutionPolicy.callerRuns(), ExecutionPolicy.using(executor, 3, 7), fixedPool})
+				{
+				final AtomicLong sum = new AtomicLong();
+				policy.forEach(items, new Function<Integer, Void>()
+				{
+				public Void apply(final Integer i)
+					{
+					sum.addAndGet(i);
+					return null;
+					}
+				});
+				assert sum.get() == 10000L * 10001L / 2;
+				}
+			}
+		finally
+			{
+			executor.shutdown();
+			fixedPool.shutdown();
+			}
+		}
+
+	@Test
+	public void shutdownReleasesOnlyAnOwnedPool()
+		{
+		final List<Integer> items = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++)
+			{
+			items.add(i);
+			}
+		final Function<Integer, Void> nothing = new Function<Integer, Void>()
+		{
+		public Void apply(final Integer i)
+			{
+			return null;
+			}
+		};
+
+		// the caller's executor is still usable after the policy is shut down
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+			{
+			final ExecutionPolicy using = ExecutionPolicy.using(executor, 2, 5);
+			using.shutdown();
+			assert !executor.isShutdown();
+			ExecutionPolicy.using(executor, 2, 5).forEach(items, nothing);
+			}
+		finally
+			{
+			executor.shutdown();
+			}
+
+		final ExecutionPolicy fixedPool = ExecutionPolicy.fixedPool(2, 5);
+		fixedPool.forEach(items, nothing);
+		fixedPool.shutdown();
+		try
+			{
+			fixedPool.forEach(items, nothing);
+			assert false;
+			}
+		catch (RejectedExecutionException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void batchedLoopsProcessEverySampleOnce()
+		{
+		final List<ClusterableDoubleArray> samples = new ArrayList<ClusterableDoubleArray>();
+		for (int i = 1; i <= 1000; i++)
+			{
+			samples.add(new ClusterableDoubleArray("s" + i, new double[]{i}));
+			}
+
+		final ExecutionPolicy policy = ExecutionPolicy.fixedPool(3, 1);
+		for (final int batchSize : new int[]{0, 1, 7, 2000})
+			{
+			final AtomicLong sum = new AtomicLong();
+			policy.forEach(new CollectionClusterableIterator<ClusterableDoubleArray>(samples), batchSize,
+			               new Function<ClusterableDoubleArray, Void>()
+			{
+			public Void apply(final ClusterableDoubleArray s)
+				{
+				sum.addAndGet((long) s.getArray()[0]);
+				return null;
+				}
+			});
+			assert sum.get() == 1000L * 1001L / 2;
+			}
+		policy.shutdown();
+		}
+
+	@Test
+	public void batchesAreFilledDespiteShortReads()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(25);
+
+		// like a PrefetchingClusterableIterator, returns only some of the samples asked for while not yet exhausted
+		final ClusterableIterator<ClusterableDoubleArray> shortReads =
+				new CollectionClusterableIterator<ClusterableDoubleArray>(samples)
+				{
+				@Override
+				public int nextBatch(final List<? super ClusterableDoubleArray> buffer, final int max)
+					{
+					return super.nextBatch(buffer, Math.min(max, 3));
+					}
+				};
+
+		final ExecutionPolicy.BatchIterator<ClusterableDoubleArray> batches =
+				new ExecutionPolicy.BatchIterator<ClusterableDoubleArray>(shortReads, 10);
+		assert batches.next().equals(samples.subList(0, 10));
+		assert batches.next().equals(samples.subList(10, 20));
+		assert batches.next().equals(samples.subList(20, 25));
+		try
+			{
+			batches.next();
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void batchesFallBackOnNextForPlainIterators()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(15);
+		final CollectionClusterableIterator<ClusterableDoubleArray> underlying =
+				new CollectionClusterableIterator<ClusterableDoubleArray>(samples);
+
+		// offers only next(), not nextBatch()
+		final ClusterableIterator<ClusterableDoubleArray> plain = new ClusterableIterator<ClusterableDoubleArray>()
+		{
+		public ClusterableDoubleArray next()
+			{
+			return underlying.next();
+			}
+
+		public ClusterableDoubleArray nextFullyLabelled()
+			{
+			return underlying.nextFullyLabelled();
+			}
+		};
+
+		final ExecutionPolicy.BatchIterator<ClusterableDoubleArray> batches =
+				new ExecutionPolicy.BatchIterator<ClusterableDoubleArray>(plain, 10);
+		assert batches.next().equals(samples.subList(0, 10));
+		assert batches.next().equals(samples.subList(10, 15));
+		try
+			{
+			batches.next();
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void failuresAreRethrown()
+		{
+		final List<Integer> items = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++)
+			{
+			items.add(i);
+			}
+		final ExecutionPolicy policy = ExecutionPolicy.fixedPool(2, 5);
+		try
+			{
+			policy.forEach(items, new Function<Integer, Void>()
+			{
+			public Void apply(final Integer i)
+				{
+				if (i == 42)
+					{
+					throw new IllegalStateException();
+					}
+				return null;
+				}
+			});
+			assert false;
+			}
+		catch (IllegalStateException e)
+			{
+			// expected
+			}
+		finally
+			{
+			policy.shutdown();
+			}
+		}
+	}
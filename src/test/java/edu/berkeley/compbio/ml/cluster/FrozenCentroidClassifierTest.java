@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class FrozenCentroidClassifierTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(FrozenCentroidClassifierTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void nearestCentroidLabelsAreChosen() throws NoGoodClusterException
+		{
+		final FrozenCentroidClassifier frozen =
+				FrozenCentroidClassifier.compile(makeClusters(), new EuclideanDistance(), 2.0, true);
+		assert frozen.getNumClusters() == 3;
+		assert frozen.getDimensions() == 2;
+
+		final Set<String> predictLabels = new HashSet<String>(Arrays.asList("a", "b", "c"));
+		assert frozen.bestLabel(new ClusterableDoubleArray("p", new double[]{0.1, 0.1}), predictLabels).equals("a");
+		assert frozen.bestLabel(new ClusterableDoubleArray("p", new double[]{10.2, 0}), predictLabels).equals("b");
+
+		// the nearest cluster is dominated by "b", but only "c" is permissible
+		final LabelMask onlyC = frozen.compileLabels(new HashSet<String>(Arrays.asList("c")));
+		assert frozen.bestLabel(new double[]{10, 0.3}, onlyC).equals("c");
+
+		assert frozen.getClusterId(frozen.nearestCluster(new double[]{0, 9.5})) == 102;
+		assert frozen.predictLabelWeights(new ClusterableDoubleArray("p", new double[]{0, 10})).getItemNormalizedMap()
+				.keySet().equals(new HashSet<String>(Arrays.asList("c")));
+
+		try
+			{
+			frozen.nearestCluster(new double[]{5, 5});
+			assert false;
+			}
+		catch (NoGoodClusterException e)
+			{
+			// expected: beyond the unknown distance threshold
+			}
+		}
+
+	private static List<CentroidCluster<ClusterableDoubleArray>> makeClusters()
+		{
+		final List<CentroidCluster<ClusterableDoubleArray>> result =
+				new ArrayList<CentroidCluster<ClusterableDoubleArray>>();
+		final double[][] centroids = {{0, 0}, {10, 0}, {0, 10}};
+		final String[][] labels = {{"a"}, {"b", "b", "c"}, {"c"}};
+		for (int i = 0; i < centroids.length; i++)
+			{
+			final ClusterableDoubleArray centroid = new ClusterableDoubleArray("c" + i, centroids[i]);
+			for (final String label : labels[i])
+				{
+				centroid.getMutableWeightedLabels().add(label, 1.0, 1);
+				}
+			final CentroidCluster<ClusterableDoubleArray> c =
+					new BasicCentroidCluster<ClusterableDoubleArray>(100 + i, centroid);
+			c.updateDerivedWeightedLabelsFromLocal();
+			result.add(c);
+			}
+		return result;
+		}
+	}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.collections.ConcurrentHashWeightedSet;
+import com.davidsoergel.dsutils.collections.WeightedSet;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class LabelWeightsTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(LabelWeightsTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void dictionaryAssignsDenseIdsInOrderOfFirstSighting()
+		{
+		final LabelDictionary dictionary = new LabelDictionary();
+		assert dictionary.intern("b") == 0;
+		assert dictionary.intern("a") == 1;
+		assert dictionary.intern("b") == 0;
+		assert dictionary.idOf("c") == -1;
+		assert dictionary.size() == 2;
+		assert dictionary.labelOf(1).equals("a");
+
+		final LabelMask mask = dictionary.mask(new HashSet<String>(Arrays.asList("a", "c")));
+		assert mask.contains(dictionary.idOf("a"));
+		assert mask.contains(dictionary.idOf("c"));
+		assert !mask.contains(dictionary.idOf("b"));
+		assert !mask.contains(1000);
+		}
+
+	@Test
+	public void dominantLabelIsTheHeaviestInTheMask()
+		{
+		final LabelDictionary dictionary = new LabelDictionary();
+		final ConcurrentHashWeightedSet<String> labels = new ConcurrentHashWeightedSet<String>();
+		labels.add("a", 1, 1);
+		labels.add("b", 3, 1);
+		labels.add("c", 2, 1);
+
+		final LabelWeights weights = LabelWeights.of(labels, dictionary);
+		assert weights.size() == 3;
+		assert weights.getItemCount() == 3;
+		for (int i = 1; i < weights.size(); i++)
+			{
+			assert weights.getId(i - 1) < weights.getId(i);
+			}
+
+		assert weights.getDominantLabelIn(dictionary.mask(Arrays.asList("a", "b", "c"))).equals("b");
+		assert weights.getDominantLabelIn(dictionary.mask(Arrays.asList("a", "c"))).equals("c");
+		try
+			{
+			weights.getDominantLabelIn(dictionary.mask(Arrays.asList("d")));
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void sampleLabelsAreLookedUpWithoutInterning()
+		{
+		final LabelDictionary dictionary = new LabelDictionary();
+		// interned in the opposite of their sort order, so that ties must not be broken by id
+		final LabelMask mask = dictionary.mask(Arrays.asList("c", "b", "a"));
+		assert dictionary.size() == 3;
+
+		final ConcurrentHashWeightedSet<String> labels = new ConcurrentHashWeightedSet<String>();
+		labels.add("unseen", 5, 1);
+		labels.add("c", 2, 1);
+		labels.add("b", 2, 1);
+		labels.add("a", 1, 1);
+
+		final LabelWeights sampleLabels = LabelWeights.lookUp(labels, dictionary);
+		assert sampleLabels.size() == 3;
+		assert sampleLabels.getDominantLabelIn(mask).equals("b");
+		assert dictionary.size() == 3;
+		assert dictionary.idOf("unseen") == -1;
+
+		// the interned form agrees, though "unseen" now has the greatest id
+		assert LabelWeights.of(labels, dictionary).getDominantLabelIn(mask).equals("b");
+
+		try
+			{
+			sampleLabels.getDominantLabelIn(dictionary.mask(Arrays.asList("d")));
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void weightedSetFormIsRebuiltFromTheCompactForm()
+		{
+		final ConcurrentHashWeightedSet<String> labels = new ConcurrentHashWeightedSet<String>();
+		labels.add("a", 1, 1);
+		labels.add("b", 3, 1);
+
+		final LabelWeights weights = LabelWeights.of(labels, new LabelDictionary());
+		final WeightedSet<String> rebuilt = weights.toWeightedSet();
+		assert rebuilt.getItemCount() == labels.getItemCount();
+		assert rebuilt.getItemNormalizedMap().equals(labels.getItemNormalizedMap());
+		for (int i = 0; i < weights.size(); i++)
+			{
+			assert weights.getNormalizedWeight(i) == labels.getNormalized(weights.getLabel(i));
+			}
+		}
+
+	@Test
+	public void remappingTranslatesTheIdsAndKeepsTheWeights()
+		{
+		final ConcurrentHashWeightedSet<String> labels = new ConcurrentHashWeightedSet<String>();
+		labels.add("a", 1, 1);
+		labels.add("b", 3, 1);
+		labels.add("c", 2, 1);
+
+		final LabelDictionary first = new LabelDictionary();
+		final LabelWeights weights = LabelWeights.of(labels, first);
+		assert weights.remappedTo(first) == weights;
+
+		// interned in another order, so that the ids differ
+		final LabelDictionary second = new LabelDictionary();
+		second.intern("z");
+		second.intern("c");
+		second.intern("b");
+		final LabelWeights remapped = weights.remappedTo(second);
+		assert remapped.getDictionary() == second;
+		assert remapped.size() == weights.size();
+		assert remapped.getItemCount() == weights.getItemCount();
+		for (int i = 0; i < remapped.size(); i++)
+			{
+			assert i == 0 || remapped.getId(i - 1) < remapped.getId(i);
+			assert second.labelOf(remapped.getId(i)).equals(remapped.getLabel(i));
+			assert remapped.getWeight(i) == labels.getItemNormalizedMap().get(remapped.getLabel(i));
+			assert remapped.getNormalizedWeight(i) == labels.getNormalized(remapped.getLabel(i));
+			}
+		assert remapped.getDominantLabelIn(second.mask(Arrays.asList("a", "c"))).equals("c");
+		}
+	}
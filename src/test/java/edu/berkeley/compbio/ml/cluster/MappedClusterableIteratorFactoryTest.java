@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class MappedClusterableIteratorFactoryTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(MappedClusterableIteratorFactoryTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void samplesSurviveARoundTripInEveryEpoch() throws IOException
+		{
+		final List<ClusterableDoubleArray> samples = new ArrayList<ClusterableDoubleArray>();
+		for (int i = 0; i < 5; i++)
+			{
+			final ClusterableDoubleArray s = new ClusterableDoubleArray("s" + i, new double[]{i, -i, i * 0.5});
+			s.getMutableWeightedLabels().add(i % 2 == 0 ? "even" : "odd", 1.0, 1);
+			if (i == 3)
+				{
+				s.setLabel("three");
+				}
+			samples.add(s);
+			}
+
+		final File file = File.createTempFile("dataset", ".bin");
+		file.deleteOnExit();
+		assert BinaryDatasetWriter.convert(new CollectionClusterableIterator<ClusterableDoubleArray>(samples), file)
+		       == samples.size();
+
+		final MappedClusterableIteratorFactory factory = new MappedClusterableIteratorFactory(file);
+		assert factory.getNumSamples() == samples.size();
+		assert factory.getDimensions() == 3;
+
+		for (int epoch = 0; epoch < 2; epoch++)
+			{
+			final ClusterableIterator<ClusterableDoubleArray> it = factory.next();
+			for (final ClusterableDoubleArray expected : samples)
+				{
+				final ClusterableDoubleArray s = it.nextFullyLabelled();
+				assert s.id.equals(expected.id);
+				assert Arrays.equals(s.getArray(), expected.getArray());
+				assert s.getImmutableWeightedLabels().getItemNormalizedMap()
+						.equals(expected.getImmutableWeightedLabels().getItemNormalizedMap());
+				assert s.getImmutableWeightedLabels().getItemCount() == 1;
+				assert s.getExclusiveLabel() == null ? expected.getExclusiveLabel() == null
+				                                     : s.getExclusiveLabel().equals(expected.getExclusiveLabel());
+				}
+			try
+				{
+				it.next();
+				assert false;
+				}
+			catch (NoSuchElementException e)
+				{
+				// expected
+				}
+			}
+		}
+	}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class MappedModelSnapshotTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(MappedModelSnapshotTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void flatClustersSurviveARoundTrip() throws IOException
+		{
+		final List<CentroidCluster<ClusterableDoubleArray>> clusters =
+				new ArrayList<CentroidCluster<ClusterableDoubleArray>>();
+		for (int i = 0; i < 4; i++)
+			{
+			final ClusterableDoubleArray centroid = new ClusterableDoubleArray("c" + i, new double[]{i, -i, i * 0.5});
+			centroid.getMutableWeightedLabels().add(i % 2 == 0 ? "even" : "odd", 3.0, 3);
+			centroid.getMutableWeightedLabels().add("any", 1.0, 1);
+			final CentroidCluster<ClusterableDoubleArray> c =
+					new BasicCentroidCluster<ClusterableDoubleArray>(10 + i, centroid);
+			c.updateDerivedWeightedLabelsFromLocal();
+			clusters.add(c);
+			}
+
+		final File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		ModelSnapshotWriter.writeFlat(clusters, file);
+
+		final MappedModelSnapshot snapshot = new MappedModelSnapshot(file);
+		assert snapshot.getKind() == ModelSnapshotWriter.KIND_FLAT;
+		assert snapshot.getNumClusters() == clusters.size();
+		assert snapshot.getDimensions() == 3;
+
+		final List<CentroidCluster<ClusterableDoubleArray>> restored = snapshot.getClusters();
+		assert restored.size() == clusters.size();
+		for (int i = 0; i < clusters.size(); i++)
+			{
+			final CentroidCluster<ClusterableDoubleArray> expected = clusters.get(i);
+			final CentroidCluster<ClusterableDoubleArray> c = restored.get(i);
+			assert c == snapshot.getCluster(i);
+			assert c.getId() == expected.getId();
+			assert c.getCentroid().id.equals(expected.getCentroid().id);
+			assert Arrays.equals(c.getCentroid().getArray(), expected.getCentroid().getArray());
+			assert c.getDerivedLabelProbabilities().getItemNormalizedMap()
+					.equals(expected.getDerivedLabelProbabilities().getItemNormalizedMap());
+			assert c.getDerivedLabelProbabilities().getItemCount() == expected.getDerivedLabelProbabilities()
+					.getItemCount();
+			}
+		}
+
+	@Test
+	public void labelsAreRestoredAgainstTheSnapshotDictionaryAndRemapped() throws IOException
+		{
+		final List<CentroidCluster<ClusterableDoubleArray>> clusters =
+				new ArrayList<CentroidCluster<ClusterableDoubleArray>>();
+		for (int i = 0; i < 3; i++)
+			{
+			final ClusterableDoubleArray centroid = new ClusterableDoubleArray("c" + i, new double[]{i});
+			centroid.getMutableWeightedLabels().add("label" + i, 2.0, 2);
+			centroid.getMutableWeightedLabels().add("any", 1.0, 1);
+			final CentroidCluster<ClusterableDoubleArray> c =
+					new BasicCentroidCluster<ClusterableDoubleArray>(i, centroid);
+			c.updateDerivedWeightedLabelsFromLocal();
+			clusters.add(c);
+			}
+
+		final File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		ModelSnapshotWriter.writeFlat(clusters, file);
+		final MappedModelSnapshot snapshot = new MappedModelSnapshot(file);
+
+		// every label is in the snapshot's dictionary once
+		final LabelDictionary snapshotLabels = snapshot.getLabelDictionary();
+		assert snapshotLabels.size() == 4;
+
+		// a dictionary that has seen other labels first, as a clustering method's might have
+		final LabelDictionary methodLabels = new LabelDictionary();
+		methodLabels.intern("other");
+		methodLabels.intern("label2");
+		for (int i = 0; i < clusters.size(); i++)
+			{
+			final CentroidCluster<ClusterableDoubleArray> c = snapshot.getCluster(i);
+			final LabelWeights restored = c.getDerivedLabelWeights(snapshotLabels);
+			assert restored.getDictionary() == snapshotLabels;
+
+			final LabelWeights remapped = c.getDerivedLabelWeights(methodLabels);
+			assert remapped.getDictionary() == methodLabels;
+			assert c.getDerivedLabelWeights(methodLabels) == remapped;
+			assert remapped.getDominantLabelIn(methodLabels.mask(Arrays.asList("label" + i, "any")))
+					.equals("label" + i);
+			assert c.getDerivedLabelProbabilities().getItemNormalizedMap()
+					.equals(clusters.get(i).getDerivedLabelProbabilities().getItemNormalizedMap());
+			}
+		}
+
+	@Test
+	public void otherFilesAreRejected() throws IOException
+		{
+		final File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		assert BinaryDatasetWriter.convert(new CollectionClusterableIterator<ClusterableDoubleArray>(
+				new ArrayList<ClusterableDoubleArray>()), file) == 0;
+		try
+			{
+			new MappedModelSnapshot(file);
+			assert false;
+			}
+		catch (IOException e)
+			{
+			// expected
+			}
+		}
+	}
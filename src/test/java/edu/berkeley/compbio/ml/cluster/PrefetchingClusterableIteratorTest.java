@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class PrefetchingClusterableIteratorTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(PrefetchingClusterableIteratorTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void aSingleProducerPreservesTheOrder()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(100);
+		final PrefetchingClusterableIterator<ClusterableDoubleArray> it =
+				new PrefetchingClusterableIterator<ClusterableDoubleArray>(
+						new CollectionClusterableIterator<ClusterableDoubleArray>(samples), 4, 1);
+
+		final List<ClusterableDoubleArray> result = new ArrayList<ClusterableDoubleArray>();
+		for (int i = 0; i < 10; i++)
+			{
+			result.add(it.next());
+			}
+		while (it.nextBatch(result, 7) > 0)
+			{
+			// keep going
+			}
+		assert result.equals(samples);
+
+		// the end is seen repeatedly
+		assert it.nextBatch(result, 7) == 0;
+		try
+			{
+			it.next();
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void closingStopsTheProducers()
+		{
+		final PrefetchingClusterableIterator<ClusterableDoubleArray> it =
+				new PrefetchingClusterableIterator<ClusterableDoubleArray>(
+						new CollectionClusterableIterator<ClusterableDoubleArray>(TestSamples.numbered(1000)), 2, 2);
+		it.next();
+		it.close();
+		try
+			{
+			it.next();
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void theFactoryClosesThePreviousEpochsIterator()
+		{
+		final PrefetchingClusterableIteratorFactory<ClusterableDoubleArray> factory =
+				new PrefetchingClusterableIteratorFactory<ClusterableDoubleArray>(
+						new ClusterableIteratorFactory<ClusterableDoubleArray>(TestSamples.numbered(1000)), 2, 1);
+		final ClusterableIterator<ClusterableDoubleArray> first = factory.next();
+		first.next();
+
+		// abandoned part way through
+		final ClusterableIterator<ClusterableDoubleArray> second = factory.next();
+		try
+			{
+			first.next();
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		assert second.next() != null;
+
+		factory.close();
+		try
+			{
+			second.next();
+			assert false;
+			}
+		catch (NoSuchElementException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void failuresAreRethrownAfterTheSamplesBeforeThem()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(5);
+		final CollectionClusterableIterator<ClusterableDoubleArray> failing =
+				new CollectionClusterableIterator<ClusterableDoubleArray>(samples)
+				{
+				private int count = 0;
+
+				@Override
+				public ClusterableDoubleArray next()
+					{
+					if (++count > 3)
+						{
+						throw new IllegalStateException();
+						}
+					return super.next();
+					}
+				};
+		final PrefetchingClusterableIterator<ClusterableDoubleArray> it =
+				new PrefetchingClusterableIterator<ClusterableDoubleArray>(failing, 10, 1);
+		for (int i = 0; i < 3; i++)
+			{
+			assert it.next() == samples.get(i);
+			}
+		try
+			{
+			it.next();
+			assert false;
+			}
+		catch (IllegalStateException e)
+			{
+			// expected
+			}
+		}
+
+	@Test
+	public void severalProducersProvideEverySampleOnce()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(1000);
+		final PrefetchingClusterableIterator<ClusterableDoubleArray> it =
+				new PrefetchingClusterableIterator<ClusterableDoubleArray>(
+						new ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray>(samples, 3).next(), 16, 3);
+
+		final Set<ClusterableDoubleArray> seen = new HashSet<ClusterableDoubleArray>();
+		final List<ClusterableDoubleArray> batch = new ArrayList<ClusterableDoubleArray>();
+		while (it.nextBatch(batch, 50) > 0)
+			{
+			for (final ClusterableDoubleArray s : batch)
+				{
+				assert seen.add(s);
+				}
+			batch.clear();
+			}
+		assert seen.size() == samples.size();
+		}
+	}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class QuantizedCentroidIndexTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(QuantizedCentroidIndexTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void candidatesIncludeTheTrueNearestNeighbors()
+		{
+		final Random random = new Random(5);
+		final int dimensions = 7;
+		final List<CentroidCluster<ClusterableDoubleArray>> clusters =
+				new ArrayList<CentroidCluster<ClusterableDoubleArray>>();
+		for (int i = 0; i < 200; i++)
+			{
+			final ClusterableDoubleArray centroid = new ClusterableDoubleArray("c" + i, randomPoint(random, dimensions));
+			clusters.add(new BasicCentroidCluster<ClusterableDoubleArray>(i, centroid));
+			}
+		final QuantizedCentroidIndex<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>> index =
+				QuantizedCentroidIndex.build(clusters);
+
+		for (int q = 0; q < 50; q++)
+			{
+			final double[] query = randomPoint(random, dimensions);
+			for (final int k : new int[]{1, 5, 200, 300})
+				{
+				final List<CentroidCluster<ClusterableDoubleArray>> candidates =
+						index.candidates(query, k, Double.POSITIVE_INFINITY, null);
+
+				// the k nearest by brute force
+				final double[] distances = new double[clusters.size()];
+				for (int i = 0; i < clusters.size(); i++)
+					{
+					distances[i] = distance(query, clusters.get(i).getCentroid().getArray());
+					}
+				final double[] sorted = distances.clone();
+				Arrays.sort(sorted);
+				final double kthDistance = sorted[Math.min(k, sorted.length) - 1];
+				for (int i = 0; i < clusters.size(); i++)
+					{
+					if (distances[i] <= kthDistance)
+						{
+						assert candidates.contains(clusters.get(i));
+						}
+					}
+				if (k >= clusters.size())
+					{
+					assert candidates.size() == clusters.size();
+					}
+				}
+			}
+		}
+
+	private static double distance(final double[] a, final double[] b)
+		{
+		double result = 0;
+		for (int i = 0; i < a.length; i++)
+			{
+			result += (a[i] - b[i]) * (a[i] - b[i]);
+			}
+		return Math.sqrt(result);
+		}
+
+	private static double[] randomPoint(final Random random, final int dimensions)
+		{
+		final double[] result = new double[dimensions];
+		for (int i = 0; i < dimensions; i++)
+			{
+			result[i] = random.nextGaussian();
+			}
+		return result;
+		}
+	}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.conja.ThreadSafeNextOnlyIterator;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class ShardedPermutingClusterableIteratorFactoryTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(ShardedPermutingClusterableIteratorFactoryTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void chunksCoverTheEpochExactlyOnce()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(23);
+		final ThreadSafeNextOnlyIterator<List<ClusterableDoubleArray>> chunks =
+				new ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray>(samples, 1).nextChunks(5);
+
+		final Set<String> seen = new HashSet<String>();
+		int numChunks = 0;
+		try
+			{
+			while (true)
+				{
+				final List<ClusterableDoubleArray> chunk = chunks.next();
+				assert chunk.size() == (numChunks < 4 ? 5 : 3);
+				for (final ClusterableDoubleArray s : chunk)
+					{
+					assert seen.add(s.id);
+					}
+				numChunks++;
+				}
+			}
+		catch (NoSuchElementException e)
+			{
+			// end of the epoch
+			}
+		assert numChunks == 5;
+		assert seen.size() == samples.size();
+		}
+
+	@Test
+	public void hugeRequestsDoNotOverflowThePosition()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(10);
+		final ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray> factory =
+				new ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray>(samples, 3);
+
+		final BatchClusterableIterator<ClusterableDoubleArray> it =
+				(BatchClusterableIterator<ClusterableDoubleArray>) factory.next();
+		it.next();
+		final List<ClusterableDoubleArray> rest = new ArrayList<ClusterableDoubleArray>();
+		assert it.nextBatch(rest, Integer.MAX_VALUE) == 9;
+		assert it.nextBatch(rest, Integer.MAX_VALUE) == 0;
+		assert drain(it).isEmpty();
+
+		final ThreadSafeNextOnlyIterator<List<ClusterableDoubleArray>> chunks = factory.nextChunks(Integer.MAX_VALUE);
+		assert chunks.next().size() == 10;
+		for (int i = 0; i < 3; i++)
+			{
+			try
+				{
+				chunks.next();
+				assert false;
+				}
+			catch (NoSuchElementException e)
+				{
+				// end of the epoch
+				}
+			}
+		}
+
+	@Test
+	public void sameSeedGivesSameEpochs()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(50);
+		final ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray> a =
+				new ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray>(samples, 42);
+		final ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray> b =
+				new ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray>(samples, 42);
+
+		final List<String> first = drain(a.next());
+		assert first.equals(drain(b.next()));
+		assert !first.equals(drain(a.next()));
+		assert new HashSet<String>(first).size() == samples.size();
+
+		// the underlying list is not shuffled
+		for (int i = 0; i < samples.size(); i++)
+			{
+			assert samples.get(i).id.equals("s" + i);
+			}
+		}
+
+	@Test
+	public void shardsAreDisjointAndCoverTheEpoch()
+		{
+		final List<ClusterableDoubleArray> samples = TestSamples.numbered(10);
+		final List<ClusterableIterator<ClusterableDoubleArray>> shards =
+				new ShardedPermutingClusterableIteratorFactory<ClusterableDoubleArray>(samples, 7).nextShards(3);
+		assert shards.size() == 3;
+
+		final Set<String> seen = new HashSet<String>();
+		for (final ClusterableIterator<ClusterableDoubleArray> shard : shards)
+			{
+			final List<String> ids = drain(shard);
+			assert ids.size() == 3 || ids.size() == 4;
+			for (final String id : ids)
+				{
+				assert seen.add(id);
+				}
+			}
+		assert seen.size() == samples.size();
+		}
+
+	private static List<String> drain(final ClusterableIterator<ClusterableDoubleArray> it)
+		{
+		final List<String> result = new ArrayList<String>();
+		try
+			{
+			while (true)
+				{
+				result.add(it.next().id);
+				}
+			}
+		catch (NoSuchElementException e)
+			{
+			// end of the iterator
+			}
+		return result;
+		}
+	}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import com.davidsoergel.dsutils.DSArrayUtils;
+import com.davidsoergel.dsutils.math.MathUtils;
+import edu.berkeley.compbio.ml.distancemeasure.DoubleArrayKernels;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class SparseClusterableArrayTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(SparseClusterableArrayTest.class);
+
+	private final double[] a = new double[]{0, 2, 0, 0, 5, 0, 7};
+	private final double[] b = new double[]{1, 0, 0, 3, 4, 0, 0};
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void sparseArrayReadsLikeTheDenseOne()
+		{
+		final SparseClusterableArray s = SparseClusterableArray.fromDense("a", a);
+		assert s.isSparse();
+		assert s.getNumStored() == 3;
+		assert s.length() == a.length;
+		for (int i = 0; i < a.length; i++)
+			{
+			assert s.get(i) == a[i];
+			}
+		assert DSArrayUtils.equalWithinFPError(s.getArray(), a);
+		assert s.getArraySum() == 14;
+		}
+
+	@Test
+	public void euclideanDistanceAgreesForEveryCombinationOfRepresentations()
+		{
+		final double expected = DoubleArrayKernels.euclidean(a, b);
+		final EuclideanDistance measure = EuclideanDistance.getInstance();
+		final ClusterableDoubleArray denseA = new ClusterableDoubleArray("a", a.clone());
+		final ClusterableDoubleArray denseB = new ClusterableDoubleArray("b", b.clone());
+		final SparseClusterableArray sparseA = SparseClusterableArray.fromDense("a", a);
+		final SparseClusterableArray sparseB = SparseClusterableArray.fromDense("b", b);
+
+		assert MathUtils.equalWithinFPError(measure.distanceFromTo(sparseA, sparseB), expected);
+		assert MathUtils.equalWithinFPError(measure.distanceFromTo(sparseA, denseB), expected);
+		assert MathUtils.equalWithinFPError(measure.distanceFromTo(denseA, sparseB), expected);
+		assert MathUtils.equalWithinFPError(measure.distanceFromTo(denseA, denseB), expected);
+		}
+
+	@Test
+	public void accumulatingIntoACentroidMatchesDenseArithmetic()
+		{
+		final ClusterableDoubleArray centroid = new ClusterableDoubleArray("c", b.clone());
+		centroid.incrementBy(SparseClusterableArray.fromDense("a", a));
+		centroid.decrementByWeighted(SparseClusterableArray.fromDense("a", a), 0.5);
+		for (int i = 0; i < a.length; i++)
+			{
+			assert MathUtils.equalWithinFPError(centroid.get(i), b[i] + 0.5 * a[i]);
+			}
+
+		// a sparse centroid becomes dense when it is first accumulated into
+		final SparseClusterableArray sparseCentroid = SparseClusterableArray.fromDense("c", b);
+		sparseCentroid.incrementBy(new ClusterableDoubleArray("a", a.clone()));
+		assert !sparseCentroid.isSparse();
+		for (int i = 0; i < a.length; i++)
+			{
+			assert sparseCentroid.get(i) == a[i] + b[i];
+			}
+		}
+
+	@Test
+	public void fusedUpdatesMatchTheirUnfusedEquivalents()
+		{
+		final ClusterableDoubleArray moved = new ClusterableDoubleArray("c", b.clone());
+		final ClusterableDoubleArray movedBySparse = new ClusterableDoubleArray("c", b.clone());
+		moved.moveToward(new ClusterableDoubleArray("a", a.clone()), 0.25);
+		movedBySparse.moveToward(SparseClusterableArray.fromDense("a", a), 0.25);
+
+		final ClusterableDoubleArray mixed = new ClusterableDoubleArray("c", b.clone());
+		final ClusterableDoubleArray mixedBySparse = new ClusterableDoubleArray("c", b.clone());
+		mixed.weightedMixture(new ClusterableDoubleArray("a", a.clone()), 0.5, 2);
+		mixedBySparse.weightedMixture(SparseClusterableArray.fromDense("a", a), 0.5, 2);
+
+		for (int i = 0; i < a.length; i++)
+			{
+			assert MathUtils.equalWithinFPError(moved.get(i), b[i] + 0.25 * (a[i] - b[i]));
+			assert MathUtils.equalWithinFPError(movedBySparse.get(i), moved.get(i));
+			assert MathUtils.equalWithinFPError(mixed.get(i), 0.5 * b[i] + 2 * a[i]);
+			assert MathUtils.equalWithinFPError(mixedBySparse.get(i), mixed.get(i));
+			}
+		}
+
+	@Test
+	public void sparseArrayIsAtDistanceZeroFromItsDenseCopy()
+		{
+		// a large norm, so that any cancellation error would be visible
+		final double[] c = new double[]{0, 1e8 + 0.1, 0, 0.3, 0, 0, 7e7 + 0.7, 0, 1e-3};
+		final SparseClusterableArray sparse = SparseClusterableArray.fromDense("c", c);
+		final ClusterableDoubleArray dense = new ClusterableDoubleArray("c", c.clone());
+
+		assert EuclideanDistance.getInstance().distanceFromTo(sparse, dense) == 0;
+		assert EuclideanDistance.getInstance().distanceFromTo(dense, sparse) == 0;
+
+		// a nearby vector keeps its precision too
+		final double[] near = c.clone();
+		near[3] += 1e-4;
+		near[4] = 2e-4;
+		final double expected = Math.sqrt(1e-4 * 1e-4 + 2e-4 * 2e-4);
+		final double actual =
+				EuclideanDistance.getInstance().distanceFromTo(SparseClusterableArray.fromDense("near", near), dense);
+		assert Math.abs(actual - expected) < 1e-9 * expected;
+		}
+	}
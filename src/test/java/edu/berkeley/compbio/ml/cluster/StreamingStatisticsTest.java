@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class StreamingStatisticsTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(StreamingStatisticsTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void summaryMatchesTheExactValues()
+		{
+		final Random random = new Random(1234);
+		final double[] values = new double[100000];
+		final StreamingStatistics s = new StreamingStatistics(0., 1., .01);
+		for (int i = 0; i < values.length; i++)
+			{
+			values[i] = random.nextGaussian() * 3 + 0.5;
+			s.add(values[i]);
+			}
+		Arrays.sort(values);
+
+		double sum = 0;
+		for (final double v : values)
+			{
+			sum += v;
+			}
+		final double mean = sum / values.length;
+		double ss = 0;
+		for (final double v : values)
+			{
+			ss += (v - mean) * (v - mean);
+			}
+
+		assert s.getCount() == values.length;
+		assert Math.abs(s.getMean() - mean) < 1e-9;
+		assert Math.abs(s.getStdDev() - Math.sqrt(ss / values.length)) < 1e-9;
+		assert s.getMin() == values[0];
+		assert s.getMax() == values[values.length - 1];
+
+		for (final double q : new double[]{0, 0.1, 0.5, 0.9, 0.95, 0.99, 1})
+			{
+			final double exact = values[(int) Math.floor(q * (values.length - 1))];
+			assert Math.abs(s.getQuantile(q) - exact) <= Math.abs(exact) * s.getRelativeAccuracy() + 1e-12;
+			}
+
+		long inRange = 0;
+		for (final long c : s.getHistogramCounts())
+			{
+			inRange += c;
+			}
+		long expected = 0;
+		for (final double v : values)
+			{
+			if (v >= 0 && v < 1)
+				{
+				expected++;
+				}
+			}
+		assert inRange == expected;
+		}
+
+	@Test
+	public void mergedSummaryMatchesASingleSummary()
+		{
+		final Random random = new Random(5678);
+		final StreamingStatistics all = new StreamingStatistics();
+		final StreamingStatistics a = new StreamingStatistics();
+		final StreamingStatistics b = new StreamingStatistics();
+		for (int i = 0; i < 10000; i++)
+			{
+			final double v = Math.exp(random.nextGaussian() * 20);
+			all.add(v);
+			(i % 3 == 0 ? a : b).add(v);
+			}
+		a.addAll(b);
+
+		assert a.getCount() == all.getCount();
+		assert Math.abs(a.getMean() - all.getMean()) <= Math.abs(all.getMean()) * 1e-9;
+		assert a.getMin() == all.getMin();
+		assert a.getMax() == all.getMax();
+		for (final double q : new double[]{0, 0.25, 0.5, 0.75, 1})
+			{
+			assert a.getQuantile(q) == all.getQuantile(q);
+			}
+		}
+
+	@Test
+	public void emptyAndConstantSummariesAreRecognized()
+		{
+		final StreamingStatistics s = new StreamingStatistics();
+		assert s.allEqual(1.0);
+		assert s.allNaN();
+		assert Double.isNaN(s.getQuantile(0.5));
+
+		s.add(Double.NaN);
+		assert s.allNaN();
+		assert !s.allEqual(1.0);
+
+		final StreamingStatistics t = new StreamingStatistics();
+		t.add(1.0);
+		t.add(1.0);
+		assert t.allEqual(1.0);
+		assert !t.allNaN();
+		assert t.getQuantile(0.5) == 1.0;
+		}
+	}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class StripedCounterTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(StripedCounterTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void countsFromManyThreadsAreSummed() throws InterruptedException
+		{
+		final StripedCounter counter = new StripedCounter();
+		counter.add(5);
+
+		// several generations of threads, so that the cells of dead ones are folded in along the way
+		for (int generation = 0; generation < 3; generation++)
+			{
+			final Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++)
+				{
+				threads[i] = new Thread()
+				{
+				@Override
+				public void run()
+					{
+					for (int j = 0; j < 100000; j++)
+						{
+						counter.increment();
+						}
+					}
+				};
+				threads[i].start();
+				}
+			for (final Thread thread : threads)
+				{
+				thread.join();
+				}
+			}
+
+		assert counter.get() == 5 + 3 * 4 * 100000;
+		}
+	}
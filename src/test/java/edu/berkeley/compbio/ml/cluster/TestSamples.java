@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples shared by several tests
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public final class TestSamples
+	{
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	private TestSamples()
+		{
+		}
+
+// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * @return n one-dimensional samples, the ith of which has id "s" + i and value i
+	 */
+	public static List<ClusterableDoubleArray> numbered(final int n)
+		{
+		final List<ClusterableDoubleArray> result = new ArrayList<ClusterableDoubleArray>(n);
+		for (int i = 0; i < n; i++)
+			{
+			result.add(new ClusterableDoubleArray("s" + i, new double[]{i}));
+			}
+		return result;
+		}
+
+	/**
+	 * @return a sample with the given id.  A plain ClusterableDoubleArray reports none, so it can be neither assigned to a
+	 *         cluster nor memoized.
+	 */
+	public static ClusterableDoubleArray withId(final String id, final double... values)
+		{
+		return new ClusterableDoubleArray(id, values)
+		{
+		@Override
+		public String getId()
+			{
+			return id;
+			}
+		};
+		}
+	}
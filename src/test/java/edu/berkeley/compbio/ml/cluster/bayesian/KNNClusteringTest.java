@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.cluster.bayesian;
+
+import com.google.common.collect.TreeMultimap;
+import edu.berkeley.compbio.ml.cluster.BasicCentroidCluster;
+import edu.berkeley.compbio.ml.cluster.CentroidCluster;
+import edu.berkeley.compbio.ml.cluster.ClusterMove;
+import edu.berkeley.compbio.ml.cluster.ClusterableDoubleArray;
+import edu.berkeley.compbio.ml.cluster.ExecutionPolicy;
+import edu.berkeley.compbio.ml.cluster.NoGoodClusterException;
+import edu.berkeley.compbio.ml.cluster.TestSamples;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class KNNClusteringTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(KNNClusteringTest.class);
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void partitionedScanFindsTheSameNearestClusters() throws NoGoodClusterException
+		{
+		final KNNClustering<ClusterableDoubleArray> method =
+				new KNNClustering<ClusterableDoubleArray>(EuclideanDistance.getInstance(), 4, new HashSet<String>(),
+				                                          new HashMap<String, Set<String>>(), null,
+				                                          new HashSet<String>(), 5, 0.5, 0.9, 0.9, null);
+
+		final Random random = new Random(1234);
+		for (int i = 0; i < 200; i++)
+			{
+			// a coarse grid, so that there are plenty of ties, including at the k'th distance
+			final ClusterableDoubleArray centroid =
+					TestSamples.withId("c" + i, random.nextInt(5), random.nextInt(5), random.nextInt(5));
+			method.addCluster(new BasicCentroidCluster<ClusterableDoubleArray>(i, centroid));
+			}
+
+		final ExecutionPolicy policy = ExecutionPolicy.fixedPool(4, 1);
+		for (int q = 0; q < 50; q++)
+			{
+			final ClusterableDoubleArray query =
+					TestSamples.withId("q" + q, random.nextInt(5), random.nextInt(5), random.nextDouble() * 5);
+
+			// k = 0 keeps every cluster within the unknown threshold, sorted by distance and then by cluster id
+			method.setPartitionedScan(null, 0);
+			final List<String> all = describe(method.nearestClusterMoves(query, 0));
+
+			for (final int k : new int[]{0, 1, 5, 20})
+				{
+				method.setPartitionedScan(null, 0);
+				final List<String> expected = describe(method.nearestClusterMoves(query, k));
+				assert expected.equals(k == 0 ? all : all.subList(0, Math.min(k, all.size())));
+
+				for (final int partitionSize : new int[]{1, 7, 64, 199})
+					{
+					method.setPartitionedScan(policy, partitionSize);
+					assert describe(method.nearestClusterMoves(query, k)).equals(expected);
+					}
+				}
+			}
+		}
+
+	/**
+	 * @return the distance and cluster id of each move, in order
+	 */
+	private static List<String> describe(final TreeMultimap<Double, ClusterMove<ClusterableDoubleArray,
+			CentroidCluster<ClusterableDoubleArray>>> moves)
+		{
+		final List<String> result = new ArrayList<String>(moves.size());
+		for (final Map.Entry<Double, ClusterMove<ClusterableDoubleArray, CentroidCluster<ClusterableDoubleArray>>> e :
+				moves.entries())
+			{
+			result.add(e.getKey() + ":" + e.getValue().bestCluster.getId());
+			}
+		return result;
+		}
+	}
@@ -8,11 +8,28 @@
 package edu.berkeley.compbio.ml.cluster.kmeans;
 
 import com.davidsoergel.dsutils.math.MathUtils;
+import edu.berkeley.compbio.ml.cluster.AdditiveCentroidCluster;
+import edu.berkeley.compbio.ml.cluster.CentroidCluster;
+import edu.berkeley.compbio.ml.cluster.ClusterException;
+import edu.berkeley.compbio.ml.cluster.ClusterableDoubleArray;
+import edu.berkeley.compbio.ml.cluster.ClusterableIteratorFactory;
+import edu.berkeley.compbio.ml.cluster.EmptyClusteringMetricsListener;
+import edu.berkeley.compbio.ml.cluster.ExecutionPolicy;
+import edu.berkeley.compbio.ml.cluster.TestSamples;
+import edu.berkeley.compbio.ml.distancemeasure.EuclideanDistance;
 import org.apache.log4j.Logger;
 import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * @version 1.0
@@ -61,4 +78,88 @@ public class KmeansClusteringTest
 			  assert true; // this test doesn't assert anything,but looks good
   */
 		}
+
+	@Test
+	public void miniBatchesOfOneMatchSequentialTraining() throws ClusterException
+		{
+		final TrainingRun sequential = new TrainingRun(0);
+		final TrainingRun miniBatch = new TrainingRun(1);
+		assert sequential.changed.get(0) > 0;
+		assert miniBatch.changed.equals(sequential.changed);
+		assert miniBatch.assignments.equals(sequential.assignments);
+		assert Arrays.deepEquals(miniBatch.centroids, sequential.centroids);
+		}
+
+	@Test
+	public void miniBatchTrainingIsDeterministic() throws ClusterException
+		{
+		final TrainingRun first = new TrainingRun(16);
+		for (int i = 0; i < 3; i++)
+			{
+			final TrainingRun again = new TrainingRun(16);
+			assert again.changed.equals(first.changed);
+			assert again.assignments.equals(first.assignments);
+			assert Arrays.deepEquals(again.centroids, first.centroids);
+			}
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Trains a fresh clustering on the same samples in the same order, recording the number of samples reassigned in
+	 * each epoch and the resulting assignments and centroids
+	 */
+	private static class TrainingRun
+		{
+		private final List<Integer> changed = new ArrayList<Integer>();
+		private final Map<String, Integer> assignments = new HashMap<String, Integer>();
+		private final double[][] centroids;
+
+		private TrainingRun(final int miniBatchSize) throws ClusterException
+			{
+			final KmeansClustering<ClusterableDoubleArray> method =
+					new KmeansClustering<ClusterableDoubleArray>(EuclideanDistance.getInstance(), new HashSet<String>(),
+					                                             new HashMap<String, Set<String>>(), null,
+					                                             new HashSet<String>());
+			method.setMiniBatchSize(miniBatchSize);
+			method.setExecutionPolicy(ExecutionPolicy.fixedPool(4, 1));
+			method.setMetricsListener(new EmptyClusteringMetricsListener()
+			{
+			@Override
+			public void epochCompleted(final int epoch, final int samples, final int reassignments,
+			                           final long distanceEvaluations, final long nanos)
+				{
+				changed.add(reassignments);
+				}
+			});
+
+			// three overlapping blobs, so that samples keep moving for a few epochs
+			final Random random = new Random(1234);
+			final List<ClusterableDoubleArray> samples = new ArrayList<ClusterableDoubleArray>();
+			for (int i = 0; i < 300; i++)
+				{
+				final int blob = i % 3;
+				samples.add(TestSamples.withId("p" + i, blob + random.nextGaussian(),
+				                               blob * blob + random.nextGaussian()));
+				}
+			for (int i = 0; i < 3; i++)
+				{
+				method.addCluster(
+						new AdditiveCentroidCluster<ClusterableDoubleArray>(i, TestSamples.withId("c" + i, i, 0)));
+				}
+
+			method.train(new ClusterableIteratorFactory<ClusterableDoubleArray>(samples), 5);
+
+			for (final ClusterableDoubleArray sample : samples)
+				{
+				assignments.put(sample.getId(), method.getAssignment(sample.getId()).getId());
+				}
+			final List<CentroidCluster<ClusterableDoubleArray>> clusters = method.getClusters();
+			centroids = new double[clusters.size()][];
+			for (int i = 0; i < centroids.length; i++)
+				{
+				centroids[i] = clusters.get(i).getCentroid().getArray();
+				}
+			}
+		}
 	}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2006-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.ml.distancemeasure;
+
+import com.davidsoergel.dsutils.math.MathUtils;
+import org.apache.log4j.Logger;
+import org.testng.annotations.Test;
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class DoubleArrayKernelsTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(DoubleArrayKernelsTest.class);
+
+	// seven elements, so that both the unrolled loop and the remainder loop are exercised
+	private final double[] a = new double[]{1, 2, 3, 4, 5, 6, 7};
+	private final double[] b = new double[]{7, 5, 3, 1, -1, -3, -5};
+
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void kernelsMatchNaiveLoops()
+		{
+		double sq = 0;
+		double l1 = 0;
+		double ab = 0;
+		double aa = 0;
+		double bb = 0;
+		for (int i = 0; i < a.length; i++)
+			{
+			sq += (a[i] - b[i]) * (a[i] - b[i]);
+			l1 += Math.abs(a[i] - b[i]);
+			ab += a[i] * b[i];
+			aa += a[i] * a[i];
+			bb += b[i] * b[i];
+			}
+
+		assert MathUtils.equalWithinFPError(DoubleArrayKernels.squaredEuclidean(a, b), sq);
+		assert MathUtils.equalWithinFPError(DoubleArrayKernels.euclidean(a, b), Math.sqrt(sq));
+		assert MathUtils.equalWithinFPError(DoubleArrayKernels.manhattan(a, b), l1);
+		assert MathUtils.equalWithinFPError(DoubleArrayKernels.dot(a, b), ab);
+		assert MathUtils.equalWithinFPError(DoubleArrayKernels.cosineDistance(a, b), 1.0 - ab / Math.sqrt(aa * bb));
+		}
+
+	@Test
+	public void offsetsSelectTheRightRegion()
+		{
+		final double[] packed = new double[]{100, 100, 1, 2, 3, 4, 5, 6, 7, 100};
+		assert DoubleArrayKernels.squaredEuclidean(a, 0, packed, 2, a.length) == 0;
+		assert MathUtils.equalWithinFPError(DoubleArrayKernels.euclidean(packed, 2, b, 0, b.length),
+		                                    DoubleArrayKernels.euclidean(a, b));
+		}
+
+	@Test
+	public void boundedKernelsAreExactWithinTheBoundAndAbandonBeyondIt()
+		{
+		final double[] longA = new double[40];
+		final double[] longB = new double[40];
+		for (int i = 0; i < longA.length; i++)
+			{
+			longA[i] = i;
+			longB[i] = 2 * i;
+			}
+		final double exact = DoubleArrayKernels.euclidean(longA, longB);
+
+		assert DoubleArrayKernels.euclideanBounded(longA, 0, longB, 0, longA.length, exact) == exact;
+		assert DoubleArrayKernels.euclideanBounded(longA, 0, longB, 0, longA.length, Double.POSITIVE_INFINITY) == exact;
+		assert DoubleArrayKernels.euclideanBounded(longA, 0, longB, 0, longA.length, exact / 2) > exact / 2;
+
+		final double l1 = DoubleArrayKernels.manhattan(longA, longB);
+		assert DoubleArrayKernels.manhattanBounded(longA, 0, longB, 0, longA.length, l1) == l1;
+		assert DoubleArrayKernels.manhattanBounded(longA, 0, longB, 0, longA.length, 1) > 1;
+		}
+
+	@Test
+	public void cosineDistanceOfParallelVectorsIsZero()
+		{
+		final double[] twiceA = new double[a.length];
+		for (int i = 0; i < a.length; i++)
+			{
+			twiceA[i] = 2 * a[i];
+			}
+		assert MathUtils.equalWithinFPError(DoubleArrayKernels.cosineDistance(a, twiceA), 0);
+		}
+	}